@@ -36,4 +36,17 @@ public interface CKANBackend {
      */
     void persist(String orgName, String pkgName, String resName, String records) throws Exception;
     
+    /**
+     * Persist data in the CKAN datastore associated with the entity in a given organization. The records are sent as
+     * they are, i.e. as comma separated Json objects encoded as UTF-8.
+     * 
+     * @param orgName Organization name
+     * @param pkgName Package/dataset name
+     * @param resName Resource name
+     * @param records Buffer containing the records to be added to the resource
+     * @param length Number of bytes of the buffer to be added
+     * @throws Exception
+     */
+    void persist(String orgName, String pkgName, String resName, byte[] records, int length) throws Exception;
+    
 } // CKANBackend
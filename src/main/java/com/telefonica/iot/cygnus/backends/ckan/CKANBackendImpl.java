@@ -25,9 +25,13 @@ import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
+import com.telefonica.iot.cygnus.utils.RecordBuffer;
 import java.util.ArrayList;
 import org.json.simple.JSONObject;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHeader;
 import org.json.simple.JSONArray;
@@ -66,6 +70,13 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
 
     @Override
     public void persist(String orgName, String pkgName, String resName, String records) throws Exception {
+        byte[] bytes = records.getBytes("UTF-8");
+        persist(orgName, pkgName, resName, bytes, bytes.length);
+    } // persist
+    
+    @Override
+    public void persist(String orgName, String pkgName, String resName, byte[] records, int length)
+        throws Exception {
         LOGGER.debug("Going to lookup for the resource id, the cache may be updated during the process (orgName="
                 + orgName + ", pkgName=" + pkgName + ", resName=" + resName + ")");
         String resId = resourceLookupOrCreate(orgName, pkgName, resName, true);
@@ -76,12 +87,23 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
         } else {
             LOGGER.debug("Going to persist the data (orgName=" + orgName + ", pkgName=" + pkgName
                     + ", resName/resId=" + resName + "/" + resId + ")");
-            insert(resId, records);
+            insert(resId, records, length);
         } // if else
     } // persist
     
-    private String resourceLookupOrCreate(String orgName, String pkgName, String resName, boolean createEnabled)
-        throws Exception {
+    /**
+     * Looks for the resource id, creating the organization, the package and the resource if they do not exist. It is
+     * synchronized since the sub-batches may be persisted by several threads, and the cache is not thread-safe nor
+     * two threads must create the same CKAN element; the data insertion is not synchronized.
+     * @param orgName
+     * @param pkgName
+     * @param resName
+     * @param createEnabled
+     * @return The resource id, or null if it does not exist and it cannot be created
+     * @throws Exception
+     */
+    private synchronized String resourceLookupOrCreate(String orgName, String pkgName, String resName,
+            boolean createEnabled) throws Exception {
         if (!cache.isCachedOrg(orgName)) {
             LOGGER.debug("The organization was not cached nor existed in CKAN (orgName=" + orgName + ")");
             
@@ -151,14 +173,16 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
     /**
      * Insert records in the datastore.
      * @param resId The resource in which datastore the record is going to be inserted
-     * @param records Records to be inserted in Json format
+     * @param records Buffer containing the records to be inserted in Json format
+     * @param length Number of bytes of the buffer to be inserted
      * @throws Exception
      */
-    private void insert(String resId, String records) throws Exception {
-        String jsonString = "{ \"resource_id\": \"" + resId
-                    + "\", \"records\": [ " + records + " ], "
-                    + "\"method\": \"insert\", "
-                    + "\"force\": \"true\" }";
+    private void insert(String resId, byte[] records, int length) throws Exception {
+        // the records are copied once into the request body, which is sent as it is
+        RecordBuffer body = new RecordBuffer(length + 128);
+        body.append("{ \"resource_id\": \"").append(resId).append("\", \"records\": [ ")
+                .append(records, 0, length)
+                .append(" ], \"method\": \"insert\", \"force\": \"true\" }");
         String urlPath;
         
         try {
@@ -166,7 +190,8 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
             urlPath = "/api/3/action/datastore_upsert";
         
             // do the CKAN request
-            JsonResponse res = doCKANRequest("POST", urlPath, jsonString);
+            JsonResponse res = doCKANRequest("POST", urlPath,
+                    new ByteArrayEntity(body.getBytes(), 0, body.size(), ContentType.APPLICATION_JSON));
             
             // check the status
             if (res.getStatusCode() == 200) {
@@ -443,9 +468,13 @@ public class CKANBackendImpl extends HttpBackend implements CKANBackend {
     } // setCache
     
     private JsonResponse doCKANRequest(String method, String urlPath, String jsonString) throws Exception {
+        return doCKANRequest(method, urlPath, new StringEntity(jsonString));
+    } // doCKANRequest
+    
+    private JsonResponse doCKANRequest(String method, String urlPath, HttpEntity entity) throws Exception {
         ArrayList<Header> headers = new ArrayList<Header>();
         headers.add(new BasicHeader("Authorization", apiKey));
-        return doRequest(method, urlPath, true, headers, new StringEntity(jsonString));
+        return doRequest(method, urlPath, true, headers, entity);
     } // doCKANRequest
 
 } // CKANBackendImpl
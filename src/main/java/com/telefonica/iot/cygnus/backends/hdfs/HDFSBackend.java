@@ -28,7 +28,7 @@ public interface HDFSBackend {
     /**
      * Supported file formats when writting to HDFS.
      */
-    public enum FileFormat { JSONROW, CSVROW, JSONCOLUMN, CSVCOLUMN };
+    public enum FileFormat { JSONROW, CSVROW, JSONCOLUMN, CSVCOLUMN, PARQUETROW };
     
     /**
      * Creates a directory in HDFS given its relative path. The absolute path will be built as:
@@ -49,6 +49,40 @@ public interface HDFSBackend {
      */
     void createFile(String filePath, String data) throws Exception;
     
+    /**
+     * Creates a file in HDFS with initial content given its relative path. The data is written as it is, i.e. it
+     * must already end with a new line. The absolute path will be build as: hdfs:///user/\<hdfsUser\>/\<filePath\>
+     * 
+     * @param filePath File to be created
+     * @param data Buffer containing the data to be written in the created file
+     * @param length Number of bytes of the buffer to be written
+     * @throws Exception
+     */
+    void createFile(String filePath, byte[] data, int length) throws Exception;
+    
+    /**
+     * Creates a file in HDFS with binary content given its relative path. The data is written as it is, i.e. no new
+     * line is added. The absolute path will be build as: hdfs:///user/\<hdfsUser\>/\<filePath\>
+     * 
+     * @param filePath File to be created
+     * @param data Data to be written in the created file
+     * @throws Exception
+     */
+    void createBinaryFile(String filePath, byte[] data) throws Exception;
+    
+    /**
+     * Uploads a file to HDFS given its relative path, overwriting it if already existing, thus a failed upload can be
+     * retried. The data is written as it is. It must only be used for files whose path is unique, e.g. the staged
+     * segments, since a concurrent creation of the same file would be lost. The absolute path will be build as:
+     * hdfs:///user/\<hdfsUser\>/\<filePath\>
+     * 
+     * @param filePath File to be uploaded
+     * @param data Buffer containing the data to be written in the uploaded file
+     * @param length Number of bytes of the buffer to be written
+     * @throws Exception
+     */
+    void uploadFile(String filePath, byte[] data, int length) throws Exception;
+    
     /**
      * Appends data to an existent file in HDFS.
      * 
@@ -58,6 +92,17 @@ public interface HDFSBackend {
      */
     void append(String filePath, String data) throws Exception;
     
+    /**
+     * Appends data to an existent file in HDFS. The data is written as it is, i.e. it must already end with a new
+     * line.
+     * 
+     * @param filePath File to be created
+     * @param data Buffer containing the data to be appended in the file
+     * @param length Number of bytes of the buffer to be appended
+     * @throws Exception
+     */
+    void append(String filePath, byte[] data, int length) throws Exception;
+    
     /**
      * Checks if the file exists in HDFS.
      * 
@@ -76,4 +121,29 @@ public interface HDFSBackend {
      */
     public void provisionHiveTable(FileFormat fileFormat, String dirPath, String fields) throws Exception;
     
+    /**
+     * Provisions a Hive external table given its fields, partitioned by the given partition fields.
+     * @param fileFormat
+     * @param dirPath
+     * @param fields
+     * @param partitionFields Partition fields, or null if the table is not partitioned
+     * @throws Exception
+     */
+    void provisionHiveTable(FileFormat fileFormat, String dirPath, String fields, String partitionFields)
+        throws Exception;
+    
+    /**
+     * Adds a partition to a partitioned Hive external table, if not yet added.
+     * @param fileFormat
+     * @param dirPath
+     * @param partition Partition path relative to dirPath, e.g. year=2015/month=04
+     * @return True if the partition was added or already existed, false otherwise
+     */
+    boolean provisionHivePartition(FileFormat fileFormat, String dirPath, String partition);
+    
+    /**
+     * Releases the resources of the backend, e.g. the open streams.
+     */
+    void close();
+    
 } // HDFSBackend
@@ -23,15 +23,17 @@ import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.security.PrivilegedExceptionAction;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.util.ReflectionUtils;
 
 /**
  *
@@ -39,6 +41,12 @@ import org.apache.hadoop.security.UserGroupInformation;
  */
 public class HDFSBackendImplBinary implements HDFSBackend {
     
+    /**
+     * Available compressions of the files written through the persistent streams. Both codecs are pure Java ones,
+     * thus no native Hadoop library is required.
+     */
+    public enum Compression { NONE, DEFLATE, BZIP2 }
+    
     private final String hdfsUser;
     private final String hdfsPassword;
     private final String oauth2Token;
@@ -47,6 +55,15 @@ public class HDFSBackendImplBinary implements HDFSBackend {
     private final String hivePort;
     private final boolean serviceAsNamespace;
     private FSGetter fsGetter;
+    private boolean persistentStreams;
+    private long rollSize;
+    private long rollInterval;
+    private long idleTimeout;
+    private int maxOpenStreams;
+    private Compression compression = Compression.NONE;
+    private HDFSWriterManager writerManager;
+    private FileSystem writerFileSystem;
+    private final HDFSCache cache;
     private static final CygnusLogger LOGGER = new CygnusLogger(HDFSBackendImplREST.class);
     
     /**
@@ -78,82 +95,220 @@ public class HDFSBackendImplBinary implements HDFSBackend {
         this.hivePort = hivePort;
         this.serviceAsNamespace = serviceAsNamespace;
         this.fsGetter = new FSGetter(hdfsHosts, hdfsPort);
+        this.cache = new HDFSCache();
     } // HDFSBackendImplBinary
     
     protected void setFSGetter(FSGetter fsGetter) {
         this.fsGetter = fsGetter;
     } // setFSGetter
+    
+    /**
+     * Enables the persistent streams: the streams of the written files are kept open, instead of opening and closing
+     * a stream per created or appended data, and the files are rolled by size or time.
+     * @param rollSize Bytes written to a file before rolling it, 0 means never
+     * @param rollInterval Milliseconds since a file was opened before rolling it, 0 means never
+     * @param idleTimeout Milliseconds a stream is kept open without being used, 0 means forever
+     * @param maxOpenStreams Maximum number of open streams
+     */
+    public void enablePersistentStreams(long rollSize, long rollInterval, long idleTimeout, int maxOpenStreams) {
+        this.persistentStreams = true;
+        this.rollSize = rollSize;
+        this.rollInterval = rollInterval;
+        this.idleTimeout = idleTimeout;
+        this.maxOpenStreams = maxOpenStreams;
+    } // enablePersistentStreams
+    
+    /**
+     * Sets the compression of the files written through the persistent streams, which are written as block compressed
+     * SequenceFiles. It has no effect if the persistent streams are not enabled.
+     * @param compression Compression of the files
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    } // setCompression
+    
+    private boolean isCompressed() {
+        return persistentStreams && compression != Compression.NONE;
+    } // isCompressed
+    
+    /**
+     * Gets the manager of the persistent streams, creating it if not yet created. The file system it uses is got
+     * once, and it is not closed until the backend is closed.
+     * @return The manager of the persistent streams
+     * @throws Exception
+     */
+    private synchronized HDFSWriterManager getWriterManager() throws Exception {
+        if (writerManager == null) {
+            UserGroupInformation ugi = UserGroupInformation.createRemoteUser(hdfsUser);
+            FileSystem fileSystem = ugi.doAs(new PrivilegedExceptionAction<FileSystem>() {
+                @Override
+                public FileSystem run() throws Exception {
+                    return fsGetter.get();
+                } // run
+            });
+            
+            if (fileSystem == null) {
+                throw new CygnusPersistenceError("No HDFS file system could be got");
+            } // if
+            
+            CompressionCodec codec = null;
+            
+            if (isCompressed()) {
+                Class<? extends CompressionCodec> codecClass = (compression == Compression.BZIP2
+                        ? BZip2Codec.class : DefaultCodec.class);
+                codec = ReflectionUtils.newInstance(codecClass, fileSystem.getConf());
+            } // if
+            
+            writerFileSystem = fileSystem;
+            writerManager = new HDFSWriterManager(fileSystem, rollSize, rollInterval, idleTimeout, maxOpenStreams,
+                    codec);
+        } // if
+        
+        return writerManager;
+    } // getWriterManager
+    
+    private String getEffectivePath(String path) {
+        return "/user/" + (serviceAsNamespace ? "" : (hdfsUser + "/")) + path;
+    } // getEffectivePath
 
     @Override
     public void createDir(String dirPath) throws Exception {
+        if (cache.isCachedDir(dirPath)) {
+            return;
+        } // if
+        
         CreateDirPEA pea = new CreateDirPEA(dirPath);
         UserGroupInformation ugi = UserGroupInformation.createRemoteUser(hdfsUser);
         ugi.doAs(pea);
+        cache.addDir(dirPath);
     } // createDir
 
     @Override
     public void createFile(String filePath, String data) throws Exception {
-        CreateFilePEA pea = new CreateFilePEA(filePath, data);
+        byte[] bytes = (data + "\n").getBytes();
+        createFile(filePath, bytes, bytes.length);
+    } // createFile
+
+    @Override
+    public void createFile(String filePath, byte[] data, int length) throws Exception {
+        if (persistentStreams) {
+            getWriterManager().write(getEffectivePath(filePath), true, data, length);
+        } else {
+            CreateFilePEA pea = new CreateFilePEA(filePath, data, length);
+            UserGroupInformation ugi = UserGroupInformation.createRemoteUser(hdfsUser);
+            ugi.doAs(pea);
+        } // if else
+        
+        cache.addFile(filePath);
+    } // createFile
+
+    @Override
+    public void createBinaryFile(String filePath, byte[] data) throws Exception {
+        // binary files are complete units, thus they are never written through the persistent streams
+        CreateBinaryFilePEA pea = new CreateBinaryFilePEA(filePath, data);
         UserGroupInformation ugi = UserGroupInformation.createRemoteUser(hdfsUser);
         ugi.doAs(pea);
-    } // createFile
+    } // createBinaryFile
 
     @Override
-    public void append(String filePath, String data) throws Exception {
-        AppendPEA pea = new AppendPEA(filePath, data);
+    public void uploadFile(String filePath, byte[] data, int length) throws Exception {
+        // uploaded files are complete units, thus they are never written through the persistent streams
+        CreateFilePEA pea = new CreateFilePEA(filePath, data, length);
         UserGroupInformation ugi = UserGroupInformation.createRemoteUser(hdfsUser);
         ugi.doAs(pea);
+    } // uploadFile
+
+    @Override
+    public void append(String filePath, String data) throws Exception {
+        byte[] bytes = (data + "\n").getBytes();
+        append(filePath, bytes, bytes.length);
+    } // append
+
+    @Override
+    public void append(String filePath, byte[] data, int length) throws Exception {
+        try {
+            if (persistentStreams) {
+                getWriterManager().write(getEffectivePath(filePath), false, data, length);
+            } else {
+                AppendPEA pea = new AppendPEA(filePath, data, length);
+                UserGroupInformation ugi = UserGroupInformation.createRemoteUser(hdfsUser);
+                ugi.doAs(pea);
+            } // if else
+        } catch (Exception e) {
+            // the file may not exist anymore, thus its existence is checked again by the next batch
+            cache.removeFile(filePath);
+            throw e;
+        } // try catch
+        
+        cache.addFile(filePath);
     } // append
 
     @Override
     public boolean exists(String filePath) throws Exception {
+        // a provisioned file, or a file having an open stream, exists, thus the name node is not queried
+        if (cache.isCachedFile(filePath)
+                || (persistentStreams && getWriterManager().isOpen(getEffectivePath(filePath)))) {
+            return true;
+        } // if
+        
         ExistsPEA pea = new ExistsPEA(filePath);
         UserGroupInformation ugi = UserGroupInformation.createRemoteUser(hdfsUser);
         ugi.doAs(pea);
+        
+        if (pea.exists()) {
+            cache.addFile(filePath);
+        } // if
+        
         return pea.exists();
     } // exists
 
     @Override
     public void provisionHiveTable(FileFormat fileFormat, String dirPath, String fields) throws Exception {
-        String tag;
+        provisionHiveTable(fileFormat, dirPath, fields, null);
+    } // provisionHiveTable
+    
+    @Override
+    public void provisionHiveTable(FileFormat fileFormat, String dirPath, String fields, String partitionFields)
+        throws Exception {
+        String tableName = getHiveTableName(fileFormat, dirPath);
         
-        switch (fileFormat) {
-            case JSONROW:
-            case CSVROW:
-                tag = "_row";
-                break;
-            case JSONCOLUMN:
-            case CSVCOLUMN:
-                tag = "_column";
-                break;
-            default:
-                tag = "";
-        } // switch
+        // an already provisioned table is not created again, saving the connection to Hive
+        if (cache.isCachedTable(tableName)) {
+            return;
+        } // if
         
-        // get the table name to be created
-        // the replacement is necessary because Hive, due it is similar to MySQL, does not accept '-' in the table names
-        String tableName = Utils.encodeHive((serviceAsNamespace ? "" : hdfsUser + "_") + dirPath) + tag;
         LOGGER.info("Creating Hive external table=" + tableName);
         
         // get a Hive client
         HiveBackend hiveClient = new HiveBackend(hiveServerVersion, hiveHost, hivePort, hdfsUser, hdfsPassword);
         
+        // the partition columns are not stored in the files, but in the names of the partition directories
+        String partitionedBy = (partitionFields == null ? "" : " partitioned by (" + partitionFields + ")");
+        
+        // the compressed files are SequenceFiles having a line per record
+        String storedAs = (isCompressed() ? " stored as sequencefile" : "");
+        
         // create the query
         String query;
         
         switch (fileFormat) {
             case JSONCOLUMN:
             case JSONROW:
-                query = "create external table if not exists " + tableName + " (" + fields + ") row format serde "
-                        + "'org.openx.data.jsonserde.JsonSerDe' location '/user/"
+                query = "create external table if not exists " + tableName + " (" + fields + ")" + partitionedBy
+                        + " row format serde 'org.openx.data.jsonserde.JsonSerDe'" + storedAs + " location '/user/"
                         + (serviceAsNamespace ? "" : (hdfsUser + "/")) + dirPath + "'";
                 break;
             case CSVCOLUMN:
             case CSVROW:
-                query = "create external table if not exists " + tableName + " (" + fields + ") row format "
-                        + "delimited fields terminated by ',' location '/user/"
+                query = "create external table if not exists " + tableName + " (" + fields + ")" + partitionedBy
+                        + " row format delimited fields terminated by ','" + storedAs + " location '/user/"
                         + (serviceAsNamespace ? "" : (hdfsUser + "/")) + dirPath + "'";
                 break;
+            case PARQUETROW:
+                query = "create external table if not exists " + tableName + " (" + fields + ")" + partitionedBy
+                        + " stored as parquet location '/user/" + (serviceAsNamespace ? "" : (hdfsUser + "/"))
+                        + dirPath + "'";
+                break;
             default:
                 query = "";
         } // switch
@@ -162,9 +317,89 @@ public class HDFSBackendImplBinary implements HDFSBackend {
         if (!hiveClient.doCreateTable(query)) {
             LOGGER.warn("The HiveQL external table could not be created, but Cygnus can continue working... "
                     + "Check your Hive/Shark installation");
-        } // if
+        } else {
+            cache.addTable(tableName);
+        } // if else
     } // provisionHiveTable
     
+    @Override
+    public boolean provisionHivePartition(FileFormat fileFormat, String dirPath, String partition) {
+        String tableName = getHiveTableName(fileFormat, dirPath);
+        
+        if (cache.isCachedPartition(tableName, partition)) {
+            return true;
+        } // if
+        
+        LOGGER.info("Adding Hive partition=" + partition + " to external table=" + tableName);
+        
+        // get a Hive client
+        HiveBackend hiveClient = new HiveBackend(hiveServerVersion, hiveHost, hivePort, hdfsUser, hdfsPassword);
+        
+        // the partition specification is got from the partition path, e.g. year=2015/month=04 gives
+        // year='2015', month='04'
+        String partitionSpec = "";
+        
+        for (String level : partition.split("/")) {
+            String[] keyValue = level.split("=", 2);
+            partitionSpec += (partitionSpec.isEmpty() ? "" : ", ") + keyValue[0] + "='" + keyValue[1] + "'";
+        } // for
+        
+        // create the query
+        String query = "alter table " + tableName + " add if not exists partition (" + partitionSpec + ") "
+                + "location '/user/" + (serviceAsNamespace ? "" : (hdfsUser + "/")) + dirPath + "/" + partition + "'";
+        
+        // execute the query
+        if (!hiveClient.doCreateTable(query)) {
+            LOGGER.warn("The HiveQL partition could not be added, but Cygnus can continue working... "
+                    + "Check your Hive/Shark installation");
+            return false;
+        } // if
+        
+        cache.addPartition(tableName, partition);
+        return true;
+    } // provisionHivePartition
+    
+    private String getHiveTableName(FileFormat fileFormat, String dirPath) {
+        String tag;
+        
+        switch (fileFormat) {
+            case JSONROW:
+            case CSVROW:
+            case PARQUETROW:
+                tag = "_row";
+                break;
+            case JSONCOLUMN:
+            case CSVCOLUMN:
+                tag = "_column";
+                break;
+            default:
+                tag = "";
+        } // switch
+        
+        // the replacement is necessary because Hive, due it is similar to MySQL, does not accept '-' in the table names
+        return Utils.encodeHive((serviceAsNamespace ? "" : hdfsUser + "_") + dirPath) + tag;
+    } // getHiveTableName
+    
+    @Override
+    public synchronized void close() {
+        cache.clear();
+        
+        if (writerManager == null) {
+            return;
+        } // if
+        
+        writerManager.close();
+        writerManager = null;
+        
+        try {
+            writerFileSystem.close();
+        } catch (IOException e) {
+            LOGGER.warn("The HDFS file system could not be closed. Details=" + e.getMessage());
+        } // try catch
+        
+        writerFileSystem = null;
+    } // close
+    
     /**
      * Privileged Exception Action for creating a new HDFS directory.
      */
@@ -200,11 +435,13 @@ public class HDFSBackendImplBinary implements HDFSBackend {
     private class CreateFilePEA implements PrivilegedExceptionAction {
         
         private final String filePath;
-        private final String data;
+        private final byte[] data;
+        private final int length;
         
-        public CreateFilePEA(String filePath, String data) {
+        public CreateFilePEA(String filePath, byte[] data, int length) {
             this.filePath = filePath;
             this.data = data;
+            this.length = length;
         } // CreateFilePEA
 
         @Override
@@ -220,26 +457,61 @@ public class HDFSBackendImplBinary implements HDFSBackend {
                         + filePath + " file could not be created in HDFS");
             } // if
         
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
-            writer.write(data + "\n");
-            writer.close();
+            out.write(data, 0, length);
+            out.close();
             fileSystem.close();
             return null;
         } // run
     
     } // CreateFilePEA
     
+    /**
+     * Privileged Exception Action for creating a new HDFS file with binary content.
+     */
+    private class CreateBinaryFilePEA implements PrivilegedExceptionAction {
+        
+        private final String filePath;
+        private final byte[] data;
+        
+        public CreateBinaryFilePEA(String filePath, byte[] data) {
+            this.filePath = filePath;
+            this.data = data;
+        } // CreateBinaryFilePEA
+
+        @Override
+        public Void run() throws Exception {
+            String effectiveFilePath = "/user/" + (serviceAsNamespace ? "" : (hdfsUser + "/")) + filePath;
+            FileSystem fileSystem = fsGetter.get();
+            Path path = new Path(effectiveFilePath);
+            FSDataOutputStream out = fileSystem.create(path, false);
+        
+            if (out == null) {
+                fileSystem.close();
+                throw new CygnusPersistenceError("The /user/" + (serviceAsNamespace ? "" : (hdfsUser + "/"))
+                        + filePath + " file could not be created in HDFS");
+            } // if
+        
+            out.write(data);
+            out.close();
+            fileSystem.close();
+            return null;
+        } // run
+    
+    } // CreateBinaryFilePEA
+    
     /**
      * Privileged Exception Action for appending data to an existing HDFS file.
      */
     private class AppendPEA implements PrivilegedExceptionAction {
         
         private final String filePath;
-        private final String data;
+        private final byte[] data;
+        private final int length;
         
-        public AppendPEA(String filePath, String data) {
+        public AppendPEA(String filePath, byte[] data, int length) {
             this.filePath = filePath;
             this.data = data;
+            this.length = length;
         } // AppendPEA
 
         @Override
@@ -255,9 +527,8 @@ public class HDFSBackendImplBinary implements HDFSBackend {
                         + filePath + " file could not be created in HDFS");
             } // if
         
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
-            writer.append(data + "\n");
-            writer.close();
+            out.write(data, 0, length);
+            out.close();
             fileSystem.close();
             return null;
         } // run
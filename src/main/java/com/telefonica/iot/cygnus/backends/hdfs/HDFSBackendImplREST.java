@@ -26,7 +26,10 @@ import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHeader;
 
@@ -47,7 +50,10 @@ public class HDFSBackendImplREST extends HttpBackend implements HDFSBackend {
     private final boolean serviceAsNamespace;
     private static final CygnusLogger LOGGER = new CygnusLogger(HDFSBackendImplREST.class);
     private static final String BASE_URL = "/webhdfs/v1/user/";
-    private ArrayList<Header> headers;
+    private final ArrayList<Header> headers;
+    private final ArrayList<Header> dataHeaders;
+    private final ConcurrentHashMap<String, String> appendLocations;
+    private final HDFSCache cache;
     
     /**
      * 
@@ -85,10 +91,27 @@ public class HDFSBackendImplREST extends HttpBackend implements HDFSBackend {
         } else {
             headers = null;
         } // if else
+        
+        // the headers sent to the Data nodes are built once, since they are shared by all the requests
+        dataHeaders = new ArrayList<Header>();
+        
+        if (headers != null) {
+            dataHeaders.addAll(headers);
+        } // if
+        
+        dataHeaders.add(new BasicHeader("Content-Type", "application/octet-stream"));
+        
+        // Data node locations the data of each file is appended to, learnt from the Name node redirections
+        appendLocations = new ConcurrentHashMap<String, String>();
+        cache = new HDFSCache();
     } // HDFSBackendImplREST
    
     @Override
     public void createDir(String dirPath) throws Exception {
+        if (cache.isCachedDir(dirPath)) {
+            return;
+        } // if
+        
         String relativeURL = BASE_URL + (serviceAsNamespace ? "" : (hdfsUser + "/")) + dirPath
                 + "?op=mkdirs&user.name=" + hdfsUser;
         JsonResponse response = doRequest("PUT", relativeURL, true, headers, null);
@@ -99,13 +122,40 @@ public class HDFSBackendImplREST extends HttpBackend implements HDFSBackend {
                     + dirPath + " directory could not be created in HDFS. Server response: "
                     + response.getStatusCode() + " " + response.getReasonPhrase());
         } // if
+        
+        cache.addDir(dirPath);
     } // createDir
     
     @Override
     public void createFile(String filePath, String data)
         throws Exception {
+        createFile(filePath, new StringEntity(data + "\n"));
+        cache.addFile(filePath);
+    } // createFile
+    
+    @Override
+    public void createFile(String filePath, byte[] data, int length) throws Exception {
+        createFile(filePath, new ByteArrayEntity(data, 0, length));
+        cache.addFile(filePath);
+    } // createFile
+    
+    @Override
+    public void createBinaryFile(String filePath, byte[] data) throws Exception {
+        createFile(filePath, new ByteArrayEntity(data));
+    } // createBinaryFile
+    
+    @Override
+    public void uploadFile(String filePath, byte[] data, int length) throws Exception {
+        createFile(filePath, new ByteArrayEntity(data, 0, length), true);
+    } // uploadFile
+    
+    private void createFile(String filePath, HttpEntity entity) throws Exception {
+        createFile(filePath, entity, false);
+    } // createFile
+    
+    private void createFile(String filePath, HttpEntity entity, boolean overwrite) throws Exception {
         String relativeURL = BASE_URL + (serviceAsNamespace ? "" : (hdfsUser + "/")) + filePath
-                + "?op=create&user.name=" + hdfsUser;
+                + "?op=create" + (overwrite ? "&overwrite=true" : "") + "&user.name=" + hdfsUser;
         JsonResponse response = doRequest("PUT", relativeURL, true, headers, null);
         
         // check the status
@@ -120,12 +170,7 @@ public class HDFSBackendImplREST extends HttpBackend implements HDFSBackend {
         String absoluteURL = header.getValue();
 
         // do second step
-        if (headers == null) {
-            headers = new ArrayList<Header>();
-        } // if
-        
-        headers.add(new BasicHeader("Content-Type", "application/octet-stream"));
-        response = doRequest("PUT", absoluteURL, false, headers, new StringEntity(data + "\n"));
+        response = doRequest("PUT", absoluteURL, false, dataHeaders, entity);
     
         // check the status
         if (response.getStatusCode() != 201) {
@@ -137,12 +182,47 @@ public class HDFSBackendImplREST extends HttpBackend implements HDFSBackend {
     
     @Override
     public void append(String filePath, String data) throws Exception {
+        append(filePath, new StringEntity(data + "\n"));
+    } // append
+    
+    @Override
+    public void append(String filePath, byte[] data, int length) throws Exception {
+        append(filePath, new ByteArrayEntity(data, 0, length));
+    } // append
+    
+    private void append(String filePath, HttpEntity entity) throws Exception {
+        // the Data node location of an already appended file is reused, saving the request to the Name node
+        String cachedURL = appendLocations.get(filePath);
+        
+        if (cachedURL != null) {
+            JsonResponse response;
+            
+            try {
+                response = doRequest("POST", cachedURL, false, dataHeaders, entity);
+            } catch (Exception e) {
+                // the data may have been partially written, thus the error is not hidden by retrying
+                appendLocations.remove(filePath, cachedURL);
+                cache.removeFile(filePath);
+                throw e;
+            } // try catch
+            
+            if (response.getStatusCode() == 200) {
+                return;
+            } // if
+            
+            // the location is not valid anymore (e.g. the Data node is down), ask the Name node again
+            LOGGER.debug("The cached Data node location is not valid anymore, getting a new one (file=" + filePath
+                    + ", status=" + response.getStatusCode() + ")");
+            appendLocations.remove(filePath, cachedURL);
+        } // if
+        
         String relativeURL = BASE_URL + (serviceAsNamespace ? "" : (hdfsUser + "/")) + filePath
                 + "?op=append&user.name=" + hdfsUser;
         JsonResponse response = doRequest("POST", relativeURL, true, headers, null);
 
-        // check the status
+        // check the status; the file is checked again by the next batch
         if (response.getStatusCode() != 307) {
+            cache.removeFile(filePath);
             throw new CygnusPersistenceError("The /user/" + (serviceAsNamespace ? "" : (hdfsUser + "/"))
                     + filePath + " file seems to not exist in HDFS. Server response: "
                     + response.getStatusCode() + " " + response.getReasonPhrase());
@@ -153,12 +233,7 @@ public class HDFSBackendImplREST extends HttpBackend implements HDFSBackend {
         String absoluteURL = header.getValue();
 
         // do second step
-        if (headers == null) {
-            headers = new ArrayList<Header>();
-        } // if
-
-        headers.add(new BasicHeader("Content-Type", "application/octet-stream"));
-        response = doRequest("POST", absoluteURL, false, headers, new StringEntity(data + "\n"));
+        response = doRequest("POST", absoluteURL, false, dataHeaders, entity);
         
         // check the status
         if (response.getStatusCode() != 200) {
@@ -166,59 +241,76 @@ public class HDFSBackendImplREST extends HttpBackend implements HDFSBackend {
                     + filePath + " file exists in HDFS, but could not write the data. Server response: "
                     + response.getStatusCode() + " " + response.getReasonPhrase());
         } // if
+        
+        // remember the location for the next appends to this file
+        appendLocations.put(filePath, absoluteURL);
+        cache.addFile(filePath);
     } // append
     
     @Override
     public boolean exists(String filePath) throws Exception {
+        // a provisioned file, or a file whose Data node location is cached, exists
+        if (cache.isCachedFile(filePath) || appendLocations.containsKey(filePath)) {
+            return true;
+        } // if
+        
         String relativeURL = BASE_URL + (serviceAsNamespace ? "" : (hdfsUser + "/")) + filePath
                 + "?op=getfilestatus&user.name=" + hdfsUser;
         JsonResponse response = doRequest("GET", relativeURL, true, headers, null);
 
         // check the status
-        return (response.getStatusCode() == 200);
+        if (response.getStatusCode() == 200) {
+            cache.addFile(filePath);
+            return true;
+        } // if
+        
+        return false;
     } // exists
     
     @Override
     public void provisionHiveTable(FileFormat fileFormat, String dirPath, String fields) throws Exception {
-        String tag;
+        provisionHiveTable(fileFormat, dirPath, fields, null);
+    } // provisionHiveTable
+    
+    @Override
+    public void provisionHiveTable(FileFormat fileFormat, String dirPath, String fields, String partitionFields)
+        throws Exception {
+        String tableName = getHiveTableName(fileFormat, dirPath);
         
-        switch (fileFormat) {
-            case JSONROW:
-            case CSVROW:
-                tag = "_row";
-                break;
-            case JSONCOLUMN:
-            case CSVCOLUMN:
-                tag = "_column";
-                break;
-            default:
-                tag = "";
-        } // switch
+        // an already provisioned table is not created again, saving the connection to Hive
+        if (cache.isCachedTable(tableName)) {
+            return;
+        } // if
         
-        // get the table name to be created
-        // the replacement is necessary because Hive, due it is similar to MySQL, does not accept '-' in the table names
-        String tableName = Utils.encodeHive((serviceAsNamespace ? "" : hdfsUser + "_") + dirPath) + tag;
         LOGGER.info("Creating Hive external table=" + tableName);
         
         // get a Hive client
         HiveBackend hiveClient = new HiveBackend(hiveServerVersion, hiveHost, hivePort, hdfsUser, hdfsPassword);
         
+        // the partition columns are not stored in the files, but in the names of the partition directories
+        String partitionedBy = (partitionFields == null ? "" : " partitioned by (" + partitionFields + ")");
+        
         // create the query
         String query;
         
         switch (fileFormat) {
             case JSONCOLUMN:
             case JSONROW:
-                query = "create external table if not exists " + tableName + " (" + fields + ") row format serde "
-                        + "'org.openx.data.jsonserde.JsonSerDe' location '/user/"
+                query = "create external table if not exists " + tableName + " (" + fields + ")" + partitionedBy
+                        + " row format serde 'org.openx.data.jsonserde.JsonSerDe' location '/user/"
                         + (serviceAsNamespace ? "" : (hdfsUser + "/")) + dirPath + "'";
                 break;
             case CSVCOLUMN:
             case CSVROW:
-                query = "create external table if not exists " + tableName + " (" + fields + ") row format "
-                        + "delimited fields terminated by ',' location '/user/"
+                query = "create external table if not exists " + tableName + " (" + fields + ")" + partitionedBy
+                        + " row format delimited fields terminated by ',' location '/user/"
                         + (serviceAsNamespace ? "" : (hdfsUser + "/")) + dirPath + "'";
                 break;
+            case PARQUETROW:
+                query = "create external table if not exists " + tableName + " (" + fields + ")" + partitionedBy
+                        + " stored as parquet location '/user/" + (serviceAsNamespace ? "" : (hdfsUser + "/"))
+                        + dirPath + "'";
+                break;
             default:
                 query = "";
         } // switch
@@ -227,7 +319,74 @@ public class HDFSBackendImplREST extends HttpBackend implements HDFSBackend {
         if (!hiveClient.doCreateTable(query)) {
             LOGGER.warn("The HiveQL external table could not be created, but Cygnus can continue working... "
                     + "Check your Hive/Shark installation");
-        } // if
+        } else {
+            cache.addTable(tableName);
+        } // if else
     } // provisionHiveTable
+    
+    @Override
+    public boolean provisionHivePartition(FileFormat fileFormat, String dirPath, String partition) {
+        String tableName = getHiveTableName(fileFormat, dirPath);
+        
+        if (cache.isCachedPartition(tableName, partition)) {
+            return true;
+        } // if
+        
+        LOGGER.info("Adding Hive partition=" + partition + " to external table=" + tableName);
+        
+        // get a Hive client
+        HiveBackend hiveClient = new HiveBackend(hiveServerVersion, hiveHost, hivePort, hdfsUser, hdfsPassword);
+        
+        // the partition specification is got from the partition path, e.g. year=2015/month=04 gives
+        // year='2015', month='04'
+        String partitionSpec = "";
+        
+        for (String level : partition.split("/")) {
+            String[] keyValue = level.split("=", 2);
+            partitionSpec += (partitionSpec.isEmpty() ? "" : ", ") + keyValue[0] + "='" + keyValue[1] + "'";
+        } // for
+        
+        // create the query
+        String query = "alter table " + tableName + " add if not exists partition (" + partitionSpec + ") "
+                + "location '/user/" + (serviceAsNamespace ? "" : (hdfsUser + "/")) + dirPath + "/" + partition + "'";
+        
+        // execute the query
+        if (!hiveClient.doCreateTable(query)) {
+            LOGGER.warn("The HiveQL partition could not be added, but Cygnus can continue working... "
+                    + "Check your Hive/Shark installation");
+            return false;
+        } // if
+        
+        cache.addPartition(tableName, partition);
+        return true;
+    } // provisionHivePartition
+    
+    private String getHiveTableName(FileFormat fileFormat, String dirPath) {
+        String tag;
+        
+        switch (fileFormat) {
+            case JSONROW:
+            case CSVROW:
+            case PARQUETROW:
+                tag = "_row";
+                break;
+            case JSONCOLUMN:
+            case CSVCOLUMN:
+                tag = "_column";
+                break;
+            default:
+                tag = "";
+        } // switch
+        
+        // the replacement is necessary because Hive, due it is similar to MySQL, does not accept '-' in the table names
+        return Utils.encodeHive((serviceAsNamespace ? "" : hdfsUser + "_") + dirPath) + tag;
+    } // getHiveTableName
+    
+    @Override
+    public void close() {
+        // the connections are managed by the HTTP client, only the learnt locations and the cache are released
+        appendLocations.clear();
+        cache.clear();
+    } // close
 
 } // HDFSBackendImplREST
@@ -0,0 +1,648 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author frb
+ *
+ * HDFS backend staging the data in local segment files, which are uploaded to HDFS by a background thread. Thus, the
+ * persistence of a batch only depends on the local disk, and not on the latency or the availability of the Hadoop
+ * cluster; and many small appends become a few big writes.
+ *
+ * The data created or appended to each HDFS file is appended to the open segment of such file, and forced to disk,
+ * thus it is not lost once the batch is persisted. The segments are finished once they reach the maximum size or age,
+ * and each finished segment is uploaded to a new file within the directory of the HDFS file, named after it plus the
+ * segment creation time (e.g. room1_room.1429535775000.txt), with a single file creation. Thus, the Hive tables, which
+ * are located at the directories, read all the data. Binary files are complete units, thus each one is a finished
+ * segment uploaded to the given path. The uploaded segments are deleted; if an upload fails, the segment is kept and
+ * the uploads to its HDFS path are retried after an exponential backoff, capped to a minute, while the segments of the
+ * other paths are still uploaded. The failed uploads are retried forever by default, since most of them are due to the
+ * Hadoop cluster not being available, and no data must be lost because of a long outage; a limit of attempts may be
+ * given, though. A segment exceeding such a limit, or whose failure is deterministic (i.e. it cannot be read, or its
+ * header is malformed), is quarantined, i.e. renamed with the .failed suffix and left in the staging directory, where
+ * it is not uploaded anymore.
+ *
+ * Each segment starts with a header line containing the kind of the data (text or binary) and the HDFS path. The
+ * segments left by a previous run are uploaded as well; the open ones are truncated to their last complete line, since
+ * a crash could have left a partial write, and the binary ones not finished are discarded.
+ *
+ * The directories are created and the Hive tables and partitions are provisioned by the wrapped backend, since they
+ * are only done once per destination.
+ *
+ * It is thread-safe; the writes to different files are done in parallel.
+ */
+public class HDFSBackendStaging implements HDFSBackend {
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(HDFSBackendStaging.class);
+    private static final String OPEN_SUFFIX = ".open";
+    private static final String FINISHED_SUFFIX = ".seg";
+    private static final String QUARANTINED_SUFFIX = ".failed";
+    private static final String KIND_TEXT = "text";
+    private static final String KIND_BINARY = "binary";
+    private static final long MIN_RETRY_INTERVAL = 1000;
+    private static final long MAX_RETRY_INTERVAL = 60000;
+    private final HDFSBackend backend;
+    private final File stagingDir;
+    private final long maxSegmentSize;
+    private final long maxSegmentAge;
+    private final int maxUploadAttempts;
+    private final HashMap<String, Segment> openSegments;
+    private final ConcurrentLinkedQueue<File> finishedSegments;
+    private final ScheduledExecutorService uploader;
+    // the upload state is only used by the uploader thread, or by the close once the uploader is stopped
+    private final HashMap<String, UploadRetry> uploadRetries;
+    private final HashMap<File, Integer> uploadAttempts;
+    private long lastCreated;
+    
+    /**
+     * Constructor.
+     * @param backend Backend the segments are uploaded with
+     * @param stagingDir Local directory of the segments, created if not existing
+     * @param maxSegmentSize Bytes written to a segment before finishing it
+     * @param maxSegmentAge Milliseconds since a segment was created before finishing it
+     * @param maxUploadAttempts Failed uploads of a segment before quarantining it, 0 means never
+     * @throws IOException
+     */
+    public HDFSBackendStaging(HDFSBackend backend, File stagingDir, long maxSegmentSize, long maxSegmentAge,
+            int maxUploadAttempts) throws IOException {
+        this(backend, stagingDir, maxSegmentSize, maxSegmentAge, maxUploadAttempts, 1000);
+    } // HDFSBackendStaging
+    
+    /**
+     * Constructor. It is package-private due to it is only required for testing purposes.
+     * @param backend Backend the segments are uploaded with
+     * @param stagingDir Local directory of the segments, created if not existing
+     * @param maxSegmentSize Bytes written to a segment before finishing it
+     * @param maxSegmentAge Milliseconds since a segment was created before finishing it
+     * @param maxUploadAttempts Failed uploads of a segment before quarantining it, 0 means never
+     * @param uploadPeriod Milliseconds between uploads, 0 means the uploads are not done in background
+     * @throws IOException
+     */
+    HDFSBackendStaging(HDFSBackend backend, File stagingDir, long maxSegmentSize, long maxSegmentAge,
+            int maxUploadAttempts, long uploadPeriod) throws IOException {
+        this.backend = backend;
+        this.stagingDir = stagingDir;
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegmentAge = maxSegmentAge;
+        this.maxUploadAttempts = maxUploadAttempts;
+        this.openSegments = new HashMap<String, Segment>();
+        this.finishedSegments = new ConcurrentLinkedQueue<File>();
+        this.uploadRetries = new HashMap<String, UploadRetry>();
+        this.uploadAttempts = new HashMap<File, Integer>();
+        
+        if (!stagingDir.isDirectory() && !stagingDir.mkdirs()) {
+            throw new IOException("The staging directory " + stagingDir + " could not be created");
+        } // if
+        
+        recover();
+        
+        if (uploadPeriod > 0) {
+            uploader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "hdfs-staging-uploader");
+                    thread.setDaemon(true);
+                    return thread;
+                } // newThread
+            });
+            uploader.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    long now = System.currentTimeMillis();
+                    finishAged(now);
+                    upload(now);
+                } // run
+            }, uploadPeriod, uploadPeriod, TimeUnit.MILLISECONDS);
+        } else {
+            uploader = null;
+        } // if else
+    } // HDFSBackendStaging
+
+    @Override
+    public void createDir(String dirPath) throws Exception {
+        // the directories are created by the uploads
+    } // createDir
+
+    @Override
+    public void createFile(String filePath, String data) throws Exception {
+        byte[] bytes = (data + "\n").getBytes("UTF-8");
+        stage(filePath, bytes, bytes.length);
+    } // createFile
+
+    @Override
+    public void createFile(String filePath, byte[] data, int length) throws Exception {
+        stage(filePath, data, length);
+    } // createFile
+
+    @Override
+    public void createBinaryFile(String filePath, byte[] data) throws Exception {
+        File file = new File(stagingDir, nextSegmentName() + OPEN_SUFFIX);
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        
+        try {
+            writeFully(channel, (KIND_BINARY + " " + filePath + "\n").getBytes("UTF-8"));
+            writeFully(channel, data);
+            channel.force(false);
+        } catch (IOException e) {
+            channel.close();
+            
+            if (!file.delete()) {
+                LOGGER.warn("The unfinished segment " + file + " could not be deleted");
+            } // if
+            
+            throw e;
+        } // try catch
+        
+        channel.close();
+        finishedSegments.add(rename(file));
+    } // createBinaryFile
+
+    @Override
+    public void uploadFile(String filePath, byte[] data, int length) throws Exception {
+        backend.uploadFile(filePath, data, length);
+    } // uploadFile
+
+    @Override
+    public void append(String filePath, String data) throws Exception {
+        byte[] bytes = (data + "\n").getBytes("UTF-8");
+        stage(filePath, bytes, bytes.length);
+    } // append
+
+    @Override
+    public void append(String filePath, byte[] data, int length) throws Exception {
+        stage(filePath, data, length);
+    } // append
+
+    @Override
+    public boolean exists(String filePath) throws Exception {
+        synchronized (openSegments) {
+            return openSegments.containsKey(filePath);
+        } // synchronized
+    } // exists
+
+    @Override
+    public void provisionHiveTable(FileFormat fileFormat, String dirPath, String fields) throws Exception {
+        backend.provisionHiveTable(fileFormat, dirPath, fields);
+    } // provisionHiveTable
+
+    @Override
+    public void provisionHiveTable(FileFormat fileFormat, String dirPath, String fields, String partitionFields)
+        throws Exception {
+        backend.provisionHiveTable(fileFormat, dirPath, fields, partitionFields);
+    } // provisionHiveTable
+
+    @Override
+    public boolean provisionHivePartition(FileFormat fileFormat, String dirPath, String partition) {
+        return backend.provisionHivePartition(fileFormat, dirPath, partition);
+    } // provisionHivePartition
+    
+    /**
+     * Stops the uploads, finishes the open segments and tries to upload them once; the segments not uploaded are
+     * kept for the next run.
+     */
+    @Override
+    public void close() {
+        if (uploader != null) {
+            uploader.shutdown();
+            
+            try {
+                uploader.awaitTermination(MAX_RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } // try catch
+        } // if
+        
+        finishAged(Long.MAX_VALUE);
+        uploadRetries.clear();
+        upload(System.currentTimeMillis());
+        backend.close();
+    } // close
+    
+    /**
+     * Gets the number of segments waiting to be uploaded. It is package-private due to it is only required for
+     * testing purposes.
+     * @return The number of finished segments
+     */
+    int getNumFinishedSegments() {
+        return finishedSegments.size();
+    } // getNumFinishedSegments
+    
+    private void stage(String filePath, byte[] data, int length) throws IOException {
+        while (true) {
+            Segment segment;
+            
+            synchronized (openSegments) {
+                segment = openSegments.get(filePath);
+                
+                if (segment == null) {
+                    segment = new Segment(filePath);
+                    openSegments.put(filePath, segment);
+                } // if
+            } // synchronized
+            
+            synchronized (segment) {
+                // the segment may have been finished by another thread since it was got
+                if (segment.finished) {
+                    continue;
+                } // if
+                
+                try {
+                    segment.write(data, length);
+                } catch (IOException e) {
+                    // the segment is finished, and the data is written to a new segment by the retry of the batch
+                    finish(segment);
+                    throw e;
+                } // try catch
+                
+                if (segment.size >= maxSegmentSize) {
+                    finish(segment);
+                } // if
+                
+                return;
+            } // synchronized
+        } // while
+    } // stage
+    
+    /**
+     * Finishes the open segments created before the maximum age. It is package-private due to it is only required
+     * for testing purposes.
+     * @param now
+     */
+    void finishAged(long now) {
+        ArrayList<Segment> segments;
+        
+        synchronized (openSegments) {
+            segments = new ArrayList<Segment>(openSegments.values());
+        } // synchronized
+        
+        for (Segment segment : segments) {
+            if (now - segment.created >= maxSegmentAge) {
+                synchronized (segment) {
+                    finish(segment);
+                } // synchronized
+            } // if
+        } // for
+    } // finishAged
+    
+    /**
+     * Uploads the finished segments, in order. The segments of a HDFS path whose last upload failed are skipped until
+     * its backoff expires; the unreadable or malformed segments, and those failing maxUploadAttempts times (if not
+     * 0), are quarantined. It is package-private due to it is only required for testing purposes.
+     * @param now
+     */
+    void upload(long now) {
+        for (File file : new ArrayList<File>(finishedSegments)) {
+            String header;
+            
+            try {
+                header = readHeader(file);
+            } catch (IOException e) {
+                quarantine(file);
+                LOGGER.error("The staged segment " + file + " could not be read, it has been quarantined. Details="
+                        + e.getMessage());
+                continue;
+            } // try catch
+            
+            // retrying a malformed segment would fail forever
+            if (!isValidHeader(header)) {
+                quarantine(file);
+                LOGGER.error("The staged segment " + file + " has a malformed header (" + header + "), it has been "
+                        + "quarantined");
+                continue;
+            } // if
+            
+            // the header identifies the HDFS path the segment is uploaded to
+            UploadRetry retry = uploadRetries.get(header);
+            
+            if (retry != null && now < retry.nextDate) {
+                continue;
+            } // if
+            
+            try {
+                uploadSegment(file);
+            } catch (Exception e) {
+                if (retry == null) {
+                    retry = new UploadRetry();
+                    uploadRetries.put(header, retry);
+                } // if
+                
+                long backoff = MIN_RETRY_INTERVAL << Math.min(retry.retries, 20);
+                retry.retries++;
+                retry.nextDate = now + Math.min(backoff, MAX_RETRY_INTERVAL);
+                Integer attempts = uploadAttempts.get(file);
+                attempts = (attempts == null ? 1 : attempts + 1);
+                
+                if (maxUploadAttempts <= 0 || attempts < maxUploadAttempts) {
+                    uploadAttempts.put(file, attempts);
+                    LOGGER.warn("The staged segment " + file + " could not be uploaded to HDFS, retrying after "
+                            + (retry.nextDate - now) + " ms. Details=" + e.getMessage());
+                } else {
+                    quarantine(file);
+                    LOGGER.error("The staged segment " + file + " could not be uploaded to HDFS after " + attempts
+                            + " attempts, it has been quarantined. Details=" + e.getMessage());
+                } // if else
+                
+                continue;
+            } // try catch
+            
+            if (!file.delete()) {
+                LOGGER.warn("The uploaded segment " + file + " could not be deleted");
+            } // if
+            
+            finishedSegments.remove(file);
+            uploadAttempts.remove(file);
+            uploadRetries.remove(header);
+        } // for
+    } // upload
+    
+    private void uploadSegment(File file) throws Exception {
+        byte[] content = readFully(file);
+        int headerEnd = indexOf(content, 0, (byte) '\n');
+        
+        if (headerEnd < 0) {
+            throw new IOException("The staged segment " + file + " has no header");
+        } // if
+        
+        String[] header = new String(content, 0, headerEnd, "UTF-8").split(" ", 2);
+        String kind = header[0];
+        String filePath = header[1];
+        String dirPath = filePath.substring(0, filePath.lastIndexOf('/'));
+        byte[] data = Arrays.copyOfRange(content, headerEnd + 1, content.length);
+        backend.createDir(dirPath);
+        
+        // the uploads are retried, thus the files are overwritten; their paths are unique
+        if (KIND_BINARY.equals(kind)) {
+            backend.uploadFile(filePath, data, data.length);
+        } else if (data.length > 0) {
+            String rolledPath = HDFSWriterManager.getRolledPath(filePath, getCreated(file));
+            LOGGER.debug("Uploading the staged segment " + file + " to " + rolledPath);
+            backend.uploadFile(rolledPath, data, data.length);
+        } // if else if
+    } // uploadSegment
+    
+    private void finish(Segment segment) {
+        if (segment.finished) {
+            return;
+        } // if
+        
+        segment.finished = true;
+        
+        synchronized (openSegments) {
+            openSegments.remove(segment.filePath);
+        } // synchronized
+        
+        try {
+            segment.channel.close();
+            finishedSegments.add(rename(segment.file));
+        } catch (IOException e) {
+            LOGGER.error("The staged segment " + segment.file + " could not be finished, it will be uploaded at "
+                    + "the next run. Details=" + e.getMessage());
+        } // try catch
+    } // finish
+    
+    /**
+     * Recovers the segments left by a previous run: the open ones are finished, except the binary ones, which were
+     * not completely written and are discarded.
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        File[] files = stagingDir.listFiles();
+        
+        if (files == null) {
+            throw new IOException("The staging directory " + stagingDir + " could not be listed");
+        } // if
+        
+        Arrays.sort(files);
+        
+        for (File file : files) {
+            String name = file.getName();
+            
+            if (name.endsWith(OPEN_SUFFIX)) {
+                if (readHeader(file).startsWith(KIND_TEXT + " ")) {
+                    truncateToLastLine(file);
+                    finishedSegments.add(rename(file));
+                } else if (!file.delete()) {
+                    LOGGER.warn("The unfinished segment " + file + " could not be deleted");
+                } // if else if
+            } else if (name.endsWith(FINISHED_SUFFIX)) {
+                finishedSegments.add(file);
+            } else {
+                continue;
+            } // if else if
+            
+            lastCreated = Math.max(lastCreated, getCreated(file));
+        } // for
+        
+        if (!finishedSegments.isEmpty()) {
+            LOGGER.info(finishedSegments.size() + " staged segments found at " + stagingDir
+                    + ", they will be uploaded to HDFS");
+        } // if
+    } // recover
+    
+    /**
+     * Gets the name of a new segment, i.e. its creation time, which is unique and increasing.
+     * @return The name of a new segment
+     */
+    private synchronized String nextSegmentName() {
+        lastCreated = Math.max(System.currentTimeMillis(), lastCreated + 1);
+        return String.format("%013d", lastCreated);
+    } // nextSegmentName
+    
+    /**
+     * Quarantines a segment which cannot be uploaded, i.e. it is renamed in order it is not uploaded anymore, neither
+     * by the next runs; the quarantined segments are left for the administrator.
+     * @param file
+     */
+    private void quarantine(File file) {
+        finishedSegments.remove(file);
+        uploadAttempts.remove(file);
+        
+        if (!file.renameTo(new File(file.getParentFile(), file.getName() + QUARANTINED_SUFFIX))) {
+            LOGGER.error("The staged segment " + file + " could not be quarantined");
+        } // if
+    } // quarantine
+    
+    private static boolean isValidHeader(String header) {
+        String[] parts = header.split(" ", 2);
+        return parts.length == 2 && (KIND_TEXT.equals(parts[0]) || KIND_BINARY.equals(parts[0]))
+                && parts[1].lastIndexOf('/') > 0;
+    } // isValidHeader
+    
+    private static long getCreated(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    } // getCreated
+    
+    private static File rename(File openFile) throws IOException {
+        String name = openFile.getName();
+        File finishedFile = new File(openFile.getParentFile(),
+                name.substring(0, name.length() - OPEN_SUFFIX.length()) + FINISHED_SUFFIX);
+        
+        if (!openFile.renameTo(finishedFile)) {
+            throw new IOException("The segment " + openFile + " could not be renamed to " + finishedFile);
+        } // if
+        
+        return finishedFile;
+    } // rename
+    
+    private static String readHeader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        
+        try {
+            String header = raf.readLine();
+            return (header == null ? "" : header);
+        } finally {
+            raf.close();
+        } // try finally
+    } // readHeader
+    
+    private static void truncateToLastLine(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        
+        try {
+            long length = raf.length();
+            long end = length;
+            
+            while (end > 0) {
+                raf.seek(end - 1);
+                
+                if (raf.read() == '\n') {
+                    break;
+                } // if
+                
+                end--;
+            } // while
+            
+            if (end < length) {
+                LOGGER.warn("Discarding " + (length - end) + " bytes of a partial write at the end of " + file);
+                raf.setLength(end);
+            } // if
+        } finally {
+            raf.close();
+        } // try finally
+    } // truncateToLastLine
+    
+    private static byte[] readFully(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        
+        try {
+            byte[] content = new byte[(int) raf.length()];
+            raf.readFully(content);
+            return content;
+        } finally {
+            raf.close();
+        } // try finally
+    } // readFully
+    
+    private static void writeFully(FileChannel channel, byte[] data) throws IOException {
+        writeFully(channel, ByteBuffer.wrap(data));
+    } // writeFully
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        } // while
+    } // writeFully
+    
+    private static int indexOf(byte[] bytes, int from, byte b) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            } // if
+        } // for
+        
+        return -1;
+    } // indexOf
+    
+    /**
+     * Open segment of a HDFS file. The writes are synchronized on it.
+     */
+    private class Segment {
+        
+        private final String filePath;
+        private final File file;
+        private final long created;
+        private final FileChannel channel;
+        private long length;
+        private long size;
+        private boolean finished;
+        
+        Segment(String filePath) throws IOException {
+            String name = nextSegmentName();
+            this.filePath = filePath;
+            this.file = new File(stagingDir, name + OPEN_SUFFIX);
+            this.created = Long.parseLong(name);
+            this.channel = new FileOutputStream(file).getChannel();
+            
+            try {
+                byte[] header = (KIND_TEXT + " " + filePath + "\n").getBytes("UTF-8");
+                writeFully(channel, header);
+                length = header.length;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            } // try catch
+        } // Segment
+        
+        void write(byte[] data, int dataLength) throws IOException {
+            try {
+                writeFully(channel, ByteBuffer.wrap(data, 0, dataLength));
+                
+                // the data must be on disk before the batch is committed
+                channel.force(false);
+            } catch (IOException e) {
+                // the data may have been partially written, and the batch will be retried
+                channel.truncate(length);
+                throw e;
+            } // try catch
+            
+            length += dataLength;
+            size += dataLength;
+        } // write
+        
+    } // Segment
+    
+    /**
+     * Upload retries of a HDFS path.
+     */
+    private class UploadRetry {
+        
+        private int retries;
+        private long nextDate;
+        
+    } // UploadRetry
+    
+} // HDFSBackendStaging
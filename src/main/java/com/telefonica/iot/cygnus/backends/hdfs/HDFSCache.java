@@ -0,0 +1,151 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * @author frb
+ * 
+ * Cache of the HDFS directories and files, and of the Hive tables and partitions, already provisioned by a HDFS
+ * backend. It avoids checking and creating them again for each batch. The cache is not verified against HDFS; an
+ * entry is removed when an operation relying on it fails, thus it is checked again by the next batch. Each kind of
+ * entry is bounded, forgetting the least recently used ones.
+ */
+public class HDFSCache {
+    
+    private static final int MAX_ENTRIES = 10000;
+    // access ordered maps, used as sets; the lookups must be done through get, since containsKey does not update
+    // the access order
+    private final Map<String, Boolean> dirs;
+    private final Map<String, Boolean> files;
+    private final Map<String, Boolean> tables;
+    private final Map<String, Boolean> partitions;
+    
+    /**
+     * Constructor.
+     */
+    public HDFSCache() {
+        dirs = createMap();
+        files = createMap();
+        tables = createMap();
+        partitions = createMap();
+    } // HDFSCache
+    
+    /**
+     * Checks if a directory is cached.
+     * @param dirPath
+     * @return True if the directory is cached, false otherwise
+     */
+    public boolean isCachedDir(String dirPath) {
+        return dirs.get(dirPath) != null;
+    } // isCachedDir
+    
+    /**
+     * Adds a directory to the cache.
+     * @param dirPath
+     */
+    public void addDir(String dirPath) {
+        dirs.put(dirPath, Boolean.TRUE);
+    } // addDir
+    
+    /**
+     * Checks if a file is cached.
+     * @param filePath
+     * @return True if the file is cached, false otherwise
+     */
+    public boolean isCachedFile(String filePath) {
+        return files.get(filePath) != null;
+    } // isCachedFile
+    
+    /**
+     * Adds a file to the cache.
+     * @param filePath
+     */
+    public void addFile(String filePath) {
+        files.put(filePath, Boolean.TRUE);
+    } // addFile
+    
+    /**
+     * Removes a file from the cache, e.g. because an append to it failed.
+     * @param filePath
+     */
+    public void removeFile(String filePath) {
+        files.remove(filePath);
+    } // removeFile
+    
+    /**
+     * Checks if a Hive table is cached.
+     * @param tableName
+     * @return True if the Hive table is cached, false otherwise
+     */
+    public boolean isCachedTable(String tableName) {
+        return tables.get(tableName) != null;
+    } // isCachedTable
+    
+    /**
+     * Adds a Hive table to the cache.
+     * @param tableName
+     */
+    public void addTable(String tableName) {
+        tables.put(tableName, Boolean.TRUE);
+    } // addTable
+    
+    /**
+     * Checks if a partition of a Hive table is cached.
+     * @param tableName
+     * @param partition
+     * @return True if the partition is cached, false otherwise
+     */
+    public boolean isCachedPartition(String tableName, String partition) {
+        return partitions.get(tableName + "/" + partition) != null;
+    } // isCachedPartition
+    
+    /**
+     * Adds a partition of a Hive table to the cache.
+     * @param tableName
+     * @param partition
+     */
+    public void addPartition(String tableName, String partition) {
+        partitions.put(tableName + "/" + partition, Boolean.TRUE);
+    } // addPartition
+    
+    /**
+     * Removes all the entries.
+     */
+    public void clear() {
+        dirs.clear();
+        files.clear();
+        tables.clear();
+        partitions.clear();
+    } // clear
+    
+    private static Map<String, Boolean> createMap() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_ENTRIES;
+            } // removeEldestEntry
+        });
+    } // createMap
+    
+} // HDFSCache
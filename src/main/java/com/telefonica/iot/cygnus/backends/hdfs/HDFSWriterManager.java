@@ -0,0 +1,457 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+
+/**
+ *
+ * @author frb
+ *
+ * Manager of the HDFS output streams kept open per file, avoiding the cost of an append (lease recovery, pipeline
+ * setup) per written batch. The data is synced (hflush) after each write, thus it is visible to the readers once the
+ * write returns.
+ *
+ * The files are rolled by size or time: once the current file of a path has received roll size bytes, or it was
+ * opened roll interval milliseconds ago, it is closed and the data is written to a new file in the same directory,
+ * named after the path plus the rolling time (e.g. room1_room.1429535775000.txt); thus, the Hive tables, which are
+ * located at the directory, keep reading all the data. The streams not used during the idle timeout are closed, as
+ * well as the least recently used ones when exceeding the maximum number of open streams.
+ *
+ * If a compression codec is given, the files are block compressed SequenceFiles, having a record per line: each write
+ * is compressed as a block, which is splittable, and each rolled file is a complete SequenceFile. SequenceFiles cannot
+ * be appended, thus the data to be appended to an existing file not open by the manager is written to a rolled file.
+ *
+ * It is thread-safe; the writes to different files are done in parallel.
+ */
+class HDFSWriterManager {
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(HDFSWriterManager.class);
+    private final FileSystem fileSystem;
+    private final long rollSize;
+    private final long rollInterval;
+    private final long idleTimeout;
+    private final int maxOpenStreams;
+    private final CompressionCodec codec;
+    private final LinkedHashMap<String, Writer> writers;
+    private final ArrayList<Writer> evicted;
+    private final ScheduledExecutorService idleCloser;
+    
+    /**
+     * Constructor.
+     * @param fileSystem File system the streams are opened with, which is not closed by the manager
+     * @param rollSize Bytes written to a file before rolling it, 0 means never
+     * @param rollInterval Milliseconds since a file was opened before rolling it, 0 means never
+     * @param idleTimeout Milliseconds a stream is kept open without being used, 0 means forever
+     * @param maxOpenStreams Maximum number of open streams, greater than 0
+     * @param codec Compression codec of the SequenceFiles, or null if the files are not compressed
+     */
+    HDFSWriterManager(FileSystem fileSystem, long rollSize, long rollInterval, long idleTimeout,
+            int maxOpenStreams, CompressionCodec codec) {
+        this.fileSystem = fileSystem;
+        this.codec = codec;
+        this.rollSize = rollSize;
+        this.rollInterval = rollInterval;
+        this.idleTimeout = idleTimeout;
+        this.maxOpenStreams = maxOpenStreams;
+        this.writers = new LinkedHashMap<String, Writer>(16, 0.75f, true);
+        this.evicted = new ArrayList<Writer>();
+        
+        if (idleTimeout > 0) {
+            idleCloser = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "hdfs-idle-stream-closer");
+                    thread.setDaemon(true);
+                    return thread;
+                } // newThread
+            });
+            long period = Math.max(1, idleTimeout / 2);
+            idleCloser.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    closeIdle(System.currentTimeMillis());
+                } // run
+            }, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            idleCloser = null;
+        } // if else
+    } // HDFSWriterManager
+    
+    /**
+     * Writes data to a file, opening a stream for it if not yet open. 
+     * @param filePath Absolute path of the file
+     * @param create True if the file must be created, false if it already exists and the data must be appended
+     * @param data
+     * @throws IOException
+     */
+    void write(String filePath, boolean create, byte[] data) throws IOException {
+        write(filePath, create, data, data.length);
+    } // write
+    
+    /**
+     * Writes data to a file, opening a stream for it if not yet open. 
+     * @param filePath Absolute path of the file
+     * @param create True if the file must be created, false if it already exists and the data must be appended
+     * @param data Buffer containing the data
+     * @param length Number of bytes of the buffer to be written
+     * @throws IOException
+     */
+    void write(String filePath, boolean create, byte[] data, int length) throws IOException {
+        while (true) {
+            Writer writer = acquire(filePath);
+            closeEvicted();
+            
+            synchronized (writer) {
+                // the writer may have been closed by another thread since it was acquired
+                if (writer.closed) {
+                    continue;
+                } // if
+                
+                try {
+                    writer.write(create, data, length, System.currentTimeMillis());
+                    return;
+                } catch (IOException e) {
+                    // the stream may be broken, thus it is discarded and opened again by the next write
+                    release(writer);
+                    throw e;
+                } // try catch
+            } // synchronized
+        } // while
+    } // write
+    
+    /**
+     * Checks if there is an open stream for a file, thus the file exists.
+     * @param filePath Absolute path of the file
+     * @return True if there is an open stream for the file, false otherwise
+     */
+    synchronized boolean isOpen(String filePath) {
+        Writer writer = writers.get(filePath);
+        return writer != null && writer.out != null;
+    } // isOpen
+    
+    /**
+     * Gets the number of open streams.
+     * @return The number of open streams
+     */
+    synchronized int getNumOpenStreams() {
+        return writers.size();
+    } // getNumOpenStreams
+    
+    /**
+     * Closes the streams not used during the idle timeout.
+     * @param now Current time in milliseconds
+     */
+    void closeIdle(long now) {
+        ArrayList<Writer> idle = new ArrayList<Writer>();
+        
+        synchronized (this) {
+            for (Writer writer : writers.values()) {
+                if (now - writer.lastUsed >= idleTimeout) {
+                    idle.add(writer);
+                } // if
+            } // for
+        } // synchronized
+        
+        for (Writer writer : idle) {
+            synchronized (writer) {
+                // the writer may have been used since it was found idle
+                if (!writer.closed && now - writer.lastUsed >= idleTimeout) {
+                    LOGGER.debug("Closing the idle HDFS stream of " + writer.filePath);
+                    release(writer);
+                } // if
+            } // synchronized
+        } // for
+    } // closeIdle
+    
+    /**
+     * Closes all the streams. The manager must not be used afterwards.
+     */
+    void close() {
+        if (idleCloser != null) {
+            idleCloser.shutdownNow();
+        } // if
+        
+        ArrayList<Writer> all;
+        
+        synchronized (this) {
+            all = new ArrayList<Writer>(writers.values());
+        } // synchronized
+        
+        for (Writer writer : all) {
+            synchronized (writer) {
+                release(writer);
+            } // synchronized
+        } // for
+        
+        closeEvicted();
+    } // close
+    
+    private synchronized Writer acquire(String filePath) {
+        Writer writer = writers.get(filePath);
+        
+        if (writer != null) {
+            return writer;
+        } // if
+        
+        writer = new Writer(filePath);
+        writers.put(filePath, writer);
+        
+        if (writers.size() > maxOpenStreams) {
+            // the eldest writer is closed by the caller, since this thread holds the lock of the manager, which must
+            // not be held while waiting for the lock of a writer
+            Iterator<Map.Entry<String, Writer>> it = writers.entrySet().iterator();
+            evicted.add(it.next().getValue());
+            it.remove();
+        } // if
+        
+        return writer;
+    } // acquire
+    
+    private void closeEvicted() {
+        ArrayList<Writer> toBeClosed;
+        
+        synchronized (this) {
+            if (evicted.isEmpty()) {
+                return;
+            } // if
+            
+            toBeClosed = new ArrayList<Writer>(evicted);
+            evicted.clear();
+        } // synchronized
+        
+        for (Writer writer : toBeClosed) {
+            synchronized (writer) {
+                writer.close();
+            } // synchronized
+        } // for
+    } // closeEvicted
+    
+    /**
+     * Closes a writer and removes it. The caller must hold the lock of the writer.
+     * @param writer
+     */
+    private void release(Writer writer) {
+        writer.close();
+        
+        synchronized (this) {
+            if (writers.get(writer.filePath) == writer) {
+                writers.remove(writer.filePath);
+            } // if
+        } // synchronized
+    } // release
+    
+    /**
+     * Stream of a file. All the methods must be invoked holding its lock.
+     */
+    private final class Writer {
+        
+        private final String filePath;
+        private Path currentPath;
+        private FSDataOutputStream out;
+        private SequenceFile.Writer seqWriter;
+        private long written;
+        private long opened;
+        private volatile long lastUsed;
+        private boolean closed;
+        
+        Writer(String filePath) {
+            this.filePath = filePath;
+            this.lastUsed = System.currentTimeMillis();
+            this.closed = false;
+        } // Writer
+        
+        void write(boolean create, byte[] data, int length, long now) throws IOException {
+            if (out == null) {
+                written = 0;
+                opened = now;
+                
+                if (create) {
+                    currentPath = new Path(filePath);
+                    out = fileSystem.create(currentPath);
+                } else if (codec == null && !mustRollExisting(now)) {
+                    currentPath = new Path(filePath);
+                    out = fileSystem.append(currentPath);
+                } else if (codec == null) {
+                    written = 0;
+                    opened = now;
+                    currentPath = new Path(getRolledPath(filePath, now));
+                    LOGGER.debug("The HDFS file " + filePath + " must be rolled, creating " + currentPath);
+                    out = fileSystem.create(currentPath);
+                } else {
+                    currentPath = new Path(getRolledPath(filePath, now));
+                    LOGGER.debug("The HDFS file " + filePath + " cannot be appended, creating " + currentPath);
+                    out = fileSystem.create(currentPath);
+                } // if else if
+                
+                if (out == null) {
+                    throw new IOException("The " + filePath + " file could not be opened in HDFS");
+                } // if
+                
+                openSequenceFile();
+            } else if ((rollSize > 0 && written >= rollSize) || (rollInterval > 0 && now - opened >= rollInterval)) {
+                closeStreams();
+                currentPath = new Path(getRolledPath(filePath, now));
+                LOGGER.debug("Rolling the HDFS file " + filePath + " to " + currentPath);
+                out = fileSystem.create(currentPath);
+                
+                if (out == null) {
+                    throw new IOException("The " + currentPath + " file could not be created in HDFS");
+                } // if
+                
+                openSequenceFile();
+                written = 0;
+                opened = now;
+            } // if else if
+            
+            if (seqWriter == null) {
+                out.write(data, 0, length);
+                out.sync();
+                written += length;
+            } else {
+                // the files are rolled by their compressed size
+                long start = out.getPos();
+                appendRecords(data, length);
+                written += out.getPos() - start;
+            } // if else
+            
+            lastUsed = now;
+        } // write
+        
+        /**
+         * Checks if the existing file must be rolled instead of being appended. The bytes written and the opening
+         * date are taken from the file status, since the file may have been written before this writer existed, e.g.
+         * before an idle stream was closed; the last modification date is the best known approximation of the
+         * opening date.
+         * @param now
+         * @return True if the existing file must be rolled, false otherwise
+         * @throws IOException
+         */
+        private boolean mustRollExisting(long now) throws IOException {
+            if (rollSize <= 0 && rollInterval <= 0) {
+                return false;
+            } // if
+            
+            FileStatus status = fileSystem.getFileStatus(new Path(filePath));
+            
+            if (status == null) {
+                return false;
+            } // if
+            
+            written = status.getLen();
+            opened = status.getModificationTime();
+            return (rollSize > 0 && written >= rollSize) || (rollInterval > 0 && now - opened >= rollInterval);
+        } // mustRollExisting
+        
+        private void openSequenceFile() throws IOException {
+            if (codec == null) {
+                return;
+            } // if
+            
+            // Hive ignores the keys, thus empty ones are written, as Hive itself does
+            seqWriter = SequenceFile.createWriter(fileSystem.getConf(), out, BytesWritable.class, Text.class,
+                    SequenceFile.CompressionType.BLOCK, codec);
+        } // openSequenceFile
+        
+        private void appendRecords(byte[] data, int length) throws IOException {
+            BytesWritable key = new BytesWritable();
+            Text value = new Text();
+            int start = 0;
+            
+            // a record per line; UTF-8 multibyte characters never contain the new line byte
+            for (int i = 0; i <= length; i++) {
+                if (i == length || data[i] == '\n') {
+                    if (i > start) {
+                        value.set(data, start, i - start);
+                        seqWriter.append(key, value);
+                    } // if
+                    
+                    start = i + 1;
+                } // if
+            } // for
+            
+            // the buffered records are compressed as a block, and made visible to the readers
+            seqWriter.sync();
+            seqWriter.syncFs();
+        } // appendRecords
+        
+        private void closeStreams() throws IOException {
+            try {
+                // the SequenceFile writer does not close the stream it was given
+                if (seqWriter != null) {
+                    seqWriter.close();
+                } // if
+            } finally {
+                seqWriter = null;
+                out.close();
+                out = null;
+            } // try finally
+        } // closeStreams
+        
+        void close() {
+            closed = true;
+            
+            if (out == null) {
+                return;
+            } // if
+            
+            try {
+                closeStreams();
+            } catch (IOException e) {
+                LOGGER.warn("The HDFS stream of " + filePath + " could not be closed. Details=" + e.getMessage());
+            } // try catch
+        } // close
+        
+    } // Writer
+    
+    /**
+     * Gets the path of a rolled file, in the same directory than the original one and with the same extension.
+     * @param filePath
+     * @param now
+     * @return The path of the rolled file
+     */
+    static String getRolledPath(String filePath, long now) {
+        int slash = filePath.lastIndexOf('/');
+        int dot = filePath.lastIndexOf('.');
+        
+        if (dot <= slash) {
+            return filePath + "." + now;
+        } // if
+        
+        return filePath.substring(0, dot) + "." + now + filePath.substring(dot);
+    } // getRolledPath
+    
+} // HDFSWriterManager
@@ -0,0 +1,336 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import com.telefonica.iot.cygnus.utils.Constants;
+import com.telefonica.iot.cygnus.utils.Utils;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import parquet.Log;
+import parquet.hadoop.ParquetWriter;
+import parquet.hadoop.api.WriteSupport;
+import parquet.hadoop.metadata.CompressionCodecName;
+import parquet.io.api.Binary;
+import parquet.io.api.RecordConsumer;
+import parquet.schema.MessageType;
+import parquet.schema.MessageTypeParser;
+
+/**
+ *
+ * @author frb
+ * 
+ * Serializes the notified attributes as rows of a Parquet file, a columnar and block compressed format natively read
+ * by Hive. The columns are typed: the reception time is a long, and the attribute values are stored both as they
+ * were notified and, if numeric, as doubles. Parquet files cannot be appended, thus the rows are kept in memory until
+ * the whole file is serialized.
+ */
+public class ParquetRowSerializer {
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(ParquetRowSerializer.class);
+    private static final int BLOCK_SIZE = 128 * 1024 * 1024;
+    private static final int PAGE_SIZE = 1024 * 1024;
+    private static final String RECV_TIME_TS = Utils.encodeHive(Constants.RECV_TIME_TS);
+    private static final String RECV_TIME = Utils.encodeHive(Constants.RECV_TIME);
+    private static final String SERVICE_PATH = Utils.encodeHive(Constants.HEADER_NOTIFIED_SERVICE_PATH);
+    private static final String ENTITY_ID = Utils.encodeHive(Constants.ENTITY_ID);
+    private static final String ENTITY_TYPE = Utils.encodeHive(Constants.ENTITY_TYPE);
+    private static final String ATTR_NAME = Utils.encodeHive(Constants.ATTR_NAME);
+    private static final String ATTR_TYPE = Utils.encodeHive(Constants.ATTR_TYPE);
+    private static final String ATTR_VALUE = Utils.encodeHive(Constants.ATTR_VALUE);
+    private static final String ATTR_VALUE_NUM = Utils.encodeHive(Constants.ATTR_VALUE) + "_num";
+    private static final String ATTR_MD = Utils.encodeHive(Constants.ATTR_MD);
+    
+    // the column names are lower case, since Hive matches them against the Parquet ones in a case sensitive way
+    private static final MessageType SCHEMA = MessageTypeParser.parseMessageType("message cygnus_row {"
+            + " required int64 " + RECV_TIME_TS + ";"
+            + " optional binary " + RECV_TIME + " (UTF8);"
+            + " optional binary " + SERVICE_PATH + " (UTF8);"
+            + " optional binary " + ENTITY_ID + " (UTF8);"
+            + " optional binary " + ENTITY_TYPE + " (UTF8);"
+            + " optional binary " + ATTR_NAME + " (UTF8);"
+            + " optional binary " + ATTR_TYPE + " (UTF8);"
+            + " optional binary " + ATTR_VALUE + " (UTF8);"
+            + " optional double " + ATTR_VALUE_NUM + ";"
+            + " optional binary " + ATTR_MD + " (UTF8);"
+            + " }");
+    
+    private final ArrayList<Row> rows;
+    // number of characters of the added rows, before being encoded and compressed
+    private long rawSize;
+    
+    /**
+     * Constructor.
+     */
+    public ParquetRowSerializer() {
+        rows = new ArrayList<Row>();
+        rawSize = 0;
+    } // ParquetRowSerializer
+    
+    /**
+     * Raises the level of the Parquet logs to warning, since Parquet logs each written column chunk at info level,
+     * which is too much for a per batch operation. Parquet logs through the "parquet" JUL logger of the whole process,
+     * thus it must only be called when the Parquet files are actually written.
+     */
+    public static void reduceLogging() {
+        // the level set by the static initializer of parquet.Log would override ours, thus that class is loaded first
+        Log.getLog(ParquetRowSerializer.class);
+        Logger.getLogger("parquet").setLevel(Level.WARNING);
+    } // reduceLogging
+    
+    /**
+     * Gets the Hive fields definition matching the Parquet schema.
+     * @return The Hive fields definition
+     */
+    public static String getHiveFields() {
+        return RECV_TIME_TS + " bigint,"
+                + RECV_TIME + " string,"
+                + SERVICE_PATH + " string,"
+                + ENTITY_ID + " string,"
+                + ENTITY_TYPE + " string,"
+                + ATTR_NAME + " string,"
+                + ATTR_TYPE + " string,"
+                + ATTR_VALUE + " string,"
+                + ATTR_VALUE_NUM + " double,"
+                + ATTR_MD + " string";
+    } // getHiveFields
+    
+    /**
+     * Adds a row.
+     * @param recvTimeTs Reception time, in seconds
+     * @param recvTime Human readable reception time
+     * @param servicePath
+     * @param entityId
+     * @param entityType
+     * @param attrName
+     * @param attrType
+     * @param attrValue Attribute value, not quoted if a string
+     * @param attrMd Attribute metadata, in Json format
+     */
+    public void add(long recvTimeTs, String recvTime, String servicePath, String entityId, String entityType,
+            String attrName, String attrType, String attrValue, String attrMd) {
+        Row row = new Row(recvTimeTs, recvTime, servicePath, entityId, entityType, attrName, attrType, attrValue,
+                toNumber(attrValue), attrMd);
+        rows.add(row);
+        rawSize += row.getRawSize();
+    } // add
+    
+    /**
+     * Adds the rows of another serializer, after the already added ones.
+     * @param other
+     */
+    public void addAll(ParquetRowSerializer other) {
+        rows.addAll(other.rows);
+        rawSize += other.rawSize;
+    } // addAll
+    
+    /**
+     * Removes the rows added after the given number of rows.
+     * @param numRows Number of rows to be kept
+     */
+    public void truncate(int numRows) {
+        while (rows.size() > numRows) {
+            rawSize -= rows.remove(rows.size() - 1).getRawSize();
+        } // while
+    } // truncate
+    
+    /**
+     * Gets the number of added rows.
+     * @return The number of added rows
+     */
+    public int getNumRows() {
+        return rows.size();
+    } // getNumRows
+    
+    /**
+     * Gets the size of the added rows, i.e. the number of characters of their values before being encoded and
+     * compressed; the serialized file is smaller.
+     * @return The size of the added rows
+     */
+    public long getRawSize() {
+        return rawSize;
+    } // getRawSize
+    
+    /**
+     * Serializes the added rows as a Parquet file. The file is written to a local temporary file, since the Parquet
+     * writer works on file systems, and it is deleted once read.
+     * @return The bytes of the Parquet file
+     * @throws IOException
+     */
+    public byte[] serialize() throws IOException {
+        File file = File.createTempFile("cygnus-", ".parquet");
+        File crcFile = new File(file.getParentFile(), "." + file.getName() + ".crc");
+        
+        try {
+            // the Parquet writer does not overwrite existing files
+            if (!file.delete()) {
+                throw new IOException("The temporary file could not be prepared (file=" + file + ")");
+            } // if
+            
+            ParquetWriter<Row> writer = new ParquetWriter<Row>(new Path(file.toURI()), new RowWriteSupport(),
+                    CompressionCodecName.GZIP, BLOCK_SIZE, PAGE_SIZE);
+            
+            try {
+                for (Row row : rows) {
+                    writer.write(row);
+                } // for
+            } finally {
+                writer.close();
+            } // try finally
+            
+            byte[] data = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            
+            try {
+                in.readFully(data);
+            } finally {
+                in.close();
+            } // try finally
+            
+            LOGGER.debug("Parquet file serialized (rows=" + rows.size() + ", bytes=" + data.length + ")");
+            return data;
+        } finally {
+            if (file.exists() && !file.delete()) {
+                LOGGER.warn("The temporary file could not be deleted (file=" + file + ")");
+            } // if
+            
+            if (crcFile.exists() && !crcFile.delete()) {
+                LOGGER.warn("The temporary file could not be deleted (file=" + crcFile + ")");
+            } // if
+        } // try finally
+    } // serialize
+    
+    /**
+     * Gets the numeric value of an attribute value, if it is a plain decimal number.
+     * @param attrValue
+     * @return The numeric value, or null if not numeric
+     */
+    static Double toNumber(String attrValue) {
+        if (attrValue == null || attrValue.isEmpty()) {
+            return null;
+        } // if
+        
+        // discard words accepted by Double.valueOf, such as NaN or Infinity, and type suffixes such as 'd' or 'f'
+        for (int i = 0; i < attrValue.length(); i++) {
+            char c = attrValue.charAt(i);
+            
+            if ((c < '0' || c > '9') && c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E') {
+                return null;
+            } // if
+        } // for
+        
+        try {
+            return Double.valueOf(attrValue);
+        } catch (NumberFormatException e) {
+            return null;
+        } // try catch
+    } // toNumber
+    
+    /**
+     * Row of the Parquet file.
+     */
+    private static class Row {
+        
+        private final long recvTimeTs;
+        private final String[] strings;
+        private final Double attrValueNum;
+        private final String attrMd;
+        
+        public Row(long recvTimeTs, String recvTime, String servicePath, String entityId, String entityType,
+                String attrName, String attrType, String attrValue, Double attrValueNum, String attrMd) {
+            this.recvTimeTs = recvTimeTs;
+            this.strings = new String[] {recvTime, servicePath, entityId, entityType, attrName, attrType, attrValue};
+            this.attrValueNum = attrValueNum;
+            this.attrMd = attrMd;
+        } // Row
+        
+        public long getRawSize() {
+            // the reception time and the numeric value are 8 bytes each
+            long size = 16 + (attrMd == null ? 0 : attrMd.length());
+            
+            for (String string : strings) {
+                size += (string == null ? 0 : string.length());
+            } // for
+            
+            return size;
+        } // getRawSize
+        
+    } // Row
+    
+    /**
+     * Writes the rows by directly feeding the Parquet record consumer with the columns of the schema, in order.
+     */
+    private static class RowWriteSupport extends WriteSupport<Row> {
+        
+        private RecordConsumer consumer;
+        
+        @Override
+        public WriteContext init(Configuration conf) {
+            return new WriteContext(SCHEMA, new HashMap<String, String>());
+        } // init
+        
+        @Override
+        public void prepareForWrite(RecordConsumer recordConsumer) {
+            consumer = recordConsumer;
+        } // prepareForWrite
+        
+        @Override
+        public void write(Row row) {
+            consumer.startMessage();
+            consumer.startField(RECV_TIME_TS, 0);
+            consumer.addLong(row.recvTimeTs);
+            consumer.endField(RECV_TIME_TS, 0);
+            
+            for (int i = 0; i < row.strings.length; i++) {
+                writeString(i + 1, row.strings[i]);
+            } // for
+            
+            if (row.attrValueNum != null) {
+                consumer.startField(ATTR_VALUE_NUM, 8);
+                consumer.addDouble(row.attrValueNum);
+                consumer.endField(ATTR_VALUE_NUM, 8);
+            } // if
+            
+            writeString(9, row.attrMd);
+            consumer.endMessage();
+        } // write
+        
+        private void writeString(int index, String value) {
+            // null values are written by not writing the field at all
+            if (value == null) {
+                return;
+            } // if
+            
+            String field = SCHEMA.getFieldName(index);
+            consumer.startField(field, index);
+            consumer.addBinary(Binary.fromString(value));
+            consumer.endField(field, index);
+        } // writeString
+        
+    } // RowWriteSupport
+    
+} // ParquetRowSerializer
@@ -41,7 +41,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -107,15 +107,21 @@ public abstract class HttpBackend {
      * @throws Exception
      */
     public JsonResponse doRequest(String method, String url, boolean relative, ArrayList<Header> headers,
-            StringEntity entity) throws Exception {
+            HttpEntity entity) throws Exception {
         // default httpRes
         JSONParser jsonParser = new JSONParser();
         JSONObject jsonObject = (JSONObject) jsonParser.parse("{}");
         JsonResponse response = new JsonResponse(null, 503, "Service unavailable", null);
         
         if (relative) {
-            // iterate on the hosts
-            for (String host : hosts) {
+            // iterate on the hosts; a copy is iterated since several threads may be reordering them
+            ArrayList<String> currentHosts;
+            
+            synchronized (hosts) {
+                currentHosts = new ArrayList<String>(hosts);
+            } // synchronized
+            
+            for (String host : currentHosts) {
                 // create the HttpFS URL
                 String effectiveURL = (ssl ? "https://" : "http://") + host + ":" + port + url;
                 
@@ -140,11 +146,13 @@ public abstract class HttpBackend {
                 } // if
                 
                 // place the current host in the first place (if not yet placed), since it is currently working
-                if (!hosts.getFirst().equals(host)) {
-                    hosts.remove(host);
-                    hosts.add(0, host);
-                    LOGGER.debug("Placing the host in the first place of the list (host=" + host + ")");
-                } // if
+                synchronized (hosts) {
+                    if (!hosts.getFirst().equals(host)) {
+                        hosts.remove(host);
+                        hosts.add(0, host);
+                        LOGGER.debug("Placing the host in the first place of the list (host=" + host + ")");
+                    } // if
+                } // synchronized
                 
                 break;
             } // for
@@ -159,7 +167,7 @@ public abstract class HttpBackend {
         return response;
     } // doRequest
         
-    private JsonResponse doRequest(String method, String url, ArrayList<Header> headers, StringEntity entity)
+    private JsonResponse doRequest(String method, String url, ArrayList<Header> headers, HttpEntity entity)
         throws Exception {
         HttpResponse httpRes = null;
         HttpRequestBase request = null;
@@ -208,7 +216,7 @@ public abstract class HttpBackend {
     // from here on, consider this link:
     // http://stackoverflow.com/questions/21629132/httpclient-set-credentials-for-kerberos-authentication
     private JsonResponse doPrivilegedRequest(String method, String url, ArrayList<Header> headers,
-            StringEntity entity) throws Exception {
+            HttpEntity entity) throws Exception {
         try {
             LoginContext loginContext = new LoginContext("cygnus_krb5_login",
                     new KerberosCallbackHandler(krb5User, krb5Password));
@@ -230,7 +238,7 @@ public abstract class HttpBackend {
         private final String method;
         private final String url;
         private final ArrayList<Header> headers;
-        private final StringEntity entity;
+        private final HttpEntity entity;
                
         /**
          * Constructor.
@@ -239,7 +247,7 @@ public abstract class HttpBackend {
          * @param headers
          * @param entity
          */
-        public PrivilegedRequest(String method, String url, ArrayList<Header> headers, StringEntity entity) {
+        public PrivilegedRequest(String method, String url, ArrayList<Header> headers, HttpEntity entity) {
             this.logger = Logger.getLogger(PrivilegedRequest.class);
             this.method = method;
             this.url = url;
@@ -283,6 +291,10 @@ public abstract class HttpBackend {
                     JSONParser jsonParser = new JSONParser();
                     jsonPayload = (JSONObject) jsonParser.parse(res);
                 } // if
+                
+                // consume the remaining payload, if any; otherwise the connection is aborted instead of being
+                // returned to the pool when released, and no keep-alive is possible
+                EntityUtils.consume(entity);
             } // if
 
             // get the location header
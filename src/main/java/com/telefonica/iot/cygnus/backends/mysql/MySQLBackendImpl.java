@@ -91,7 +91,7 @@ public class MySQLBackendImpl implements MySQLBackend {
             throw new CygnusRuntimeError(e.getMessage());
         } // try catch
         
-        closeMySQLObjects(con, stmt);
+        closeMySQLObjects(stmt);
     } // createDatabase
     
     /**
@@ -121,7 +121,7 @@ public class MySQLBackendImpl implements MySQLBackend {
             throw new CygnusRuntimeError(e.getMessage());
         } // try catch
         
-        closeMySQLObjects(con, stmt);
+        closeMySQLObjects(stmt);
     } // createTable
     
     @Override
@@ -146,30 +146,23 @@ public class MySQLBackendImpl implements MySQLBackend {
             throw new CygnusPersistenceError(e.getMessage());
         } catch (SQLException e) {
             throw new CygnusBadContextData(e.getMessage());
-        } // try catch
+        } finally {
+            closeMySQLObjects(stmt);
+        } // try catch finally
     } // insertContextData
     
     /**
-     * Close all the MySQL objects previously opened by doCreateTable and doQuery.
-     * @param con
+     * Closes a MySQL statement previously opened by createDatabase, createTable or insertContextData. The connections
+     * are not closed, since they are cached and may be in use by other threads persisting other sub-batches.
      * @param stmt
-     * @return True if the MySQL objects have been closed, false otherwise.
+     * @throws Exception
      */
-    private void closeMySQLObjects(Connection con, Statement stmt) throws Exception {
-        if (con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                throw new CygnusRuntimeError("The Hive connection could not be closed. Details="
-                        + e.getMessage());
-            } // try catch
-        } // if
-
+    private void closeMySQLObjects(Statement stmt) throws Exception {
         if (stmt != null) {
             try {
                 stmt.close();
             } catch (SQLException e) {
-                throw new CygnusRuntimeError("The Hive statement could not be closed. Details="
+                throw new CygnusRuntimeError("The MySQL statement could not be closed. Details="
                         + e.getMessage());
             } // try catch
         } // if
@@ -203,12 +196,13 @@ public class MySQLBackendImpl implements MySQLBackend {
         } // MySQLDriver
         
         /**
-         * Gets a connection to the MySQL server.
+         * Gets a connection to the MySQL server. It is synchronized since the sub-batches may be persisted by
+         * several threads.
          * @param dbName
          * @return
          * @throws Exception
          */
-        public Connection getConnection(String dbName) throws Exception {
+        public synchronized Connection getConnection(String dbName) throws Exception {
             try {
                 // FIXME: the number of cached connections should be limited to a certain number; with such a limit
                 //        number, if a new connection is needed, the oldest one is closed
@@ -236,7 +230,7 @@ public class MySQLBackendImpl implements MySQLBackend {
          * @param dbName
          * @return True if the connection exists, false other wise
          */
-        protected boolean isConnectionCreated(String dbName) {
+        protected synchronized boolean isConnectionCreated(String dbName) {
             return connections.containsKey(dbName);
         } // isConnectionCreated
         
@@ -244,7 +238,7 @@ public class MySQLBackendImpl implements MySQLBackend {
          * Gets the number of connections created.
          * @return The number of connections created
          */
-        protected int numConnectionsCreated() {
+        protected synchronized int numConnectionsCreated() {
             return connections.size();
         } // numConnectionsCreated
         
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+
+/**
+ *
+ * @author frb
+ *
+ * Accounting of the events within a Cygnus channel. The puts and takes of a transaction are counted by the thread
+ * owning it, without any synchronization, and they are applied to the shared counters once per transaction: when it is
+ * committed they are added, and when it is rollbacked they are discarded since the channel discards the put events and
+ * restores the taken ones. Thus, the counters are exact whatever the number of concurrent sources and sinks, and the
+ * per event overhead is a thread local lookup.
+ */
+final class ChannelCounters {
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong takes = new AtomicLong();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private final ThreadLocal<Pending> pending = new ThreadLocal<Pending>() {
+        @Override
+        protected Pending initialValue() {
+            return new Pending();
+        } // initialValue
+    };
+
+    /**
+     * Counts an event put within the transaction of the current thread.
+     * @param event
+     */
+    void put(Event event) {
+        Pending p = pending.get();
+        p.puts++;
+        p.bytes += size(event);
+    } // put
+
+    /**
+     * Counts an event taken within the transaction of the current thread.
+     * @param event
+     */
+    void take(Event event) {
+        if (event == null) {
+            return;
+        } // if
+
+        Pending p = pending.get();
+        p.takes++;
+        p.bytes -= size(event);
+    } // take
+
+    /**
+     * Wraps a transaction of the channel in order to apply the counts of the current thread when it is committed and
+     * discard them when it is rollbacked.
+     * @param transaction
+     * @return The wrapped transaction
+     */
+    Transaction wrap(Transaction transaction) {
+        return new CountingTransaction(transaction, pending.get());
+    } // wrap
+
+    /**
+     * Resets the counters.
+     */
+    void reset() {
+        events.set(0);
+        bytes.set(0);
+        puts.set(0);
+        takes.set(0);
+        rollbacks.set(0);
+    } // reset
+
+    long getEvents() {
+        return events.get();
+    } // getEvents
+
+    long getBytes() {
+        return bytes.get();
+    } // getBytes
+
+    long getPuts() {
+        return puts.get();
+    } // getPuts
+
+    long getTakes() {
+        return takes.get();
+    } // getTakes
+
+    long getRollbacks() {
+        return rollbacks.get();
+    } // getRollbacks
+
+    private static long size(Event event) {
+        byte[] body = event.getBody();
+        return body == null ? 0 : body.length;
+    } // size
+
+    /**
+     * Counts of the transaction of a thread, not yet committed nor rollbacked.
+     */
+    private static final class Pending {
+
+        private long puts;
+        private long takes;
+        private long bytes;
+
+        void clear() {
+            puts = 0;
+            takes = 0;
+            bytes = 0;
+        } // clear
+
+    } // Pending
+
+    /**
+     * Transaction applying the pending counts of its thread to the counters.
+     */
+    private final class CountingTransaction implements Transaction {
+
+        private final Transaction transaction;
+        private final Pending p;
+
+        CountingTransaction(Transaction transaction, Pending p) {
+            this.transaction = transaction;
+            this.p = p;
+        } // CountingTransaction
+
+        @Override
+        public void begin() {
+            p.clear();
+            transaction.begin();
+        } // begin
+
+        @Override
+        public void commit() {
+            transaction.commit();
+
+            if (p.puts != 0 || p.takes != 0) {
+                events.addAndGet(p.puts - p.takes);
+                bytes.addAndGet(p.bytes);
+                puts.addAndGet(p.puts);
+                takes.addAndGet(p.takes);
+                p.clear();
+            } // if
+        } // commit
+
+        @Override
+        public void rollback() {
+            transaction.rollback();
+            rollbacks.incrementAndGet();
+            p.clear();
+        } // rollback
+
+        @Override
+        public void close() {
+            transaction.close();
+            p.clear();
+        } // close
+
+    } // CountingTransaction
+
+} // ChannelCounters
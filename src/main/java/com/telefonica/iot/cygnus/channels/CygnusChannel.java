@@ -21,6 +21,9 @@ package com.telefonica.iot.cygnus.channels;
  * Interface that all the Cygnus proprietary channels must implement. It defines common methods for all of them, such
  * as getNumEvents().
  * 
+ * The counters only take into account the committed transactions: the events put within a transaction are counted
+ * when it is committed, and the events taken within a rollbacked transaction are not discounted.
+ * 
  * @author frb
  */
 public interface CygnusChannel {
@@ -32,10 +35,35 @@ public interface CygnusChannel {
     int getNumEvents();
     
     /**
-     * Rollbacks the number of events when a transaction is rollbacked as well. This method is necessary because when
-     * a transaction is rollbacked the "put" method is not used but some kind of internal re-linking is done at the
-     * chanel; thus, the number of events is not increased, which must be deliberatedly done by issuing this method.
+     * Gets the number of bytes within the channel, i.e. the sum of the body lengths of its events.
+     * @return The number of bytes within the channel.
+     */
+    long getNumBytes();
+    
+    /**
+     * Gets the number of events put into the channel since it was started.
+     * @return The number of events put into the channel.
+     */
+    long getNumPuts();
+    
+    /**
+     * Gets the number of events taken from the channel since it was started.
+     * @return The number of events taken from the channel.
+     */
+    long getNumTakes();
+    
+    /**
+     * Gets the number of transactions rollbacked since the channel was started.
+     * @return The number of transactions rollbacked.
+     */
+    long getNumRollbacks();
+    
+    /**
+     * Rollbacks the number of events when a transaction is rollbacked as well. It does nothing, since the transactions
+     * of the channel already account for the rollbacked events.
+     * @deprecated The number of events is accurate without issuing this method
      */
+    @Deprecated
     void rollback();
     
 } // CygnusChannel
@@ -17,63 +17,72 @@
  */
 package com.telefonica.iot.cygnus.channels;
 
-import org.apache.flume.Context;
 import org.apache.flume.Event;
+import org.apache.flume.Transaction;
 import org.apache.flume.channel.file.FileChannel;
 
 /**
  * CygnusFileChannel is an extension of Flume's FileChannel. Basically, it is the same channel but having methods
- * for sizing control.
+ * for sizing control; the events, bytes, puts, takes and rollbacks are accounted per transaction.
  * 
  * @author frb
  */
 public class CygnusFileChannel extends FileChannel implements CygnusChannel {
     
-    private int numEvents;
-    private int capacity;
-    
-    @Override
-    public void configure(Context context) {
-        super.configure(context);
-        capacity = context.getInteger("capacity");
-    } // configure
+    private final ChannelCounters counters = new ChannelCounters();
     
     @Override
     protected void initialize() {
         super.initialize();
-        numEvents = 0;
+        counters.reset();
     } // initialize
     
     @Override
     public void put(Event event) {
-        if (numEvents != capacity) {
-            numEvents++;
-        } // if
-        
-        // independently of the remaining capacity, call the super version of the method in order to behave as a
-        // FileChannel (exceptions, errors, etc)
         super.put(event);
+        counters.put(event);
     } // put
     
     @Override
     public Event take() {
         Event event = super.take();
-        
-        if (event != null) {
-            numEvents--;
-        } // if
-        
+        counters.take(event);
         return event;
     } // take
     
+    @Override
+    public Transaction getTransaction() {
+        return counters.wrap(super.getTransaction());
+    } // getTransaction
+    
     @Override
     public int getNumEvents() {
-        return numEvents;
+        return (int) counters.getEvents();
     } // getNumEvents
     
     @Override
+    public long getNumBytes() {
+        return counters.getBytes();
+    } // getNumBytes
+    
+    @Override
+    public long getNumPuts() {
+        return counters.getPuts();
+    } // getNumPuts
+    
+    @Override
+    public long getNumTakes() {
+        return counters.getTakes();
+    } // getNumTakes
+    
+    @Override
+    public long getNumRollbacks() {
+        return counters.getRollbacks();
+    } // getNumRollbacks
+    
+    @Override
+    @Deprecated
     public void rollback() {
-        numEvents++;
     } // rollback
     
 } // CygnusFileChannel
@@ -0,0 +1,428 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.BasicChannelSemantics;
+import org.apache.flume.channel.BasicTransactionSemantics;
+
+/**
+ * CygnusHybridChannel is a memory channel spilling the overflow to disk. The events are kept in memory, by reference,
+ * while their number is below a watermark; beyond it, the committed events are serialized and appended to memory-mapped
+ * segment files, and once the sinks catch up the events are taken back from the files, in order. Thus, it has the
+ * latency of a memory channel in steady state and the capacity of a disk-backed channel during backend incidents.
+ * 
+ * The events are always taken in the order they were committed: the events in memory are older than the spilled ones,
+ * since no event is kept in memory while there are spilled events. The events taken within a rollbacked transaction are
+ * restored, in the same order, at the head of the memory queue. The channel is not durable: the spilled events are not
+ * recovered after a restart.
+ * 
+ * @author frb
+ */
+public class CygnusHybridChannel extends BasicChannelSemantics implements CygnusChannel {
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(CygnusHybridChannel.class);
+    private final ChannelCounters counters = new ChannelCounters();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Event> memory = new ArrayDeque<Event>();
+    private int capacity;
+    private int transactionCapacity;
+    private int memoryCapacity;
+    private String spillDir;
+    private long spillByteCapacity;
+    private int segmentSize;
+    private int keepAlive;
+    private SpillQueue spill;
+    // events taken by the open transactions, which are kept until commit in order to restore them
+    private int reservedEvents;
+    
+    @Override
+    public void configure(Context context) {
+        capacity = context.getInteger("capacity", 1000000);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (capacity=" + capacity + ")");
+        transactionCapacity = context.getInteger("transactionCapacity", 100);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (transactionCapacity=" + transactionCapacity
+                + ")");
+        memoryCapacity = context.getInteger("memoryCapacity", 10000);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (memoryCapacity=" + memoryCapacity + ")");
+        spillDir = context.getString("spillDir", new File(System.getProperty("java.io.tmpdir"), "cygnus-spill")
+                .getAbsolutePath());
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (spillDir=" + spillDir + ")");
+        spillByteCapacity = context.getLong("spillByteCapacity", 1024L * 1024 * 1024);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (spillByteCapacity=" + spillByteCapacity + ")");
+        segmentSize = context.getInteger("segmentSize", 64 * 1024 * 1024);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (segmentSize=" + segmentSize + ")");
+        keepAlive = context.getInteger("keep-alive", 3);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (keep-alive=" + keepAlive + ")");
+        
+        if (capacity < 1 || transactionCapacity < 1 || transactionCapacity > capacity || memoryCapacity < 1
+                || spillByteCapacity < 0 || segmentSize < 8) {
+            throw new IllegalArgumentException("[" + this.getName() + "] Invalid configuration, the capacities must"
+                    + " be greater than 0, the segment size at least 8 bytes and the transaction capacity cannot"
+                    + " exceed the capacity");
+        } // if
+    } // configure
+    
+    @Override
+    public synchronized void start() {
+        lock.lock();
+        
+        try {
+            spill = new SpillQueue(new File(spillDir), this.getName(), segmentSize);
+            int deleted = spill.deleteStaleSegments();
+            
+            if (deleted > 0) {
+                LOGGER.warn("[" + this.getName() + "] " + deleted + " spill files of a previous execution were"
+                        + " deleted, their events are lost");
+            } // if
+            
+            memory.clear();
+            reservedEvents = 0;
+        } catch (IOException e) {
+            throw new FlumeException("[" + this.getName() + "] Could not start the channel. Details="
+                    + e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        } // try catch finally
+        
+        LOGGER.info("[" + this.getName() + "] Startup completed");
+        super.start();
+    } // start
+    
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        lock.lock();
+        
+        try {
+            int numEvents = memory.size() + (spill == null ? 0 : spill.getNumRecords());
+            
+            if (numEvents > 0) {
+                LOGGER.warn("[" + this.getName() + "] Stopping the channel with " + numEvents
+                        + " events, they will be lost");
+            } // if
+            
+            if (spill != null) {
+                spill.clear();
+                spill = null;
+            } // if
+            
+            memory.clear();
+        } finally {
+            lock.unlock();
+        } // try finally
+    } // stop
+    
+    @Override
+    protected void initialize() {
+        super.initialize();
+        counters.reset();
+    } // initialize
+    
+    @Override
+    protected BasicTransactionSemantics createTransaction() {
+        return new HybridTransaction();
+    } // createTransaction
+    
+    @Override
+    public void put(Event event) {
+        super.put(event);
+        counters.put(event);
+    } // put
+    
+    @Override
+    public Event take() {
+        Event event = super.take();
+        counters.take(event);
+        return event;
+    } // take
+    
+    @Override
+    public Transaction getTransaction() {
+        return counters.wrap(super.getTransaction());
+    } // getTransaction
+    
+    @Override
+    public int getNumEvents() {
+        return (int) counters.getEvents();
+    } // getNumEvents
+    
+    @Override
+    public long getNumBytes() {
+        return counters.getBytes();
+    } // getNumBytes
+    
+    @Override
+    public long getNumPuts() {
+        return counters.getPuts();
+    } // getNumPuts
+    
+    @Override
+    public long getNumTakes() {
+        return counters.getTakes();
+    } // getNumTakes
+    
+    @Override
+    public long getNumRollbacks() {
+        return counters.getRollbacks();
+    } // getNumRollbacks
+    
+    @Override
+    @Deprecated
+    public void rollback() {
+    } // rollback
+    
+    /**
+     * Gets the number of events kept in memory.
+     * @return The number of events kept in memory
+     */
+    public int getNumMemoryEvents() {
+        lock.lock();
+        
+        try {
+            return memory.size();
+        } finally {
+            lock.unlock();
+        } // try finally
+    } // getNumMemoryEvents
+    
+    /**
+     * Gets the number of events spilled to disk.
+     * @return The number of events spilled to disk
+     */
+    public int getNumSpilledEvents() {
+        lock.lock();
+        
+        try {
+            return spill == null ? 0 : spill.getNumRecords();
+        } finally {
+            lock.unlock();
+        } // try finally
+    } // getNumSpilledEvents
+    
+    /**
+     * Gets the number of bytes taken by the events spilled to disk.
+     * @return The number of bytes taken by the events spilled to disk
+     */
+    public long getSpilledBytes() {
+        lock.lock();
+        
+        try {
+            return spill == null ? 0 : spill.getUsedBytes();
+        } finally {
+            lock.unlock();
+        } // try finally
+    } // getSpilledBytes
+    
+    private SpillQueue getSpill() {
+        if (spill == null) {
+            throw new ChannelException("[" + this.getName() + "] The channel is not started");
+        } // if
+        
+        return spill;
+    } // getSpill
+    
+    /**
+     * Transaction of the hybrid channel. The put events are kept within the transaction until commit; the taken
+     * events are removed from the channel, but they are counted until commit in order to restore them.
+     */
+    private class HybridTransaction extends BasicTransactionSemantics {
+        
+        private final ArrayList<Event> putList = new ArrayList<Event>();
+        private final ArrayList<Event> takeList = new ArrayList<Event>();
+        
+        @Override
+        protected void doPut(Event event) throws InterruptedException {
+            if (putList.size() == transactionCapacity) {
+                throw new ChannelException("Put queue for HybridTransaction of capacity " + transactionCapacity
+                        + " full, consider committing more frequently, increasing capacity or increasing thread"
+                        + " count");
+            } // if
+            
+            putList.add(event);
+        } // doPut
+        
+        @Override
+        protected Event doTake() throws InterruptedException {
+            if (takeList.size() == transactionCapacity) {
+                throw new ChannelException("Take list for HybridTransaction, capacity " + transactionCapacity
+                        + " full, consider committing more frequently, increasing capacity, or increasing thread"
+                        + " count");
+            } // if
+            
+            Event event;
+            lock.lock();
+            
+            try {
+                long nanos = TimeUnit.SECONDS.toNanos(keepAlive);
+                
+                while (memory.isEmpty() && getSpill().getNumRecords() == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    } // if
+                    
+                    nanos = notEmpty.awaitNanos(nanos);
+                } // while
+                
+                if (memory.isEmpty()) {
+                    event = EventCodec.decode(spill.poll());
+                } else {
+                    event = memory.pollFirst();
+                } // if else
+                
+                reservedEvents++;
+            } finally {
+                lock.unlock();
+            } // try finally
+            
+            takeList.add(event);
+            return event;
+        } // doTake
+        
+        @Override
+        protected void doCommit() throws InterruptedException {
+            if (putList.isEmpty() && takeList.isEmpty()) {
+                return;
+            } // if
+            
+            lock.lock();
+            
+            try {
+                SpillQueue s = getSpill();
+                long nanos = TimeUnit.SECONDS.toNanos(keepAlive);
+                ArrayList<byte[]> records = null;
+                
+                while (true) {
+                    // the events taken by this transaction are released by the commit, thus they are not counted
+                    int numEvents = memory.size() + s.getNumRecords() + reservedEvents - takeList.size();
+                    
+                    // the events are kept in memory up to the watermark, unless there are spilled events, since
+                    // those must be taken first
+                    int toMemory = s.getNumRecords() > 0 ? 0
+                            : Math.max(0, Math.min(putList.size(), memoryCapacity - memory.size()));
+                    
+                    if (records == null || records.size() != putList.size() - toMemory) {
+                        records = encode(toMemory);
+                    } // if
+                    
+                    long spillBytes = 0;
+                    
+                    for (byte[] record : records) {
+                        spillBytes += SpillQueue.size(record);
+                    } // for
+                    
+                    if (numEvents + putList.size() <= capacity
+                            && s.getUsedBytes() + spillBytes <= spillByteCapacity) {
+                        try {
+                            for (byte[] record : records) {
+                                s.append(record);
+                            } // for
+                        } catch (IOException e) {
+                            throw new ChannelException("[" + getName() + "] Could not spill the events to "
+                                    + spillDir + ". Details=" + e.getMessage(), e);
+                        } // try catch
+                        
+                        // the memory is updated once the events are spilled, thus a spilling error leaves it untouched
+                        for (int i = 0; i < toMemory; i++) {
+                            memory.addLast(putList.get(i));
+                        } // for
+                        
+                        break;
+                    } // if
+                    
+                    if (nanos <= 0) {
+                        throw new ChannelException("Space for commit to queue couldn't be acquired. Sinks are likely"
+                                + " not keeping up with sources, or the buffer size is too tight");
+                    } // if
+                    
+                    nanos = notFull.awaitNanos(nanos);
+                } // while
+                
+                reservedEvents -= takeList.size();
+                
+                if (!takeList.isEmpty()) {
+                    notFull.signalAll();
+                } // if
+                
+                if (!putList.isEmpty()) {
+                    notEmpty.signalAll();
+                } // if
+            } finally {
+                lock.unlock();
+            } // try finally
+            
+            putList.clear();
+            takeList.clear();
+        } // doCommit
+        
+        @Override
+        protected void doRollback() throws InterruptedException {
+            if (!takeList.isEmpty()) {
+                lock.lock();
+                
+                try {
+                    // the taken events are older than any other one, thus they are restored at the head of the
+                    // memory queue, in reverse order in order to be taken again in the same order
+                    for (int i = takeList.size() - 1; i >= 0; i--) {
+                        memory.addFirst(takeList.get(i));
+                    } // for
+                    
+                    reservedEvents -= takeList.size();
+                    notEmpty.signalAll();
+                } finally {
+                    lock.unlock();
+                } // try finally
+            } // if
+            
+            putList.clear();
+            takeList.clear();
+        } // doRollback
+        
+        /**
+         * Encodes the put events not kept in memory.
+         * @param toMemory Number of put events kept in memory
+         * @return The records of the put events to be spilled
+         */
+        private ArrayList<byte[]> encode(int toMemory) {
+            ArrayList<byte[]> records = new ArrayList<byte[]>();
+            
+            for (int i = toMemory; i < putList.size(); i++) {
+                records.add(EventCodec.encode(putList.get(i)));
+            } // for
+            
+            return records;
+        } // encode
+        
+    } // HybridTransaction
+    
+} // CygnusHybridChannel
@@ -0,0 +1,353 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.BasicChannelSemantics;
+import org.apache.flume.channel.BasicTransactionSemantics;
+
+/**
+ * CygnusOffHeapChannel is a memory channel storing the events out of the Java heap, serialized within a ring buffer of
+ * direct memory. Thus, large backlogs of events (e.g. during a backend outage) do not put pressure on the garbage
+ * collector. It has the same transactional behaviour than Flume's MemoryChannel: the events put within a transaction
+ * are added to the channel when it is committed, and the events taken within a transaction are restored, in the same
+ * order, when it is rollbacked.
+ * 
+ * @author frb
+ */
+public class CygnusOffHeapChannel extends BasicChannelSemantics implements CygnusChannel {
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(CygnusOffHeapChannel.class);
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private final ChannelCounters counters = new ChannelCounters();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int capacity;
+    private int transactionCapacity;
+    private long byteCapacity;
+    private int segmentSize;
+    private int keepAlive;
+    private OffHeapRingBuffer buffer;
+    // bytes and records taken by the open transactions, which are kept until commit in order to restore them
+    private long reservedBytes;
+    private int reservedRecords;
+    
+    @Override
+    public void configure(Context context) {
+        capacity = context.getInteger("capacity", 1000000);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (capacity=" + capacity + ")");
+        transactionCapacity = context.getInteger("transactionCapacity", 100);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (transactionCapacity=" + transactionCapacity
+                + ")");
+        byteCapacity = context.getLong("byteCapacity", 64L * 1024 * 1024);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (byteCapacity=" + byteCapacity + ")");
+        segmentSize = context.getInteger("segmentSize", (int) Math.min(byteCapacity, DEFAULT_SEGMENT_SIZE));
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (segmentSize=" + segmentSize + ")");
+        keepAlive = context.getInteger("keep-alive", 3);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (keep-alive=" + keepAlive + ")");
+        
+        if (capacity < 1 || transactionCapacity < 1 || transactionCapacity > capacity || byteCapacity < 1
+                || segmentSize < 1) {
+            throw new IllegalArgumentException("[" + this.getName() + "] Invalid configuration, the capacities and"
+                    + " the segment size must be greater than 0 and the transaction capacity cannot exceed the"
+                    + " capacity");
+        } // if
+    } // configure
+    
+    @Override
+    public synchronized void start() {
+        lock.lock();
+        
+        try {
+            buffer = new OffHeapRingBuffer(byteCapacity, segmentSize);
+            reservedBytes = 0;
+            reservedRecords = 0;
+        } finally {
+            lock.unlock();
+        } // try finally
+        
+        LOGGER.info("[" + this.getName() + "] Startup completed (" + buffer.getCapacity()
+                + " bytes of direct memory allocated)");
+        super.start();
+    } // start
+    
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        lock.lock();
+        
+        try {
+            if (buffer != null && buffer.getNumRecords() > 0) {
+                LOGGER.warn("[" + this.getName() + "] Stopping the channel with " + buffer.getNumRecords()
+                        + " events, they will be lost");
+            } // if
+            
+            // the direct memory is released once the buffer is garbage collected
+            buffer = null;
+        } finally {
+            lock.unlock();
+        } // try finally
+    } // stop
+    
+    @Override
+    protected void initialize() {
+        super.initialize();
+        counters.reset();
+    } // initialize
+    
+    @Override
+    protected BasicTransactionSemantics createTransaction() {
+        return new OffHeapTransaction();
+    } // createTransaction
+    
+    @Override
+    public void put(Event event) {
+        super.put(event);
+        counters.put(event);
+    } // put
+    
+    @Override
+    public Event take() {
+        Event event = super.take();
+        counters.take(event);
+        return event;
+    } // take
+    
+    @Override
+    public Transaction getTransaction() {
+        return counters.wrap(super.getTransaction());
+    } // getTransaction
+    
+    @Override
+    public int getNumEvents() {
+        return (int) counters.getEvents();
+    } // getNumEvents
+    
+    @Override
+    public long getNumBytes() {
+        return counters.getBytes();
+    } // getNumBytes
+    
+    @Override
+    public long getNumPuts() {
+        return counters.getPuts();
+    } // getNumPuts
+    
+    @Override
+    public long getNumTakes() {
+        return counters.getTakes();
+    } // getNumTakes
+    
+    @Override
+    public long getNumRollbacks() {
+        return counters.getRollbacks();
+    } // getNumRollbacks
+    
+    @Override
+    @Deprecated
+    public void rollback() {
+    } // rollback
+    
+    /**
+     * Gets the number of bytes of direct memory in use, i.e. taken by the serialized events, including those taken
+     * by transactions not yet committed.
+     * @return The number of bytes of direct memory in use
+     */
+    public long getOccupiedBytes() {
+        lock.lock();
+        
+        try {
+            return buffer == null ? 0 : buffer.getUsedBytes() + reservedBytes;
+        } finally {
+            lock.unlock();
+        } // try finally
+    } // getOccupiedBytes
+    
+    /**
+     * Gets the number of bytes of direct memory allocated by the channel.
+     * @return The number of bytes of direct memory allocated by the channel
+     */
+    public long getByteCapacity() {
+        lock.lock();
+        
+        try {
+            return buffer == null ? 0 : buffer.getCapacity();
+        } finally {
+            lock.unlock();
+        } // try finally
+    } // getByteCapacity
+    
+    private OffHeapRingBuffer getBuffer() {
+        if (buffer == null) {
+            throw new ChannelException("[" + this.getName() + "] The channel is not started");
+        } // if
+        
+        return buffer;
+    } // getBuffer
+    
+    /**
+     * Transaction of the off-heap channel. The put events are serialized and kept within the transaction until commit;
+     * the taken events are removed from the buffer, but their space is kept until commit in order to restore them.
+     */
+    private class OffHeapTransaction extends BasicTransactionSemantics {
+        
+        private final ArrayList<byte[]> putList = new ArrayList<byte[]>();
+        private final ArrayList<byte[]> takeList = new ArrayList<byte[]>();
+        private long putBytes = 0;
+        private long takeBytes = 0;
+        
+        @Override
+        protected void doPut(Event event) throws InterruptedException {
+            if (putList.size() == transactionCapacity) {
+                throw new ChannelException("Put queue for OffHeapTransaction of capacity " + transactionCapacity
+                        + " full, consider committing more frequently, increasing capacity or increasing thread"
+                        + " count");
+            } // if
+            
+            byte[] record = EventCodec.encode(event);
+            long size = OffHeapRingBuffer.size(record);
+            
+            if (size > byteCapacity) {
+                throw new ChannelException("Event of " + size + " bytes larger than the byte capacity ("
+                        + byteCapacity + ") of the channel");
+            } // if
+            
+            putList.add(record);
+            putBytes += size;
+        } // doPut
+        
+        @Override
+        protected Event doTake() throws InterruptedException {
+            if (takeList.size() == transactionCapacity) {
+                throw new ChannelException("Take list for OffHeapTransaction, capacity " + transactionCapacity
+                        + " full, consider committing more frequently, increasing capacity, or increasing thread"
+                        + " count");
+            } // if
+            
+            byte[] record;
+            lock.lock();
+            
+            try {
+                long nanos = TimeUnit.SECONDS.toNanos(keepAlive);
+                
+                while (getBuffer().getNumRecords() == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    } // if
+                    
+                    nanos = notEmpty.awaitNanos(nanos);
+                } // while
+                
+                record = buffer.poll();
+                reservedBytes += OffHeapRingBuffer.size(record);
+                reservedRecords++;
+            } finally {
+                lock.unlock();
+            } // try finally
+            
+            takeList.add(record);
+            takeBytes += OffHeapRingBuffer.size(record);
+            return EventCodec.decode(record);
+        } // doTake
+        
+        @Override
+        protected void doCommit() throws InterruptedException {
+            if (putList.isEmpty() && takeList.isEmpty()) {
+                return;
+            } // if
+            
+            lock.lock();
+            
+            try {
+                OffHeapRingBuffer b = getBuffer();
+                long nanos = TimeUnit.SECONDS.toNanos(keepAlive);
+                
+                // the space of the taken events is released by this commit, thus it is available for the put ones
+                while (b.getUsedBytes() + reservedBytes - takeBytes + putBytes > b.getCapacity()
+                        || b.getNumRecords() + reservedRecords - takeList.size() + putList.size() > capacity) {
+                    if (nanos <= 0) {
+                        throw new ChannelException("Space for commit to queue couldn't be acquired. Sinks are likely"
+                                + " not keeping up with sources, or the buffer size is too tight");
+                    } // if
+                    
+                    nanos = notFull.awaitNanos(nanos);
+                } // while
+                
+                reservedBytes -= takeBytes;
+                reservedRecords -= takeList.size();
+                
+                for (byte[] record : putList) {
+                    b.append(record);
+                } // for
+                
+                if (!takeList.isEmpty()) {
+                    notFull.signalAll();
+                } // if
+                
+                if (!putList.isEmpty()) {
+                    notEmpty.signalAll();
+                } // if
+            } finally {
+                lock.unlock();
+            } // try finally
+            
+            clear();
+        } // doCommit
+        
+        @Override
+        protected void doRollback() throws InterruptedException {
+            if (!takeList.isEmpty()) {
+                lock.lock();
+                
+                try {
+                    // the taken events are restored in reverse order, thus they are taken again in the same order
+                    for (int i = takeList.size() - 1; i >= 0; i--) {
+                        getBuffer().pushBack(takeList.get(i));
+                    } // for
+                    
+                    reservedBytes -= takeBytes;
+                    reservedRecords -= takeList.size();
+                    notEmpty.signalAll();
+                } finally {
+                    lock.unlock();
+                } // try finally
+            } // if
+            
+            clear();
+        } // doRollback
+        
+        private void clear() {
+            putList.clear();
+            takeList.clear();
+            putBytes = 0;
+            takeBytes = 0;
+        } // clear
+        
+    } // OffHeapTransaction
+    
+} // CygnusOffHeapChannel
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+import com.telefonica.iot.cygnus.utils.Constants;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+
+/**
+ *
+ * @author frb
+ *
+ * Binary encoding of the Flume events stored out of the Java heap. A record is made of the number of headers, the
+ * headers and the body, the lengths being written as variable length integers. The header names set by Cygnus are
+ * written as a single byte code, the rest of names being written as a 0 byte followed by the name; since the records
+ * may be stored in files, new codes must be appended to the end of the list of known names.
+ *
+ * The decoded events are plain events, thus the parsed notification and routing carried by NotifyContextRequestEvent
+ * are not preserved and they are read again from the body and the headers, respectively.
+ */
+final class EventCodec {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] KNOWN_NAMES = {
+        null,
+        Constants.HEADER_NOTIFIED_SERVICE,
+        Constants.HEADER_NOTIFIED_SERVICE_PATH,
+        Constants.HEADER_DEFAULT_SERVICE_PATHS,
+        Constants.HEADER_GROUPED_SERVICE_PATHS,
+        Constants.HEADER_DEFAULT_DESTINATIONS,
+        Constants.HEADER_GROUPED_DESTINATIONS,
+        Constants.HEADER_CONTENT_TYPE,
+        Constants.HEADER_USER_AGENT,
+        Constants.HEADER_TRANSACTION_ID,
+        Constants.HEADER_TTL,
+        Constants.HEADER_TIMESTAMP
+    };
+    private static final HashMap<String, Integer> KNOWN_CODES = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 1; i < KNOWN_NAMES.length; i++) {
+            KNOWN_CODES.put(KNOWN_NAMES[i], i);
+        } // for
+    } // static
+
+    private EventCodec() {
+    } // EventCodec
+
+    /**
+     * Encodes an event.
+     * @param event
+     * @return The record encoding the event
+     */
+    static byte[] encode(Event event) {
+        Map<String, String> headers = event.getHeaders();
+        byte[] body = event.getBody();
+
+        if (body == null) {
+            body = new byte[0];
+        } // if
+
+        Output out = new Output(body.length + 64 * (headers == null ? 0 : headers.size()) + 8);
+
+        if (headers == null) {
+            out.writeVarInt(0);
+        } else {
+            out.writeVarInt(headers.size());
+
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                Integer code = KNOWN_CODES.get(header.getKey());
+
+                if (code == null) {
+                    out.write(0);
+                    out.writeString(header.getKey());
+                } else {
+                    out.write(code);
+                } // if else
+
+                out.writeString(header.getValue());
+            } // for
+        } // if else
+
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    } // encode
+
+    /**
+     * Decodes an event.
+     * @param record
+     * @return The event encoded by the record
+     */
+    static Event decode(byte[] record) {
+        Input in = new Input(record);
+        int numHeaders = in.readVarInt();
+        HashMap<String, String> headers = new HashMap<String, String>();
+
+        for (int i = 0; i < numHeaders; i++) {
+            int code = in.readByte();
+            String name;
+
+            if (code == 0) {
+                name = in.readString();
+            } else if (code < KNOWN_NAMES.length) {
+                name = KNOWN_NAMES[code];
+            } else {
+                throw new ChannelException("Unknown header code " + code + " within an event record");
+            } // if else
+
+            headers.put(name, in.readString());
+        } // for
+
+        byte[] body = new byte[record.length - in.pos];
+        System.arraycopy(record, in.pos, body, 0, body.length);
+        return EventBuilder.withBody(body, headers);
+    } // decode
+
+    /**
+     * Growable output buffer.
+     */
+    private static final class Output extends ByteArrayOutputStream {
+
+        Output(int size) {
+            super(size);
+        } // Output
+
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            } // while
+
+            write(value);
+        } // writeVarInt
+
+        void writeString(String value) {
+            if (value == null) {
+                // null values are written as an empty string
+                writeVarInt(0);
+                return;
+            } // if
+
+            byte[] bytes = value.getBytes(UTF8);
+            writeVarInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        } // writeString
+
+    } // Output
+
+    /**
+     * Input buffer.
+     */
+    private static final class Input {
+
+        private final byte[] bytes;
+        private int pos;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+            this.pos = 0;
+        } // Input
+
+        int readByte() {
+            if (pos >= bytes.length) {
+                throw new ChannelException("Truncated event record");
+            } // if
+
+            return bytes[pos++] & 0xFF;
+        } // readByte
+
+        int readVarInt() {
+            int value = 0;
+            int shift = 0;
+
+            while (true) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return value;
+                } // if
+
+                shift += 7;
+
+                if (shift > 28) {
+                    throw new ChannelException("Malformed length within an event record");
+                } // if
+            } // while
+        } // readVarInt
+
+        String readString() {
+            int length = readVarInt();
+
+            if (length < 0 || length > bytes.length - pos) {
+                throw new ChannelException("Truncated event record");
+            } // if
+
+            String value = new String(bytes, pos, length, UTF8);
+            pos += length;
+            return value;
+        } // readString
+
+    } // Input
+
+} // EventCodec
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author frb
+ *
+ * Ring buffer of records stored in direct memory, i.e. out of the Java heap. The memory is allocated as a list of
+ * segments of the same size, thus the capacity is not bounded by the size of a single direct buffer (2 GB); each
+ * record is written as its length (4 bytes) followed by its bytes, and it may be split among consecutive segments.
+ *
+ * Records are appended to the tail and polled from the head; polled records may be pushed back to the head, in
+ * reverse order, in order to restore them. The buffer is not thread-safe, the callers must synchronize its usage.
+ */
+final class OffHeapRingBuffer {
+
+    private static final int LENGTH_SIZE = 4;
+    private final ByteBuffer[] segments;
+    private final int segmentSize;
+    private final long capacity;
+    private final byte[] lengthBytes = new byte[LENGTH_SIZE];
+    private long head;
+    private long tail;
+    private int numRecords;
+
+    /**
+     * Constructor. It allocates the direct memory.
+     * @param capacity Number of bytes of the buffer, greater than 0
+     * @param segmentSize Maximum number of bytes of a segment, greater than 0
+     */
+    OffHeapRingBuffer(long capacity, int segmentSize) {
+        int numSegments = (int) ((capacity + segmentSize - 1) / segmentSize);
+        this.segments = new ByteBuffer[numSegments];
+        this.segmentSize = segmentSize;
+        this.capacity = (long) numSegments * segmentSize;
+
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = ByteBuffer.allocateDirect(segmentSize);
+        } // for
+
+        head = 0;
+        tail = 0;
+        numRecords = 0;
+    } // OffHeapRingBuffer
+
+    /**
+     * Gets the number of bytes a record takes within the buffer.
+     * @param record
+     * @return The number of bytes the record takes within the buffer
+     */
+    static long size(byte[] record) {
+        return LENGTH_SIZE + record.length;
+    } // size
+
+    /**
+     * Appends a record to the tail. The callers must check there is enough free space.
+     * @param record
+     */
+    void append(byte[] record) {
+        encodeLength(record.length);
+        write(tail, lengthBytes, LENGTH_SIZE);
+        write(tail + LENGTH_SIZE, record, record.length);
+        tail += size(record);
+        numRecords++;
+    } // append
+
+    /**
+     * Polls the record at the head.
+     * @return The record at the head, or null if the buffer is empty
+     */
+    byte[] poll() {
+        if (numRecords == 0) {
+            return null;
+        } // if
+
+        read(head, lengthBytes, LENGTH_SIZE);
+        byte[] record = new byte[decodeLength()];
+        read(head + LENGTH_SIZE, record, record.length);
+        head += size(record);
+        numRecords--;
+        return record;
+    } // poll
+
+    /**
+     * Pushes a record back to the head. The callers must check there is enough free space, which is the case when
+     * pushing back records previously polled.
+     * @param record
+     */
+    void pushBack(byte[] record) {
+        head -= size(record);
+        encodeLength(record.length);
+        write(head, lengthBytes, LENGTH_SIZE);
+        write(head + LENGTH_SIZE, record, record.length);
+        numRecords++;
+    } // pushBack
+
+    /**
+     * Gets the number of bytes of the buffer.
+     * @return The number of bytes of the buffer
+     */
+    long getCapacity() {
+        return capacity;
+    } // getCapacity
+
+    /**
+     * Gets the number of bytes taken by the records within the buffer.
+     * @return The number of bytes taken by the records within the buffer
+     */
+    long getUsedBytes() {
+        return tail - head;
+    } // getUsedBytes
+
+    /**
+     * Gets the number of records within the buffer.
+     * @return The number of records within the buffer
+     */
+    int getNumRecords() {
+        return numRecords;
+    } // getNumRecords
+
+    private void write(long position, byte[] src, int length) {
+        int done = 0;
+
+        while (done < length) {
+            long offset = index(position + done);
+            ByteBuffer segment = segments[(int) (offset / segmentSize)];
+            int segmentOffset = (int) (offset % segmentSize);
+            int chunk = Math.min(length - done, segmentSize - segmentOffset);
+            segment.position(segmentOffset);
+            segment.put(src, done, chunk);
+            done += chunk;
+        } // while
+    } // write
+
+    private void read(long position, byte[] dst, int length) {
+        int done = 0;
+
+        while (done < length) {
+            long offset = index(position + done);
+            ByteBuffer segment = segments[(int) (offset / segmentSize)];
+            int segmentOffset = (int) (offset % segmentSize);
+            int chunk = Math.min(length - done, segmentSize - segmentOffset);
+            segment.position(segmentOffset);
+            segment.get(dst, done, chunk);
+            done += chunk;
+        } // while
+    } // read
+
+    private long index(long position) {
+        long offset = position % capacity;
+        return offset < 0 ? offset + capacity : offset;
+    } // index
+
+    private void encodeLength(int length) {
+        lengthBytes[0] = (byte) (length >>> 24);
+        lengthBytes[1] = (byte) (length >>> 16);
+        lengthBytes[2] = (byte) (length >>> 8);
+        lengthBytes[3] = (byte) length;
+    } // encodeLength
+
+    private int decodeLength() {
+        return ((lengthBytes[0] & 0xFF) << 24) | ((lengthBytes[1] & 0xFF) << 16) | ((lengthBytes[2] & 0xFF) << 8)
+                | (lengthBytes[3] & 0xFF);
+    } // decodeLength
+
+} // OffHeapRingBuffer
@@ -0,0 +1,282 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
+
+/**
+ *
+ * @author frb
+ *
+ * FIFO queue of records stored within append-only memory-mapped segment files. Records are appended to the last
+ * segment, a new one being created when the record does not fit; records are polled from the first segment, which is
+ * deleted once all its records have been polled. Each record is written as its length (4 bytes) followed by its bytes,
+ * and a negative length marks the end of the written records of a segment.
+ *
+ * The queue is not thread-safe, the callers must synchronize its usage.
+ */
+final class SpillQueue {
+
+    private static final int LENGTH_SIZE = 4;
+    private static final String SUFFIX = ".spill";
+    private final File dir;
+    private final String prefix;
+    private final int segmentSize;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private long nextSegmentId;
+    private int numRecords;
+    private long usedBytes;
+
+    /**
+     * Constructor.
+     * @param dir Directory of the segment files
+     * @param prefix Prefix of the names of the segment files
+     * @param segmentSize Number of bytes of a segment file, greater than 4
+     */
+    SpillQueue(File dir, String prefix, int segmentSize) {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.nextSegmentId = 0;
+        this.numRecords = 0;
+        this.usedBytes = 0;
+    } // SpillQueue
+
+    /**
+     * Gets the number of bytes a record takes within a segment.
+     * @param record
+     * @return The number of bytes the record takes within a segment
+     */
+    static long size(byte[] record) {
+        return LENGTH_SIZE + record.length;
+    } // size
+
+    /**
+     * Deletes the segment files of previous executions, if any. Only the files named after this queue's segments, i.e.
+     * the prefix, a dash, the segment id and the suffix, are deleted; thus the segment files of other queues sharing
+     * the directory, e.g. those of a channel whose name starts with this queue's prefix, are kept.
+     * @return The number of deleted files
+     * @throws IOException
+     */
+    int deleteStaleSegments() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create the spill directory " + dir.getAbsolutePath());
+        } // if
+
+        File[] files = dir.listFiles();
+        int deleted = 0;
+
+        if (files == null) {
+            return deleted;
+        } // if
+
+        for (File file : files) {
+            if (isSegmentName(file.getName()) && file.delete()) {
+                deleted++;
+            } // if
+        } // for
+
+        return deleted;
+    } // deleteStaleSegments
+    
+    private boolean isSegmentName(String name) {
+        String start = prefix + "-";
+        
+        if (!name.startsWith(start) || !name.endsWith(SUFFIX)) {
+            return false;
+        } // if
+        
+        String id = name.substring(start.length(), name.length() - SUFFIX.length());
+        
+        if (id.isEmpty()) {
+            return false;
+        } // if
+        
+        for (int i = 0; i < id.length(); i++) {
+            if (!Character.isDigit(id.charAt(i))) {
+                return false;
+            } // if
+        } // for
+        
+        return true;
+    } // isSegmentName
+
+    /**
+     * Appends a record.
+     * @param record
+     * @throws IOException
+     */
+    void append(byte[] record) throws IOException {
+        Segment last = segments.peekLast();
+
+        if (last == null || !last.append(record)) {
+            // records larger than the segment size get a segment of their own
+            last = new Segment(new File(dir, prefix + "-" + nextSegmentId + SUFFIX),
+                    (int) Math.max(segmentSize, size(record) + LENGTH_SIZE));
+            nextSegmentId++;
+            segments.addLast(last);
+            last.append(record);
+        } // if
+
+        numRecords++;
+        usedBytes += size(record);
+    } // append
+
+    /**
+     * Polls the first record.
+     * @return The first record, or null if the queue is empty
+     */
+    byte[] poll() {
+        while (numRecords > 0) {
+            Segment first = segments.peekFirst();
+            byte[] record = first.poll();
+
+            if (record != null) {
+                numRecords--;
+                usedBytes -= size(record);
+
+                // the last segment is kept, since it is being written
+                if (first.isDrained() && segments.size() > 1) {
+                    segments.removeFirst().delete();
+                } // if
+
+                return record;
+            } // if
+
+            // the first segment has no more records, but it was not deleted since it was the last one
+            segments.removeFirst().delete();
+        } // while
+
+        return null;
+    } // poll
+
+    /**
+     * Deletes all the records and segment files.
+     */
+    void clear() {
+        while (!segments.isEmpty()) {
+            segments.removeFirst().delete();
+        } // while
+
+        numRecords = 0;
+        usedBytes = 0;
+    } // clear
+
+    /**
+     * Gets the number of records within the queue.
+     * @return The number of records within the queue
+     */
+    int getNumRecords() {
+        return numRecords;
+    } // getNumRecords
+
+    /**
+     * Gets the number of bytes taken by the records within the queue.
+     * @return The number of bytes taken by the records within the queue
+     */
+    long getUsedBytes() {
+        return usedBytes;
+    } // getUsedBytes
+
+    /**
+     * Gets the number of segment files.
+     * @return The number of segment files
+     */
+    int getNumSegments() {
+        return segments.size();
+    } // getNumSegments
+
+    /**
+     * Memory-mapped segment file.
+     */
+    private static final class Segment {
+
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePos;
+        private int readPos;
+        private boolean sealed;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try {
+                // the mapping remains valid once the file is closed
+                this.buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            } // try finally
+
+            this.writePos = 0;
+            this.readPos = 0;
+            this.sealed = false;
+        } // Segment
+
+        boolean append(byte[] record) {
+            if (sealed || writePos + size(record) > buffer.capacity()) {
+                seal();
+                return false;
+            } // if
+
+            buffer.putInt(writePos, record.length);
+            buffer.position(writePos + LENGTH_SIZE);
+            buffer.put(record);
+            writePos += size(record);
+            return true;
+        } // append
+
+        byte[] poll() {
+            if (readPos == writePos) {
+                return null;
+            } // if
+
+            int length = buffer.getInt(readPos);
+            byte[] record = new byte[length];
+            buffer.position(readPos + LENGTH_SIZE);
+            buffer.get(record);
+            readPos += LENGTH_SIZE + length;
+            return record;
+        } // poll
+
+        boolean isDrained() {
+            return sealed && readPos == writePos;
+        } // isDrained
+
+        private void seal() {
+            if (!sealed && writePos + LENGTH_SIZE <= buffer.capacity()) {
+                buffer.putInt(writePos, -1);
+            } // if
+
+            sealed = true;
+        } // seal
+
+        void delete() {
+            // the mapping is released once the buffer is garbage collected
+            file.delete();
+        } // delete
+
+    } // Segment
+
+} // SpillQueue
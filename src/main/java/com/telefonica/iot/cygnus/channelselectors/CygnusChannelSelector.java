@@ -0,0 +1,136 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channelselectors;
+
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
+import org.apache.flume.channel.AbstractChannelSelector;
+
+/**
+ *
+ * @author frb
+ *
+ * Abstract class for the channel selectors putting each event into a single channel per storage, a storage being a
+ * subset of the channels of the source (e.g. the channels of the HDFS sinks). The storages are configured as:
+ * 
+ *     storages = N
+ *     storages.storage1 = ch1,ch2,...
+ *     ...
+ *     storages.storageN = ...
+ * 
+ * The channel objects are resolved once at configuration time, thus the selection does not look them up by name.
+ */
+public abstract class CygnusChannelSelector extends AbstractChannelSelector {
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(CygnusChannelSelector.class);
+    private Channel[][] channelsPerStorage;
+    
+    @Override
+    public void configure(Context context) {
+        int numStorages = context.getInteger("storages", 1);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (storages=" + numStorages + ")");
+        HashMap<String, Channel> channelsByName = new HashMap<String, Channel>();
+        
+        for (Channel channel : getAllChannels()) {
+            channelsByName.put(channel.getName(), channel);
+        } // for
+        
+        channelsPerStorage = new Channel[numStorages][];
+        
+        for (int i = 0; i < numStorages; i++) {
+            String channelsStr = context.getString("storages.storage" + (i + 1));
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (storages.storage" + (i + 1) + "="
+                    + channelsStr + ")");
+            
+            if (channelsStr == null || channelsStr.trim().isEmpty()) {
+                throw new FlumeException("[" + this.getName() + "] No channels configured for storage" + (i + 1));
+            } // if
+            
+            String[] channelNames = channelsStr.split(",");
+            channelsPerStorage[i] = new Channel[channelNames.length];
+            
+            for (int j = 0; j < channelNames.length; j++) {
+                Channel channel = channelsByName.get(channelNames[j].trim());
+                
+                if (channel == null) {
+                    throw new FlumeException("[" + this.getName() + "] Unknown channel " + channelNames[j]
+                            + " within storage" + (i + 1));
+                } // if
+                
+                channelsPerStorage[i][j] = channel;
+            } // for
+        } // for
+    } // configure
+    
+    @Override
+    public List<Channel> getOptionalChannels(Event event) {
+        LOGGER.debug("Returning empty optional channels");
+        return new ArrayList<Channel>();
+    } // getOptionalChannels
+    
+    @Override
+    public List<Channel> getRequiredChannels(Event event) {
+        List<Channel> res = new ArrayList<Channel>(channelsPerStorage.length);
+        
+        for (int i = 0; i < channelsPerStorage.length; i++) {
+            Channel[] channels = channelsPerStorage[i];
+            res.add(channels.length == 1 ? channels[0] : selectChannel(i, channels, event));
+        } // for
+        
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Returning " + res.toString() + " channels");
+        } // if
+        
+        return res;
+    } // getRequiredChannels
+    
+    /**
+     * Gets the number of configured storages.
+     * @return The number of configured storages
+     */
+    protected int getNumStorages() {
+        return channelsPerStorage.length;
+    } // getNumStorages
+    
+    /**
+     * Gets the channels of a storage.
+     * @param storage Index of the storage, starting at 0
+     * @return The channels of the storage
+     */
+    protected Channel[] getStorageChannels(int storage) {
+        return channelsPerStorage[storage];
+    } // getStorageChannels
+    
+    /**
+     * Selects the channel of a storage an event is put into. It is only invoked for storages having more than one
+     * channel, and it may be invoked concurrently by several source threads.
+     * @param storage Index of the storage, starting at 0
+     * @param channels Channels of the storage, which must not be modified
+     * @param event
+     * @return The selected channel
+     */
+    abstract Channel selectChannel(int storage, Channel[] channels, Event event);
+    
+} // CygnusChannelSelector
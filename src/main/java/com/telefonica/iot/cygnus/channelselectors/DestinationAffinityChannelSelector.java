@@ -0,0 +1,142 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channelselectors;
+
+import com.telefonica.iot.cygnus.containers.Routing;
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import com.telefonica.iot.cygnus.utils.Constants;
+import java.util.Arrays;
+import java.util.Map;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+
+/**
+ *
+ * @author frb
+ *
+ * Channel selector putting all the events of a same destination (or service path, or service) into the same channel of
+ * each storage. Thus, the sinks receive destination-coherent batches, and the events of a destination are persisted in
+ * the same order they were notified.
+ *
+ * The channel is chosen by rendezvous hashing: each channel of the storage is scored by hashing the affinity key
+ * together with the channel name, and the highest score wins. Thus, the choice only depends on the key and the channel
+ * names, and adding or removing a channel only moves the keys of that channel.
+ */
+public class DestinationAffinityChannelSelector extends CygnusChannelSelector {
+    
+    /**
+     * Available affinities.
+     */
+    public enum Affinity { DESTINATION, SERVICEPATH, SERVICE }
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(DestinationAffinityChannelSelector.class);
+    private Affinity affinity;
+    private boolean enableGrouping;
+    private int[][] channelHashesPerStorage;
+    
+    @Override
+    public void configure(Context context) {
+        String affinityStr = context.getString("affinity", "destination");
+        affinity = Affinity.valueOf(affinityStr.replaceAll("-", "").toUpperCase());
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (affinity=" + affinityStr + ")");
+        enableGrouping = context.getBoolean("enable_grouping", false);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (enable_grouping="
+                + (enableGrouping ? "true" : "false") + ")");
+        super.configure(context);
+        channelHashesPerStorage = new int[getNumStorages()][];
+        
+        for (int i = 0; i < channelHashesPerStorage.length; i++) {
+            Channel[] channels = getStorageChannels(i);
+            channelHashesPerStorage[i] = new int[channels.length];
+            
+            for (int j = 0; j < channels.length; j++) {
+                channelHashesPerStorage[i][j] = channels[j].getName().hashCode();
+            } // for
+        } // for
+    } // configure
+    
+    @Override
+    Channel selectChannel(int storage, Channel[] channels, Event event) {
+        int key = getAffinityKey(event);
+        int[] channelHashes = channelHashesPerStorage[storage];
+        int selected = 0;
+        long maxScore = Long.MIN_VALUE;
+        
+        for (int i = 0; i < channels.length; i++) {
+            long score = mix(((long) key << 32) | (channelHashes[i] & 0xFFFFFFFFL));
+            
+            if (score > maxScore) {
+                maxScore = score;
+                selected = i;
+            } // if
+        } // for
+        
+        return channels[selected];
+    } // selectChannel
+    
+    /**
+     * Gets the hash of the affinity key of an event. The service is always part of the key; the service paths and the
+     * destinations of the context elements within the notification are added depending on the configured affinity.
+     * When the event carries no destinations, the service paths are used instead.
+     * @param event
+     * @return The hash of the affinity key of the event
+     */
+    protected int getAffinityKey(Event event) {
+        Map<String, String> headers = event.getHeaders();
+        String service = headers.get(Constants.HEADER_NOTIFIED_SERVICE);
+        int key = service == null ? 0 : service.hashCode();
+        
+        if (affinity == Affinity.SERVICE) {
+            return key;
+        } // if
+        
+        Routing routing = Routing.of(event);
+        String[] servicePaths = routing.getServicePaths(enableGrouping);
+        
+        if (servicePaths.length == 0) {
+            String servicePath = headers.get(Constants.HEADER_NOTIFIED_SERVICE_PATH);
+            key = 31 * key + (servicePath == null ? 0 : servicePath.hashCode());
+        } else {
+            key = 31 * key + Arrays.hashCode(servicePaths);
+        } // if else
+        
+        if (affinity == Affinity.DESTINATION) {
+            key = 31 * key + Arrays.hashCode(routing.getDestinations(enableGrouping));
+        } // if
+        
+        return key;
+    } // getAffinityKey
+    
+    /**
+     * Mixes the bits of a value (finalizer of the MurmurHash3 64 bits hash function).
+     * @param value
+     * @return The mixed value
+     */
+    private static long mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    } // mix
+    
+} // DestinationAffinityChannelSelector
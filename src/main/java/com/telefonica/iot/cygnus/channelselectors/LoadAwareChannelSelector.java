@@ -0,0 +1,195 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channelselectors;
+
+import com.telefonica.iot.cygnus.channels.CygnusChannel;
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+
+/**
+ *
+ * @author frb
+ *
+ * Channel selector putting the events into the least loaded healthy channel of each storage, the load being the number
+ * of events (or bytes) within the channel as given by CygnusChannel. A channel is not healthy when it has events but
+ * none of them has been taken for a while, e.g. because its sink is stuck on a slow backend; unhealthy channels are
+ * only used when all the channels of the storage are unhealthy.
+ *
+ * While the difference between the most and the least loaded channels is within the hysteresis, the events are put in
+ * a round robin fashion; once it exceeds the hysteresis, the events are put into the least loaded channel until the
+ * difference falls below half the hysteresis. Thus, the selection does not flap when the loads are similar.
+ */
+public class LoadAwareChannelSelector extends CygnusChannelSelector {
+    
+    /**
+     * Available load metrics.
+     */
+    public enum LoadMetric { EVENTS, BYTES }
+    
+    private static final CygnusLogger LOGGER = new CygnusLogger(LoadAwareChannelSelector.class);
+    private LoadMetric loadMetric;
+    private long hysteresis;
+    private long stallTimeout;
+    private ChannelState[][] statesPerStorage;
+    private AtomicInteger[] nextChannelPerStorage;
+    private AtomicBoolean[] unbalancedPerStorage;
+    
+    @Override
+    public void configure(Context context) {
+        String loadMetricStr = context.getString("load_metric", "events");
+        loadMetric = LoadMetric.valueOf(loadMetricStr.toUpperCase());
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (load_metric=" + loadMetricStr + ")");
+        hysteresis = context.getLong("hysteresis", 100L);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (hysteresis=" + hysteresis + ")");
+        stallTimeout = context.getLong("stall_timeout", 30L) * 1000;
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (stall_timeout=" + (stallTimeout / 1000)
+                + ")");
+        super.configure(context);
+        int numStorages = getNumStorages();
+        statesPerStorage = new ChannelState[numStorages][];
+        nextChannelPerStorage = new AtomicInteger[numStorages];
+        unbalancedPerStorage = new AtomicBoolean[numStorages];
+        
+        for (int i = 0; i < numStorages; i++) {
+            Channel[] channels = getStorageChannels(i);
+            statesPerStorage[i] = new ChannelState[channels.length];
+            nextChannelPerStorage[i] = new AtomicInteger();
+            unbalancedPerStorage[i] = new AtomicBoolean();
+            
+            for (int j = 0; j < channels.length; j++) {
+                if (!(channels[j] instanceof CygnusChannel)) {
+                    LOGGER.warn("[" + this.getName() + "] " + channels[j].getName() + " is not a Cygnus channel,"
+                            + " it will be considered as empty");
+                } // if
+                
+                statesPerStorage[i][j] = new ChannelState();
+            } // for
+        } // for
+    } // configure
+    
+    @Override
+    Channel selectChannel(int storage, Channel[] channels, Event event) {
+        ChannelState[] states = statesPerStorage[storage];
+        long now = System.currentTimeMillis();
+        long[] loads = new long[channels.length];
+        boolean anyHealthy = false;
+        
+        for (int i = 0; i < channels.length; i++) {
+            loads[i] = getLoad(channels[i]);
+            anyHealthy |= states[i].update(channels[i], loads[i], now, stallTimeout);
+        } // for
+        
+        // the unhealthy channels are discarded, unless all of them are unhealthy
+        long minLoad = Long.MAX_VALUE;
+        long maxLoad = Long.MIN_VALUE;
+        int leastLoaded = -1;
+        
+        for (int i = 0; i < channels.length; i++) {
+            if (anyHealthy && !states[i].healthy) {
+                continue;
+            } // if
+            
+            if (loads[i] < minLoad) {
+                minLoad = loads[i];
+                leastLoaded = i;
+            } // if
+            
+            maxLoad = Math.max(maxLoad, loads[i]);
+        } // for
+        
+        boolean unbalanced = unbalancedPerStorage[storage].get();
+        
+        if (!unbalanced && maxLoad - minLoad > hysteresis) {
+            unbalanced = true;
+            LOGGER.debug("[" + this.getName() + "] The channels of storage" + (storage + 1) + " are unbalanced,"
+                    + " putting the events into the least loaded one");
+        } else if (unbalanced && maxLoad - minLoad <= hysteresis / 2) {
+            unbalanced = false;
+            LOGGER.debug("[" + this.getName() + "] The channels of storage" + (storage + 1) + " are balanced again,"
+                    + " putting the events in a round robin fashion");
+        } // if else if
+        
+        unbalancedPerStorage[storage].set(unbalanced);
+        
+        if (unbalanced) {
+            return channels[leastLoaded];
+        } // if
+        
+        // round robin among the candidate channels
+        for (int i = 0; i < channels.length; i++) {
+            int next = (nextChannelPerStorage[storage].getAndIncrement() & Integer.MAX_VALUE) % channels.length;
+            
+            if (!anyHealthy || states[next].healthy) {
+                return channels[next];
+            } // if
+        } // for
+        
+        return channels[leastLoaded];
+    } // selectChannel
+    
+    private long getLoad(Channel channel) {
+        if (!(channel instanceof CygnusChannel)) {
+            return 0;
+        } // if
+        
+        CygnusChannel cygnusChannel = (CygnusChannel) channel;
+        return loadMetric == LoadMetric.BYTES ? cygnusChannel.getNumBytes() : cygnusChannel.getNumEvents();
+    } // getLoad
+    
+    /**
+     * Health of a channel, given by the progress of the takes from it. The updates may race among source threads,
+     * which at most delays the detection of a stall.
+     */
+    private static final class ChannelState {
+        
+        private volatile long lastTakes = -1;
+        private volatile long lastProgress = 0;
+        private volatile boolean healthy = true;
+        
+        /**
+         * Updates the health of the channel.
+         * @param channel
+         * @param load
+         * @param now
+         * @param stallTimeout Milliseconds without takes a channel with events is considered unhealthy, 0 disables it
+         * @return True if the channel is healthy, false otherwise
+         */
+        boolean update(Channel channel, long load, long now, long stallTimeout) {
+            if (stallTimeout <= 0 || !(channel instanceof CygnusChannel)) {
+                return healthy;
+            } // if
+            
+            long takes = ((CygnusChannel) channel).getNumTakes();
+            
+            if (takes != lastTakes || load == 0) {
+                lastTakes = takes;
+                lastProgress = now;
+            } // if
+            
+            healthy = now - lastProgress < stallTimeout;
+            return healthy;
+        } // update
+        
+    } // ChannelState
+    
+} // LoadAwareChannelSelector
@@ -18,95 +18,36 @@
 
 package com.telefonica.iot.cygnus.channelselectors;
 
-import com.telefonica.iot.cygnus.log.CygnusLogger;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.flume.Channel;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
-import org.apache.flume.channel.AbstractChannelSelector;
 
 /**
  *
  * @author frb
+ *
+ * Channel selector putting the events into the channels of each storage in a round robin fashion.
  */
-public class RoundRobinChannelSelector extends AbstractChannelSelector {
-    
-    private static final CygnusLogger LOGGER = new CygnusLogger(RoundRobinChannelSelector.class);
-    private int numStorages;
-    private final LinkedHashMap<String, ArrayList<String>> channelsPerStorage;
-    private final LinkedHashMap<String, Integer> lastUsedChannelPerStorage;
+public class RoundRobinChannelSelector extends CygnusChannelSelector {
     
-    /**
-     * Constructor.
-     */
-    public RoundRobinChannelSelector() {
-        this.channelsPerStorage = new LinkedHashMap<String, ArrayList<String>>();
-        this.lastUsedChannelPerStorage = new LinkedHashMap<String, Integer>();
-    } // RoundRobinChannelSelector
-    
-    @Override
-    public void setChannels(List<Channel> channels) {
-        super.setChannels(channels);
-    } // setChannels
+    private AtomicInteger[] nextChannelPerStorage;
     
     @Override
     public void configure(Context context) {
-        numStorages = context.getInteger("storages", 1);
-        LOGGER.debug("[" + this.getName() + "] Reading configuration (storages=" + numStorages + ")");
+        super.configure(context);
+        nextChannelPerStorage = new AtomicInteger[getNumStorages()];
         
-        for (int i = 0; i < numStorages; i++) {
-            String channelsStr = context.getString("storages.storage" + (i + 1));
-            LOGGER.debug("[" + this.getName() + "] Reading configuration (storages.storage" + (i + 1) + "="
-                    + channelsStr + ")");
-            List<String> channelList = Arrays.asList(channelsStr.split(","));
-            ArrayList<String> channelArrayList = new ArrayList<String>();
-            channelArrayList.addAll(channelList);
-            channelsPerStorage.put("storage" + (i +  1), channelArrayList);
-            lastUsedChannelPerStorage.put("storage" + (i + 1), -1);
+        for (int i = 0; i < nextChannelPerStorage.length; i++) {
+            nextChannelPerStorage[i] = new AtomicInteger();
         } // for
     } // configure
     
     @Override
-    public List<Channel> getOptionalChannels(Event event) {
-        LOGGER.debug("Returning empty optional channels");
-        return new ArrayList<Channel>();
-    } // getOptionalChannels
-    
-    @Override
-    public List<Channel> getRequiredChannels(Event event) {
-        // resulting list of required channels
-        List<Channel> res = new ArrayList<Channel>();
-        
-        for (String key : channelsPerStorage.keySet()) {
-            ArrayList<String> channelNames = channelsPerStorage.get(key);
-            
-            // get and update the last used channel
-            int lastUsedChannel = (lastUsedChannelPerStorage.get(key) + 1) % channelNames.size();
-            lastUsedChannelPerStorage.put(key, lastUsedChannel);
-        
-            // get the channel name and find its Channel object
-            String channelName = channelNames.get(lastUsedChannel);
-            List<Channel> allChannels = getAllChannels();
-            Channel channel = null;
-            
-            for (Channel allChannel : allChannels) {
-                channel = allChannel;
-                if (channel.getName().equals(channelName)) {
-                    break;
-                } // if
-            } // for
-            
-            // add the channel to the list
-            if (channel != null) {
-                res.add(channel);
-            } // if
-        } // for
-                
-        LOGGER.debug("Returning " + res.toString() + " channels");
-        return res;
-    } // getRequiredChannels
+    Channel selectChannel(int storage, Channel[] channels, Event event) {
+        // the counter may overflow, thus its sign bit is discarded
+        int next = nextChannelPerStorage[storage].getAndIncrement() & Integer.MAX_VALUE;
+        return channels[next % channels.length];
+    } // selectChannel
 
 } // RoundRobinChannelSelector
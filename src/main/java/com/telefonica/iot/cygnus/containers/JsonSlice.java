@@ -0,0 +1,99 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.containers;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ *
+ * @author frb
+ *
+ * Already validated Json value within a notification body, given by its start (inclusive) and end (exclusive)
+ * offsets. It is never a Json null. Slices are immutable and share the body bytes, thus they can be read by several
+ * sinks at the same time.
+ */
+final class JsonSlice {
+
+    private final byte[] bytes;
+    private final int start;
+    private final int end;
+
+    /**
+     * Constructor.
+     * @param bytes
+     * @param start
+     * @param end
+     */
+    JsonSlice(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        this.start = start;
+        this.end = end;
+    } // JsonSlice
+
+    byte[] getBytes() {
+        return bytes;
+    } // getBytes
+
+    int getStart() {
+        return start;
+    } // getStart
+
+    int getEnd() {
+        return end;
+    } // getEnd
+
+    /**
+     * Gets if the slice is a Json object or a Json array.
+     * @return True if the slice is a Json object or a Json array, false if it is a Json primitive
+     */
+    boolean isStructured() {
+        return bytes[start] == '{' || bytes[start] == '[';
+    } // isStructured
+
+    /**
+     * Gets a Json primitive as a string, in the same way JsonPrimitive.getAsString() does.
+     * @return The Json primitive as a string
+     */
+    String getAsString() {
+        return NotifyContextRequestJsonDecoder.decodePrimitive(this);
+    } // getAsString
+
+    /**
+     * Gets a Json object or a Json array as a compact string, in the same way JsonElement.toString() does.
+     * @return The Json object or Json array as a compact string
+     */
+    String toCompactString() {
+        return NotifyContextRequestJsonDecoder.compact(this);
+    } // toCompactString
+
+    /**
+     * Builds a Json element from this slice.
+     * @return A Json element
+     */
+    JsonElement toJsonElement() {
+        return new JsonParser().parse(NotifyContextRequestJsonDecoder.toRawString(this));
+    } // toJsonElement
+
+    @Override
+    public String toString() {
+        return NotifyContextRequestJsonDecoder.toRawString(this);
+    } // toString
+
+} // JsonSlice
@@ -27,7 +27,9 @@ import java.util.ArrayList;
 * @author frb
 *
 * Container classes mapping an Orion Context Broker nofifyContextRequest notification. These are necessaries in order
-* Gson (a Json parser) and DOM (a XML parser) can store in memory a notification.
+* Gson (a Json parser) and DOM (a XML parser) can store in memory a notification. When decoded by
+* NotifyContextRequestJsonDecoder, attribute values and metadata are kept as raw Json slices of the notification body
+* until they are requested.
 */
 public class NotifyContextRequest {
     
@@ -216,6 +218,9 @@ public class NotifyContextRequest {
         private String type;
         private JsonElement value;
         private ArrayList<ContextMetadata> metadatas;
+        // raw Json slices the value and the metadatas were decoded from, if any (see NotifyContextRequestJsonDecoder)
+        private transient JsonSlice rawValue;
+        private transient JsonSlice rawMetadatas;
         
         /**
          * Constructor for Gson, a Json parser.
@@ -238,6 +243,16 @@ public class NotifyContextRequest {
          * @return The context value for this context attribute in String format.
          */
         public String getContextValue(boolean asStringRepresentation) {
+            if (rawValue != null) {
+                if (rawValue.isStructured()) {
+                    return rawValue.toCompactString();
+                } else if (asStringRepresentation) {
+                    return "\"" + rawValue.getAsString() + "\"";
+                } else {
+                    return rawValue.getAsString();
+                } // if else if
+            } // if
+            
             if (value.isJsonObject()) {
                 return value.getAsJsonObject().toString();
             } else if (value.isJsonArray()) {
@@ -254,27 +269,30 @@ public class NotifyContextRequest {
          * @return The context metadata for this context attribute in String format.
          */
         public String getContextMetadata() {
-            if (metadatas == null) {
+            ArrayList<ContextMetadata> mds = getMetadatas();
+            
+            if (mds == null) {
                 return Constants.EMPTY_MD;
             } // if
             
-            if (metadatas.isEmpty()) {
+            if (mds.isEmpty()) {
                 return Constants.EMPTY_MD;
             } // if
             
-            String res = "[";
+            StringBuilder res = new StringBuilder("[");
             
-            for (ContextMetadata contextMetadata : metadatas) {
+            for (ContextMetadata contextMetadata : mds) {
                 if (contextMetadata == null) {
                     continue;
                 } // if
                 
-                res += "{\"name\":\"" + contextMetadata.getName() + "\","
-                        + "\"type\":\"" + contextMetadata.getType() + "\","
-                        + "\"value\":" + contextMetadata.getValue() + "},";
+                res.append("{\"name\":\"").append(contextMetadata.getName()).append("\",")
+                        .append("\"type\":\"").append(contextMetadata.getType()).append("\",")
+                        .append("\"value\":").append(contextMetadata.getValue()).append("},");
             } // for
             
-            return res.substring(0, res.length() - 1) + "]";
+            res.setCharAt(res.length() - 1, ']');
+            return res.toString();
         } // getContextMetadata
         
         public void setName(String name) {
@@ -285,14 +303,52 @@ public class NotifyContextRequest {
             this.type = type;
         } // setType
         
+        /**
+         * Gets the context value as a Json element. If the value is still a raw Json slice, a new Json element is
+         * built each time this method is invoked.
+         * @return The context value for this context attribute as a Json element
+         */
+        public JsonElement getJsonValue() {
+            if (rawValue != null) {
+                return rawValue.toJsonElement();
+            } else {
+                return value;
+            } // if else
+        } // getJsonValue
+        
+        /**
+         * Gets the context metadata list. If the metadata is still a raw Json slice, a new list is decoded each time
+         * this method is invoked.
+         * @return The context metadata list for this context attribute
+         */
+        public ArrayList<ContextMetadata> getMetadatas() {
+            if (rawMetadatas != null) {
+                return NotifyContextRequestJsonDecoder.decodeMetadatas(NotifyContextRequest.this, rawMetadatas);
+            } else {
+                return metadatas;
+            } // if else
+        } // getMetadatas
+        
         public void setContextValue(JsonElement value) {
             this.value = value;
+            this.rawValue = null;
         } // setContextMetadata
         
         public void setContextMetadata(ArrayList<ContextMetadata> metadatas) {
             this.metadatas = metadatas;
+            this.rawMetadatas = null;
         } // setContextMetadata
         
+        void setRawContextValue(JsonSlice rawValue) {
+            this.value = null;
+            this.rawValue = rawValue;
+        } // setRawContextValue
+        
+        void setRawContextMetadata(JsonSlice rawMetadatas) {
+            this.metadatas = null;
+            this.rawMetadatas = rawMetadatas;
+        } // setRawContextMetadata
+        
     } // ContextAttribute
     
     /**
@@ -303,6 +359,8 @@ public class NotifyContextRequest {
         private String name;
         private String type;
         private JsonElement value;
+        // raw Json slice the value was decoded from, if any (see NotifyContextRequestJsonDecoder)
+        private transient JsonSlice rawValue;
         
         /**
          * Constructor for Gson, a Json parser.
@@ -323,6 +381,14 @@ public class NotifyContextRequest {
          * @return The metadata value for this metadata attribute in String format.
          */
         public String getValue() {
+            if (rawValue != null) {
+                if (rawValue.isStructured()) {
+                    return rawValue.toCompactString();
+                } else {
+                    return "\"" + rawValue.getAsString() + "\"";
+                } // if else
+            } // if
+            
             if (value.isJsonObject()) {
                 return value.getAsJsonObject().toString();
             } else if (value.isJsonArray()) {
@@ -340,10 +406,29 @@ public class NotifyContextRequest {
             this.type = type;
         } // setType
         
+        /**
+         * Gets the metadata value as a Json element. If the value is still a raw Json slice, a new Json element is
+         * built each time this method is invoked.
+         * @return The metadata value as a Json element
+         */
+        public JsonElement getJsonValue() {
+            if (rawValue != null) {
+                return rawValue.toJsonElement();
+            } else {
+                return value;
+            } // if else
+        } // getJsonValue
+        
         public void setContextMetadata(JsonElement value) {
             this.value = value;
+            this.rawValue = null;
         } // setContextMetadata
         
+        void setRawContextMetadata(JsonSlice rawValue) {
+            this.value = null;
+            this.rawValue = rawValue;
+        } // setRawContextMetadata
+        
     } // ContextMetadata
     
     /**
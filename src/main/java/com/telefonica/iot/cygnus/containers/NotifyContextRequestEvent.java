@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.containers;
+
+import java.util.Map;
+import org.apache.flume.event.SimpleEvent;
+
+/**
+ *
+ * @author frb
+ *
+ * Flume event carrying, in addition to the raw body and the headers, the already parsed notification. It is created
+ * by OrionRestHandler so that the notification is parsed only once; those channels passing events by reference (e.g.
+ * CygnusMemoryChannel) preserve it, while those serializing the events (e.g. CygnusFileChannel) fall back to a plain
+ * event whose body is parsed again by NotifyContextRequestParser. The same applies to the routing of the context
+ * elements computed by GroupingInterceptor, which is read from the headers when not carried by the event.
+ */
+public class NotifyContextRequestEvent extends SimpleEvent {
+
+    private final NotifyContextRequest notification;
+    private Routing routing;
+
+    /**
+     * Constructor.
+     * @param headers
+     * @param body
+     * @param notification
+     */
+    public NotifyContextRequestEvent(Map<String, String> headers, byte[] body, NotifyContextRequest notification) {
+        super();
+        setHeaders(headers);
+        setBody(body);
+        this.notification = notification;
+    } // NotifyContextRequestEvent
+
+    /**
+     * Gets the parsed notification.
+     * @return The parsed notification
+     */
+    public NotifyContextRequest getNotification() {
+        return notification;
+    } // getNotification
+
+    /**
+     * Gets the routing of the context elements within the notification.
+     * @return The routing, or null if not yet computed
+     */
+    public Routing getRouting() {
+        return routing;
+    } // getRouting
+
+    /**
+     * Sets the routing of the context elements within the notification.
+     * @param routing
+     */
+    public void setRouting(Routing routing) {
+        this.routing = routing;
+    } // setRouting
+
+} // NotifyContextRequestEvent
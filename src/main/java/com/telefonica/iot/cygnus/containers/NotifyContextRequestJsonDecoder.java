@@ -0,0 +1,949 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.containers;
+
+import com.google.gson.JsonNull;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElementResponse;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextMetadata;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.StatusCode;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ *
+ * @author frb
+ *
+ * Streaming (pull) decoder for Json notifyContextRequest notifications. It works directly on the body bytes and does
+ * not build any intermediate Json tree: entity and attribute names and types are decoded as strings, while attribute
+ * values and metadata are kept as raw JsonSlice's that are only decoded when a sink asks for them.
+ *
+ * The decoder is strict; anything not being plain Json (comments, unquoted strings, etc.) is rejected, and the caller
+ * is expected to fall back to Gson, which is lenient. Decoded values are rendered exactly as Gson renders them.
+ */
+final class NotifyContextRequestJsonDecoder {
+
+    // notification bodies are built with the platform charset, thus it must be used when decoding strings; only those
+    // charsets where the Json structural characters cannot appear within a multibyte sequence are supported
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final boolean SUPPORTED = CHARSET.name().equals("UTF-8") || CHARSET.name().equals("US-ASCII")
+            || CHARSET.name().equals("ISO-8859-1");
+    // same escaping Gson's JsonWriter uses (non HTML-safe)
+    private static final String[] REPLACEMENT_CHARS;
+
+    static {
+        REPLACEMENT_CHARS = new String[128];
+
+        for (int i = 0; i <= 0x1f; i++) {
+            REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+        } // for
+
+        REPLACEMENT_CHARS['"'] = "\\\"";
+        REPLACEMENT_CHARS['\\'] = "\\\\";
+        REPLACEMENT_CHARS['\t'] = "\\t";
+        REPLACEMENT_CHARS['\b'] = "\\b";
+        REPLACEMENT_CHARS['\n'] = "\\n";
+        REPLACEMENT_CHARS['\r'] = "\\r";
+        REPLACEMENT_CHARS['\f'] = "\\f";
+    } // static
+
+    private final byte[] bytes;
+    private final int end;
+    private int pos;
+    // bounds of the last read object member name
+    private int nameStart;
+    private int nameEnd;
+
+    /**
+     * Constructor.
+     * @param bytes
+     * @param start
+     * @param end
+     */
+    private NotifyContextRequestJsonDecoder(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        this.pos = start;
+        this.end = end;
+    } // NotifyContextRequestJsonDecoder
+
+    /**
+     * Gets if the streaming decoding is supported given the platform charset.
+     * @return True if the streaming decoding is supported, false otherwise
+     */
+    static boolean isSupported() {
+        return SUPPORTED;
+    } // isSupported
+
+    /**
+     * Decodes a Json notification body.
+     * @param body
+     * @return The decoded notification
+     * @throws CygnusBadContextData
+     */
+    static NotifyContextRequest decode(byte[] body) throws CygnusBadContextData {
+        NotifyContextRequestJsonDecoder decoder = new NotifyContextRequestJsonDecoder(body, 0, body.length);
+        NotifyContextRequest notification = decoder.readNotifyContextRequest();
+        decoder.skipWhitespaces();
+
+        if (decoder.pos != decoder.end) {
+            throw decoder.error("Json document was not fully consumed");
+        } // if
+
+        return notification;
+    } // decode
+
+    /**
+     * Decodes a raw metadata list, already validated when decoding the notification.
+     * @param notification
+     * @param rawMetadatas
+     * @return The decoded metadata list
+     */
+    static ArrayList<ContextMetadata> decodeMetadatas(NotifyContextRequest notification, JsonSlice rawMetadatas) {
+        NotifyContextRequestJsonDecoder decoder = new NotifyContextRequestJsonDecoder(rawMetadatas.getBytes(),
+                rawMetadatas.getStart(), rawMetadatas.getEnd());
+
+        try {
+            return decoder.readMetadatas(notification);
+        } catch (CygnusBadContextData e) {
+            // this point should never be reached since the slice was validated when decoding the notification
+            throw new IllegalStateException(e.getMessage());
+        } // try catch
+    } // decodeMetadatas
+
+    /**
+     * Decodes a raw Json primitive as a string.
+     * @param slice
+     * @return The Json primitive as a string
+     */
+    static String decodePrimitive(JsonSlice slice) {
+        byte b = slice.getBytes()[slice.getStart()];
+
+        if (b == 't' || b == 'f') {
+            return toRawString(slice);
+        } else if (b != '"') {
+            return numberToString(slice.getBytes(), slice.getStart(), slice.getEnd());
+        } // if else if
+
+        NotifyContextRequestJsonDecoder decoder = new NotifyContextRequestJsonDecoder(slice.getBytes(),
+                slice.getStart(), slice.getEnd());
+
+        try {
+            return decoder.readString();
+        } catch (CygnusBadContextData e) {
+            // this point should never be reached since the slice was validated when decoding the notification
+            throw new IllegalStateException(e.getMessage());
+        } // try catch
+    } // decodePrimitive
+
+    /**
+     * Renders a raw Json object or array without whitespaces and with Gson's escaping.
+     * @param slice
+     * @return The compact string
+     */
+    static String compact(JsonSlice slice) {
+        NotifyContextRequestJsonDecoder decoder = new NotifyContextRequestJsonDecoder(slice.getBytes(),
+                slice.getStart(), slice.getEnd());
+        StringBuilder sb = new StringBuilder(slice.getEnd() - slice.getStart());
+
+        try {
+            if (decoder.writeCompact(sb)) {
+                return sb.toString();
+            } // if
+        } catch (CygnusBadContextData e) {
+            // this point should never be reached since the slice was validated when decoding the notification
+            throw new IllegalStateException(e.getMessage());
+        } // try catch
+
+        // duplicated member names, let Gson decide which ones remain
+        return slice.toJsonElement().toString();
+    } // compact
+
+    /**
+     * Gets the raw string regarding a slice.
+     * @param slice
+     * @return The raw string
+     */
+    static String toRawString(JsonSlice slice) {
+        return new String(slice.getBytes(), slice.getStart(), slice.getEnd() - slice.getStart(), CHARSET);
+    } // toRawString
+
+    private NotifyContextRequest readNotifyContextRequest() throws CygnusBadContextData {
+        expect('{');
+        NotifyContextRequest notification = new NotifyContextRequest();
+
+        if (consume('}')) {
+            return notification;
+        } // if
+
+        do {
+            readName();
+
+            if (isName("subscriptionId")) {
+                notification.setSubscriptionId(readStringValue());
+            } else if (isName("originator")) {
+                notification.setOriginator(readStringValue());
+            } else if (isName("contextResponses")) {
+                notification.setContextResponses(readContextResponses(notification));
+            } else {
+                skipValue();
+            } // if else
+        } while (consume(','));
+
+        expect('}');
+        return notification;
+    } // readNotifyContextRequest
+
+    private ArrayList<ContextElementResponse> readContextResponses(NotifyContextRequest notification)
+        throws CygnusBadContextData {
+        if (consumeNull()) {
+            return null;
+        } // if
+
+        expect('[');
+        ArrayList<ContextElementResponse> contextResponses = new ArrayList<ContextElementResponse>();
+
+        if (consume(']')) {
+            return contextResponses;
+        } // if
+
+        do {
+            if (consumeNull()) {
+                contextResponses.add(null);
+            } else {
+                contextResponses.add(readContextElementResponse(notification));
+            } // if else
+        } while (consume(','));
+
+        expect(']');
+        return contextResponses;
+    } // readContextResponses
+
+    private ContextElementResponse readContextElementResponse(NotifyContextRequest notification)
+        throws CygnusBadContextData {
+        expect('{');
+
+        // absent fields are null, as when Gson decodes the notification
+        ContextElementResponse contextElementResponse = notification.new ContextElementResponse();
+        contextElementResponse.setContextElement(null);
+        contextElementResponse.setStatusCode(null);
+
+        if (consume('}')) {
+            return contextElementResponse;
+        } // if
+
+        do {
+            readName();
+
+            if (isName("contextElement")) {
+                contextElementResponse.setContextElement(consumeNull() ? null : readContextElement(notification));
+            } else if (isName("statusCode")) {
+                contextElementResponse.setStatusCode(consumeNull() ? null : readStatusCode(notification));
+            } else {
+                skipValue();
+            } // if else
+        } while (consume(','));
+
+        expect('}');
+        return contextElementResponse;
+    } // readContextElementResponse
+
+    private ContextElement readContextElement(NotifyContextRequest notification) throws CygnusBadContextData {
+        expect('{');
+        ContextElement contextElement = notification.new ContextElement();
+        contextElement.setAttributes(null);
+
+        if (consume('}')) {
+            return contextElement;
+        } // if
+
+        do {
+            readName();
+
+            if (isName("attributes")) {
+                contextElement.setAttributes(readAttributes(notification));
+            } else if (isName("type")) {
+                contextElement.setType(readStringValue());
+            } else if (isName("isPattern")) {
+                contextElement.setIsPattern(readStringValue());
+            } else if (isName("id")) {
+                contextElement.setId(readStringValue());
+            } else {
+                skipValue();
+            } // if else
+        } while (consume(','));
+
+        expect('}');
+        return contextElement;
+    } // readContextElement
+
+    private ArrayList<ContextAttribute> readAttributes(NotifyContextRequest notification)
+        throws CygnusBadContextData {
+        if (consumeNull()) {
+            return null;
+        } // if
+
+        expect('[');
+        ArrayList<ContextAttribute> attributes = new ArrayList<ContextAttribute>();
+
+        if (consume(']')) {
+            return attributes;
+        } // if
+
+        do {
+            if (consumeNull()) {
+                attributes.add(null);
+            } else {
+                attributes.add(readAttribute(notification));
+            } // if else
+        } while (consume(','));
+
+        expect(']');
+        return attributes;
+    } // readAttributes
+
+    private ContextAttribute readAttribute(NotifyContextRequest notification) throws CygnusBadContextData {
+        expect('{');
+        ContextAttribute contextAttribute = notification.new ContextAttribute();
+        contextAttribute.setContextMetadata(null);
+
+        if (consume('}')) {
+            return contextAttribute;
+        } // if
+
+        do {
+            readName();
+
+            if (isName("name")) {
+                contextAttribute.setName(readStringValue());
+            } else if (isName("type")) {
+                contextAttribute.setType(readStringValue());
+            } else if (isName("value") || isName("contextValue")) {
+                // "contextValue" is used by Orion versions under 0.10.0
+                if (consumeNull()) {
+                    contextAttribute.setContextValue(JsonNull.INSTANCE);
+                } else {
+                    contextAttribute.setRawContextValue(readSlice());
+                } // if else
+            } else if (isName("metadatas")) {
+                if (consumeNull()) {
+                    contextAttribute.setContextMetadata(null);
+                } else {
+                    skipWhitespaces();
+                    int start = pos;
+                    readMetadatas(null); // just for validation purposes
+                    contextAttribute.setRawContextMetadata(new JsonSlice(bytes, start, pos));
+                } // if else
+            } else {
+                skipValue();
+            } // if else
+        } while (consume(','));
+
+        expect('}');
+        return contextAttribute;
+    } // readAttribute
+
+    /**
+     * Reads a metadata list. If no notification is given, the list is only validated and null is returned.
+     * @param notification
+     * @return The metadata list, or null if only validating
+     * @throws CygnusBadContextData
+     */
+    private ArrayList<ContextMetadata> readMetadatas(NotifyContextRequest notification)
+        throws CygnusBadContextData {
+        expect('[');
+        ArrayList<ContextMetadata> metadatas = notification == null ? null : new ArrayList<ContextMetadata>();
+
+        if (consume(']')) {
+            return metadatas;
+        } // if
+
+        do {
+            if (consumeNull()) {
+                if (metadatas != null) {
+                    metadatas.add(null);
+                } // if
+            } else {
+                ContextMetadata contextMetadata = readMetadata(notification);
+
+                if (metadatas != null) {
+                    metadatas.add(contextMetadata);
+                } // if
+            } // if else
+        } while (consume(','));
+
+        expect(']');
+        return metadatas;
+    } // readMetadatas
+
+    private ContextMetadata readMetadata(NotifyContextRequest notification) throws CygnusBadContextData {
+        expect('{');
+        ContextMetadata contextMetadata = notification == null ? null : notification.new ContextMetadata();
+
+        if (consume('}')) {
+            return contextMetadata;
+        } // if
+
+        do {
+            readName();
+
+            if (isName("name")) {
+                String name = readStringValue();
+
+                if (contextMetadata != null) {
+                    contextMetadata.setName(name);
+                } // if
+            } else if (isName("type")) {
+                String type = readStringValue();
+
+                if (contextMetadata != null) {
+                    contextMetadata.setType(type);
+                } // if
+            } else if (isName("value")) {
+                if (consumeNull()) {
+                    if (contextMetadata != null) {
+                        contextMetadata.setContextMetadata(JsonNull.INSTANCE);
+                    } // if
+                } else {
+                    JsonSlice slice = readSlice();
+
+                    if (contextMetadata != null) {
+                        contextMetadata.setRawContextMetadata(slice);
+                    } // if
+                } // if else
+            } else {
+                skipValue();
+            } // if else
+        } while (consume(','));
+
+        expect('}');
+        return contextMetadata;
+    } // readMetadata
+
+    private StatusCode readStatusCode(NotifyContextRequest notification) throws CygnusBadContextData {
+        expect('{');
+        StatusCode statusCode = notification.new StatusCode();
+
+        if (consume('}')) {
+            return statusCode;
+        } // if
+
+        do {
+            readName();
+
+            if (isName("code")) {
+                statusCode.setCode(readStringValue());
+            } else if (isName("reasonPhrase")) {
+                statusCode.setReasonPhrase(readStringValue());
+            } else {
+                skipValue();
+            } // if else
+        } while (consume(','));
+
+        expect('}');
+        return statusCode;
+    } // readStatusCode
+
+    /**
+     * Reads an object member name and the following colon. Names containing escape sequences are not supported.
+     * @throws CygnusBadContextData
+     */
+    private void readName() throws CygnusBadContextData {
+        expect('"');
+        nameStart = pos;
+
+        while (pos < end && bytes[pos] != '"') {
+            if (bytes[pos] == '\\') {
+                throw error("Escaped member names are not supported");
+            } // if
+
+            pos++;
+        } // while
+
+        if (pos == end) {
+            throw error("Unterminated string");
+        } // if
+
+        nameEnd = pos;
+        pos++;
+        expect(':');
+    } // readName
+
+    private boolean isName(String name) {
+        if (nameEnd - nameStart != name.length()) {
+            return false;
+        } // if
+
+        for (int i = 0; i < name.length(); i++) {
+            if (bytes[nameStart + i] != name.charAt(i)) {
+                return false;
+            } // if
+        } // for
+
+        return true;
+    } // isName
+
+    /**
+     * Reads a value to be stored within a string field. As Gson does, numbers and booleans are accepted as well.
+     * @return The string value, or null if the value is a Json null
+     * @throws CygnusBadContextData
+     */
+    private String readStringValue() throws CygnusBadContextData {
+        skipWhitespaces();
+
+        if (pos == end) {
+            throw error("Unexpected end of document");
+        } // if
+
+        byte b = bytes[pos];
+
+        if (b == '"') {
+            return readString();
+        } else if (b == 'n') {
+            readLiteral("null");
+            return null;
+        } else if (b == 't') {
+            readLiteral("true");
+            return "true";
+        } else if (b == 'f') {
+            readLiteral("false");
+            return "false";
+        } else if (b == '-' || (b >= '0' && b <= '9')) {
+            int start = pos;
+            readNumber();
+            return numberToString(bytes, start, pos);
+        } else {
+            throw error("String expected");
+        } // if else
+    } // readStringValue
+
+    /**
+     * Reads a quoted string, decoding the escape sequences.
+     * @return The decoded string
+     * @throws CygnusBadContextData
+     */
+    private String readString() throws CygnusBadContextData {
+        expect('"');
+        int start = pos;
+
+        // fast path, no escape sequences
+        while (pos < end) {
+            byte b = bytes[pos];
+
+            if (b == '"') {
+                String str = new String(bytes, start, pos - start, CHARSET);
+                pos++;
+                return str;
+            } else if (b == '\\') {
+                break;
+            } // if else if
+
+            pos++;
+        } // while
+
+        // slow path, escape sequences
+        StringBuilder sb = new StringBuilder();
+        sb.append(new String(bytes, start, pos - start, CHARSET));
+
+        while (pos < end) {
+            byte b = bytes[pos];
+
+            if (b == '"') {
+                pos++;
+                return sb.toString();
+            } else if (b == '\\') {
+                pos++;
+                sb.append(readEscapedChar());
+            } else {
+                int runStart = pos;
+
+                while (pos < end && bytes[pos] != '"' && bytes[pos] != '\\') {
+                    pos++;
+                } // while
+
+                sb.append(new String(bytes, runStart, pos - runStart, CHARSET));
+            } // if else
+        } // while
+
+        throw error("Unterminated string");
+    } // readString
+
+    private char readEscapedChar() throws CygnusBadContextData {
+        if (pos == end) {
+            throw error("Unterminated escape sequence");
+        } // if
+
+        byte b = bytes[pos++];
+
+        switch (b) {
+            case '"':
+                return '"';
+            case '\\':
+                return '\\';
+            case '/':
+                return '/';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                if (pos + 4 > end) {
+                    throw error("Unterminated escape sequence");
+                } // if
+
+                int c = 0;
+
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(bytes[pos++], 16);
+
+                    if (digit == -1) {
+                        throw error("Malformed unicode escape sequence");
+                    } // if
+
+                    c = (c << 4) + digit;
+                } // for
+
+                return (char) c;
+            default:
+                throw error("Invalid escape sequence");
+        } // switch
+    } // readEscapedChar
+
+    private void readNumber() throws CygnusBadContextData {
+        if (pos < end && bytes[pos] == '-') {
+            pos++;
+        } // if
+
+        if (pos < end && bytes[pos] == '0') {
+            pos++;
+        } else if (pos < end && bytes[pos] >= '1' && bytes[pos] <= '9') {
+            skipDigits();
+        } else {
+            throw error("Malformed number");
+        } // if else
+
+        if (pos < end && bytes[pos] == '.') {
+            pos++;
+
+            if (skipDigits() == 0) {
+                throw error("Malformed number");
+            } // if
+        } // if
+
+        if (pos < end && (bytes[pos] == 'e' || bytes[pos] == 'E')) {
+            pos++;
+
+            if (pos < end && (bytes[pos] == '+' || bytes[pos] == '-')) {
+                pos++;
+            } // if
+
+            if (skipDigits() == 0) {
+                throw error("Malformed number");
+            } // if
+        } // if
+    } // readNumber
+
+    private int skipDigits() {
+        int start = pos;
+
+        while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+            pos++;
+        } // while
+
+        return pos - start;
+    } // skipDigits
+
+    /**
+     * Gets a number as a string, in the same way Gson does: the literal is kept as it is, but the negative zero,
+     * which Gson reads as a long.
+     * @param bytes
+     * @param start
+     * @param end
+     * @return The number as a string
+     */
+    private static String numberToString(byte[] bytes, int start, int end) {
+        if (end - start == 2 && bytes[start] == '-' && bytes[start + 1] == '0') {
+            return "0";
+        } // if
+
+        return new String(bytes, start, end - start, CHARSET);
+    } // numberToString
+
+    private void readLiteral(String literal) throws CygnusBadContextData {
+        if (pos + literal.length() > end) {
+            throw error("Unexpected end of document");
+        } // if
+
+        for (int i = 0; i < literal.length(); i++) {
+            if (bytes[pos + i] != literal.charAt(i)) {
+                throw error("Unexpected literal");
+            } // if
+        } // for
+
+        pos += literal.length();
+    } // readLiteral
+
+    /**
+     * Reads any non null value as a raw slice.
+     * @return The raw slice
+     * @throws CygnusBadContextData
+     */
+    private JsonSlice readSlice() throws CygnusBadContextData {
+        skipWhitespaces();
+        int start = pos;
+        skipValue();
+        return new JsonSlice(bytes, start, pos);
+    } // readSlice
+
+    /**
+     * Skips any value, validating it.
+     * @throws CygnusBadContextData
+     */
+    private void skipValue() throws CygnusBadContextData {
+        skipWhitespaces();
+
+        if (pos == end) {
+            throw error("Unexpected end of document");
+        } // if
+
+        switch (bytes[pos]) {
+            case '{':
+                pos++;
+
+                if (consume('}')) {
+                    return;
+                } // if
+
+                do {
+                    skipWhitespaces();
+                    readString();
+                    expect(':');
+                    skipValue();
+                } while (consume(','));
+
+                expect('}');
+                break;
+            case '[':
+                pos++;
+
+                if (consume(']')) {
+                    return;
+                } // if
+
+                do {
+                    skipValue();
+                } while (consume(','));
+
+                expect(']');
+                break;
+            case '"':
+                readString();
+                break;
+            case 't':
+                readLiteral("true");
+                break;
+            case 'f':
+                readLiteral("false");
+                break;
+            case 'n':
+                readLiteral("null");
+                break;
+            default:
+                readNumber();
+        } // switch
+    } // skipValue
+
+    /**
+     * Writes the current value in compact form.
+     * @param sb
+     * @return False if an object with duplicated member names was found, true otherwise
+     * @throws CygnusBadContextData
+     */
+    private boolean writeCompact(StringBuilder sb) throws CygnusBadContextData {
+        skipWhitespaces();
+        int start = pos;
+
+        switch (bytes[pos]) {
+            case '{':
+                pos++;
+                sb.append('{');
+
+                if (consume('}')) {
+                    sb.append('}');
+                    return true;
+                } // if
+
+                String firstName = null;
+                HashSet<String> names = null;
+
+                do {
+                    skipWhitespaces();
+                    String name = readString();
+
+                    if (firstName == null) {
+                        firstName = name;
+                    } else {
+                        if (names == null) {
+                            names = new HashSet<String>();
+                            names.add(firstName);
+                        } // if
+
+                        if (!names.add(name)) {
+                            return false;
+                        } // if
+
+                        sb.append(',');
+                    } // if else
+
+                    writeEscaped(sb, name);
+                    expect(':');
+                    sb.append(':');
+
+                    if (!writeCompact(sb)) {
+                        return false;
+                    } // if
+                } while (consume(','));
+
+                expect('}');
+                sb.append('}');
+                return true;
+            case '[':
+                pos++;
+                sb.append('[');
+
+                if (consume(']')) {
+                    sb.append(']');
+                    return true;
+                } // if
+
+                boolean first = true;
+
+                do {
+                    if (!first) {
+                        sb.append(',');
+                    } // if
+
+                    first = false;
+
+                    if (!writeCompact(sb)) {
+                        return false;
+                    } // if
+                } while (consume(','));
+
+                expect(']');
+                sb.append(']');
+                return true;
+            case '"':
+                writeEscaped(sb, readString());
+                return true;
+            case 't':
+            case 'f':
+            case 'n':
+                skipValue();
+                sb.append(new String(bytes, start, pos - start, CHARSET));
+                return true;
+            default:
+                readNumber();
+                sb.append(numberToString(bytes, start, pos));
+                return true;
+        } // switch
+    } // writeCompact
+
+    private static void writeEscaped(StringBuilder sb, String str) {
+        sb.append('"');
+
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            String replacement = null;
+
+            if (c < 128) {
+                replacement = REPLACEMENT_CHARS[c];
+            } else if (c == '\u2028') {
+                replacement = "\\u2028";
+            } else if (c == '\u2029') {
+                replacement = "\\u2029";
+            } // if else if
+
+            if (replacement == null) {
+                sb.append(c);
+            } else {
+                sb.append(replacement);
+            } // if else
+        } // for
+
+        sb.append('"');
+    } // writeEscaped
+
+    private void skipWhitespaces() {
+        while (pos < end) {
+            byte b = bytes[pos];
+
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            } // if
+
+            pos++;
+        } // while
+    } // skipWhitespaces
+
+    private void expect(char c) throws CygnusBadContextData {
+        skipWhitespaces();
+
+        if (pos == end || bytes[pos] != c) {
+            throw error("'" + c + "' expected");
+        } // if
+
+        pos++;
+    } // expect
+
+    private boolean consume(char c) {
+        skipWhitespaces();
+
+        if (pos < end && bytes[pos] == c) {
+            pos++;
+            return true;
+        } // if
+
+        return false;
+    } // consume
+
+    private boolean consumeNull() throws CygnusBadContextData {
+        skipWhitespaces();
+
+        if (pos < end && bytes[pos] == 'n') {
+            readLiteral("null");
+            return true;
+        } // if
+
+        return false;
+    } // consumeNull
+
+    private CygnusBadContextData error(String message) {
+        return new CygnusBadContextData(message + " at offset " + pos);
+    } // error
+
+} // NotifyContextRequestJsonDecoder
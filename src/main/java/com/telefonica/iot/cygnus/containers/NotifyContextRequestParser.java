@@ -0,0 +1,110 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.containers;
+
+import com.google.gson.Gson;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.utils.Constants;
+import org.apache.flume.Event;
+
+/**
+ *
+ * @author frb
+ *
+ * Parses notifyContextRequest notifications, either Json or XML based, into NotifyContextRequest objects. This is
+ * the single parsing point for the handler, the interceptors and the sinks; if the given Flume event already carries
+ * a parsed notification (see NotifyContextRequestEvent) it is returned as it is, without parsing the body again.
+ *
+ * Json notifications are decoded by NotifyContextRequestJsonDecoder, which does not build any Json tree; Gson is only
+ * used if the body is not strict Json. XML notifications are decoded by NotifyContextRequestXMLDecoder.
+ */
+public final class NotifyContextRequestParser {
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Constructor. It is private since utility classes should not have a public or default constructor.
+     */
+    private NotifyContextRequestParser() {
+    } // NotifyContextRequestParser
+
+    /**
+     * Gets the notification regarding a Flume event. If the event already carries a parsed notification, that
+     * notification is returned; otherwise the body of the event is parsed according to its content type header.
+     * @param event
+     * @return The notification regarding the given Flume event
+     * @throws CygnusBadContextData
+     */
+    public static NotifyContextRequest parse(Event event) throws CygnusBadContextData {
+        if (event instanceof NotifyContextRequestEvent) {
+            NotifyContextRequest notification = ((NotifyContextRequestEvent) event).getNotification();
+
+            if (notification != null) {
+                return notification;
+            } // if
+        } // if
+
+        return parse(event.getBody(), event.getHeaders().get(Constants.HEADER_CONTENT_TYPE));
+    } // parse
+
+    /**
+     * Parses a notification body given its content type.
+     * @param body
+     * @param contentType
+     * @return The parsed notification
+     * @throws CygnusBadContextData
+     */
+    public static NotifyContextRequest parse(byte[] body, String contentType) throws CygnusBadContextData {
+        if (contentType == null) {
+            // this point should never be reached since the content type has been checked when receiving the
+            // notification
+            throw new CygnusBadContextData("Unrecognized content type (not Json nor XML)");
+        } else if (contentType.contains("application/json")) {
+            return parseJson(body);
+        } else if (contentType.contains("application/xml")) {
+            return parseXML(body);
+        } else {
+            // this point should never be reached since the content type has been checked when receiving the
+            // notification
+            throw new CygnusBadContextData("Unrecognized content type (not Json nor XML)");
+        } // if else if
+    } // parse
+
+    private static NotifyContextRequest parseJson(byte[] body) throws CygnusBadContextData {
+        if (NotifyContextRequestJsonDecoder.isSupported()) {
+            try {
+                return NotifyContextRequestJsonDecoder.decode(body);
+            } catch (CygnusBadContextData e) {
+                // the streaming decoder is strict, thus Gson is given the opportunity of parsing the body in a lenient
+                // way (and of reporting the error, if any)
+            } // try catch
+        } // if
+        
+        try {
+            return GSON.fromJson(new String(body), NotifyContextRequest.class);
+        } catch (Exception e) {
+            throw new CygnusBadContextData(e.getMessage());
+        } // try catch
+    } // parseJson
+
+    private static NotifyContextRequest parseXML(byte[] body) throws CygnusBadContextData {
+        return NotifyContextRequestXMLDecoder.decode(body);
+    } // parseXML
+
+} // NotifyContextRequestParser
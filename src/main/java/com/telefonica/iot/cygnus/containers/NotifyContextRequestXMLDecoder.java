@@ -0,0 +1,393 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.containers;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElementResponse;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextMetadata;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.StatusCode;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ *
+ * @author frb
+ *
+ * StAX based decoder for XML notifyContextRequest notifications. It decodes the notification straight into the same
+ * model the Json decoding produces, without building any DOM. Tag names are case insensitive, whitespace-only text is
+ * ignored, and context values (and metadata values) are converted into Json elements as NotifyContextRequestSAXHandler
+ * does: nested tags become Json objects, tags with the attribute type="vector" become Json arrays, and text becomes
+ * Json primitives.
+ *
+ * The XMLInputFactory is created once per thread (factories are not guaranteed to be thread-safe), thus no factory
+ * lookup is done per notification.
+ */
+final class NotifyContextRequestXMLDecoder {
+
+    // notification bodies are built with the platform charset, thus it must be used when decoding them
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final ThreadLocal<XMLInputFactory> FACTORY = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            return factory;
+        } // initialValue
+    };
+
+    private final XMLStreamReader reader;
+    private final NotifyContextRequest notification;
+
+    /**
+     * Constructor.
+     * @param reader
+     */
+    private NotifyContextRequestXMLDecoder(XMLStreamReader reader) {
+        this.reader = reader;
+        this.notification = new NotifyContextRequest();
+    } // NotifyContextRequestXMLDecoder
+
+    /**
+     * Decodes a XML notification body.
+     * @param body
+     * @return The decoded notification
+     * @throws CygnusBadContextData If the body is malformed or its root tag is not a notifyContextRequest one
+     */
+    static NotifyContextRequest decode(byte[] body) throws CygnusBadContextData {
+        XMLStreamReader reader = null;
+
+        try {
+            reader = FACTORY.get().createXMLStreamReader(new InputStreamReader(new ByteArrayInputStream(body),
+                    CHARSET));
+
+            int event = reader.getEventType();
+
+            while (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_DOCUMENT) {
+                event = reader.next();
+            } // while
+
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                throw new CygnusBadContextData("No root element found, a notifyContextRequest one was expected");
+            } else if (!reader.getLocalName().equalsIgnoreCase("notifyContextRequest")) {
+                throw new CygnusBadContextData("Unexpected root element " + reader.getLocalName()
+                        + ", a notifyContextRequest one was expected");
+            } // if else if
+
+            NotifyContextRequestXMLDecoder decoder = new NotifyContextRequestXMLDecoder(reader);
+            decoder.readNotifyContextRequest();
+            return decoder.notification;
+        } catch (XMLStreamException e) {
+            throw new CygnusBadContextData(e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // nothing to do, the body is in memory
+                } // try catch
+            } // if
+        } // try catch finally
+    } // decode
+
+    private void readNotifyContextRequest() throws XMLStreamException {
+        while (nextChild()) {
+            String tag = reader.getLocalName();
+
+            if (tag.equalsIgnoreCase("subscriptionId")) {
+                notification.setSubscriptionId(readText());
+            } else if (tag.equalsIgnoreCase("originator")) {
+                notification.setOriginator(readText());
+            } else if (tag.equalsIgnoreCase("contextResponseList")) {
+                notification.setContextResponses(readContextResponseList());
+            } else {
+                skipElement();
+            } // if else
+        } // while
+    } // readNotifyContextRequest
+
+    private ArrayList<ContextElementResponse> readContextResponseList() throws XMLStreamException {
+        ArrayList<ContextElementResponse> contextResponses = new ArrayList<ContextElementResponse>();
+
+        while (nextChild()) {
+            if (reader.getLocalName().equalsIgnoreCase("contextElementResponse")) {
+                contextResponses.add(readContextElementResponse());
+            } else {
+                skipElement();
+            } // if else
+        } // while
+
+        return contextResponses;
+    } // readContextResponseList
+
+    private ContextElementResponse readContextElementResponse() throws XMLStreamException {
+        ContextElementResponse contextElementResponse = notification.new ContextElementResponse();
+
+        while (nextChild()) {
+            String tag = reader.getLocalName();
+
+            if (tag.equalsIgnoreCase("contextElement")) {
+                contextElementResponse.setContextElement(readContextElement());
+            } else if (tag.equalsIgnoreCase("statusCode")) {
+                contextElementResponse.setStatusCode(readStatusCode());
+            } else {
+                skipElement();
+            } // if else
+        } // while
+
+        return contextElementResponse;
+    } // readContextElementResponse
+
+    private ContextElement readContextElement() throws XMLStreamException {
+        ContextElement contextElement = notification.new ContextElement();
+
+        // if the contextAttributeList tag is not seen, the attributes are null
+        contextElement.setAttributes(null);
+
+        while (nextChild()) {
+            String tag = reader.getLocalName();
+
+            if (tag.equalsIgnoreCase("entityId")) {
+                contextElement.setType(reader.getAttributeValue(null, "type"));
+                contextElement.setIsPattern(reader.getAttributeValue(null, "isPattern"));
+
+                while (nextChild()) {
+                    if (reader.getLocalName().equalsIgnoreCase("id")) {
+                        contextElement.setId(readText());
+                    } else {
+                        skipElement();
+                    } // if else
+                } // while
+            } else if (tag.equalsIgnoreCase("contextAttributeList")) {
+                contextElement.setAttributes(readContextAttributeList());
+            } else {
+                skipElement();
+            } // if else
+        } // while
+
+        return contextElement;
+    } // readContextElement
+
+    private ArrayList<ContextAttribute> readContextAttributeList() throws XMLStreamException {
+        ArrayList<ContextAttribute> contextAttributes = new ArrayList<ContextAttribute>();
+
+        while (nextChild()) {
+            if (reader.getLocalName().equalsIgnoreCase("contextAttribute")) {
+                contextAttributes.add(readContextAttribute());
+            } else {
+                skipElement();
+            } // if else
+        } // while
+
+        return contextAttributes;
+    } // readContextAttributeList
+
+    private ContextAttribute readContextAttribute() throws XMLStreamException {
+        ContextAttribute contextAttribute = notification.new ContextAttribute();
+
+        while (nextChild()) {
+            String tag = reader.getLocalName();
+
+            if (tag.equalsIgnoreCase("name")) {
+                contextAttribute.setName(readText());
+            } else if (tag.equalsIgnoreCase("type")) {
+                contextAttribute.setType(readText());
+            } else if (tag.equalsIgnoreCase("contextValue") || tag.equalsIgnoreCase("value")) {
+                contextAttribute.setContextValue(readValue());
+            } else if (tag.equalsIgnoreCase("metadata")) {
+                contextAttribute.setContextMetadata(readMetadata());
+            } else {
+                skipElement();
+            } // if else
+        } // while
+
+        return contextAttribute;
+    } // readContextAttribute
+
+    private ArrayList<ContextMetadata> readMetadata() throws XMLStreamException {
+        ArrayList<ContextMetadata> contextMetadatas = new ArrayList<ContextMetadata>();
+
+        while (nextChild()) {
+            if (reader.getLocalName().equalsIgnoreCase("contextMetadata")) {
+                ContextMetadata contextMetadata = notification.new ContextMetadata();
+
+                while (nextChild()) {
+                    String tag = reader.getLocalName();
+
+                    if (tag.equalsIgnoreCase("name")) {
+                        contextMetadata.setName(readText());
+                    } else if (tag.equalsIgnoreCase("type")) {
+                        contextMetadata.setType(readText());
+                    } else if (tag.equalsIgnoreCase("value")) {
+                        contextMetadata.setContextMetadata(readValue());
+                    } else {
+                        skipElement();
+                    } // if else
+                } // while
+
+                contextMetadatas.add(contextMetadata);
+            } else {
+                skipElement();
+            } // if else
+        } // while
+
+        return contextMetadatas;
+    } // readMetadata
+
+    private StatusCode readStatusCode() throws XMLStreamException {
+        StatusCode statusCode = notification.new StatusCode();
+
+        while (nextChild()) {
+            String tag = reader.getLocalName();
+
+            if (tag.equalsIgnoreCase("code")) {
+                statusCode.setCode(readText());
+            } else if (tag.equalsIgnoreCase("reasonPhrase")) {
+                statusCode.setReasonPhrase(readText());
+            } else {
+                skipElement();
+            } // if else
+        } // while
+
+        return statusCode;
+    } // readStatusCode
+
+    /**
+     * Reads the value of the current element as a Json element: an array if the element has the type="vector"
+     * attribute, an object if the element has children, a primitive if the element has text, or an empty object
+     * otherwise.
+     * @return The Json element
+     * @throws XMLStreamException
+     */
+    private JsonElement readValue() throws XMLStreamException {
+        JsonArray jsonArray = "vector".equals(reader.getAttributeValue(null, "type")) ? new JsonArray() : null;
+        JsonObject jsonObject = null;
+        String text = null;
+
+        while (true) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String tag = reader.getLocalName();
+                JsonElement child = readValue();
+
+                if (jsonArray != null) {
+                    jsonArray.add(child);
+                } else {
+                    if (jsonObject == null) {
+                        jsonObject = new JsonObject();
+                    } // if
+
+                    jsonObject.add(tag, child);
+                } // if else
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                if (!reader.isWhiteSpace()) {
+                    text = text == null ? reader.getText() : text + reader.getText();
+                } // if
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } // if else if
+        } // while
+
+        if (jsonArray != null) {
+            if (text != null) {
+                jsonArray.add(new JsonPrimitive(text));
+            } // if
+
+            return jsonArray;
+        } else if (jsonObject != null) {
+            return jsonObject;
+        } else if (text != null) {
+            return new JsonPrimitive(text);
+        } else {
+            return new JsonObject();
+        } // if else
+    } // readValue
+
+    /**
+     * Reads the text of the current element; child elements are skipped.
+     * @return The text, or null if the element has no text
+     * @throws XMLStreamException
+     */
+    private String readText() throws XMLStreamException {
+        String text = null;
+
+        while (true) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                skipElement();
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                text = text == null ? reader.getText() : text + reader.getText();
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return text;
+            } // if else if
+        } // while
+    } // readText
+
+    /**
+     * Moves to the next child element of the current element.
+     * @return True if positioned at the start of a child element, false if the end of the current element was reached
+     * @throws XMLStreamException
+     */
+    private boolean nextChild() throws XMLStreamException {
+        while (true) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT || event == XMLStreamConstants.END_DOCUMENT) {
+                return false;
+            } // if else if
+        } // while
+    } // nextChild
+
+    /**
+     * Skips the current element, including all its children.
+     * @throws XMLStreamException
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+
+        while (depth > 0) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } // if else if
+        } // while
+    } // skipElement
+
+} // NotifyContextRequestXMLDecoder
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.containers;
+
+import com.telefonica.iot.cygnus.utils.Constants;
+import java.util.ArrayList;
+import java.util.Map;
+import org.apache.flume.Event;
+
+/**
+ *
+ * @author frb
+ *
+ * Destinations and service paths of the context elements within a notification, both the default and the grouped
+ * ones; the i-th position of each array refers to the i-th context element. It is computed by GroupingInterceptor and
+ * travels within NotifyContextRequestEvent, thus the sinks do not need to decode it.
+ *
+ * For compatibility purposes, it is written as well as comma separated lists in the default-destinations,
+ * default-fiware-servicepaths, grouped-destinations and grouped-fiware-servicepaths headers, which are read when the
+ * event does not carry it (e.g. it was serialized by a file channel). Commas and percent signs within the values are
+ * percent encoded, thus the values may contain any character. The arrays are shared among the sinks and must not be
+ * modified.
+ */
+public final class Routing {
+
+    private static final String[] EMPTY = new String[0];
+    private final String[] defaultDestinations;
+    private final String[] defaultServicePaths;
+    private final String[] groupedDestinations;
+    private final String[] groupedServicePaths;
+
+    /**
+     * Constructor.
+     * @param defaultDestinations
+     * @param defaultServicePaths
+     * @param groupedDestinations
+     * @param groupedServicePaths
+     */
+    public Routing(String[] defaultDestinations, String[] defaultServicePaths, String[] groupedDestinations,
+            String[] groupedServicePaths) {
+        this.defaultDestinations = defaultDestinations;
+        this.defaultServicePaths = defaultServicePaths;
+        this.groupedDestinations = groupedDestinations;
+        this.groupedServicePaths = groupedServicePaths;
+    } // Routing
+
+    /**
+     * Gets the routing of an event. It is read from the event if it carries it, otherwise it is read from the event
+     * headers.
+     * @param event
+     * @return The routing of the event
+     */
+    public static Routing of(Event event) {
+        if (event instanceof NotifyContextRequestEvent) {
+            Routing routing = ((NotifyContextRequestEvent) event).getRouting();
+
+            if (routing != null) {
+                return routing;
+            } // if
+        } // if
+
+        return fromHeaders(event.getHeaders());
+    } // of
+
+    /**
+     * Reads the routing from the given headers. Missing headers are read as empty lists.
+     * @param headers
+     * @return The routing
+     */
+    public static Routing fromHeaders(Map<String, String> headers) {
+        return new Routing(
+                split(headers.get(Constants.HEADER_DEFAULT_DESTINATIONS)),
+                split(headers.get(Constants.HEADER_DEFAULT_SERVICE_PATHS)),
+                split(headers.get(Constants.HEADER_GROUPED_DESTINATIONS)),
+                split(headers.get(Constants.HEADER_GROUPED_SERVICE_PATHS)));
+    } // fromHeaders
+
+    /**
+     * Writes the routing into the given headers.
+     * @param headers
+     */
+    public void toHeaders(Map<String, String> headers) {
+        headers.put(Constants.HEADER_DEFAULT_DESTINATIONS, join(defaultDestinations));
+        headers.put(Constants.HEADER_DEFAULT_SERVICE_PATHS, join(defaultServicePaths));
+        headers.put(Constants.HEADER_GROUPED_DESTINATIONS, join(groupedDestinations));
+        headers.put(Constants.HEADER_GROUPED_SERVICE_PATHS, join(groupedServicePaths));
+    } // toHeaders
+
+    public String[] getDefaultDestinations() {
+        return defaultDestinations;
+    } // getDefaultDestinations
+
+    public String[] getDefaultServicePaths() {
+        return defaultServicePaths;
+    } // getDefaultServicePaths
+
+    public String[] getGroupedDestinations() {
+        return groupedDestinations;
+    } // getGroupedDestinations
+
+    public String[] getGroupedServicePaths() {
+        return groupedServicePaths;
+    } // getGroupedServicePaths
+
+    /**
+     * Gets the grouped destinations if grouping is enabled, otherwise the default ones.
+     * @param grouped
+     * @return The grouped or the default destinations
+     */
+    public String[] getDestinations(boolean grouped) {
+        return grouped ? groupedDestinations : defaultDestinations;
+    } // getDestinations
+
+    /**
+     * Gets the grouped service paths if grouping is enabled, otherwise the default ones.
+     * @param grouped
+     * @return The grouped or the default service paths
+     */
+    public String[] getServicePaths(boolean grouped) {
+        return grouped ? groupedServicePaths : defaultServicePaths;
+    } // getServicePaths
+
+    /**
+     * Joins a list of values into a comma separated list, percent encoding the commas and the percent signs within
+     * the values.
+     * @param values
+     * @return The comma separated list
+     */
+    public static String join(String[] values) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            } // if
+
+            String value = values[i];
+
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+
+                if (c == ',') {
+                    sb.append("%2C");
+                } else if (c == '%') {
+                    sb.append("%25");
+                } else {
+                    sb.append(c);
+                } // if else
+            } // for
+        } // for
+
+        return sb.toString();
+    } // join
+
+    /**
+     * Splits a comma separated list created by join. The lists written by previous versions are split as well, since
+     * their values never contained commas nor percent signs.
+     * @param list
+     * @return The values within the list
+     */
+    public static String[] split(String list) {
+        if (list == null) {
+            return EMPTY;
+        } // if
+
+        ArrayList<String> values = new ArrayList<String>();
+        int start = 0;
+
+        while (true) {
+            int end = list.indexOf(',', start);
+
+            if (end == -1) {
+                values.add(decode(list.substring(start)));
+                break;
+            } // if
+
+            values.add(decode(list.substring(start, end)));
+            start = end + 1;
+        } // while
+
+        return values.toArray(new String[values.size()]);
+    } // split
+
+    private static String decode(String value) {
+        if (value.indexOf('%') == -1) {
+            return value;
+        } // if
+
+        StringBuilder sb = new StringBuilder(value.length());
+        int i = 0;
+
+        while (i < value.length()) {
+            if (value.startsWith("%2C", i)) {
+                sb.append(',');
+                i += 3;
+            } else if (value.startsWith("%25", i)) {
+                sb.append('%');
+                i += 3;
+            } else {
+                sb.append(value.charAt(i));
+                i++;
+            } // if else
+        } // while
+
+        return sb.toString();
+    } // decode
+
+} // Routing
@@ -18,9 +18,15 @@
 
 package com.telefonica.iot.cygnus.handlers;
 
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequestEvent;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequestParser;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
-import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
@@ -49,6 +55,8 @@ import org.slf4j.MDC;
 public class OrionRestHandler implements HTTPSourceHandler {
     
     private static final CygnusLogger LOGGER = new CygnusLogger(OrionRestHandler.class);
+    private static final int INITIAL_BODY_LEN = 4096;
+    private static final int MAX_PREALLOCATED_BODY_LEN = 8 * 1024 * 1024;
     private String notificationTarget;
     private String defaultService;
     private String defaultServicePath;
@@ -204,32 +212,20 @@ public class OrionRestHandler implements HTTPSourceHandler {
             } // if else if
         } // for
 
-        // get the data content
-        String data = "";
-        String line;
-        BufferedReader reader = request.getReader();
-        
-        while ((line = reader.readLine()) != null) {
-            data += line;
-        } // while
+        // get the data content; it is read as it is, the legacy "contextValue" fields and the white spaces between
+        // tags are dealt with by the notification decoders
+        byte[] body = readBody(request);
                 
-        if (data.length() == 0) {
+        if (body.length == 0) {
             LOGGER.warn("Bad HTTP notification (No content in the request)");
             throw new HTTPBadRequestException("No content in the request");
         } // if
 
-        // data adaptation; two replacements:
-        //   1. replace all the appearances of "contextValue" with "value" in order Orion versions under 0.10.0 may
-        //      work (Json content type only)
-        //   2. replace all the white lines between tags with nothing; the regex ">[ ]*<" means "all the white spaces
-        //      between '>' and '<', e.g. "<tag1>1</tag1>      <tag2>2</tag2>" becomes "<tag1>1</tag1><tag2>2</tag2>"
+        LOGGER.info("Received data (" + body.length + " bytes)");
         
-        if (contentType.equals("application/json")) {
-            data = data.replaceAll("contextValue", "value");
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Received data (" + new String(body) + ")");
         } // if
-
-        data = data.replaceAll(">[ ]*<", "><");
-        LOGGER.info("Received data (" + data + ")");
         
         // create the appropiate headers
         Map<String, String> eventHeaders = new HashMap<String, String>();
@@ -248,14 +244,62 @@ public class OrionRestHandler implements HTTPSourceHandler {
         eventHeaders.put(Constants.HEADER_TTL, eventsTTL);
         LOGGER.debug("Adding flume event header (name=" + Constants.HEADER_TTL + ", value=" + eventsTTL + ")");
         
+        // parse the notification once; the parsed notification travels together with the event, thus neither the
+        // interceptors nor the sinks have to parse the body again (unless the channel serializes the events)
+        Event event;
+        
+        try {
+            NotifyContextRequest notification = NotifyContextRequestParser.parse(body, contentType);
+            event = new NotifyContextRequestEvent(eventHeaders, body, notification);
+        } catch (CygnusBadContextData e) {
+            LOGGER.debug("The notification could not be parsed, a raw event will be created (" + e.getMessage() + ")");
+            event = EventBuilder.withBody(body, eventHeaders);
+        } // try catch
+        
         // create the event list containing only one event
         ArrayList<Event> eventList = new ArrayList<Event>();
-        Event event = EventBuilder.withBody(data.getBytes(), eventHeaders);
         eventList.add(event);
         LOGGER.info("Event put in the channel (id=" + event.hashCode() + ", ttl=" + eventsTTL + ")");
         return eventList;
     } // getEvents
     
+    /**
+     * Reads the body of a request. If the content length is known, the body is read into an array of exactly that
+     * size, otherwise the array grows as needed and it is finally trimmed. The returned array is used as the event
+     * body, without further copies.
+     * @param request
+     * @return The body of the request
+     * @throws IOException
+     */
+    private byte[] readBody(javax.servlet.http.HttpServletRequest request) throws IOException {
+        int contentLength = request.getContentLength();
+        byte[] body = new byte[contentLength > 0 && contentLength <= MAX_PREALLOCATED_BODY_LEN
+                ? contentLength : INITIAL_BODY_LEN];
+        InputStream in = request.getInputStream();
+        int len = 0;
+        
+        while (true) {
+            if (len == body.length) {
+                if (len == contentLength) {
+                    // the whole announced content has been read
+                    break;
+                } // if
+                
+                body = Arrays.copyOf(body, body.length * 2);
+            } // if
+            
+            int read = in.read(body, len, body.length - len);
+            
+            if (read == -1) {
+                break;
+            } // if
+            
+            len += read;
+        } // while
+        
+        return len == body.length ? body : Arrays.copyOf(body, len);
+    } // readBody
+    
     /**
      * Generates a new unique transaction identifier. The format for this id is:
      * <bootTimeSeconds>-<bootTimeMilliseconds>-<transactionCount%10000000000>
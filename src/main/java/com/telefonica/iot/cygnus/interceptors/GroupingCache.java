@@ -0,0 +1,234 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.interceptors;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author frb
+ *
+ * Bounded and concurrent cache of the groupings computed for the notified entities, keyed by entity id, entity type
+ * and notified service path. The entries are kept in two generations: new entries go to the current one, and when it
+ * is full it becomes the previous one, which is discarded at the next rotation; the entries found in the previous
+ * generation are moved to the current one. Thus, at most maxSize entries are kept, and the entities notified at
+ * least once every maxSize / 2 new entries are never evicted.
+ *
+ * Each entry is tagged with the grouping rules it was computed with, and it is not returned when asking with other
+ * rules; in other words, the cache is invalidated when the grouping rules change.
+ */
+final class GroupingCache {
+
+    private final int generationSize;
+    private final AtomicInteger currentSize = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile ConcurrentHashMap<Key, Grouping> current = new ConcurrentHashMap<Key, Grouping>();
+    private volatile ConcurrentHashMap<Key, Grouping> previous = new ConcurrentHashMap<Key, Grouping>();
+
+    /**
+     * Constructor.
+     * @param maxSize Maximum number of cached entries, greater than 0
+     */
+    GroupingCache(int maxSize) {
+        this.generationSize = Math.max(1, maxSize / 2);
+    } // GroupingCache
+
+    /**
+     * Gets the cached grouping of an entity.
+     * @param entityId
+     * @param entityType
+     * @param servicePath
+     * @param rules Grouping rules the grouping must have been computed with, may be null
+     * @return The cached grouping, or null if the entity is not cached or it was grouped with other rules
+     */
+    Grouping get(String entityId, String entityType, String servicePath, GroupingRules rules) {
+        Key key = new Key(entityId, entityType, servicePath);
+        Grouping grouping = current.get(key);
+
+        if (grouping == null) {
+            grouping = previous.get(key);
+
+            if (grouping != null && grouping.rules == rules) {
+                put(key, grouping);
+            } // if
+        } // if
+
+        if (grouping == null || grouping.rules != rules) {
+            misses.incrementAndGet();
+            return null;
+        } // if
+
+        hits.incrementAndGet();
+        return grouping;
+    } // get
+
+    /**
+     * Caches the grouping of an entity.
+     * @param entityId
+     * @param entityType
+     * @param servicePath
+     * @param grouping
+     */
+    void put(String entityId, String entityType, String servicePath, Grouping grouping) {
+        put(new Key(entityId, entityType, servicePath), grouping);
+    } // put
+
+    private void put(Key key, Grouping grouping) {
+        if (current.put(key, grouping) == null && currentSize.incrementAndGet() >= generationSize) {
+            rotate();
+        } // if
+    } // put
+
+    private synchronized void rotate() {
+        // another thread may have already rotated the generations
+        if (currentSize.get() < generationSize) {
+            return;
+        } // if
+
+        previous = current;
+        current = new ConcurrentHashMap<Key, Grouping>();
+        currentSize.set(0);
+    } // rotate
+
+    /**
+     * Removes all the cached entries.
+     */
+    synchronized void clear() {
+        previous = new ConcurrentHashMap<Key, Grouping>();
+        current = new ConcurrentHashMap<Key, Grouping>();
+        currentSize.set(0);
+    } // clear
+
+    /**
+     * Gets the number of cached entries.
+     * @return The number of cached entries
+     */
+    int size() {
+        return current.size() + previous.size();
+    } // size
+
+    /**
+     * Gets the number of lookups finding a valid entry.
+     * @return The number of lookups finding a valid entry
+     */
+    long getHits() {
+        return hits.get();
+    } // getHits
+
+    /**
+     * Gets the number of lookups not finding a valid entry.
+     * @return The number of lookups not finding a valid entry
+     */
+    long getMisses() {
+        return misses.get();
+    } // getMisses
+
+    /**
+     * Destinations and service paths computed for an entity.
+     */
+    static final class Grouping {
+
+        private final GroupingRules rules;
+        private final String defaultDestination;
+        private final String defaultServicePath;
+        private final String groupedDestination;
+        private final String groupedServicePath;
+
+        /**
+         * Constructor.
+         * @param rules
+         * @param defaultDestination
+         * @param defaultServicePath
+         * @param groupedDestination
+         * @param groupedServicePath
+         */
+        Grouping(GroupingRules rules, String defaultDestination, String defaultServicePath,
+                String groupedDestination, String groupedServicePath) {
+            this.rules = rules;
+            this.defaultDestination = defaultDestination;
+            this.defaultServicePath = defaultServicePath;
+            this.groupedDestination = groupedDestination;
+            this.groupedServicePath = groupedServicePath;
+        } // Grouping
+
+        String getDefaultDestination() {
+            return defaultDestination;
+        } // getDefaultDestination
+
+        String getDefaultServicePath() {
+            return defaultServicePath;
+        } // getDefaultServicePath
+
+        String getGroupedDestination() {
+            return groupedDestination;
+        } // getGroupedDestination
+
+        String getGroupedServicePath() {
+            return groupedServicePath;
+        } // getGroupedServicePath
+
+    } // Grouping
+
+    /**
+     * Cache key; any of its fields may be null.
+     */
+    private static final class Key {
+
+        private final String entityId;
+        private final String entityType;
+        private final String servicePath;
+        private final int hash;
+
+        Key(String entityId, String entityType, String servicePath) {
+            this.entityId = entityId;
+            this.entityType = entityType;
+            this.servicePath = servicePath;
+            this.hash = (31 * (31 * hashCode(entityId) + hashCode(entityType))) + hashCode(servicePath);
+        } // Key
+
+        private static int hashCode(String s) {
+            return s == null ? 0 : s.hashCode();
+        } // hashCode
+
+        private static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        } // equals
+
+        @Override
+        public int hashCode() {
+            return hash;
+        } // hashCode
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            } // if
+
+            Key key = (Key) o;
+            return hash == key.hash && equals(entityId, key.entityId) && equals(entityType, key.entityType)
+                    && equals(servicePath, key.servicePath);
+        } // equals
+
+    } // Key
+
+} // GroupingCache
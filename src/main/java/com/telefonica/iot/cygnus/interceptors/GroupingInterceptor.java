@@ -18,28 +18,32 @@
 
 package com.telefonica.iot.cygnus.interceptors;
 
-import com.google.gson.Gson;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElementResponse;
-import com.telefonica.iot.cygnus.containers.NotifyContextRequestSAXHandler;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequestEvent;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequestParser;
+import com.telefonica.iot.cygnus.containers.Routing;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.interceptors.GroupingCache.Grouping;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.regex.PatternSyntaxException;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.interceptor.Interceptor;
@@ -47,8 +51,6 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  * Custom interceptor in charge of extracting the destination where the data must be persisted. This destination is
@@ -59,15 +61,35 @@ import org.xml.sax.SAXException;
 public class GroupingInterceptor implements Interceptor {
     
     private static final CygnusLogger LOGGER = new CygnusLogger(GroupingInterceptor.class);
+    private static final int DEFAULT_CACHE_SIZE = 100000;
+    private static final int DEFAULT_RELOAD_INTERVAL = 30;
     private final String groupingRulesFileName;
-    private LinkedList<GroupingRule> groupingRules;
+    private final GroupingCache groupingCache;
+    private final int reloadInterval;
+    private ScheduledExecutorService reloader;
+    private long groupingRulesFileLastModified;
+    private long groupingRulesFileLength;
+    // copy-on-write; the rules are never modified but replaced as a whole by the reloader
+    private volatile GroupingRules groupingRules;
     
     /**
      * Constructor.
      * @param groupingRulesFileName
      */
     public GroupingInterceptor(String groupingRulesFileName) {
+        this(groupingRulesFileName, DEFAULT_CACHE_SIZE, DEFAULT_RELOAD_INTERVAL);
+    } // GroupingInterceptor
+    
+    /**
+     * Constructor.
+     * @param groupingRulesFileName
+     * @param cacheSize Maximum number of entities whose grouping is cached, 0 disables the cache
+     * @param reloadInterval Seconds between checks of the grouping rules file, 0 disables the reloading
+     */
+    public GroupingInterceptor(String groupingRulesFileName, int cacheSize, int reloadInterval) {
         this.groupingRulesFileName = groupingRulesFileName;
+        this.groupingCache = cacheSize > 0 ? new GroupingCache(cacheSize) : null;
+        this.reloadInterval = reloadInterval;
     } // GroupingInterceptor
     
     /**
@@ -75,18 +97,118 @@ public class GroupingInterceptor implements Interceptor {
      * @return
      */
     protected LinkedList<GroupingRule> getGroupingRules() {
-        return groupingRules;
+        GroupingRules rules = groupingRules;
+        return rules == null ? null : rules.getRules();
     } // getGroupingRules
     
+    /**
+     * Gets the grouping cache. This is protected since it is only going to be used in the tests.
+     * @return The grouping cache, null if disabled
+     */
+    protected GroupingCache getGroupingCache() {
+        return groupingCache;
+    } // getGroupingCache
+    
+    /**
+     * Gets the number of context elements whose grouping was found in the grouping cache.
+     * @return The number of grouping cache hits, 0 if the cache is disabled
+     */
+    public long getGroupingCacheHits() {
+        return groupingCache == null ? 0 : groupingCache.getHits();
+    } // getGroupingCacheHits
+    
+    /**
+     * Gets the number of context elements whose grouping was not found in the grouping cache, thus it was computed.
+     * @return The number of grouping cache misses, 0 if the cache is disabled
+     */
+    public long getGroupingCacheMisses() {
+        return groupingCache == null ? 0 : groupingCache.getMisses();
+    } // getGroupingCacheMisses
+    
     @Override
     public void initialize() {
+        groupingRules = loadGroupingRules();
+        
+        // the cached groupings, if any, were computed with the previously loaded rules
+        if (groupingCache != null) {
+            groupingCache.clear();
+        } // if
+        
+        if (groupingRulesFileName == null || reloadInterval <= 0) {
+            return;
+        } // if
+        
+        // watch the grouping rules file; the reloader does not prevent the agent from stopping
+        reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "grouping-rules-reloader");
+                thread.setDaemon(true);
+                return thread;
+            } // newThread
+        });
+        reloader.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reloadGroupingRules();
+                } catch (Exception e) {
+                    // an exception would cancel any further reloading
+                    LOGGER.error("Error while reloading the grouping rules. Details=" + e.getMessage());
+                } // try catch
+            } // run
+        }, reloadInterval, reloadInterval, TimeUnit.SECONDS);
+        LOGGER.info("Grouping rules file will be checked for changes every " + reloadInterval + " seconds");
+    } // initialize
+    
+    /**
+     * Reloads the grouping rules if the grouping rules file has changed since it was last read. The new rules replace
+     * the current ones as a whole, once they have been compiled and indexed; the events being intercepted meanwhile
+     * keep using the current ones. If the new rules cannot be read, the current ones are kept. It is protected due to
+     * it is only required for testing purposes.
+     * @return True if the grouping rules were replaced, false otherwise
+     */
+    protected boolean reloadGroupingRules() {
+        File file = new File(groupingRulesFileName);
+        
+        if (file.lastModified() == groupingRulesFileLastModified && file.length() == groupingRulesFileLength) {
+            return false;
+        } // if
+        
+        LOGGER.info("Grouping rules file has changed, reloading it");
+        GroupingRules newGroupingRules = loadGroupingRules();
+        
+        if (newGroupingRules == null) {
+            LOGGER.warn("Grouping rules could not be reloaded, the current ones are kept");
+            return false;
+        } // if
+        
+        groupingRules = newGroupingRules;
+        
+        // the cached groupings were computed with the old rules
+        if (groupingCache != null) {
+            groupingCache.clear();
+        } // if
+        
+        LOGGER.info("Grouping rules have been reloaded");
+        return true;
+    } // reloadGroupingRules
+    
+    private GroupingRules loadGroupingRules() {
+        // the file is stamped before reading it, thus any change while reading it will be detected by the next check
+        if (groupingRulesFileName != null) {
+            File file = new File(groupingRulesFileName);
+            groupingRulesFileLastModified = file.lastModified();
+            groupingRulesFileLength = file.length();
+        } // if
+        
         // read the grouping rules file; a JSONParse(Reader) method cannot be used since the file may contain comment
         // lines starting by the '#' character
         String jsonStr = readGroupingRulesFile(groupingRulesFileName);
         
         if (jsonStr == null) {
             LOGGER.info("No grouping rules read");
-            return;
+            return null;
         } // if
         
         LOGGER.info("Grouping rules read: " + jsonStr);
@@ -96,20 +218,20 @@ public class GroupingInterceptor implements Interceptor {
         
         if (jsonGroupingRules == null) {
             LOGGER.warn("Grouping rules syntax has errors");
-            return;
+            return null;
         } // if
         
         LOGGER.info("Grouping rules syntax is OK");
         
         // create a list of grouping rules, with precompiled regex
-        groupingRules = createGroupingRules(jsonGroupingRules);
-        
-        if (groupingRules == null) {
-            LOGGER.warn("Grouping rules regex'es could not be compiled");
-        }
-        
+        LinkedList<GroupingRule> rules = createGroupingRules(jsonGroupingRules);
         LOGGER.info("Grouping rules regex'es have been compiled");
-    } // initialize
+        
+        // index the grouping rules, so that only the candidate rules are tested for each context element
+        GroupingRules indexedRules = new GroupingRules(rules);
+        LOGGER.info("Grouping rules have been indexed (" + indexedRules.size() + " rules)");
+        return indexedRules;
+    } // loadGroupingRules
     
     /**
      * Reads a file containing Json-based grouing rules. The file may contain lines representing comments, which start
@@ -149,7 +271,13 @@ public class GroupingInterceptor implements Interceptor {
         } catch (IOException e) {
             LOGGER.error("Error while reading the Json-based grouping rules file. Details=" + e.getMessage() + ")");
             return null;
-        } // try catch
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error while closing the Json-based grouping rules file. Details=" + e.getMessage());
+            } // try catch
+        } // try catch finally
     } // readGroupingRulesFile
     
     private JSONArray parseGroupingRules(String jsonStr) {
@@ -161,6 +289,9 @@ public class GroupingInterceptor implements Interceptor {
         
         try {
             return (JSONArray) ((JSONObject) jsonParser.parse(jsonStr)).get("grouping_rules");
+        } catch (ClassCastException e) {
+            LOGGER.error("Error while parsing the Json-based grouping rules file. Details=" + e.getMessage());
+            return null;
         } catch (ParseException e) {
             LOGGER.error("Error while parsing the Json-based grouping rules file. Details=" + e.getMessage());
             return null;
@@ -172,7 +303,7 @@ public class GroupingInterceptor implements Interceptor {
             return null;
         } // if
         
-        groupingRules = new LinkedList<GroupingRule>();
+        LinkedList<GroupingRule> rules = new LinkedList<GroupingRule>();
         
         for (Object jsonGroupingRule : jsonGroupingRules) {
             JSONObject jsonRule = (JSONObject) jsonGroupingRule;
@@ -180,7 +311,7 @@ public class GroupingInterceptor implements Interceptor {
             
             if (err == 0) {
                 GroupingRule rule = new GroupingRule(jsonRule);
-                groupingRules.add(rule);
+                rules.add(rule);
             } else {
                 switch (err) {
                     case 1:
@@ -195,12 +326,16 @@ public class GroupingInterceptor implements Interceptor {
                         LOGGER.warn("Invalid grouping rule, some field is empty. It will be discarded. Details="
                                 + jsonRule.toJSONString());
                         break;
+                    case 4:
+                        LOGGER.warn("Invalid grouping rule, the regex cannot be compiled. It will be discarded. "
+                                + "Details=" + jsonRule.toJSONString());
+                        break;
                     default:
                 } // swtich
             } // if else
         } // for
         
-        return groupingRules;
+        return rules;
     } // createGroupingRules
     
     private int isValid(JSONObject jsonRule) {
@@ -228,6 +363,13 @@ public class GroupingInterceptor implements Interceptor {
             return 3;
         } // if
         
+        // check if the regex can be compiled
+        try {
+            Pattern.compile((String) jsonRule.get("regex"));
+        } catch (PatternSyntaxException e) {
+            return 4;
+        } // try catch
+        
         return 0;
     } // isValid
  
@@ -235,54 +377,21 @@ public class GroupingInterceptor implements Interceptor {
     public Event intercept(Event event) {
         // get the original headers and body
         Map<String, String> headers = event.getHeaders();
-        String body = new String(event.getBody());
         
         // get some original header values
         String fiwareServicePath = headers.get(Constants.HEADER_NOTIFIED_SERVICE_PATH);
         
-        // parse the original body; this part may be unnecessary if notifications are parsed at the source only once
-        // see --> https://github.com/telefonicaid/fiware-cygnus/issues/359
+        // get the notification; it is only parsed if the event does not already carry it
         NotifyContextRequest notification;
 
-        if (headers.get(Constants.HEADER_CONTENT_TYPE).contains("application/json")) {
-            Gson gson = new Gson();
-
-            try {
-                notification = gson.fromJson(body, NotifyContextRequest.class);
-            } catch (Exception e) {
-                LOGGER.error("Runtime error (" + e.getMessage() + ")");
-                return null;
-            } // try catch // try catch
-        } else if (headers.get(Constants.HEADER_CONTENT_TYPE).contains("application/xml")) {
-            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-            
-            try {
-                SAXParser saxParser = saxParserFactory.newSAXParser();
-                NotifyContextRequestSAXHandler handler = new NotifyContextRequestSAXHandler();
-                saxParser.parse(new InputSource(new StringReader(body)), handler);
-                notification = handler.getNotifyContextRequest();
-            } catch (ParserConfigurationException e) {
-                LOGGER.error("Runtime error (" + e.getMessage() + ")");
-                return null;
-            } catch (SAXException e) {
-                LOGGER.error("Runtime error (" + e.getMessage() + ")");
-                return null;
-            } catch (IOException e) {
-                LOGGER.error("Runtime error (" + e.getMessage() + ")");
-                return null;
-            } // try catch // try catch
-        } else {
-            // this point should never be reached since the content type has been checked when receiving the
-            // notification
-            LOGGER.error("Runtime error (Unrecognized content type (not Json nor XML)");
+        try {
+            notification = NotifyContextRequestParser.parse(event);
+        } catch (CygnusBadContextData e) {
+            LOGGER.error("Runtime error (" + e.getMessage() + ")");
             return null;
-        } // if else if
+        } // try catch
         
         // iterate on the contextResponses
-        ArrayList<String> defaultDestinations = new ArrayList<String>();
-        ArrayList<String> defaultServicePaths = new ArrayList<String>();
-        ArrayList<String> groupedDestinations = new ArrayList<String>();
-        ArrayList<String> groupedServicePaths = new ArrayList<String>();
         ArrayList<ContextElementResponse> contextResponses = notification.getContextResponses();
         
         if (contextResponses == null || contextResponses.isEmpty()) {
@@ -290,49 +399,71 @@ public class GroupingInterceptor implements Interceptor {
             return null;
         } // if
         
-        for (ContextElementResponse contextElementResponse : contextResponses) {
-            ContextElement contextElement = contextElementResponse.getContextElement();
-            
-            // iterate on the matching rules
-            boolean added = false;
+        String[] defaultDestinations = new String[contextResponses.size()];
+        String[] defaultServicePaths = new String[contextResponses.size()];
+        String[] groupedDestinations = new String[contextResponses.size()];
+        String[] groupedServicePaths = new String[contextResponses.size()];
+        
+        // the rules are read once, since they may be replaced while intercepting
+        GroupingRules rules = groupingRules;
+        
+        for (int i = 0; i < contextResponses.size(); i++) {
+            ContextElement contextElement = contextResponses.get(i).getContextElement();
+            Grouping grouping = null;
             
-            if (groupingRules != null) {
-                for (GroupingRule rule : groupingRules) {
-                    String concat = concatenateFields(rule.getFields(), contextElement, fiwareServicePath);
-                    Matcher matcher = rule.pattern.matcher(concat);
-
-                    if (matcher.matches()) {
-                        groupedDestinations.add((String) rule.getDestination());
-                        groupedServicePaths.add((String) rule.getNewFiwareServicePath());
-                        added = true;
-                        break;
-                    } // if
-                } // for
+            if (groupingCache != null) {
+                grouping = groupingCache.get(contextElement.getId(), contextElement.getType(), fiwareServicePath,
+                        rules);
             } // if
             
-            // check if no matching was found, in that case the default destination ('<entityId>_<entityType>') and the
-            // notified fiware-servicePath are used
-            if (!added) {
-                groupedDestinations.add(Utils.encode(contextElement.getId() + "_" + contextElement.getType()));
-                groupedServicePaths.add(fiwareServicePath);
+            if (grouping == null) {
+                grouping = group(contextElement, fiwareServicePath, rules);
+                
+                if (groupingCache != null) {
+                    groupingCache.put(contextElement.getId(), contextElement.getType(), fiwareServicePath, grouping);
+                } // if
             } // if
             
-            defaultDestinations.add(Utils.encode(contextElement.getId() + "_" + contextElement.getType()));
-            defaultServicePaths.add(fiwareServicePath);
+            groupedDestinations[i] = grouping.getGroupedDestination();
+            groupedServicePaths[i] = grouping.getGroupedServicePath();
+            defaultDestinations[i] = grouping.getDefaultDestination();
+            defaultServicePaths[i] = grouping.getDefaultServicePath();
         } // for
  
-        // set the final header values
-        headers.put(Constants.HEADER_DEFAULT_DESTINATIONS,
-                defaultDestinations.toString().replaceAll("\\[", "").replaceAll("\\]", "").replaceAll(" ", ""));
-        headers.put(Constants.HEADER_DEFAULT_SERVICE_PATHS,
-                defaultServicePaths.toString().replaceAll("\\[", "").replaceAll("\\]", "").replaceAll(" ", ""));
-        headers.put(Constants.HEADER_GROUPED_DESTINATIONS,
-                groupedDestinations.toString().replaceAll("\\[", "").replaceAll("\\]", "").replaceAll(" ", ""));
-        headers.put(Constants.HEADER_GROUPED_SERVICE_PATHS,
-                groupedServicePaths.toString().replaceAll("\\[", "").replaceAll("\\]", "").replaceAll(" ", ""));
+        // the routing travels within the event, and it is written in the headers as well for those channels
+        // serializing the events
+        Routing routing = new Routing(defaultDestinations, defaultServicePaths, groupedDestinations,
+                groupedServicePaths);
+        routing.toHeaders(headers);
         event.setHeaders(headers);
-        return event;
+        
+        // if the notification had to be parsed, let it travel together with the event so that the sinks do not
+        // parse it again
+        NotifyContextRequestEvent interceptedEvent;
+        
+        if (event instanceof NotifyContextRequestEvent) {
+            interceptedEvent = (NotifyContextRequestEvent) event;
+        } else {
+            interceptedEvent = new NotifyContextRequestEvent(headers, event.getBody(), notification);
+        } // if else
+        
+        interceptedEvent.setRouting(routing);
+        return interceptedEvent;
     } // intercept
+    
+    private Grouping group(ContextElement contextElement, String fiwareServicePath, GroupingRules rules) {
+        String defaultDestination = Utils.encode(contextElement.getId() + "_" + contextElement.getType());
+        GroupingRule rule = rules == null ? null : rules.match(contextElement, fiwareServicePath);
+        
+        // check if no matching was found, in that case the default destination ('<entityId>_<entityType>') and the
+        // notified fiware-servicePath are used
+        if (rule == null) {
+            return new Grouping(rules, defaultDestination, fiwareServicePath, defaultDestination, fiwareServicePath);
+        } else {
+            return new Grouping(rules, defaultDestination, fiwareServicePath, rule.getDestination(),
+                    rule.getNewFiwareServicePath());
+        } // if else
+    } // group
  
     @Override
     public List<Event> intercept(List<Event> events) {
@@ -348,6 +479,14 @@ public class GroupingInterceptor implements Interceptor {
  
     @Override
     public void close() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        } // if
+        
+        if (groupingCache != null) {
+            LOGGER.info("Grouping cache statistics (hits=" + getGroupingCacheHits() + ", misses="
+                    + getGroupingCacheMisses() + ")");
+        } // if
     } // close
  
     /**
@@ -355,6 +494,8 @@ public class GroupingInterceptor implements Interceptor {
      */
     public static class Builder implements Interceptor.Builder {
         private String groupingRulesFileName;
+        private int groupingCacheSize;
+        private int groupingRulesReloadInterval;
  
         @Override
         public void configure(Context context) {
@@ -372,30 +513,21 @@ public class GroupingInterceptor implements Interceptor {
                 groupingRulesFileName = null;
                 LOGGER.debug("[de] Defaulting to grouping_rules_file=null");
             } // if else
+            
+            groupingCacheSize = context.getInteger("grouping_cache_size", DEFAULT_CACHE_SIZE);
+            LOGGER.debug("[de] Reading configuration (grouping_cache_size=" + groupingCacheSize + ")");
+            groupingRulesReloadInterval = context.getInteger("grouping_rules_reload_interval",
+                    DEFAULT_RELOAD_INTERVAL);
+            LOGGER.debug("[de] Reading configuration (grouping_rules_reload_interval=" + groupingRulesReloadInterval
+                    + ")");
         } // configure
  
         @Override
         public Interceptor build() {
-            return new GroupingInterceptor(groupingRulesFileName);
+            return new GroupingInterceptor(groupingRulesFileName, groupingCacheSize, groupingRulesReloadInterval);
         } // build
     } // Builder
     
-    private String concatenateFields(ArrayList<String> fields, ContextElement contextElement, String servicePath) {
-        String concat = "";
-
-        for (String field : fields) {
-            if (field.equals("entityId")) {
-                concat += contextElement.getString(field);
-            } else if (field.equals("entityType")) {
-                concat += contextElement.getString(field);
-            } else if (field.equals("servicePath")) {
-                concat += servicePath;
-            } // if else
-        } // for
-        
-        return concat;
-    } // concatenateFields
-    
     /**
      * Each one of the entries of the matching table.
      */
@@ -443,6 +575,14 @@ public class GroupingInterceptor implements Interceptor {
             return pattern.toString();
         } // getRegex
         
+        /**
+         * Gets the rule's compiled regular expression.
+         * @return The rule's compiled regular expression.
+         */
+        Pattern getPattern() {
+            return pattern;
+        } // getPattern
+        
         /**
          * Gets the rule's destination.
          * @return The rule's destination.
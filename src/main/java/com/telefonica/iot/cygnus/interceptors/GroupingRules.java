@@ -0,0 +1,375 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.interceptors;
+
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.interceptors.GroupingInterceptor.GroupingRule;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ *
+ * @author frb
+ *
+ * Indexed set of grouping rules. The rules are grouped by their fields combination, so that the concatenation is
+ * built once per combination; within each combination the rules whose regex is a plain literal are found through a
+ * hash map, the rules whose regex starts by a literal prefix are found through a prefix tree, and only the remaining
+ * rules are always tested. Top level alternatives are indexed separately. The rules are tried in the order they were
+ * given, i.e. the first matching rule is returned, as in a sequential scan.
+ */
+final class GroupingRules {
+
+    private static final String METACHARS = ".[](){}*+?^$|\\";
+    private final GroupingRule[] rules;
+    private final FieldsIndex[] indexes;
+
+    /**
+     * Constructor.
+     * @param groupingRules Rules, sorted by priority
+     */
+    GroupingRules(List<GroupingRule> groupingRules) {
+        rules = groupingRules.toArray(new GroupingRule[groupingRules.size()]);
+        LinkedHashMap<List<String>, FieldsIndex> byFields = new LinkedHashMap<List<String>, FieldsIndex>();
+
+        for (int i = 0; i < rules.length; i++) {
+            List<String> fields = rules[i].getFields();
+            FieldsIndex index = byFields.get(fields);
+
+            if (index == null) {
+                index = new FieldsIndex(fields);
+                byFields.put(fields, index);
+            } // if
+
+            index.add(i, rules[i].getRegex());
+        } // for
+
+        indexes = byFields.values().toArray(new FieldsIndex[byFields.size()]);
+    } // GroupingRules
+
+    /**
+     * Gets the rules, sorted by priority.
+     * @return A copy of the rules
+     */
+    LinkedList<GroupingRule> getRules() {
+        return new LinkedList<GroupingRule>(Arrays.asList(rules));
+    } // getRules
+
+    /**
+     * Gets the number of rules.
+     * @return The number of rules
+     */
+    int size() {
+        return rules.length;
+    } // size
+
+    /**
+     * Gets the first rule matching the given context element.
+     * @param contextElement
+     * @param servicePath
+     * @return The first rule matching the given context element, or null if no rule matches
+     */
+    GroupingRule match(ContextElement contextElement, String servicePath) {
+        int best = Integer.MAX_VALUE;
+
+        for (FieldsIndex index : indexes) {
+            // rules are indexed in priority order, thus a combination not having better rules can be skipped
+            if (index.first >= best) {
+                continue;
+            } // if
+
+            best = index.match(concatenateFields(index.fields, contextElement, servicePath), best);
+        } // for
+
+        return best == Integer.MAX_VALUE ? null : rules[best];
+    } // match
+
+    /**
+     * Concatenates the given fields of a context element, in the given order.
+     * @param fields
+     * @param contextElement
+     * @param servicePath
+     * @return The concatenation of the fields
+     */
+    static String concatenateFields(List<String> fields, ContextElement contextElement, String servicePath) {
+        if (fields.size() == 1) {
+            return String.valueOf(fieldValue(fields.get(0), contextElement, servicePath));
+        } // if
+
+        StringBuilder concat = new StringBuilder();
+
+        for (String field : fields) {
+            concat.append(fieldValue(field, contextElement, servicePath));
+        } // for
+
+        return concat.toString();
+    } // concatenateFields
+
+    private static String fieldValue(String field, ContextElement contextElement, String servicePath) {
+        if (field.equals("entityId") || field.equals("entityType")) {
+            return contextElement.getString(field);
+        } else if (field.equals("servicePath")) {
+            return servicePath;
+        } else {
+            return "";
+        } // if else
+    } // fieldValue
+
+    /**
+     * Gets the string a regex matches if it is a plain literal, i.e. it has no metacharacters apart from the escaped
+     * ones.
+     * @param regex
+     * @return The string the regex matches, or null if the regex is not a plain literal
+     */
+    static String literalOf(String regex) {
+        StringBuilder literal = new StringBuilder(regex.length());
+        int end = scanLiteral(regex, literal);
+        return end == regex.length() ? literal.toString() : null;
+    } // literalOf
+
+    /**
+     * Splits a regex into its top level alternatives, e.g. "Room\.(\d*)|Car" is split into "Room\.(\d*)" and "Car".
+     * @param regex
+     * @return The top level alternatives, or null if the regex cannot be safely split (quotations and embedded flags
+     * are not analyzed)
+     */
+    static List<String> branchesOf(String regex) {
+        ArrayList<String> branches = new ArrayList<String>();
+        int groups = 0;
+        int classes = 0;
+        int start = 0;
+
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+
+            if (c == '\\') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                    return null;
+                } // if
+
+                i++;
+            } else if (c == '[') {
+                classes++;
+
+                // a closing bracket just after the opening one stands for itself
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                } // if
+
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                } // if
+            } else if (c == ']' && classes > 0) {
+                classes--;
+            } else if (classes == 0 && c == '(') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '?') {
+                    return null;
+                } // if
+
+                groups++;
+            } else if (classes == 0 && c == ')') {
+                groups--;
+            } else if (classes == 0 && groups == 0 && c == '|') {
+                branches.add(regex.substring(start, i));
+                start = i + 1;
+            } // if else
+        } // for
+
+        branches.add(regex.substring(start));
+        return branches;
+    } // branchesOf
+
+    /**
+     * Gets the literal prefix all the strings matched by a regex start with. The regex must not have top level
+     * alternatives, see branchesOf.
+     * @param regex
+     * @return The literal prefix, which may be empty
+     */
+    static String prefixOf(String regex) {
+        StringBuilder prefix = new StringBuilder(regex.length());
+        int end = scanLiteral(regex, prefix);
+
+        // a quantifier affects the last literal character, which may not be present in the matched strings
+        if (end < regex.length() && prefix.length() > 0) {
+            char c = regex.charAt(end);
+
+            if (c == '?' || c == '*' || c == '{') {
+                prefix.setLength(prefix.length() - 1);
+            } // if
+        } // if
+
+        return prefix.toString();
+    } // prefixOf
+
+    private static int scanLiteral(String regex, StringBuilder literal) {
+        int i = 0;
+
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+
+            if (c == '\\') {
+                // only escaped punctuation stands for itself; escaped letters and digits are classes, quotes,
+                // back references...
+                if (i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    literal.append(regex.charAt(i + 1));
+                    i += 2;
+                    continue;
+                } // if
+
+                break;
+            } else if (METACHARS.indexOf(c) >= 0) {
+                break;
+            } // if else
+
+            literal.append(c);
+            i++;
+        } // while
+
+        return i;
+    } // scanLiteral
+
+    /**
+     * Rules sharing the same fields combination.
+     */
+    private final class FieldsIndex {
+
+        private final List<String> fields;
+        private final HashMap<String, Integer> literals = new HashMap<String, Integer>();
+        private final PrefixNode prefixes = new PrefixNode();
+        private int first = Integer.MAX_VALUE;
+
+        FieldsIndex(List<String> fields) {
+            this.fields = fields;
+        } // FieldsIndex
+
+        void add(int ruleIndex, String regex) {
+            first = Math.min(first, ruleIndex);
+            List<String> branches = branchesOf(regex);
+
+            // a rule that cannot be analyzed is tested for every context element
+            if (branches == null) {
+                prefixes.add(ruleIndex);
+                return;
+            } // if
+
+            // a rule having alternatives is indexed by all of them
+            for (String branch : branches) {
+                String literal = literalOf(branch);
+
+                if (literal != null) {
+                    // only the first rule having a certain literal may match
+                    if (!literals.containsKey(literal)) {
+                        literals.put(literal, ruleIndex);
+                    } // if
+
+                    continue;
+                } // if
+
+                String prefix = prefixOf(branch);
+                PrefixNode node = prefixes;
+
+                for (int i = 0; i < prefix.length(); i++) {
+                    node = node.child(prefix.charAt(i), true);
+                } // for
+
+                node.add(ruleIndex);
+            } // for
+        } // add
+
+        int match(String concat, int best) {
+            Integer literalRule = literals.get(concat);
+
+            if (literalRule != null && literalRule < best) {
+                best = literalRule;
+            } // if
+
+            PrefixNode node = prefixes;
+            int i = 0;
+
+            while (node != null) {
+                best = node.match(concat, best);
+
+                if (i == concat.length()) {
+                    break;
+                } // if
+
+                node = node.child(concat.charAt(i++), false);
+            } // while
+
+            return best;
+        } // match
+
+    } // FieldsIndex
+
+    /**
+     * Node of a prefix tree, holding the rules whose literal prefix ends at this node.
+     */
+    private final class PrefixNode {
+
+        private HashMap<Character, PrefixNode> children;
+        private int[] ruleIndexes = new int[0];
+
+        PrefixNode child(char c, boolean create) {
+            PrefixNode child = children == null ? null : children.get(c);
+
+            if (child == null && create) {
+                if (children == null) {
+                    children = new HashMap<Character, PrefixNode>();
+                } // if
+
+                child = new PrefixNode();
+                children.put(c, child);
+            } // if
+
+            return child;
+        } // child
+
+        void add(int ruleIndex) {
+            // rules are added in priority order, thus the array remains sorted; a rule may be added several times
+            // through its alternatives
+            if (ruleIndexes.length > 0 && ruleIndexes[ruleIndexes.length - 1] == ruleIndex) {
+                return;
+            } // if
+
+            int[] tmp = new int[ruleIndexes.length + 1];
+            System.arraycopy(ruleIndexes, 0, tmp, 0, ruleIndexes.length);
+            tmp[ruleIndexes.length] = ruleIndex;
+            ruleIndexes = tmp;
+        } // add
+
+        int match(String concat, int best) {
+            for (int ruleIndex : ruleIndexes) {
+                if (ruleIndex >= best) {
+                    break;
+                } // if
+
+                if (rules[ruleIndex].getPattern().matcher(concat).matches()) {
+                    return ruleIndex;
+                } // if
+            } // for
+
+            return best;
+        } // match
+
+    } // PrefixNode
+
+} // GroupingRules
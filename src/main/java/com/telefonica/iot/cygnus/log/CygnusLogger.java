@@ -108,6 +108,14 @@ public class CygnusLogger {
         } // try catch
     } // warn
     
+    /**
+     * Gets if the DEBUG level is enabled. Useful for not building expensive messages that are not going to be traced.
+     * @return True if the DEBUG level is enabled, false otherwise
+     */
+    public boolean isDebugEnabled() {
+        return logger.isDebugEnabled();
+    } // isDebugEnabled
+    
     private void traceAndExit(Exception e) {
         System.err.println("A problem with the logging system was found... shutting down Cygnus right now!"
                 + " Details=" + e.getMessage());
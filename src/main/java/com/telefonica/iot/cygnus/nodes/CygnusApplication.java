@@ -23,8 +23,6 @@ import com.google.common.collect.Lists;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.telefonica.iot.cygnus.channels.CygnusChannel;
-import com.telefonica.iot.cygnus.channels.CygnusFileChannel;
-import com.telefonica.iot.cygnus.channels.CygnusMemoryChannel;
 import com.telefonica.iot.cygnus.http.JettyServer;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.management.ManagementInterface;
@@ -290,17 +288,12 @@ public class CygnusApplication extends Application {
                     while (it.hasNext()) {
                         String channelName = (String) it.next();
                         Channel channel = channelsRef.get(channelName);
-                        CygnusChannel cygnusChannel;
-
-                        if (channel instanceof CygnusMemoryChannel) {
-                            cygnusChannel = (CygnusMemoryChannel) channel;
-                        } else if (channel instanceof CygnusFileChannel) {
-                            cygnusChannel = (CygnusFileChannel) channel;
-                        } else {
+                        
+                        if (!(channel instanceof CygnusChannel)) {
                             continue;
-                        } // if else
+                        } // if
                         
-                        int numEvents = cygnusChannel.getNumEvents();
+                        int numEvents = ((CygnusChannel) channel).getNumEvents();
                         
                         if (numEvents != 0) {
                             System.out.println("There are " + numEvents + " events within " + channelName
@@ -78,7 +78,8 @@ public class Batch {
      * @return True if the given destination has been persistedDestinations, false otherwise
      */
     public boolean isPersisted(String destination) {
-        return persistedDestinations.get(destination);
+        Boolean persisted = persistedDestinations.get(destination);
+        return persisted != null && persisted;
     } // isPersisted
         
 } // Batch
@@ -21,9 +21,11 @@ package com.telefonica.iot.cygnus.sinks;
 import com.telefonica.iot.cygnus.backends.ckan.CKANBackendImpl;
 import com.telefonica.iot.cygnus.backends.ckan.CKANBackend;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.Routing;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
+import com.telefonica.iot.cygnus.utils.RecordBuffer;
 import com.telefonica.iot.cygnus.utils.Utils;
 import java.util.ArrayList;
 import java.util.Date;
@@ -145,10 +147,11 @@ public class OrionCKANSink extends OrionSink {
     } // start
 
     @Override
-    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification, Routing routing)
+        throws Exception {
         Accumulator accumulator = new Accumulator();
         accumulator.initializeBatching(new Date().getTime());
-        accumulator.accumulate(eventHeaders, notification);
+        accumulator.accumulate(eventHeaders, notification, routing);
         persistBatch(accumulator.getDefaultBatch(), accumulator.getGroupedBatch());
     } // persistOne
     
@@ -162,35 +165,34 @@ public class OrionCKANSink extends OrionSink {
             return;
         } // if
  
-        // iterate on the destinations, for each one a single create / append will be performed
-        for (String destination : batch.getDestinations()) {
-            LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the " + destination
-                    + " destination");
-
-            // get the sub-batch for this destination
-            ArrayList<CygnusEvent> subBatch = batch.getEvents(destination);
-            
-            // get an aggregator for this destination and initialize it
-            CKANAggregator aggregator = getAggregator(this.rowAttrPersistence);
-            aggregator.initialize(subBatch.get(0));
+        // persist the sub-batches, one per destination; for each one a single create / append will be performed
+        persistSubBatches(batch);
+    } // persistBatch
+    
+    @Override
+    void persistSubBatch(String destination, ArrayList<CygnusEvent> subBatch) throws Exception {
+        LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the " + destination
+                + " destination");
+        
+        // get an aggregator for this destination and initialize it
+        CKANAggregator aggregator = getAggregator(this.rowAttrPersistence);
+        aggregator.initialize(subBatch.get(0));
 
-            for (CygnusEvent cygnusEvent : subBatch) {
-                aggregator.aggregate(cygnusEvent);
-            } // for
-            
-            // persist the aggregation
-            persistAggregation(aggregator);
-            batch.setPersisted(destination);
+        for (CygnusEvent cygnusEvent : subBatch) {
+            aggregator.aggregate(cygnusEvent);
         } // for
-    } // persistBatch
+        
+        // persist the aggregation
+        persistAggregation(aggregator);
+    } // persistSubBatch
     
     /**
      * Class for aggregating fieldValues.
      */
     private abstract class CKANAggregator {
         
-        // string containing the data records
-        protected String records;
+        // buffer containing the data records, comma separated
+        protected RecordBuffer records;
 
         protected String service;
         protected String servicePath;
@@ -201,10 +203,10 @@ public class OrionCKANSink extends OrionSink {
         protected String resId;
         
         public CKANAggregator() {
-            records = "";
+            records = RecordBuffer.getThreadBuffer();
         } // CKANAggregator
         
-        public String getAggregation() {
+        public RecordBuffer getAggregation() {
             return records;
         } // getAggregation
         
@@ -273,29 +275,29 @@ public class OrionCKANSink extends OrionSink {
                 LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
                         + attrType + ")");
                 
-                // create a column and aggregate it
-                String record = "{\"" + Constants.RECV_TIME_TS + "\": \"" + recvTimeTs / 1000 + "\","
-                    + "\"" + Constants.RECV_TIME + "\": \"" + recvTime + "\","
-                    + "\"" + Constants.HEADER_NOTIFIED_SERVICE_PATH + "\": \"" + servicePath + "\","
-                    + "\"" + Constants.ENTITY_ID + "\": \"" + entityId + "\","
-                    + "\"" + Constants.ENTITY_TYPE + "\": \"" + entityType + "\","
-                    + "\"" + Constants.ATTR_NAME + "\": \"" + attrName + "\","
-                    + "\"" + Constants.ATTR_TYPE + "\": \"" + attrType + "\","
-                    + "\"" + Constants.ATTR_VALUE + "\": " + attrValue;
+                // write a record into the aggregation
+                if (!records.isEmpty()) {
+                    records.append(",");
+                } // if
+                
+                records.append("{\"").append(Constants.RECV_TIME_TS).append("\": \"").append(recvTimeTs / 1000)
+                    .append("\",")
+                    .append("\"").append(Constants.RECV_TIME).append("\": \"").append(recvTime).append("\",")
+                    .append("\"").append(Constants.HEADER_NOTIFIED_SERVICE_PATH).append("\": \"").append(servicePath)
+                    .append("\",")
+                    .append("\"").append(Constants.ENTITY_ID).append("\": \"").append(entityId).append("\",")
+                    .append("\"").append(Constants.ENTITY_TYPE).append("\": \"").append(entityType).append("\",")
+                    .append("\"").append(Constants.ATTR_NAME).append("\": \"").append(attrName).append("\",")
+                    .append("\"").append(Constants.ATTR_TYPE).append("\": \"").append(attrType).append("\",")
+                    .append("\"").append(Constants.ATTR_VALUE).append("\": ").append(attrValue);
                 
                 // metadata is an special case, because CKAN doesn't support empty array, e.g. "[ ]"
                 // (http://stackoverflow.com/questions/24207065/inserting-empty-arrays-in-json-type-fields-in-datastore)
                 if (!attrMetadata.equals(Constants.EMPTY_MD)) {
-                    record += ",\"" + Constants.ATTR_MD + "\": " + attrMetadata + "}";
-                } else {
-                    record += "}";
-                } // if else
-
-                if (records.isEmpty()) {
-                    records += record;
-                } else {
-                    records += "," + record;
-                } // if else
+                    records.append(",\"").append(Constants.ATTR_MD).append("\": ").append(attrMetadata);
+                } // if
+                
+                records.append("}");
             } // for
         } // aggregate
 
@@ -333,10 +335,15 @@ public class OrionCKANSink extends OrionSink {
                 return;
             } // if
             
-            String record = "{\"" + Constants.RECV_TIME + "\": \"" + recvTime + "\","
-                    + "\"" + Constants.HEADER_NOTIFIED_SERVICE_PATH + "\": \"" + servicePath + "\","
-                    + "\"" + Constants.ENTITY_ID + "\": \"" + entityId + "\","
-                    + "\"" + Constants.ENTITY_TYPE + "\": \"" + entityType + "\"";
+            if (!records.isEmpty()) {
+                records.append(",");
+            } // if
+            
+            records.append("{\"").append(Constants.RECV_TIME).append("\": \"").append(recvTime).append("\",")
+                    .append("\"").append(Constants.HEADER_NOTIFIED_SERVICE_PATH).append("\": \"").append(servicePath)
+                    .append("\",")
+                    .append("\"").append(Constants.ENTITY_ID).append("\": \"").append(entityId).append("\",")
+                    .append("\"").append(Constants.ENTITY_TYPE).append("\": \"").append(entityType).append("\"");
             
             for (NotifyContextRequest.ContextAttribute contextAttribute : contextAttributes) {
                 String attrName = contextAttribute.getName();
@@ -346,22 +353,18 @@ public class OrionCKANSink extends OrionSink {
                 LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
                         + attrType + ")");
                 
-                // create part of the column with the current attribute (a.k.a. a column)
-                record += ",\"" + attrName + "\": " + attrValue;
+                // write part of the record with the current attribute (a.k.a. a column)
+                records.append(",\"").append(attrName).append("\": ").append(attrValue);
                 
                 // metadata is an special case, because CKAN doesn't support empty array, e.g. "[ ]"
                 // (http://stackoverflow.com/questions/24207065/inserting-empty-arrays-in-json-type-fields-in-datastore)
                 if (!attrMetadata.equals(Constants.EMPTY_MD)) {
-                    record += ",\"" + attrName + "_md\": " + attrMetadata;
+                    records.append(",\"").append(attrName).append("_md\": ").append(attrMetadata);
                 } // if
             } // for
             
-            // now, aggregate the column
-            if (records.isEmpty()) {
-                records += record + "}";
-            } else {
-                records += "," + record + "}";
-            } // if else
+            // now, end the record
+            records.append("}");
         } // aggregate
         
     } // ColumnAggregator
@@ -375,14 +378,19 @@ public class OrionCKANSink extends OrionSink {
     } // getAggregator
     
     private void persistAggregation(CKANAggregator aggregator) throws Exception {
-        String aggregation = aggregator.getAggregation();
+        RecordBuffer aggregation = aggregator.getAggregation();
         String orgName = aggregator.getOrgName();
         String pkgName = aggregator.getPkgName();
         String resName = aggregator.getResName();
         
         LOGGER.info("[" + this.getName() + "] Persisting data at OrionCKANSink (orgName=" + orgName
-                + ", pkgName=" + pkgName + ", resName=" + resName + ", data=" + aggregation + ")");
-        persistenceBackend.persist(orgName, pkgName, resName, aggregation);
+                + ", pkgName=" + pkgName + ", resName=" + resName + ", data=" + aggregation.size() + " bytes)");
+        
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("[" + this.getName() + "] Persisted data (" + aggregation + ")");
+        } // if
+        
+        persistenceBackend.persist(orgName, pkgName, resName, aggregation.getBytes(), aggregation.size());
     } // persistAggregation
     
     /**
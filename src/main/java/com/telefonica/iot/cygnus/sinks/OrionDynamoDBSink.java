@@ -22,6 +22,7 @@ import com.amazonaws.services.dynamodbv2.document.Item;
 import com.telefonica.iot.cygnus.backends.dynamo.DynamoDBBackend;
 import com.telefonica.iot.cygnus.backends.dynamo.DynamoDBBackendImpl;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.Routing;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
@@ -111,10 +112,11 @@ public class OrionDynamoDBSink extends OrionSink {
 
     // TBD: to be removed once all the sinks have been migrated to persistBatch method
     @Override
-    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification, Routing routing)
+        throws Exception {
         Accumulator accumulator = new Accumulator();
         accumulator.initializeBatching(new Date().getTime());
-        accumulator.accumulate(eventHeaders, notification);
+        accumulator.accumulate(eventHeaders, notification, routing);
         persistBatch(accumulator.getDefaultBatch(), accumulator.getGroupedBatch());
     } // persistOne
     
@@ -128,27 +130,26 @@ public class OrionDynamoDBSink extends OrionSink {
             return;
         } // if
  
-        // iterate on the destinations, for each one a single create / append will be performed
-        for (String destination : batch.getDestinations()) {
-            LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the " + destination
-                    + " destination");
-
-            // get the sub-batch for this destination
-            ArrayList<CygnusEvent> subBatch = batch.getEvents(destination);
-            
-            // get an aggregator for this destination and initialize it
-            DynamoDBAggregator aggregator = getAggregator(attrPersistenceRow);
-            aggregator.initialize(subBatch.get(0));
+        // persist the sub-batches, one per destination; for each one a single create / append will be performed
+        persistSubBatches(batch);
+    } // persistBatch
+    
+    @Override
+    void persistSubBatch(String destination, ArrayList<CygnusEvent> subBatch) throws Exception {
+        LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the " + destination
+                + " destination");
+        
+        // get an aggregator for this destination and initialize it
+        DynamoDBAggregator aggregator = getAggregator(attrPersistenceRow);
+        aggregator.initialize(subBatch.get(0));
 
-            for (CygnusEvent cygnusEvent : subBatch) {
-                aggregator.aggregate(cygnusEvent);
-            } // for
-            
-            // persist the aggregation
-            persistAggregation(aggregator);
-            batch.setPersisted(destination);
+        for (CygnusEvent cygnusEvent : subBatch) {
+            aggregator.aggregate(cygnusEvent);
         } // for
-    } // persistBatch
+        
+        // persist the aggregation
+        persistAggregation(aggregator);
+    } // persistSubBatch
 
     /**
      * Class for aggregating data regarding a destination in a servicePath, in a service.
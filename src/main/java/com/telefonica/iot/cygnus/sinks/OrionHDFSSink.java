@@ -24,21 +24,32 @@ import static com.telefonica.iot.cygnus.backends.hdfs.HDFSBackend.FileFormat.CSV
 import static com.telefonica.iot.cygnus.backends.hdfs.HDFSBackend.FileFormat.CSVROW;
 import static com.telefonica.iot.cygnus.backends.hdfs.HDFSBackend.FileFormat.JSONCOLUMN;
 import static com.telefonica.iot.cygnus.backends.hdfs.HDFSBackend.FileFormat.JSONROW;
+import static com.telefonica.iot.cygnus.backends.hdfs.HDFSBackend.FileFormat.PARQUETROW;
 import com.telefonica.iot.cygnus.backends.hdfs.HDFSBackendImplBinary;
+import com.telefonica.iot.cygnus.backends.hdfs.HDFSBackendImplBinary.Compression;
 import com.telefonica.iot.cygnus.backends.hdfs.HDFSBackendImplREST;
+import com.telefonica.iot.cygnus.backends.hdfs.HDFSBackendStaging;
+import com.telefonica.iot.cygnus.backends.hdfs.ParquetRowSerializer;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.Routing;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
+import com.telefonica.iot.cygnus.utils.RecordBuffer;
 import com.telefonica.iot.cygnus.utils.Utils;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.flume.Context;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -56,8 +67,25 @@ public class OrionHDFSSink extends OrionSink {
      * Available backend implementation.
      */
     public enum BackendImpl { BINARY, REST }
+    
+    /**
+     * Available partitionings of the HDFS files by event time.
+     */
+    public enum Partitioning { NONE, YEAR, MONTH, DAY, HOUR }
 
     private static final CygnusLogger LOGGER = new CygnusLogger(OrionHDFSSink.class);
+    // sequence number distinguishing the binary files created by the sinks of this agent within the same millisecond
+    private static final AtomicLong BINARY_FILE_SEQUENCE = new AtomicLong();
+    // Hive encoded names of the fixed fields, computed once instead of per record
+    private static final String HIVE_RECV_TIME_TS = Utils.encodeHive(Constants.RECV_TIME_TS);
+    private static final String HIVE_RECV_TIME = Utils.encodeHive(Constants.RECV_TIME);
+    private static final String HIVE_SERVICE_PATH = Utils.encodeHive(Constants.HEADER_NOTIFIED_SERVICE_PATH);
+    private static final String HIVE_ENTITY_ID = Utils.encodeHive(Constants.ENTITY_ID);
+    private static final String HIVE_ENTITY_TYPE = Utils.encodeHive(Constants.ENTITY_TYPE);
+    private static final String HIVE_ATTR_NAME = Utils.encodeHive(Constants.ATTR_NAME);
+    private static final String HIVE_ATTR_TYPE = Utils.encodeHive(Constants.ATTR_TYPE);
+    private static final String HIVE_ATTR_VALUE = Utils.encodeHive(Constants.ATTR_VALUE);
+    private static final String HIVE_ATTR_MD = Utils.encodeHive(Constants.ATTR_MD);
     private String[] host;
     private String port;
     private String username;
@@ -75,7 +103,20 @@ public class OrionHDFSSink extends OrionSink {
     private String krb5ConfFile;
     private boolean serviceAsNamespace;
     private BackendImpl backendImpl;
+    private boolean persistentStreams;
+    private long fileRollSize;
+    private long fileRollInterval;
+    private long streamIdleTimeout;
+    private int maxOpenStreams;
+    private Partitioning partitioning;
+    private Compression compression;
+    private String stagingDir;
+    private long stagingSegmentSize;
+    private long stagingSegmentInterval;
+    private int stagingMaxUploadAttempts;
     private HDFSBackend persistenceBackend;
+    // Parquet rows buffered per data folder until the file is rolled, only if rolling by size or time
+    private final HashMap<String, ParquetRowAggregator> parquetBuffers = new HashMap<String, ParquetRowAggregator>();
     
     /**
      * Constructor.
@@ -149,6 +190,8 @@ public class OrionHDFSSink extends OrionSink {
                 return "csv-row";
             case CSVCOLUMN:
                 return "csv-column";
+            case PARQUETROW:
+                return "parquet-row";
             default:
                 return "";
         } // switch;
@@ -191,6 +234,30 @@ public class OrionHDFSSink extends OrionSink {
         return (enableKrb5 ? "true" : "false");
     } // getEnableKrb5Auth
     
+    /**
+     * Gets the partitioning. It is protected due to it is only required for testing purposes.
+     * @return The partitioning
+     */
+    protected String getPartitioning() {
+        return partitioning.toString().toLowerCase();
+    } // getPartitioning
+    
+    /**
+     * Gets the compression. It is protected due to it is only required for testing purposes.
+     * @return The compression
+     */
+    protected String getCompression() {
+        return compression.toString().toLowerCase();
+    } // getCompression
+    
+    /**
+     * Gets the staging directory. It is protected due to it is only required for testing purposes.
+     * @return The staging directory, or null if not staging
+     */
+    protected String getStagingDir() {
+        return stagingDir;
+    } // getStagingDir
+    
     /**
      * Returns the persistence backend. It is protected due to it is only required for testing purposes.
      * @return The persistence backend
@@ -357,6 +424,83 @@ public class OrionHDFSSink extends OrionSink {
         String backendImplStr = context.getString("backend_impl", "rest");
         backendImpl = BackendImpl.valueOf(backendImplStr.toUpperCase());
         LOGGER.debug("[" + this.getName() + "] Reading configuration (backend_impl=" + backendImplStr + ")");
+        persistentStreams = context.getBoolean("persistent_streams", false);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (persistent_streams="
+                + (persistentStreams ? "true" : "false") + ")");
+        
+        if (persistentStreams && backendImpl != BackendImpl.BINARY) {
+            LOGGER.warn("[" + this.getName() + "] persistent_streams is only supported by the binary backend, it"
+                    + " will be ignored");
+            persistentStreams = false;
+        } // if
+        
+        fileRollSize = context.getLong("file_roll_size", 0L);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (file_roll_size=" + fileRollSize + ")");
+        fileRollInterval = context.getLong("file_roll_interval", 0L);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (file_roll_interval=" + fileRollInterval + ")");
+        streamIdleTimeout = context.getLong("stream_idle_timeout", 60L);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (stream_idle_timeout=" + streamIdleTimeout
+                + ")");
+        maxOpenStreams = context.getInteger("max_open_streams", 100);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (max_open_streams=" + maxOpenStreams + ")");
+        
+        if (maxOpenStreams < 1) {
+            LOGGER.warn("[" + this.getName() + "] max_open_streams must be greater than 0, setting it to 1");
+            maxOpenStreams = 1;
+        } // if
+        
+        String partitioningStr = context.getString("partitioning", "none");
+        
+        try {
+            partitioning = Partitioning.valueOf(partitioningStr.toUpperCase());
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (partitioning=" + partitioningStr + ")");
+        } catch (IllegalArgumentException e) {
+            partitioning = Partitioning.NONE;
+            LOGGER.warn("[" + this.getName() + "] Unknown partitioning (" + partitioningStr + "), defaulting to "
+                    + "partitioning=none");
+        } // try catch
+        
+        stagingDir = context.getString("staging_dir", "");
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (staging_dir=" + stagingDir + ")");
+        
+        if (stagingDir.isEmpty()) {
+            stagingDir = null;
+        } else if (persistentStreams) {
+            // the staged segments are uploaded as whole files, thus there are no streams to be kept open
+            LOGGER.warn("[" + this.getName() + "] persistent_streams is not supported when staging, it will be "
+                    + "ignored");
+            persistentStreams = false;
+        } // if else if
+        
+        stagingSegmentSize = context.getLong("staging_segment_size", 16777216L);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (staging_segment_size=" + stagingSegmentSize
+                + ")");
+        stagingSegmentInterval = context.getLong("staging_segment_interval", 60L);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (staging_segment_interval="
+                + stagingSegmentInterval + ")");
+        stagingMaxUploadAttempts = context.getInteger("staging_max_upload_attempts", 0);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (staging_max_upload_attempts="
+                + stagingMaxUploadAttempts + ")");
+        
+        String compressionStr = context.getString("compression", "none");
+        
+        try {
+            compression = Compression.valueOf(compressionStr.toUpperCase());
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (compression=" + compressionStr + ")");
+        } catch (IllegalArgumentException e) {
+            compression = Compression.NONE;
+            LOGGER.warn("[" + this.getName() + "] Unknown compression (" + compressionStr + "), defaulting to "
+                    + "compression=none");
+        } // try catch
+        
+        // the compressed files are SequenceFiles, which cannot be appended, thus they are written through the
+        // persistent streams
+        if (compression != Compression.NONE && !persistentStreams) {
+            LOGGER.warn("[" + this.getName() + "] compression requires backend_impl=binary and "
+                    + "persistent_streams=true, it will be ignored");
+            compression = Compression.NONE;
+        } // if
+        
         super.configure(context);
     } // configure
 
@@ -365,9 +509,17 @@ public class OrionHDFSSink extends OrionSink {
         try {
             // create the persistence backend
             if (backendImpl == BackendImpl.BINARY) {
-                persistenceBackend = new HDFSBackendImplBinary(host, port, username, password, oauth2Token,
-                        hiveServerVersion, hiveHost, hivePort, enableKrb5, krb5User, krb5Password, krb5LoginConfFile,
-                        krb5ConfFile, serviceAsNamespace);
+                HDFSBackendImplBinary binaryBackend = new HDFSBackendImplBinary(host, port, username, password,
+                        oauth2Token, hiveServerVersion, hiveHost, hivePort, enableKrb5, krb5User, krb5Password,
+                        krb5LoginConfFile, krb5ConfFile, serviceAsNamespace);
+                
+                if (persistentStreams) {
+                    binaryBackend.enablePersistentStreams(fileRollSize, fileRollInterval * 1000,
+                            streamIdleTimeout * 1000, maxOpenStreams);
+                    binaryBackend.setCompression(compression);
+                } // if
+                
+                persistenceBackend = binaryBackend;
             } else if (backendImpl == BackendImpl.REST) {
                 persistenceBackend = new HDFSBackendImplREST(host, port, username, password, oauth2Token,
                         hiveServerVersion, hiveHost, hivePort, enableKrb5, krb5User, krb5Password, krb5LoginConfFile,
@@ -378,6 +530,16 @@ public class OrionHDFSSink extends OrionSink {
                 System.exit(-1);
             } // if else
             
+            if (fileFormat == FileFormat.PARQUETROW) {
+                ParquetRowSerializer.reduceLogging();
+            } // if
+            
+            if (stagingDir != null) {
+                persistenceBackend = new HDFSBackendStaging(persistenceBackend, new File(stagingDir),
+                        stagingSegmentSize, stagingSegmentInterval * 1000, stagingMaxUploadAttempts);
+                LOGGER.debug("[" + this.getName() + "] Staging the data at " + stagingDir);
+            } // if
+            
             LOGGER.debug("[" + this.getName() + "] HDFS persistence backend created");
         } catch (Exception e) {
             LOGGER.error(e.getMessage());
@@ -386,13 +548,26 @@ public class OrionHDFSSink extends OrionSink {
         super.start();
         LOGGER.info("[" + this.getName() + "] Startup completed");
     } // start
+    
+    @Override
+    public void stop() {
+        super.stop();
+        
+        // the buffered Parquet rows are written before closing the backend, since the sink will not be called anymore
+        rollParquetBuffers(Long.MAX_VALUE);
+        
+        if (persistenceBackend != null) {
+            persistenceBackend.close();
+        } // if
+    } // stop
 
     // TBD: to be removed once all the sinks have been migrated to persistBatch method
     @Override
-    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification, Routing routing)
+        throws Exception {
         Accumulator accumulator = new Accumulator();
         accumulator.initializeBatching(new Date().getTime());
-        accumulator.accumulate(eventHeaders, notification);
+        accumulator.accumulate(eventHeaders, notification, routing);
         persistBatch(accumulator.getDefaultBatch(), accumulator.getGroupedBatch());
     } // persistOne
     
@@ -405,48 +580,174 @@ public class OrionHDFSSink extends OrionSink {
             LOGGER.debug("[" + this.getName() + "] Null batch, nothing to do");
             return;
         } // if
+        
+        // the Parquet rows of the destinations not notified for a while are written as well
+        rollParquetBuffers(new Date().getTime());
  
-        // iterate on the destinations, for each one a single create / append will be performed
-        for (String destination : batch.getDestinations()) {
-            LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the " + destination
-                    + " destination");
-
-            // get the sub-batch for this destination
-            ArrayList<CygnusEvent> subBatch = batch.getEvents(destination);
+        // persist the sub-batches, one per destination; for each one a single create / append will be performed
+        persistSubBatches(batch);
+    } // persistBatch
+    
+    @Override
+    void persistSubBatch(String destination, ArrayList<CygnusEvent> subBatch) throws Exception {
+        LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the " + destination
+                + " destination");
+        
+        if (partitioning == Partitioning.NONE) {
+            persistPartition(subBatch, null);
+            return;
+        } // if
+        
+        // split the sub-batch by partition, keeping the order of the events within each partition
+        LinkedHashMap<String, ArrayList<CygnusEvent>> partitions = new LinkedHashMap<String, ArrayList<CygnusEvent>>();
+        
+        for (CygnusEvent cygnusEvent : subBatch) {
+            String partition = getPartition(cygnusEvent.getRecvTimeTs());
+            ArrayList<CygnusEvent> events = partitions.get(partition);
             
-            // get an aggregator for this destination and initialize it
-            HDFSAggregator aggregator = getAggregator(fileFormat);
-            aggregator.initialize(subBatch.get(0));
-
-            for (CygnusEvent cygnusEvent : subBatch) {
-                aggregator.aggregate(cygnusEvent);
-            } // for
+            if (events == null) {
+                events = new ArrayList<CygnusEvent>();
+                partitions.put(partition, events);
+            } // if
             
-            // persist the aggregation
+            events.add(cygnusEvent);
+        } // for
+        
+        for (Map.Entry<String, ArrayList<CygnusEvent>> entry : partitions.entrySet()) {
+            persistPartition(entry.getValue(), entry.getKey());
+        } // for
+    } // persistSubBatch
+    
+    /**
+     * Persists the events of a sub-batch belonging to the same partition.
+     * @param events
+     * @param partition Partition path relative to the destination folder, or null if not partitioning
+     * @throws Exception
+     */
+    private void persistPartition(ArrayList<CygnusEvent> events, String partition) throws Exception {
+        // get an aggregator for this destination and initialize it
+        HDFSAggregator aggregator = getAggregator(fileFormat);
+        aggregator.setPartition(partition);
+        aggregator.initialize(events.get(0));
+
+        for (CygnusEvent cygnusEvent : events) {
+            aggregator.aggregate(cygnusEvent);
+        } // for
+        
+        // persist the aggregation; binary file formats cannot be appended, thus a new file is created
+        if (fileFormat == FileFormat.PARQUETROW && (fileRollSize > 0 || fileRollInterval > 0)) {
+            bufferParquetRows((ParquetRowAggregator) aggregator);
+        } else if (fileFormat == FileFormat.PARQUETROW) {
+            persistBinaryAggregation((ParquetRowAggregator) aggregator);
+        } else {
             persistAggregation(aggregator);
-            batch.setPersisted(destination);
-            
-            // persist the metadata aggregations only in CSV-like file formats
-            if (fileFormat == FileFormat.CSVROW || fileFormat == FileFormat.CSVCOLUMN) {
-                persistMDAggregations(aggregator);
-            } // if
+        } // if else
+        
+        // persist the metadata aggregations only in CSV-like file formats
+        if (fileFormat == FileFormat.CSVROW || fileFormat == FileFormat.CSVCOLUMN) {
+            persistMDAggregations(aggregator);
+        } // if
+        
+        // create the Hive table, and add the partition to it
+        if (enableHive) {
+            createHiveTable(aggregator);
             
-            // create the Hive table
-            if (enableHive) {
-                createHiveTable(aggregator);
+            if (partition != null) {
+                persistenceBackend.provisionHivePartition(fileFormat, aggregator.getFolder(), partition);
             } // if
+        } // if
+    } // persistPartition
+    
+    /**
+     * Gets the partition path an event belongs to given its reception time, e.g. year=2015/month=04/day=20 when
+     * partitioning by day. UTC is used.
+     * @param recvTimeTs Reception time, in milliseconds
+     * @return The partition path
+     */
+    protected String getPartition(long recvTimeTs) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(recvTimeTs);
+        String partition = "year=" + calendar.get(Calendar.YEAR);
+        
+        if (partitioning == Partitioning.YEAR) {
+            return partition;
+        } // if
+        
+        partition += "/month=" + String.format("%02d", calendar.get(Calendar.MONTH) + 1);
+        
+        if (partitioning == Partitioning.MONTH) {
+            return partition;
+        } // if
+        
+        partition += "/day=" + String.format("%02d", calendar.get(Calendar.DAY_OF_MONTH));
+        
+        if (partitioning == Partitioning.DAY) {
+            return partition;
+        } // if
+        
+        return partition + "/hour=" + String.format("%02d", calendar.get(Calendar.HOUR_OF_DAY));
+    } // getPartition
+    
+    /**
+     * Gets the Hive partition fields for the configured partitioning.
+     * @return The Hive partition fields, or null if not partitioning
+     */
+    private String getPartitionFields() {
+        switch (partitioning) {
+            case YEAR:
+                return "year string";
+            case MONTH:
+                return "year string, month string";
+            case DAY:
+                return "year string, month string, day string";
+            case HOUR:
+                return "year string, month string, day string, hour string";
+            default:
+                return null;
+        } // switch
+    } // getPartitionFields
+    
+    /**
+     * Gets the extension of the data and metadata files in the text (JSON and CSV) formats.
+     * @return ".seq" if the files are compressed SequenceFiles, otherwise ".txt"
+     */
+    private String getTextFileExtension() {
+        return (compression == Compression.NONE ? ".txt" : ".seq");
+    } // getTextFileExtension
+    
+    /**
+     * Aggregates the metadata of an attribute in CSV format, a line per metadata.
+     * @param mdAggregation Buffer the metadata is aggregated into
+     * @param attrMetadata Metadata of the attribute, in Json format
+     * @param recvTimeTs
+     * @throws Exception
+     */
+    private void aggregateCSVMetadata(RecordBuffer mdAggregation, String attrMetadata, long recvTimeTs)
+        throws Exception {
+        // metadata is in JSON format, decode it
+        JSONParser jsonParser = new JSONParser();
+        JSONArray attrMetadataJSON = (JSONArray) jsonParser.parse(attrMetadata);
+
+        // iterate on the metadata
+        for (Object mdObject : attrMetadataJSON) {
+            JSONObject mdJSONObject = (JSONObject) mdObject;
+            mdAggregation.append(recvTimeTs).append(",")
+                    .append(String.valueOf(mdJSONObject.get("name"))).append(",")
+                    .append(String.valueOf(mdJSONObject.get("type"))).append(",")
+                    .append(String.valueOf(mdJSONObject.get("value")))
+                    .append("\n");
         } // for
-    } // persistBatch
+    } // aggregateCSVMetadata
 
     /**
      * Class for aggregating aggregation.
      */
     private abstract class HDFSAggregator {
         
-        // string containing the data aggregation
-        protected String aggregation;
+        // buffer containing the data aggregation, a line per record
+        protected RecordBuffer aggregation;
         // map containing the HDFS files holding the attribute metadata, one per attribute
-        protected Map<String, String> mdAggregations;
+        protected Map<String, RecordBuffer> mdAggregations;
         protected String service;
         protected String servicePath;
         protected String destination;
@@ -454,15 +755,17 @@ public class OrionHDFSSink extends OrionSink {
         protected String secondLevel;
         protected String thirdLevel;
         protected String hdfsFolder;
+        protected String hdfsDataFolder;
         protected String hdfsFile;
         protected String hiveFields;
+        protected String partition;
         
         public HDFSAggregator() {
-            aggregation = "";
-            mdAggregations = new HashMap<String, String>();
+            aggregation = RecordBuffer.getThreadBuffer();
+            mdAggregations = new HashMap<String, RecordBuffer>();
         } // HDFSAggregator
         
-        public String getAggregation() {
+        public RecordBuffer getAggregation() {
             return aggregation;
         } // getAggregation
         
@@ -470,7 +773,7 @@ public class OrionHDFSSink extends OrionSink {
             return mdAggregations.keySet();
         } // getAggregatedAttrMDFiles
         
-        public String getMDAggregation(String attrMDFile) {
+        public RecordBuffer getMDAggregation(String attrMDFile) {
             return mdAggregations.get(attrMDFile);
         } // getMDAggregation
         
@@ -478,10 +781,18 @@ public class OrionHDFSSink extends OrionSink {
             return hdfsFolder;
         } // getFolder
         
+        public String getDataFolder() {
+            return hdfsDataFolder;
+        } // getDataFolder
+        
         public String getFile() {
             return hdfsFile;
         } // getFile
         
+        public void setPartition(String partition) {
+            this.partition = partition;
+        } // setPartition
+        
         public String getHiveFields() {
             return hiveFields;
         } // getHiveFields
@@ -494,7 +805,8 @@ public class OrionHDFSSink extends OrionSink {
             secondLevel = buildSecondLevel(servicePath);
             thirdLevel = buildThirdLevel(destination);
             hdfsFolder = firstLevel + "/" + secondLevel + "/" + thirdLevel;
-            hdfsFile = hdfsFolder + "/" + thirdLevel + ".txt";
+            hdfsDataFolder = (partition == null ? hdfsFolder : hdfsFolder + "/" + partition);
+            hdfsFile = hdfsDataFolder + "/" + thirdLevel + getTextFileExtension();
         } // initialize
         
         public abstract void aggregate(CygnusEvent cygnusEvent) throws Exception;
@@ -550,24 +862,18 @@ public class OrionHDFSSink extends OrionSink {
                 LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
                         + attrType + ")");
                 
-                // create a line and aggregate it
-                String line = "{"
-                    + "\"" + Utils.encodeHive(Constants.RECV_TIME_TS) + "\":\"" + recvTimeTs / 1000 + "\","
-                    + "\"" + Utils.encodeHive(Constants.RECV_TIME) + "\":\"" + recvTime + "\","
-                    + "\"" + Utils.encodeHive(Constants.HEADER_NOTIFIED_SERVICE_PATH) + "\":\"" + servicePath + "\","
-                    + "\"" + Utils.encodeHive(Constants.ENTITY_ID) + "\":\"" + entityId + "\","
-                    + "\"" + Utils.encodeHive(Constants.ENTITY_TYPE) + "\":\"" + entityType + "\","
-                    + "\"" + Utils.encodeHive(Constants.ATTR_NAME) + "\":\"" + attrName + "\","
-                    + "\"" + Utils.encodeHive(Constants.ATTR_TYPE) + "\":\"" + attrType + "\","
-                    + "\"" + Utils.encodeHive(Constants.ATTR_VALUE) + "\":" + attrValue + ","
-                    + "\"" + Utils.encodeHive(Constants.ATTR_MD) + "\":" + attrMetadata
-                    + "}";
-                
-                if (aggregation.isEmpty()) {
-                    aggregation = line;
-                } else {
-                    aggregation += "\n" + line;
-                } // if else
+                // write a line into the aggregation
+                aggregation.append("{")
+                    .append("\"").append(HIVE_RECV_TIME_TS).append("\":\"").append(recvTimeTs / 1000).append("\",")
+                    .append("\"").append(HIVE_RECV_TIME).append("\":\"").append(recvTime).append("\",")
+                    .append("\"").append(HIVE_SERVICE_PATH).append("\":\"").append(servicePath).append("\",")
+                    .append("\"").append(HIVE_ENTITY_ID).append("\":\"").append(entityId).append("\",")
+                    .append("\"").append(HIVE_ENTITY_TYPE).append("\":\"").append(entityType).append("\",")
+                    .append("\"").append(HIVE_ATTR_NAME).append("\":\"").append(attrName).append("\",")
+                    .append("\"").append(HIVE_ATTR_TYPE).append("\":\"").append(attrType).append("\",")
+                    .append("\"").append(HIVE_ATTR_VALUE).append("\":").append(attrValue).append(",")
+                    .append("\"").append(HIVE_ATTR_MD).append("\":").append(attrMetadata)
+                    .append("}\n");
             } // for
         } // aggregate
 
@@ -624,10 +930,10 @@ public class OrionHDFSSink extends OrionSink {
                 return;
             } // if
             
-            String line = "{\"" + Utils.encodeHive(Constants.RECV_TIME) + "\":\"" + recvTime + "\","
-                    + "\"" + Utils.encodeHive(Constants.HEADER_NOTIFIED_SERVICE_PATH) + "\":\"" + servicePath + "\","
-                    + "\"" + Utils.encodeHive(Constants.ENTITY_ID) + "\":\"" + entityId + "\","
-                    + "\"" + Utils.encodeHive(Constants.ENTITY_TYPE) + "\":\"" + entityType + "\"";
+            aggregation.append("{\"").append(HIVE_RECV_TIME).append("\":\"").append(recvTime).append("\",")
+                    .append("\"").append(HIVE_SERVICE_PATH).append("\":\"").append(servicePath).append("\",")
+                    .append("\"").append(HIVE_ENTITY_ID).append("\":\"").append(entityId).append("\",")
+                    .append("\"").append(HIVE_ENTITY_TYPE).append("\":\"").append(entityType).append("\"");
             
             for (ContextAttribute contextAttribute : contextAttributes) {
                 String attrName = contextAttribute.getName();
@@ -637,17 +943,14 @@ public class OrionHDFSSink extends OrionSink {
                 LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
                         + attrType + ")");
                 
-                // create part of the line with the current attribute (a.k.a. a column)
-                line += ", \"" + Utils.encodeHive(attrName) + "\":" + attrValue + ", \""
-                        + Utils.encodeHive(attrName) + "_md\":" + attrMetadata;
+                // write part of the line with the current attribute (a.k.a. a column)
+                String encodedAttrName = Utils.encodeHive(attrName);
+                aggregation.append(", \"").append(encodedAttrName).append("\":").append(attrValue)
+                        .append(", \"").append(encodedAttrName).append("_md\":").append(attrMetadata);
             } // for
             
-            // now, aggregate the line
-            if (aggregation.isEmpty()) {
-                aggregation = line + "}";
-            } else {
-                aggregation += "\n" + line + "}";
-            } // if else
+            // now, end the line
+            aggregation.append("}\n");
         } // aggregate
         
     } // JSONColumnAggregator
@@ -704,68 +1007,32 @@ public class OrionHDFSSink extends OrionSink {
                 // the notifications contain all the attributes
                 String thirdLevelMd = buildThirdLevelMd(destination, attrName, attrType);
                 String attrMdFolder = firstLevel + "/" + secondLevel + "/" + thirdLevelMd;
-                String attrMdFileName = attrMdFolder + "/" + thirdLevelMd + ".txt";
+                String attrMdFileName = attrMdFolder + "/" + thirdLevelMd + getTextFileExtension();
                 String printableAttrMdFileName = "hdfs:///user/" + username + "/" + attrMdFileName;
-                String mdAggregation = mdAggregations.get(attrMdFileName);
+                RecordBuffer mdAggregation = mdAggregations.get(attrMdFileName);
                                 
                 if (mdAggregation == null) {
-                    mdAggregation = new String();
+                    mdAggregation = new RecordBuffer();
+                    mdAggregations.put(attrMdFileName, mdAggregation);
                 } // if
                 
                 // aggregate the metadata
-                String concatMdAggregation;
-                
-                if (mdAggregation.isEmpty()) {
-                    concatMdAggregation = getCSVMetadata(attrMetadata, recvTimeTs);
-                } else {
-                    concatMdAggregation = mdAggregation.concat("\n" + getCSVMetadata(attrMetadata, recvTimeTs));
-                } // if else
-                
-                mdAggregations.put(attrMdFileName, concatMdAggregation);
+                aggregateCSVMetadata(mdAggregation, attrMetadata, recvTimeTs);
                 
                 // aggreagate the data
-                String line = recvTimeTs / 1000 + ","
-                    + recvTime + ","
-                    + servicePath + ","
-                    + entityId + ","
-                    + entityType + ","
-                    + attrName + ","
-                    + attrType + ","
-                    + attrValue.replaceAll("\"", "") + ","
-                    + printableAttrMdFileName;
-                
-                if (aggregation.isEmpty()) {
-                    aggregation = line;
-                } else {
-                    aggregation += "\n" + line;
-                } // if else
+                aggregation.append(recvTimeTs / 1000).append(",")
+                    .append(recvTime).append(",")
+                    .append(servicePath).append(",")
+                    .append(entityId).append(",")
+                    .append(entityType).append(",")
+                    .append(attrName).append(",")
+                    .append(attrType).append(",")
+                    .appendRemoving(attrValue, '"').append(",")
+                    .append(printableAttrMdFileName)
+                    .append("\n");
             } // for
         } // aggregate
         
-        private String getCSVMetadata(String attrMetadata, long recvTimeTs) throws Exception {
-            String csvMd = "";
-            
-            // metadata is in JSON format, decode it
-            JSONParser jsonParser = new JSONParser();
-            JSONArray attrMetadataJSON = (JSONArray) jsonParser.parse(attrMetadata);
-
-            // iterate on the metadata
-            for (Object mdObject : attrMetadataJSON) {
-                JSONObject mdJSONObject = (JSONObject) mdObject;
-                String line = recvTimeTs + ","
-                        + mdJSONObject.get("name") + ","
-                        + mdJSONObject.get("type") + ","
-                        + mdJSONObject.get("value");
-                
-                if (csvMd.isEmpty()) {
-                    csvMd = line;
-                } else {
-                    csvMd += "\n" + line;
-                } // if else
-            } // for
-            
-            return csvMd;
-        } // getCSVMetadata
         
     } // CSVRowAggregator
     
@@ -796,8 +1063,8 @@ public class OrionHDFSSink extends OrionSink {
                 String attrType = contextAttribute.getType();
                 String thirdLevelMd = buildThirdLevelMd(destination, attrName, attrType);
                 String attrMdFolder = firstLevel + "/" + secondLevel + "/" + thirdLevelMd;
-                String attrMdFileName = attrMdFolder + "/" + thirdLevelMd + ".txt";
-                mdAggregations.put(attrMdFileName, new String());
+                String attrMdFileName = attrMdFolder + "/" + thirdLevelMd + getTextFileExtension();
+                mdAggregations.put(attrMdFileName, new RecordBuffer());
                 hiveFields += ",`" + Utils.encodeHive(attrName) + "` string,"
                         + "`" + Utils.encodeHive(attrName) + "_md_file` string";
             } // for
@@ -825,7 +1092,8 @@ public class OrionHDFSSink extends OrionSink {
                 return;
             } // if
             
-            String line = recvTime + "," + servicePath + "," + entityId + "," + entityType;
+            aggregation.append(recvTime).append(",").append(servicePath).append(",").append(entityId).append(",")
+                    .append(entityType);
             
             for (ContextAttribute contextAttribute : contextAttributes) {
                 String attrName = contextAttribute.getName();
@@ -839,63 +1107,99 @@ public class OrionHDFSSink extends OrionSink {
                 // the notifications contain all the attributes
                 String thirdLevelMd = buildThirdLevelMd(destination, attrName, attrType);
                 String attrMdFolder = firstLevel + "/" + secondLevel + "/" + thirdLevelMd;
-                String attrMdFileName = attrMdFolder + "/" + thirdLevelMd + ".txt";
+                String attrMdFileName = attrMdFolder + "/" + thirdLevelMd + getTextFileExtension();
                 String printableAttrMdFileName = "hdfs:///user/" + username + "/" + attrMdFileName;
-                String mdAggregation = mdAggregations.get(attrMdFileName);
+                RecordBuffer mdAggregation = mdAggregations.get(attrMdFileName);
                 
                 if (mdAggregation == null) {
-                    mdAggregation = new String();
+                    mdAggregation = new RecordBuffer();
+                    mdAggregations.put(attrMdFileName, mdAggregation);
                 } // if
                 
                 // agregate the metadata
-                String concatMdAggregation;
-                
-                if (mdAggregation.isEmpty()) {
-                    concatMdAggregation = getCSVMetadata(attrMetadata, recvTimeTs);
-                } else {
-                    concatMdAggregation = mdAggregation.concat("\n" + getCSVMetadata(attrMetadata, recvTimeTs));
-                } // if else
+                aggregateCSVMetadata(mdAggregation, attrMetadata, recvTimeTs);
                 
-                mdAggregations.put(attrMdFileName, concatMdAggregation);
-                
-                // create part of the line with the current attribute (a.k.a. a column)
-                line += "," + attrValue.replaceAll("\"", "") + "," + printableAttrMdFileName;
+                // write part of the line with the current attribute (a.k.a. a column)
+                aggregation.append(",").appendRemoving(attrValue, '"').append(",").append(printableAttrMdFileName);
             } // for
             
-            // now, aggregate the line
-            if (aggregation.isEmpty()) {
-                aggregation = line;
-            } else {
-                aggregation += "\n" + line;
-            } // if else
+            // now, end the line
+            aggregation.append("\n");
         } // aggregate
         
-        private String getCSVMetadata(String attrMetadata, long recvTimeTs) throws Exception {
-            String csvMd = "";
+        
+    } // CSVColumnAggregator
+    
+    /**
+     * Class for aggregating batches in Parquet row mode.
+     */
+    private class ParquetRowAggregator extends HDFSAggregator {
+        
+        private final ParquetRowSerializer serializer;
+        private final long created;
+        
+        public ParquetRowAggregator() {
+            super();
+            serializer = new ParquetRowSerializer();
+            created = new Date().getTime();
+        } // ParquetRowAggregator
+        
+        public ParquetRowSerializer getSerializer() {
+            return serializer;
+        } // getSerializer
+        
+        public long getCreated() {
+            return created;
+        } // getCreated
+        
+        @Override
+        public void initialize(CygnusEvent cygnusEvent) throws Exception {
+            super.initialize(cygnusEvent);
+            hiveFields = ParquetRowSerializer.getHiveFields();
             
-            // metadata is in JSON format, decode it
-            JSONParser jsonParser = new JSONParser();
-            JSONArray attrMetadataJSON = (JSONArray) jsonParser.parse(attrMetadata);
+            // each sub-batch, or each roll of the buffered rows, is written into a new file within the destination
+            // folder
+            hdfsFile = hdfsDataFolder + "/" + thirdLevel + "." + new Date().getTime() + "."
+                    + BINARY_FILE_SEQUENCE.incrementAndGet() + ".parquet";
+        } // initialize
+        
+        @Override
+        public void aggregate(CygnusEvent cygnusEvent) throws Exception {
+            // get the event headers
+            long recvTimeTs = cygnusEvent.getRecvTimeTs();
+            String recvTime = Utils.getHumanReadable(recvTimeTs, true);
 
-            // iterate on the metadata
-            for (Object mdObject : attrMetadataJSON) {
-                JSONObject mdJSONObject = (JSONObject) mdObject;
-                String line = recvTimeTs + ","
-                        + mdJSONObject.get("name") + ","
-                        + mdJSONObject.get("type") + ","
-                        + mdJSONObject.get("value");
+            // get the event body
+            ContextElement contextElement = cygnusEvent.getContextElement();
+            String entityId = contextElement.getId();
+            String entityType = contextElement.getType();
+            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
+                    + entityType + ")");
+            
+            // iterate on all this context element attributes, if there are attributes
+            ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
+
+            if (contextAttributes == null || contextAttributes.isEmpty()) {
+                LOGGER.warn("No attributes within the notified entity, nothing is done (id=" + entityId
+                        + ", type=" + entityType + ")");
+                return;
+            } // if
+            
+            for (ContextAttribute contextAttribute : contextAttributes) {
+                String attrName = contextAttribute.getName();
+                String attrType = contextAttribute.getType();
+                String attrValue = contextAttribute.getContextValue(false);
+                String attrMetadata = contextAttribute.getContextMetadata();
+                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
+                        + attrType + ")");
                 
-                if (csvMd.isEmpty()) {
-                    csvMd = line;
-                } else {
-                    csvMd += "\n" + line;
-                } // if else
+                // create a row and aggregate it
+                serializer.add(recvTimeTs / 1000, recvTime, servicePath, entityId, entityType, attrName, attrType,
+                        attrValue, attrMetadata);
             } // for
-            
-            return csvMd;
-        } // getCSVMetadata
+        } // aggregate
         
-    } // CSVColumnAggregator
+    } // ParquetRowAggregator
     
     private HDFSAggregator getAggregator(FileFormat fileFormat) {
         switch (fileFormat) {
@@ -907,48 +1211,190 @@ public class OrionHDFSSink extends OrionSink {
                 return new CSVRowAggregator();
             case CSVCOLUMN:
                 return new CSVColumnAggregator();
+            case PARQUETROW:
+                return new ParquetRowAggregator();
             default:
                 return null;
         } // switch
     } // getAggregator
     
     private void persistAggregation(HDFSAggregator aggregator) throws Exception {
-        String aggregation = aggregator.getAggregation();
-        String hdfsFolder = aggregator.getFolder();
+        RecordBuffer aggregation = aggregator.getAggregation();
+        String hdfsFolder = aggregator.getDataFolder();
         String hdfsFile = aggregator.getFile();
         
+        if (aggregation.isEmpty()) {
+            LOGGER.debug("[" + this.getName() + "] No data to be persisted at OrionHDFSSink");
+            return;
+        } // if
+        
+        persistLines(hdfsFolder, hdfsFile, aggregation);
+    } // persistAggregation
+    
+    /**
+     * Persists lines, already ending with a new line, into a HDFS file, creating it if not existing. The bytes are
+     * sent as they are, i.e. no intermediate string is built.
+     * @param hdfsFolder
+     * @param hdfsFile
+     * @param lines
+     * @throws Exception
+     */
+    private void persistLines(String hdfsFolder, String hdfsFile, RecordBuffer lines) throws Exception {
         LOGGER.info("[" + this.getName() + "] Persisting data at OrionHDFSSink. HDFS file ("
-                + hdfsFile + "), Data (" + aggregation + ")");
+                + hdfsFile + "), Data (" + lines.size() + " bytes)");
+        
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("[" + this.getName() + "] Persisted data (" + lines + ")");
+        } // if
 
         if (persistenceBackend.exists(hdfsFile)) {
-            persistenceBackend.append(hdfsFile, aggregation);
+            persistenceBackend.append(hdfsFile, lines.getBytes(), lines.size());
         } else {
             persistenceBackend.createDir(hdfsFolder);
-            persistenceBackend.createFile(hdfsFile, aggregation);
+            persistenceBackend.createFile(hdfsFile, lines.getBytes(), lines.size());
         } // if else
-    } // persistAggregation
+    } // persistLines
+    
+    private void persistBinaryAggregation(ParquetRowAggregator aggregator) throws Exception {
+        ParquetRowSerializer serializer = aggregator.getSerializer();
+        
+        if (serializer.getNumRows() == 0) {
+            LOGGER.debug("[" + this.getName() + "] No rows to be persisted at OrionHDFSSink");
+            return;
+        } // if
+        
+        String hdfsFolder = aggregator.getDataFolder();
+        String hdfsFile = aggregator.getFile();
+        byte[] data = serializer.serialize();
+        
+        LOGGER.info("[" + this.getName() + "] Persisting data at OrionHDFSSink. HDFS file ("
+                + hdfsFile + "), Data (" + serializer.getNumRows() + " rows, " + data.length + " bytes)");
+        
+        // the directory creation does nothing if already existing
+        persistenceBackend.createDir(hdfsFolder);
+        persistenceBackend.createBinaryFile(hdfsFile, data);
+    } // persistBinaryAggregation
+    
+    /**
+     * Buffers the Parquet rows of a destination (and partition), writing them into a new file once the buffered rows
+     * reach file_roll_size bytes, or file_roll_interval seconds since the first of them was buffered. Thus, the
+     * Parquet files are rolled as the files written through persistent streams are, instead of writing a small file
+     * per batch. If the file cannot be written, the rows of the given aggregator are not buffered, since the batch
+     * will be retried.
+     * @param aggregator
+     * @throws Exception
+     */
+    private void bufferParquetRows(ParquetRowAggregator aggregator) throws Exception {
+        if (aggregator.getSerializer().getNumRows() == 0) {
+            LOGGER.debug("[" + this.getName() + "] No rows to be buffered at OrionHDFSSink");
+            return;
+        } // if
+        
+        String key = aggregator.getDataFolder();
+        ParquetRowAggregator buffer;
+        
+        // the rows of a destination are only buffered by the worker persisting its sub-batch
+        synchronized (parquetBuffers) {
+            buffer = parquetBuffers.get(key);
+            
+            if (buffer == null) {
+                buffer = aggregator;
+                parquetBuffers.put(key, buffer);
+            } // if
+        } // synchronized
+        
+        int numBufferedRows = 0;
+        
+        if (buffer != aggregator) {
+            numBufferedRows = buffer.getSerializer().getNumRows();
+            buffer.getSerializer().addAll(aggregator.getSerializer());
+        } // if
+        
+        if (!isParquetRollDue(buffer, new Date().getTime())) {
+            return;
+        } // if
+        
+        try {
+            persistBinaryAggregation(buffer);
+        } catch (Exception e) {
+            if (numBufferedRows == 0) {
+                synchronized (parquetBuffers) {
+                    parquetBuffers.remove(key);
+                } // synchronized
+            } else {
+                buffer.getSerializer().truncate(numBufferedRows);
+            } // if else
+            
+            throw e;
+        } // try catch
+        
+        synchronized (parquetBuffers) {
+            parquetBuffers.remove(key);
+        } // synchronized
+    } // bufferParquetRows
+    
+    /**
+     * Writes the buffered Parquet rows whose file must be rolled at the given time. The rows not written are kept,
+     * and written again later.
+     * @param now Current time, Long.MAX_VALUE in order to write all the buffered rows
+     */
+    private void rollParquetBuffers(long now) {
+        ArrayList<Map.Entry<String, ParquetRowAggregator>> buffers;
+        
+        synchronized (parquetBuffers) {
+            if (parquetBuffers.isEmpty()) {
+                return;
+            } // if
+            
+            buffers = new ArrayList<Map.Entry<String, ParquetRowAggregator>>(parquetBuffers.entrySet());
+        } // synchronized
+        
+        for (Map.Entry<String, ParquetRowAggregator> entry : buffers) {
+            ParquetRowAggregator buffer = entry.getValue();
+            
+            if (!isParquetRollDue(buffer, now)) {
+                continue;
+            } // if
+            
+            try {
+                persistBinaryAggregation(buffer);
+                
+                synchronized (parquetBuffers) {
+                    parquetBuffers.remove(entry.getKey());
+                } // synchronized
+            } catch (Exception e) {
+                LOGGER.error("[" + this.getName() + "] The buffered Parquet rows could not be persisted (file="
+                        + buffer.getFile() + ", rows=" + buffer.getSerializer().getNumRows() + "). Details="
+                        + e.getMessage());
+            } // try catch
+        } // for
+    } // rollParquetBuffers
+    
+    private boolean isParquetRollDue(ParquetRowAggregator buffer, long now) {
+        return now == Long.MAX_VALUE
+                || (fileRollSize > 0 && buffer.getSerializer().getRawSize() >= fileRollSize)
+                || (fileRollInterval > 0 && now - buffer.getCreated() >= fileRollInterval * 1000);
+    } // isParquetRollDue
     
     private void persistMDAggregations(HDFSAggregator aggregator) throws Exception {
         Set<String> attrMDFiles = aggregator.getAggregatedAttrMDFiles();
         
         for (String hdfsMDFile : attrMDFiles) {
             String hdfsMdFolder = hdfsMDFile.substring(0, hdfsMDFile.lastIndexOf("/"));
-            String mdAggregation = aggregator.getMDAggregation(hdfsMDFile);
+            RecordBuffer mdAggregation = aggregator.getMDAggregation(hdfsMDFile);
             
-            LOGGER.info("[" + this.getName() + "] Persisting metadata at OrionHDFSSink. HDFS file ("
-                    + hdfsMDFile + "), Data (" + mdAggregation + ")");
-
-            if (persistenceBackend.exists(hdfsMDFile)) {
-                persistenceBackend.append(hdfsMDFile, mdAggregation);
-            } else {
-                persistenceBackend.createDir(hdfsMdFolder);
-                persistenceBackend.createFile(hdfsMDFile, mdAggregation);
-            } // if else
+            // the attributes without metadata do not add empty lines to the metadata files
+            if (mdAggregation.isEmpty()) {
+                continue;
+            } // if
+            
+            persistLines(hdfsMdFolder, hdfsMDFile, mdAggregation);
         } // for
     } // persistMDAggregations
     
     private void createHiveTable(HDFSAggregator aggregator) throws Exception {
-        persistenceBackend.provisionHiveTable(fileFormat, aggregator.getFolder(), aggregator.getHiveFields());
+        persistenceBackend.provisionHiveTable(fileFormat, aggregator.getFolder(), aggregator.getHiveFields(),
+                getPartitionFields());
     } // createHiveTable
     
     /**
@@ -18,11 +18,21 @@
 package com.telefonica.iot.cygnus.sinks;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.Routing;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextMetadata;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
+import com.telefonica.iot.cygnus.utils.RecordBuffer;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Map;
@@ -34,6 +44,7 @@ import org.apache.flume.Context;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 
 /**
@@ -48,7 +59,11 @@ public class OrionKafkaSink extends OrionSink {
     public enum TopicType { TOPICBYDESTINATION, TOPICBYSERVICEPATH, TOPICBYSERVICE }
     
     private static final CygnusLogger LOGGER = new CygnusLogger(OrionKafkaSink.class);
-    private KafkaProducer<String, String> persistenceBackend;
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(ContextAttribute.class, new ContextAttributeSerializer())
+            .registerTypeAdapter(ContextMetadata.class, new ContextMetadataSerializer())
+            .create();
+    private KafkaProducer<String, byte[]> persistenceBackend;
     private TopicType topicType;
     private String brokerList;
     private String zookeeperEndpoint;
@@ -122,9 +137,10 @@ public class OrionKafkaSink extends OrionSink {
         try {
             Properties props = new Properties();
             props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, brokerList);
-            props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+            // the messages are serialized by the sink itself, as UTF-8 bytes
+            props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
             props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
-            persistenceBackend = new KafkaProducer<String, String>(props);
+            persistenceBackend = new KafkaProducer<String, byte[]>(props);
             LOGGER.debug("[" + this.getName() + "] Kafka persistence backend (KafkaProducer) created");
         } catch (Exception e) {
             LOGGER.error("Error while creating the Kafka persistence backend (KafkaProducer). Details="
@@ -142,10 +158,11 @@ public class OrionKafkaSink extends OrionSink {
     } // start
 
     @Override
-    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification, Routing routing)
+        throws Exception {
         Accumulator accumulator = new Accumulator();
         accumulator.initializeBatching(new Date().getTime());
-        accumulator.accumulate(eventHeaders, notification);
+        accumulator.accumulate(eventHeaders, notification, routing);
         persistBatch(accumulator.getDefaultBatch(), accumulator.getGroupedBatch());
     } // persitOne
     
@@ -159,44 +176,43 @@ public class OrionKafkaSink extends OrionSink {
             return;
         } // if
  
-        // iterate on the destinations, for each one a single create / append will be performed
-        for (String destination : batch.getDestinations()) {
-            LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the " + destination
-                    + " destination");
-
-            // get the sub-batch for this destination
-            ArrayList<CygnusEvent> subBatch = batch.getEvents(destination);
-            
-            // get an aggregator for this destination and initialize it
-            KafkaAggregator aggregator = new KafkaAggregator();
-            aggregator.initialize(subBatch.get(0));
+        // persist the sub-batches, one per destination; for each one a single create / append will be performed
+        persistSubBatches(batch);
+    } // persistBatch
+    
+    @Override
+    void persistSubBatch(String destination, ArrayList<CygnusEvent> subBatch) throws Exception {
+        LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the " + destination
+                + " destination");
+        
+        // get an aggregator for this destination and initialize it
+        KafkaAggregator aggregator = new KafkaAggregator();
+        aggregator.initialize(subBatch.get(0));
 
-            for (CygnusEvent cygnusEvent : subBatch) {
-                aggregator.aggregate(cygnusEvent);
-            } // for
-            
-            // persist the aggregation
-            persistAggregation(aggregator);
-            batch.setPersisted(destination);
+        for (CygnusEvent cygnusEvent : subBatch) {
+            aggregator.aggregate(cygnusEvent);
         } // for
-    } // persistBatch
+        
+        // persist the aggregation
+        persistAggregation(aggregator);
+    } // persistSubBatch
     
     /**
      * Class for aggregating aggregation.
      */
     private class KafkaAggregator {
         
-        // string containing the data aggregation
-        protected String aggregation;
+        // buffer containing the data aggregation, a message per line
+        protected RecordBuffer aggregation;
         protected String service;
         protected String servicePath;
         protected String destination;
         
         public KafkaAggregator() {
-            aggregation = "";
+            aggregation = RecordBuffer.getThreadBuffer();
         } // KafkaAggregator
         
-        public String getAggregation() {
+        public RecordBuffer getAggregation() {
             return aggregation;
         } // getAggregation
         
@@ -225,84 +241,123 @@ public class OrionKafkaSink extends OrionSink {
             // get the event body
             ContextElement contextElement = cygnusEvent.getContextElement();
             
-            if (aggregation.isEmpty()) {
-                aggregation = buildMessage(contextElement, service, servicePath, recvTimeTs);
-            } else {
-                aggregation += "\n" + buildMessage(contextElement, service, servicePath, recvTimeTs);
-            } // if else
+            if (!aggregation.isEmpty()) {
+                aggregation.append("\n");
+            } // if
+            
+            writeMessage(aggregation, contextElement, service, servicePath, recvTimeTs);
         } // aggregate
 
     } // KafkaAggregator
     
     private void persistAggregation(KafkaAggregator aggregator) throws Exception {
-        String aggregation = aggregator.getAggregation();
+        RecordBuffer aggregation = aggregator.getAggregation();
         String service = aggregator.getService();
         String servicePath = aggregator.getServicePath();
         String destination = aggregator.getDestination();
         
         // build the message/record to be sent to Kafka
-        ProducerRecord<String, String> record;
+        ProducerRecord<String, byte[]> record;
 
         switch (topicType) {
             case TOPICBYDESTINATION:
                 String topicName = buildTopicName(destination);
                 
-                if (!topicAPI.topicExists(zookeeperClient, topicName)) {
-                    LOGGER.info("[" + this.getName() + "] Creating topic " + topicName
-                            + " at OrionKafkaSink");
-                    topicAPI.createTopic(zookeeperClient, topicName, new Properties());
-                } // if
+                createTopicIfNotExists(topicName);
 
                 LOGGER.info("[" + this.getName() + "] Persisting data at OrionKafkaSink. Topic ("
-                        + topicName + "), Data (" + aggregation + ")");
-                record = new ProducerRecord<String, String>(topicName, aggregation);
+                        + topicName + "), Data (" + aggregation.size() + " bytes)");
+                record = new ProducerRecord<String, byte[]>(topicName, aggregation.toByteArray());
                 break;
             case TOPICBYSERVICEPATH:
                 topicName = buildTopicName(servicePath);
                 
-                if (!topicAPI.topicExists(zookeeperClient, topicName)) {
-                    LOGGER.info("[" + this.getName() + "] Creating topic " + topicName
-                            + " at OrionKafkaSink");
-                    topicAPI.createTopic(zookeeperClient, topicName, new Properties());
-                } // if
+                createTopicIfNotExists(topicName);
 
                 LOGGER.info("[" + this.getName() + "] Persisting data at OrionKafkaSink. Topic ("
-                        + topicName + "), Data (" + aggregation + ")");
-                record = new ProducerRecord<String, String>(topicName, aggregation);
+                        + topicName + "), Data (" + aggregation.size() + " bytes)");
+                record = new ProducerRecord<String, byte[]>(topicName, aggregation.toByteArray());
                 break;
             case TOPICBYSERVICE:
                 topicName = buildTopicName(service);
                 
-                if (!topicAPI.topicExists(zookeeperClient, topicName)) {
-                    LOGGER.info("[" + this.getName() + "] Creating topic " + topicName
-                            + " at OrionKafkaSink");
-                    topicAPI.createTopic(zookeeperClient, topicName, new Properties());
-                } // if
+                createTopicIfNotExists(topicName);
 
                 LOGGER.info("[" + this.getName() + "] Persisting data at OrionKafkaSink. Topic ("
-                        + topicName + "), Data (" + aggregation + ")");
-                record = new ProducerRecord<String, String>(topicName, aggregation);
+                        + topicName + "), Data (" + aggregation.size() + " bytes)");
+                record = new ProducerRecord<String, byte[]>(topicName, aggregation.toByteArray());
                 break;
             default:
                 record = null;
                 break;
         } // switch
 
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("[" + this.getName() + "] Persisted data (" + aggregation + ")");
+        } // if
+        
         if (record != null) {
             persistenceBackend.send(record);
         } // if
     } // persistAggregation
 
-    private String buildMessage(ContextElement contextElement, String fiwareService,
+    /**
+     * Creates a topic if it does not exist yet. It is synchronized since the sub-batches may be persisted by several
+     * threads, and some of them may require the same topic.
+     * @param topicName
+     */
+    private synchronized void createTopicIfNotExists(String topicName) {
+        if (!topicAPI.topicExists(zookeeperClient, topicName)) {
+            LOGGER.info("[" + this.getName() + "] Creating topic " + topicName
+                    + " at OrionKafkaSink");
+            topicAPI.createTopic(zookeeperClient, topicName, new Properties());
+        } // if
+    } // createTopicIfNotExists
+
+    private void writeMessage(RecordBuffer buffer, ContextElement contextElement, String fiwareService,
             String fiwareServicePath, long recvTimeTs) {
-        String message = "{\"headers\":[{\"fiware-service\":\"" + fiwareService + "\"},"
-                + "{\"fiware-servicePath\":\"" + fiwareServicePath + "\"},"
-                + "{\"timestamp\":" + recvTimeTs + "}" + "],\"body\":";
-        Gson gson = new Gson();
-        String contextElementResponseStr = gson.toJson(contextElement);
-        message += contextElementResponseStr + "}";
-        return message;
-    } // buildMessage
+        buffer.append("{\"headers\":[{\"fiware-service\":\"").append(fiwareService).append("\"},")
+                .append("{\"fiware-servicePath\":\"").append(fiwareServicePath).append("\"},")
+                .append("{\"timestamp\":").append(recvTimeTs).append("}").append("],\"body\":")
+                .append(GSON.toJson(contextElement))
+                .append("}");
+    } // writeMessage
+    
+    /**
+     * Serializes context attributes as Gson does by reflection, but getting the value and the metadata through the
+     * getters since they may be raw Json slices not yet decoded.
+     */
+    private static class ContextAttributeSerializer implements JsonSerializer<ContextAttribute> {
+        
+        @Override
+        public JsonElement serialize(ContextAttribute contextAttribute, Type type,
+                JsonSerializationContext context) {
+            JsonObject jsonObject = new JsonObject();
+            jsonObject.addProperty("name", contextAttribute.getName());
+            jsonObject.addProperty("type", contextAttribute.getType());
+            jsonObject.add("value", contextAttribute.getJsonValue());
+            jsonObject.add("metadatas", context.serialize(contextAttribute.getMetadatas()));
+            return jsonObject;
+        } // serialize
+        
+    } // ContextAttributeSerializer
+    
+    /**
+     * Serializes context metadata as Gson does by reflection, but getting the value through the getter since it may
+     * be a raw Json slice not yet decoded.
+     */
+    private static class ContextMetadataSerializer implements JsonSerializer<ContextMetadata> {
+        
+        @Override
+        public JsonElement serialize(ContextMetadata contextMetadata, Type type, JsonSerializationContext context) {
+            JsonObject jsonObject = new JsonObject();
+            jsonObject.addProperty("name", contextMetadata.getName());
+            jsonObject.addProperty("type", contextMetadata.getType());
+            jsonObject.add("value", contextMetadata.getJsonValue());
+            return jsonObject;
+        } // serialize
+        
+    } // ContextMetadataSerializer
     
     private String buildTopicName(String topic) throws Exception {
         if (topic.length() > Constants.MAX_NAME_LEN) {
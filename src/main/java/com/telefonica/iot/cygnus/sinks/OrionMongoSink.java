@@ -18,6 +18,7 @@
 package com.telefonica.iot.cygnus.sinks;
 
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.Routing;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.Utils;
 import java.util.ArrayList;
@@ -50,23 +51,17 @@ public class OrionMongoSink extends OrionMongoBaseSink {
     } // OrionMongoSink
 
     @Override
-    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification, Routing routing)
+        throws Exception {
         // get some header values
         Long recvTimeTs = new Long(eventHeaders.get(Constants.HEADER_TIMESTAMP));
         String fiwareService = eventHeaders.get(Constants.HEADER_NOTIFIED_SERVICE);
-        String[] servicePaths;
-        String[] destinations;
-        
-        if (enableGrouping) {
-            servicePaths = eventHeaders.get(Constants.HEADER_GROUPED_SERVICE_PATHS).split(",");
-            destinations = eventHeaders.get(Constants.HEADER_GROUPED_DESTINATIONS).split(",");
-        } else {
-            servicePaths = eventHeaders.get(Constants.HEADER_DEFAULT_SERVICE_PATHS).split(",");
-            destinations = eventHeaders.get(Constants.HEADER_DEFAULT_DESTINATIONS).split(",");
-        } // if else
+        String[] destinations = routing.getDestinations(enableGrouping);
+        String[] notifiedServicePaths = routing.getServicePaths(enableGrouping);
+        String[] servicePaths = new String[notifiedServicePaths.length];
         
         for (int i = 0; i < servicePaths.length; i++) {
-            servicePaths[i] = "/" + servicePaths[i]; // this sink uses the removed initial slash
+            servicePaths[i] = "/" + notifiedServicePaths[i]; // this sink uses the removed initial slash
         } // for
 
         // human readable version of the reception time
@@ -169,5 +164,10 @@ public class OrionMongoSink extends OrionMongoBaseSink {
     void persistBatch(Batch defaultBatch, Batch groupedBatch) throws Exception {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     } // persistBatch
-
+    
+    @Override
+    void persistSubBatch(String destination, ArrayList<CygnusEvent> subBatch) throws Exception {
+        throw new UnsupportedOperationException("Not supported yet.");
+    } // persistSubBatch
+    
 } // OrionMongoSink
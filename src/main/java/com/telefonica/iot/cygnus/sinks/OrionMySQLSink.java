@@ -23,11 +23,13 @@ import static com.telefonica.iot.cygnus.backends.mysql.MySQLBackend.TableType.TA
 import static com.telefonica.iot.cygnus.backends.mysql.MySQLBackend.TableType.TABLEBYSERVICEPATH;
 import com.telefonica.iot.cygnus.backends.mysql.MySQLBackendImpl;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.Routing;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.Constants;
+import com.telefonica.iot.cygnus.utils.RecordBuffer;
 import com.telefonica.iot.cygnus.utils.Utils;
 import java.util.ArrayList;
 import java.util.Date;
@@ -154,10 +156,11 @@ public class OrionMySQLSink extends OrionSink {
     } // start
 
     @Override
-    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception {
+    void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification, Routing routing)
+        throws Exception {
         Accumulator accumulator = new Accumulator();
         accumulator.initializeBatching(new Date().getTime());
-        accumulator.accumulate(eventHeaders, notification);
+        accumulator.accumulate(eventHeaders, notification, routing);
         persistBatch(accumulator.getDefaultBatch(), accumulator.getGroupedBatch());
     } // persistOne
     
@@ -171,35 +174,34 @@ public class OrionMySQLSink extends OrionSink {
             return;
         } // if
  
-        // iterate on the destinations, for each one a single create / append will be performed
-        for (String destination : batch.getDestinations()) {
-            LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the " + destination
-                    + " destination");
-
-            // get the sub-batch for this destination
-            ArrayList<CygnusEvent> subBatch = batch.getEvents(destination);
-            
-            // get an aggregator for this destination and initialize it
-            MySQLAggregator aggregator = getAggregator(rowAttrPersistence);
-            aggregator.initialize(subBatch.get(0));
+        // persist the sub-batches, one per destination; for each one a single create / append will be performed
+        persistSubBatches(batch);
+    } // persistBatch
+    
+    @Override
+    void persistSubBatch(String destination, ArrayList<CygnusEvent> subBatch) throws Exception {
+        LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the " + destination
+                + " destination");
+        
+        // get an aggregator for this destination and initialize it
+        MySQLAggregator aggregator = getAggregator(rowAttrPersistence);
+        aggregator.initialize(subBatch.get(0));
 
-            for (CygnusEvent cygnusEvent : subBatch) {
-                aggregator.aggregate(cygnusEvent);
-            } // for
-            
-            // persist the fieldValues
-            persistAggregation(aggregator);
-            batch.setPersisted(destination);
+        for (CygnusEvent cygnusEvent : subBatch) {
+            aggregator.aggregate(cygnusEvent);
         } // for
-    } // persistBatch
+        
+        // persist the fieldValues
+        persistAggregation(aggregator);
+    } // persistSubBatch
     
     /**
      * Class for aggregating fieldValues.
      */
     private abstract class MySQLAggregator {
         
-        // string containing the data fieldValues
-        protected String aggregation;
+        // buffer containing the data fieldValues, comma separated
+        protected RecordBuffer aggregation;
 
         protected String service;
         protected String servicePath;
@@ -210,10 +212,10 @@ public class OrionMySQLSink extends OrionSink {
         protected String fieldNames;
         
         public MySQLAggregator() {
-            aggregation = "";
+            aggregation = RecordBuffer.getThreadBuffer();
         } // MySQLAggregator
         
-        public String getAggregation() {
+        public RecordBuffer getAggregation() {
             return aggregation;
         } // getAggregation
         
@@ -307,24 +309,22 @@ public class OrionMySQLSink extends OrionSink {
                 LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
                         + attrType + ")");
                 
-                // create a column and aggregate it
-                String row = "('"
-                    + recvTimeTs + "','"
-                    + recvTime + "','"
-                    + servicePath + "','"
-                    + entityId + "','"
-                    + entityType + "','"
-                    + attrName + "','"
-                    + attrType + "','"
-                    + attrValue + "','"
-                    + attrMetadata
-                    + "')";
+                // write a row into the aggregation
+                if (!aggregation.isEmpty()) {
+                    aggregation.append(",");
+                } // if
                 
-                if (aggregation.isEmpty()) {
-                    aggregation += row;
-                } else {
-                    aggregation += "," + row;
-                } // if else
+                aggregation.append("('")
+                    .append(recvTimeTs).append("','")
+                    .append(recvTime).append("','")
+                    .append(servicePath).append("','")
+                    .append(entityId).append("','")
+                    .append(entityType).append("','")
+                    .append(attrName).append("','")
+                    .append(attrType).append("','")
+                    .append(attrValue).append("','")
+                    .append(attrMetadata)
+                    .append("')");
             } // for
         } // aggregate
 
@@ -388,7 +388,12 @@ public class OrionMySQLSink extends OrionSink {
                 return;
             } // if
             
-            String column = "('" + recvTime + "','" + servicePath + "','" + entityId + "','" + entityType + "'";
+            if (!aggregation.isEmpty()) {
+                aggregation.append(",");
+            } // if
+            
+            aggregation.append("('").append(recvTime).append("','").append(servicePath).append("','").append(entityId)
+                    .append("','").append(entityType).append("'");
             
             for (ContextAttribute contextAttribute : contextAttributes) {
                 String attrName = contextAttribute.getName();
@@ -398,16 +403,12 @@ public class OrionMySQLSink extends OrionSink {
                 LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
                         + attrType + ")");
                 
-                // create part of the column with the current attribute (a.k.a. a column)
-                column += ",'" + attrValue + "','"  + attrMetadata + "'";
+                // write part of the row with the current attribute (a.k.a. a column)
+                aggregation.append(",'").append(attrValue).append("','").append(attrMetadata).append("'");
             } // for
             
-            // now, aggregate the column
-            if (aggregation.isEmpty()) {
-                aggregation += column + ")";
-            } else {
-                aggregation += "," + column + ")";
-            } // if else
+            // now, end the row
+            aggregation.append(")");
         } // aggregate
         
     } // ColumnAggregator
@@ -423,7 +424,8 @@ public class OrionMySQLSink extends OrionSink {
     private void persistAggregation(MySQLAggregator aggregator) throws Exception {
         String typedFieldNames = aggregator.getTypedFieldNames();
         String fieldNames = aggregator.getFieldNames();
-        String fieldValues = aggregator.getAggregation();
+        // the JDBC statements are strings, thus the aggregation is decoded once
+        String fieldValues = aggregator.getAggregation().toString();
         String dbName = aggregator.getDbName();
         String tableName = aggregator.getTableName();
         
@@ -18,24 +18,28 @@
 
 package com.telefonica.iot.cygnus.sinks;
 
-import com.google.gson.Gson;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
-import com.telefonica.iot.cygnus.containers.NotifyContextRequestSAXHandler;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequestParser;
+import com.telefonica.iot.cygnus.containers.Routing;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
 import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.errors.CygnusInterruptedError;
 import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import java.util.Map;
 import com.telefonica.iot.cygnus.utils.Constants;
-import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.flume.Channel;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
@@ -45,8 +49,6 @@ import org.apache.flume.Transaction;
 import org.apache.flume.conf.Configurable;
 import org.apache.flume.sink.AbstractSink;
 import org.apache.log4j.MDC;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  *
@@ -69,12 +71,29 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
 
     // logger
     private static final CygnusLogger LOGGER = new CygnusLogger(OrionSink.class);
+    // seconds the batch workers are waited for when stopping the sink
+    private static final long STOP_TIMEOUT = 60;
     // general parameters for all the sinks
     protected boolean enableGrouping;
     protected int batchSize;
     protected int batchTimeout;
+    protected int batchWorkers;
+    protected int batchRetryInterval;
+    protected int batchRetryMaxInterval;
+    protected int batchMaxBytes;
+    protected int batchTargetLatency;
+    protected boolean batchPipelining;
+    // number of events per batch, adapted to the persistence latency if batchTargetLatency is greater than 0
+    private int currentBatchSize;
+    // pool of workers persisting the sub-batches in parallel, null if there is a single worker
+    private ExecutorService batchWorkersPool;
+    // single thread persisting a batch while the next one is accumulated, null if pipelining is disabled
+    private ExecutorService batchPersister;
+    // batch being persisted by the batch persister and its result (the persistence latency), if any
+    private Accumulator inFlightAccumulator;
+    private Future<Long> inFlightBatch;
     // accumulator utility
-    private final Accumulator accumulator;
+    private Accumulator accumulator;
     
     /**
      * Constructor.
@@ -93,6 +112,14 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
         return enableGrouping;
     } // getEnableGrouping
     
+    /**
+     * Gets the accumulator. It is protected due to it is only required for testing purposes.
+     * @return The accumulator
+     */
+    protected Accumulator getAccumulator() {
+        return accumulator;
+    } // getAccumulator
+    
     @Override
     public void configure(Context context) {
         enableGrouping = context.getBoolean("enable_grouping", false);
@@ -104,12 +131,181 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
         batchTimeout = context.getInteger("batch_timeout", 30);
         LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_timeout="
                 + batchTimeout + ")");
+        batchWorkers = context.getInteger("batch_workers", 1);
+        
+        if (batchWorkers < 1) {
+            LOGGER.warn("[" + this.getName() + "] Invalid batch_workers value (" + batchWorkers + "), using 1");
+            batchWorkers = 1;
+        } // if
+        
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_workers="
+                + batchWorkers + ")");
+        batchRetryInterval = context.getInteger("batch_retry_interval", 1);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_retry_interval="
+                + batchRetryInterval + ")");
+        batchRetryMaxInterval = context.getInteger("batch_retry_max_interval", 60);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_retry_max_interval="
+                + batchRetryMaxInterval + ")");
+        batchMaxBytes = context.getInteger("batch_max_bytes", 0);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_max_bytes="
+                + batchMaxBytes + ")");
+        batchTargetLatency = context.getInteger("batch_target_latency", 0);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_target_latency="
+                + batchTargetLatency + ")");
+        batchPipelining = context.getBoolean("batch_pipelining", false);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_pipelining="
+                + (batchPipelining ? "true" : "false") + ")");
+        currentBatchSize = batchSize;
     } // configure
+    
+    @Override
+    public void start() {
+        if (batchWorkers > 1) {
+            final String sinkName = this.getName();
+            batchWorkersPool = Executors.newFixedThreadPool(batchWorkers, new ThreadFactory() {
+                
+                private final AtomicInteger count = new AtomicInteger();
+                
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, sinkName + "-batch-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                } // newThread
+                
+            });
+        } // if
+        
+        if (batchPipelining && batchSize > 1) {
+            final String sinkName = this.getName();
+            batchPersister = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, sinkName + "-batch-persister");
+                    thread.setDaemon(true);
+                    return thread;
+                } // newThread
+                
+            });
+        } // if
+        
+        super.start();
+    } // start
 
     @Override
     public void stop() {
+        // the batch being persisted, if any, is allowed to finish before the backends are closed
+        if (batchPersister != null) {
+            batchPersister.shutdown();
+            
+            try {
+                if (!batchPersister.awaitTermination(STOP_TIMEOUT, TimeUnit.SECONDS)) {
+                    LOGGER.warn("[" + this.getName() + "] The batch persister did not finish within " + STOP_TIMEOUT
+                            + " seconds");
+                } // if
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } // try catch
+            
+            batchPersister = null;
+        } // if
+        
+        stopInFlightBatch();
+        
+        // the sub-batches being persisted, if any, are allowed to finish instead of being interrupted
+        if (batchWorkersPool != null) {
+            batchWorkersPool.shutdown();
+            
+            try {
+                if (!batchWorkersPool.awaitTermination(STOP_TIMEOUT, TimeUnit.SECONDS)) {
+                    LOGGER.warn("[" + this.getName() + "] The batch workers did not finish within " + STOP_TIMEOUT
+                            + " seconds");
+                } // if
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } // try catch
+            
+            batchWorkersPool = null;
+        } // if
+        
+        // the batch pending to be retried or being accumulated, if any, would be lost
+        requeue(accumulator);
         super.stop();
     } // stop
+    
+    /**
+     * Resolves the batch handed to the batch persister, if any, once the sink is stopped. If it failed because of a
+     * persistence error, or it is still being persisted, its events are put again in the channel.
+     */
+    private void stopInFlightBatch() {
+        if (inFlightBatch == null) {
+            return;
+        } // if
+        
+        if (!inFlightBatch.isDone()) {
+            LOGGER.warn("[" + this.getName() + "] The sink was stopped while a batch was being persisted, it may be "
+                    + "persisted twice (" + inFlightAccumulator.getAccTransactionIds() + ")");
+            requeue(inFlightAccumulator);
+        } else {
+            try {
+                inFlightBatch.get();
+                LOGGER.info("Finishing transaction (" + inFlightAccumulator.getAccTransactionIds() + ")");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                requeue(inFlightAccumulator);
+            } catch (ExecutionException e) {
+                LOGGER.warn(e.getCause().getMessage());
+                
+                // the batches failing because of other errors are not retried, thus not put again in the channel
+                if (e.getCause() instanceof CygnusPersistenceError) {
+                    requeue(inFlightAccumulator);
+                } // if
+            } // try catch
+        } // if else
+        
+        inFlightBatch = null;
+        inFlightAccumulator = null;
+    } // stopInFlightBatch
+    
+    /**
+     * Puts again in the channel the Flume events of an accumulated batch not persisted, so that they are not lost when
+     * the sink is stopped; the batch retries are only kept in memory. The events not fitting the channel are lost,
+     * and logged.
+     * @param batchAccumulator
+     */
+    private void requeue(Accumulator batchAccumulator) {
+        ArrayList<Event> events = batchAccumulator.getFlumeEvents();
+        
+        if (events.isEmpty()) {
+            return;
+        } // if
+        
+        Channel ch = getChannel();
+        int requeued = 0;
+        
+        for (Event event : events) {
+            Transaction txn = ch.getTransaction();
+            
+            try {
+                txn.begin();
+                ch.put(event);
+                txn.commit();
+                requeued++;
+            } catch (Exception e) {
+                txn.rollback();
+                LOGGER.warn("[" + this.getName() + "] A not persisted event could not be put again in the channel, "
+                        + "it is lost (headers=" + event.getHeaders() + ", details=" + e.getMessage() + ")");
+            } finally {
+                txn.close();
+            } // try catch finally
+        } // for
+        
+        LOGGER.warn("[" + this.getName() + "] The sink was stopped with a not persisted batch, " + requeued + " of "
+                + "its " + events.size() + " events were put again in the channel ("
+                + batchAccumulator.getAccTransactionIds() + ")");
+        batchAccumulator.initializeBatching(new Date().getTime());
+    } // requeue
 
     @Override
     public Status process() throws EventDeliveryException {
@@ -174,7 +370,7 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
             } // try catch
             
             try {
-                persistOne(event.getHeaders(), notification);
+                persistOne(event.getHeaders(), notification, Routing.of(event));
                 LOGGER.info("Finishing transaction (" + MDC.get(Constants.HEADER_TRANSACTION_ID) + ")");
                 txn.commit();
                 txn.close();
@@ -237,15 +433,38 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
                 } // if else
             } // try catch
         } else {
-            // get and process as many events as the batch size
+            // the events taken from now on are put again in the channel by Flume if the transaction is rolled back
+            accumulator.beginTransaction();
+            
+            // a failed batch is kept until its TTL expires, no events are taken until it is persisted
+            if (accumulator.isRetrying()) {
+                if (new Date().getTime() < accumulator.getAccNextRetryDate()) {
+                    txn.commit();
+                    txn.close();
+                    return Status.BACKOFF;
+                } // if
+                
+                LOGGER.info("Retrying the not persisted destinations of the batch (retries="
+                        + accumulator.getAccRetries() + ", ttl=" + accumulator.getAccTTL() + ")");
+                return persistAccumulation(txn);
+            } // if
+            
+            // get and process events until the batch is closed by count, by size or by time
             int currentIndex;
 
-            for (currentIndex = accumulator.getAccIndex(); currentIndex < batchSize; currentIndex++) {
+            for (currentIndex = accumulator.getAccIndex(); currentIndex < currentBatchSize; currentIndex++) {
                 // check if the batch accumulation timeout has been reached
-                if ((new Date().getTime() - accumulator.getAccStartDate()) > (batchTimeout * 1000)) {
+                if (currentIndex > 0 && isBatchTimedOut()) {
                     LOGGER.info("Batch accumulation time reached, the batch will be processed as it is");
                     break;
                 } // if
+                
+                // check if the batch maximum size in bytes has been reached
+                if (batchMaxBytes > 0 && accumulator.getAccBytes() >= batchMaxBytes) {
+                    LOGGER.info("Batch maximum size reached, the batch will be processed as it is (bytes="
+                            + accumulator.getAccBytes() + ")");
+                    break;
+                } // if
 
                 // get an event
                 Event event = null;
@@ -259,11 +478,30 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
 
                 // check if the event is null
                 if (event == null) {
+                    // a partial batch is not kept beyond its timeout even if no more events arrive
+                    if (currentIndex > 0 && isBatchTimedOut()) {
+                        LOGGER.info("Batch accumulation time reached, the batch will be processed as it is");
+                        break;
+                    } // if
+                    
                     accumulator.setAccIndex(currentIndex);
+                    
+                    // the events taken are not committed until the batch being persisted, if any, is persisted
+                    if (!resolveInFlightBatch(txn)) {
+                        return Status.BACKOFF;
+                    } // if
+                    
                     txn.commit();
                     txn.close();
                     return Status.BACKOFF; // slow down the sink since no events are available
                 } // if
+                
+                // the accumulation time starts with the first event of the batch
+                if (currentIndex == 0) {
+                    accumulator.setAccStartDate(new Date().getTime());
+                } // if
+                
+                accumulator.setAccBytes(accumulator.getAccBytes() + event.getBody().length);
 
                 // set the transactionId in MDC
                 try {
@@ -277,7 +515,8 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
                     LOGGER.debug("Event got from the channel (id=" + event.hashCode() + ", headers="
                             + event.getHeaders().toString() + ", bodyLength=" + event.getBody().length + ")");
                     NotifyContextRequest notification = parseEventBody(event);
-                    accumulator.accumulate(event.getHeaders(), notification);
+                    accumulator.accumulate(event.getHeaders(), notification, Routing.of(event));
+                    accumulator.addFlumeEvent(event);
                 } catch (Exception e) {
                     LOGGER.debug("There was some problem when parsing the notifed context element. Details="
                             + e.getMessage());
@@ -287,93 +526,240 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
             // save the current index for next run of the process() method
             accumulator.setAccIndex(currentIndex);
             
-            try {
-                if (accumulator.getAccIndex() != 0) {
-                    persistBatch(accumulator.getDefaultBatch(), accumulator.getGroupedBatch());
+            if (batchPersister != null) {
+                return submitAccumulation(txn);
+            } else {
+                return persistAccumulation(txn);
+            } // if else
+        } // if else
+    } // process
+
+    /**
+     * Persists the accumulated batch and finishes the Flume transaction. If there is a persistence error the batch is
+     * kept, and it is retried after an exponential backoff until the TTL of its events expires; only the destinations
+     * not yet persisted are retried.
+     * @param txn
+     * @return The status of the sink
+     */
+    private Status persistAccumulation(Transaction txn) {
+        try {
+            if (accumulator.getAccIndex() != 0) {
+                long startTime = System.currentTimeMillis();
+                persistBatch(accumulator.getDefaultBatch(), accumulator.getGroupedBatch());
+                
+                if (!accumulator.isRetrying()) {
+                    adaptBatchSize(System.currentTimeMillis() - startTime,
+                            accumulator.getAccIndex() >= currentBatchSize);
                 } // if
+            } // if
+            
+            LOGGER.info("Finishing transaction (" + accumulator.getAccTransactionIds() + ")");
+            accumulator.initializeBatching(new Date().getTime());
+            txn.commit();
+            txn.close();
+            return Status.READY;
+        } catch (Exception e) {
+            LOGGER.debug(Arrays.toString(e.getStackTrace()));
+            
+            // the sink is being stopped, the batch is kept and the events taken within the transaction are put again
+            // in the channel, since it is not known if they were persisted
+            if (e instanceof CygnusInterruptedError) {
+                LOGGER.warn(e.getMessage());
+                accumulator.rollbackTransaction();
+                txn.rollback();
+                txn.close();
+                return Status.BACKOFF;
+            } // if
+
+            // retry only if the exception is about a persistence error
+            if (e instanceof CygnusPersistenceError) {
+                LOGGER.error(e.getMessage());
+                
+                if (accumulator.scheduleRetry(new Date().getTime(), batchRetryInterval * 1000L,
+                        batchRetryMaxInterval * 1000L)) {
+                    LOGGER.info("The batch will be retried (" + accumulator.getAccTransactionIds() + ", retries="
+                            + accumulator.getAccRetries() + ", ttl=" + accumulator.getAccTTL() + ")");
+                } else {
+                    LOGGER.warn("The batch TTL has expired, it is no more retried ("
+                            + accumulator.getAccTransactionIds() + ", ttl=0)");
+                    accumulator.initializeBatching(new Date().getTime());
+                } // if else
                 
+                txn.commit();
+                txn.close();
+                return Status.BACKOFF; // slow down the sink since there are problems with the persistence backend
+            } else {
+                if (e instanceof CygnusRuntimeError) {
+                    LOGGER.error(e.getMessage());
+                } else if (e instanceof CygnusBadConfiguration) {
+                    LOGGER.warn(e.getMessage());
+                } else if (e instanceof CygnusBadContextData) {
+                    LOGGER.warn(e.getMessage());
+                } else {
+                    LOGGER.warn(e.getMessage());
+                } // if else if
+
                 LOGGER.info("Finishing transaction (" + accumulator.getAccTransactionIds() + ")");
                 accumulator.initializeBatching(new Date().getTime());
                 txn.commit();
                 txn.close();
                 return Status.READY;
-            } catch (Exception e) {
-                LOGGER.debug(Arrays.toString(e.getStackTrace()));
+            } // if else
+        } // try catch
+    } // persistAccumulation
 
-                // rollback only if the exception is about a persistence error
-                if (e instanceof CygnusPersistenceError) {
-                    LOGGER.error(e.getMessage());
-                    doBatchRollback();
-                    LOGGER.info("Finishing transaction (" + accumulator.getAccTransactionIds() + ")");
-                    accumulator.initializeBatching(new Date().getTime());
-                    txn.commit();
-                    txn.close();
-                    return Status.BACKOFF; // slow down the sink since there are problems with the persistence backend
-                } else {
-                    if (e instanceof CygnusRuntimeError) {
-                        LOGGER.error(e.getMessage());
-                    } else if (e instanceof CygnusBadConfiguration) {
-                        LOGGER.warn(e.getMessage());
-                    } else if (e instanceof CygnusBadContextData) {
-                        LOGGER.warn(e.getMessage());
-                    } else {
-                        LOGGER.warn(e.getMessage());
-                    } // if else if
+    /**
+     * Hands the accumulated batch to the batch persister and finishes the Flume transaction, so that the next batch is
+     * accumulated while this one is persisted. The batch previously handed, if any, must be persisted before.
+     * @param txn
+     * @return The status of the sink
+     */
+    private Status submitAccumulation(Transaction txn) {
+        if (!resolveInFlightBatch(txn)) {
+            return Status.BACKOFF;
+        } // if
+        
+        if (accumulator.getAccIndex() != 0) {
+            final Accumulator batchAccumulator = accumulator;
+            accumulator = new Accumulator();
+            inFlightAccumulator = batchAccumulator;
+            inFlightBatch = batchPersister.submit(new Callable<Long>() {
+                
+                @Override
+                public Long call() throws Exception {
+                    MDC.put(Constants.HEADER_TRANSACTION_ID, batchAccumulator.getAccTransactionIds());
                     
-                    LOGGER.info("Finishing transaction (" + accumulator.getAccTransactionIds() + ")");
+                    try {
+                        long startTime = System.currentTimeMillis();
+                        persistBatch(batchAccumulator.getDefaultBatch(), batchAccumulator.getGroupedBatch());
+                        return System.currentTimeMillis() - startTime;
+                    } finally {
+                        MDC.remove(Constants.HEADER_TRANSACTION_ID);
+                    } // try finally
+                } // call
+                
+            });
+        } // if
+        
+        accumulator.initializeBatching(new Date().getTime());
+        txn.commit();
+        txn.close();
+        return Status.READY;
+    } // submitAccumulation
+    
+    /**
+     * Waits for the batch handed to the batch persister, if any. If it failed because of a persistence error, the
+     * events taken within the given Flume transaction are put again in the channel, the transaction is finished, and
+     * the failed batch becomes the accumulated one in order to be retried.
+     * @param txn
+     * @return True if there is no batch being persisted anymore and the transaction can go on, false if the
+     * transaction has been finished
+     */
+    private boolean resolveInFlightBatch(Transaction txn) {
+        if (inFlightBatch == null) {
+            return true;
+        } // if
+        
+        Accumulator batchAccumulator = inFlightAccumulator;
+        
+        try {
+            long latencyMs = inFlightBatch.get();
+            adaptBatchSize(latencyMs, batchAccumulator.getAccIndex() >= currentBatchSize);
+            LOGGER.info("Finishing transaction (" + batchAccumulator.getAccTransactionIds() + ")");
+        } catch (InterruptedException e) {
+            // the sink is being stopped, the batch being persisted is kept
+            Thread.currentThread().interrupt();
+            accumulator.rollbackTransaction();
+            txn.rollback();
+            txn.close();
+            return false;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            LOGGER.debug(Arrays.toString(cause.getStackTrace()));
+            
+            // retry only if the exception is about a persistence error
+            if (cause instanceof CygnusPersistenceError) {
+                LOGGER.error(cause.getMessage());
+                txn.rollback();
+                txn.close();
+                LOGGER.info("The events taken while the batch was being persisted were put again in the channel");
+                accumulator = batchAccumulator;
+                
+                if (accumulator.scheduleRetry(new Date().getTime(), batchRetryInterval * 1000L,
+                        batchRetryMaxInterval * 1000L)) {
+                    LOGGER.info("The batch will be retried (" + accumulator.getAccTransactionIds() + ", retries="
+                            + accumulator.getAccRetries() + ", ttl=" + accumulator.getAccTTL() + ")");
+                } else {
+                    LOGGER.warn("The batch TTL has expired, it is no more retried ("
+                            + accumulator.getAccTransactionIds() + ", ttl=0)");
                     accumulator.initializeBatching(new Date().getTime());
-                    txn.commit();
-                    txn.close();
-                    return Status.READY;
                 } // if else
-            } // try catch
-        } // if else
-    } // process
+                
+                inFlightBatch = null;
+                inFlightAccumulator = null;
+                return false;
+            } else if (cause instanceof CygnusRuntimeError) {
+                LOGGER.error(cause.getMessage());
+            } else {
+                LOGGER.warn(cause.getMessage());
+            } // if else if
+            
+            LOGGER.info("Finishing transaction (" + batchAccumulator.getAccTransactionIds() + ")");
+        } // try catch
+        
+        inFlightBatch = null;
+        inFlightAccumulator = null;
+        return true;
+    } // resolveInFlightBatch
+    
+    private boolean isBatchTimedOut() {
+        return (new Date().getTime() - accumulator.getAccStartDate()) > (batchTimeout * 1000);
+    } // isBatchTimedOut
+    
+    /**
+     * Adapts the number of events per batch to the latency of the persistence backend, if a target latency is
+     * configured: the batch size is halved if persisting a batch took longer than the target latency, and it is
+     * increased by a sixteenth of batch_size (at least by one event) if a full batch took less, up to batch_size.
+     * @param latencyMs Time taken to persist the last batch
+     * @param full True if the last batch was closed because of its number of events
+     */
+    private void adaptBatchSize(long latencyMs, boolean full) {
+        if (batchTargetLatency <= 0) {
+            return;
+        } // if
+        
+        int previousBatchSize = currentBatchSize;
+        
+        if (latencyMs > batchTargetLatency) {
+            currentBatchSize = Math.max(1, currentBatchSize / 2);
+        } else if (full) {
+            currentBatchSize = Math.min(batchSize, currentBatchSize + Math.max(1, batchSize / 16));
+        } // if else if
+        
+        if (currentBatchSize != previousBatchSize) {
+            LOGGER.debug("[" + this.getName() + "] Batch size adapted (latencyMs=" + latencyMs + ", batchSize="
+                    + previousBatchSize + " -> " + currentBatchSize + ")");
+        } // if
+    } // adaptBatchSize
+    
+    /**
+     * Gets the current number of events per batch. It is protected due to it is only required for testing purposes.
+     * @return The current number of events per batch
+     */
+    protected int getCurrentBatchSize() {
+        return currentBatchSize;
+    } // getCurrentBatchSize
 
     /**
-     * Given an event, it is parsed before it is persisted. Depending on the content type, it is appropriately
-     * parsed (Json or XML) in order to obtain a NotifyContextRequest instance.
+     * Given an event, it is parsed before it is persisted. If the event already carries the parsed notification it is
+     * directly used, otherwise, depending on the content type, it is appropriately parsed (Json or XML) in order to
+     * obtain a NotifyContextRequest instance.
      * 
      * @param event A Flume event containing the data to be persistedDestinations and certain metadata (headers).
      * @throws Exception
      */
     private NotifyContextRequest parseEventBody(Event event) throws Exception {
-        String eventData = new String(event.getBody());
-        Map<String, String> eventHeaders = event.getHeaders();
-
-        // parse the eventData
-        NotifyContextRequest notification = null;
-
-        if (eventHeaders.get(Constants.HEADER_CONTENT_TYPE).contains("application/json")) {
-            Gson gson = new Gson();
-
-            try {
-                notification = gson.fromJson(eventData, NotifyContextRequest.class);
-            } catch (Exception e) {
-                throw new CygnusBadContextData(e.getMessage());
-            } // try catch
-        } else if (eventHeaders.get(Constants.HEADER_CONTENT_TYPE).contains("application/xml")) {
-            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-
-            try {
-                SAXParser saxParser = saxParserFactory.newSAXParser();
-                NotifyContextRequestSAXHandler handler = new NotifyContextRequestSAXHandler();
-                saxParser.parse(new InputSource(new StringReader(eventData)), handler);
-                notification = handler.getNotifyContextRequest();
-            } catch (ParserConfigurationException e) {
-                throw new CygnusBadContextData(e.getMessage());
-            } catch (SAXException e) {
-                throw new CygnusBadContextData(e.getMessage());
-            } catch (IOException e) {
-                throw new CygnusBadContextData(e.getMessage());
-            } // try catch
-        } else {
-            // this point should never be reached since the content type has been checked when receiving the
-            // notification
-            throw new Exception("Unrecognized content type (not Json nor XML)");
-        } // if else if
-        
-        return notification;
+        return NotifyContextRequestParser.parse(event);
     } // parseEventBody
     
     // TBD: this class must be private once all the sinks migrate to persistsBatch
@@ -386,17 +772,36 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
         private Batch defaultBatch;
         // eventsPerDestination of events with grouped service path and destination
         private Batch groupedBatch;
-        // list of Flume events taken from the channel, it is necessary for an hipothetical massive decreasing of the
-        // ttl when rollbacking
+        // list of Flume events taken from the channel and accumulated, they are put again in the channel if the sink
+        // is stopped before persisting them
         private ArrayList<Event> flumeEvents;
+        // number of Flume events taken within previous transactions, already committed
+        private int accCommittedEvents;
         private long accStartDate;
         private int accIndex;
+        private long accBytes;
         private String accTransactionIds;
+        // minimum TTL of the accumulated events, -1 if infinite
+        private int accTTL;
+        private int accRetries;
+        private long accNextRetryDate;
         
         public long getAccStartDate() {
             return accStartDate;
         } // getAccStartDate
         
+        public void setAccStartDate(long accStartDate) {
+            this.accStartDate = accStartDate;
+        } // setAccStartDate
+        
+        public long getAccBytes() {
+            return accBytes;
+        } // getAccBytes
+        
+        public void setAccBytes(long accBytes) {
+            this.accBytes = accBytes;
+        } // setAccBytes
+        
         public int getAccIndex() {
             return accIndex;
         } // getAccIndex
@@ -417,11 +822,75 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
             return accTransactionIds;
         } // getAccTransactionIds
         
-        public void accumulate(Map<String, String> headers, NotifyContextRequest notification) {
+        public int getAccTTL() {
+            return accTTL;
+        } // getAccTTL
+        
+        public int getAccRetries() {
+            return accRetries;
+        } // getAccRetries
+        
+        public ArrayList<Event> getFlumeEvents() {
+            return flumeEvents;
+        } // getFlumeEvents
+        
+        public void addFlumeEvent(Event event) {
+            flumeEvents.add(event);
+        } // addFlumeEvent
+        
+        /**
+         * Marks the Flume events accumulated so far as taken within committed transactions.
+         */
+        public void beginTransaction() {
+            accCommittedEvents = flumeEvents.size();
+        } // beginTransaction
+        
+        /**
+         * Forgets the Flume events taken within the current transaction, since it is rolled back and they are put
+         * again in the channel by Flume itself.
+         */
+        public void rollbackTransaction() {
+            flumeEvents.subList(accCommittedEvents, flumeEvents.size()).clear();
+        } // rollbackTransaction
+        
+        public long getAccNextRetryDate() {
+            return accNextRetryDate;
+        } // getAccNextRetryDate
+        
+        /**
+         * Gets if the accumulated batch failed and it is pending to be retried.
+         * @return True if the accumulated batch is pending to be retried, false otherwise
+         */
+        public boolean isRetrying() {
+            return accRetries > 0;
+        } // isRetrying
+        
+        /**
+         * Schedules a new retry of the accumulated batch, consuming one unit of its TTL. The time between retries
+         * starts at the given interval and it is doubled at each retry, up to the given maximum.
+         * @param nowMs
+         * @param intervalMs
+         * @param maxIntervalMs
+         * @return True if the retry was scheduled, false if the TTL has expired
+         */
+        public boolean scheduleRetry(long nowMs, long intervalMs, long maxIntervalMs) {
+            if (accTTL == 0) {
+                return false;
+            } else if (accTTL > 0) {
+                accTTL--;
+            } // if else if
+            
+            long backoff = intervalMs << Math.min(accRetries, 20);
+            accRetries++;
+            accNextRetryDate = nowMs + Math.min(backoff, maxIntervalMs);
+            return true;
+        } // scheduleRetry
+        
+        public void accumulate(Map<String, String> headers, NotifyContextRequest notification, Routing routing) {
             Long recvTimeTs = new Long(headers.get(Constants.HEADER_TIMESTAMP));
             String service = headers.get(Constants.HEADER_NOTIFIED_SERVICE);
-            String[] defaultServicePaths = headers.get(Constants.HEADER_DEFAULT_SERVICE_PATHS).split(",");
-            String[] defaultDestinations = headers.get(Constants.HEADER_DEFAULT_DESTINATIONS).split(",");
+            String[] defaultServicePaths = routing.getDefaultServicePaths();
+            String[] defaultDestinations = routing.getDefaultDestinations();
             String transactionId = headers.get(Constants.HEADER_TRANSACTION_ID);
             
             if (accTransactionIds.isEmpty()) {
@@ -429,6 +898,25 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
             } else {
                 accTransactionIds += "," + transactionId;
             } // if else
+            
+            // the batch TTL is the lowest TTL of its events
+            String ttlStr = headers.get(Constants.HEADER_TTL);
+            
+            if (ttlStr != null) {
+                int ttl;
+                
+                try {
+                    ttl = Integer.parseInt(ttlStr);
+                } catch (NumberFormatException e) {
+                    ttl = 0;
+                    LOGGER.error("Invalid TTL value (transactionId=" + transactionId + ", ttl=" + ttlStr + ", "
+                            + e.getMessage() + ")");
+                } // try catch
+                
+                if (ttl >= 0 && (accTTL == -1 || ttl < accTTL)) {
+                    accTTL = ttl;
+                } // if
+            } // if
 
             for (int i = 0; i < defaultDestinations.length; i++) {
                 String destination = defaultDestinations[i];
@@ -445,11 +933,11 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
                 list.add(cygnusEvent);
             } // for
 
-            String[] groupedServicePaths = headers.get(Constants.HEADER_GROUPED_SERVICE_PATHS).split(",");
-            String[] groupedDestinations = headers.get(Constants.HEADER_GROUPED_DESTINATIONS).split(",");
+            String[] groupedServicePaths = routing.getGroupedServicePaths();
+            String[] groupedDestinations = routing.getGroupedDestinations();
 
             for (int i = 0; i < groupedDestinations.length; i++) {
-                String destination = defaultDestinations[i];
+                String destination = groupedDestinations[i];
                 ArrayList<CygnusEvent> list = groupedBatch.getEvents(destination);
 
                 if (list == null) {
@@ -469,26 +957,30 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
             // TBD: https://github.com/telefonicaid/fiware-cygnus/issues/562
             defaultBatch = new Batch();
             groupedBatch = new Batch();
+            flumeEvents = new ArrayList<Event>();
+            accCommittedEvents = 0;
             accStartDate = startDateMs;
             accIndex = 0;
+            accBytes = 0;
             accTransactionIds = "";
+            accTTL = -1;
+            accRetries = 0;
+            accNextRetryDate = 0;
         } // initializeBatching
         
     } // Accumulator
     
-    private void doBatchRollback() {
-        // TBD: https://github.com/telefonicaid/fiware-cygnus/issues/563
-    } // doBatchRollback
-
     // TDB: to be removed once all the sinks migrate to persistBatch method
     /**
      * This is the method the classes extending this class must implement when dealing with a single event to be
      * persisted.
      * @param eventHeaders Event headers
      * @param notification Notification object (already parsed) regarding an event body
+     * @param routing Destinations and service paths of the context elements within the notification
      * @throws Exception
      */
-    abstract void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification) throws Exception;
+    abstract void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification, Routing routing)
+        throws Exception;
     
     /**
      * This is the method the classes extending this class must implement when dealing with a batch of events to be
@@ -499,4 +991,103 @@ public abstract class OrionSink extends AbstractSink implements Configurable {
      */
     abstract void persistBatch(Batch defaultEvents, Batch groupedEvents) throws Exception;
     
+    // TDB: to be implemented by all the sinks once they migrate to persistBatch method
+    /**
+     * This is the method the classes extending this class must implement when persisting the batches through
+     * persistSubBatches. It persists the events regarding a single destination, in order. It may be called from
+     * several threads at the same time, although never for the same destination.
+     * @param destination
+     * @param subBatch
+     * @throws Exception
+     */
+    abstract void persistSubBatch(String destination, ArrayList<CygnusEvent> subBatch) throws Exception;
+    
+    /**
+     * Persists the sub-batches of the given batch, one per destination, through persistSubBatch. If there are several
+     * batch workers the sub-batches are persisted in parallel, otherwise they are persisted one after the other; in
+     * any case, all the events regarding a destination are persisted by the same worker and in order. The
+     * destinations already persisted are skipped, and the ones successfully persisted are set as persisted in the
+     * batch. It does not return until all the sub-batches have been processed, thus the Flume transaction is
+     * committed once all the workers finish.
+     * @param batch
+     * @throws Exception The first error found; persistence errors are preferred over the others, since they cause
+     * the batch to be retried; a CygnusInterruptedError if the sink is stopped while waiting for the workers
+     */
+    protected void persistSubBatches(final Batch batch) throws Exception {
+        if (batchWorkersPool == null) {
+            for (String destination : batch.getDestinations()) {
+                if (batch.isPersisted(destination)) {
+                    continue;
+                } // if
+                
+                persistSubBatch(destination, batch.getEvents(destination));
+                batch.setPersisted(destination);
+            } // for
+            
+            return;
+        } // if
+        
+        // a lane per destination
+        final Object transactionIds = MDC.get(Constants.HEADER_TRANSACTION_ID);
+        ArrayList<String> destinations = new ArrayList<String>();
+        ArrayList<Future<Void>> lanes = new ArrayList<Future<Void>>();
+        
+        for (final String destination : batch.getDestinations()) {
+            if (batch.isPersisted(destination)) {
+                continue;
+            } // if
+            
+            destinations.add(destination);
+            lanes.add(batchWorkersPool.submit(new Callable<Void>() {
+                
+                @Override
+                public Void call() throws Exception {
+                    if (transactionIds != null) {
+                        MDC.put(Constants.HEADER_TRANSACTION_ID, transactionIds);
+                    } // if
+                    
+                    try {
+                        persistSubBatch(destination, batch.getEvents(destination));
+                        return null;
+                    } finally {
+                        MDC.remove(Constants.HEADER_TRANSACTION_ID);
+                    } // try finally
+                } // call
+                
+            }));
+        } // for
+        
+        // wait for all the lanes, even if some of them fail, so that the persisted destinations are known
+        Exception error = null;
+        
+        for (int i = 0; i < lanes.size(); i++) {
+            try {
+                lanes.get(i).get();
+                batch.setPersisted(destinations.get(i));
+            } catch (InterruptedException e) {
+                // the lanes not started yet are cancelled, the running ones are allowed to finish
+                for (Future<Void> lane : lanes) {
+                    lane.cancel(false);
+                } // for
+                
+                Thread.currentThread().interrupt();
+                throw new CygnusInterruptedError("Interrupted while persisting the batch");
+            } catch (ExecutionException e) {
+                Exception cause = (e.getCause() instanceof Exception)
+                        ? (Exception) e.getCause() : new CygnusRuntimeError(e.getCause().toString());
+                LOGGER.debug("[" + this.getName() + "] Sub-batch regarding the " + destinations.get(i)
+                        + " destination not persisted (" + cause.getMessage() + ")");
+                
+                if (error == null
+                        || (cause instanceof CygnusPersistenceError && !(error instanceof CygnusPersistenceError))) {
+                    error = cause;
+                } // if
+            } // try catch
+        } // for
+        
+        if (error != null) {
+            throw error;
+        } // if
+    } // persistSubBatches
+    
 } // OrionSink
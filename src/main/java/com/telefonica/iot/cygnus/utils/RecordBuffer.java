@@ -0,0 +1,252 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ *
+ * @author frb
+ *
+ * Growable byte buffer the sinks serialize their records into, encoding the appended strings as UTF-8 on the fly.
+ * Thus, aggregating a batch is linear in its size, instead of copying the whole aggregation per record as the string
+ * concatenation does, and the backends send the bytes as they are.
+ *
+ * The buffer of each thread is reused by all the aggregations done by such thread, keeping its capacity among them.
+ * It is not thread-safe.
+ */
+public class RecordBuffer {
+    
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int MAX_RETAINED_CAPACITY = 1048576;
+    private static final ThreadLocal<RecordBuffer> THREAD_BUFFERS = new ThreadLocal<RecordBuffer>() {
+        @Override
+        protected RecordBuffer initialValue() {
+            return new RecordBuffer();
+        } // initialValue
+    };
+    private byte[] bytes;
+    private int size;
+    
+    /**
+     * Constructor.
+     */
+    public RecordBuffer() {
+        this(INITIAL_CAPACITY);
+    } // RecordBuffer
+    
+    /**
+     * Constructor.
+     * @param capacity Initial capacity in bytes
+     */
+    public RecordBuffer(int capacity) {
+        bytes = new byte[Math.max(capacity, 16)];
+        size = 0;
+    } // RecordBuffer
+    
+    /**
+     * Gets the buffer of the current thread, reset. It is shared by all the aggregations of the thread, thus it must
+     * not be used once the aggregation it was got for has been persisted.
+     * @return The buffer of the current thread
+     */
+    public static RecordBuffer getThreadBuffer() {
+        RecordBuffer buffer = THREAD_BUFFERS.get();
+        buffer.reset();
+        return buffer;
+    } // getThreadBuffer
+    
+    /**
+     * Empties the buffer. The capacity is kept, unless it grew too much for a single aggregation.
+     */
+    public void reset() {
+        if (bytes.length > MAX_RETAINED_CAPACITY) {
+            bytes = new byte[INITIAL_CAPACITY];
+        } // if
+        
+        size = 0;
+    } // reset
+    
+    /**
+     * Appends a string, encoded as UTF-8. A null string is appended as "null", as the string concatenation does.
+     * @param s
+     * @return This buffer
+     */
+    public RecordBuffer append(String s) {
+        encode(s == null ? "null" : s, -1);
+        return this;
+    } // append
+    
+    /**
+     * Appends a string, encoded as UTF-8, removing all the occurrences of a character.
+     * @param s
+     * @param removed Character not to be appended
+     * @return This buffer
+     */
+    public RecordBuffer appendRemoving(String s, char removed) {
+        encode(s == null ? "null" : s, removed);
+        return this;
+    } // appendRemoving
+    
+    /**
+     * Appends a character, encoded as UTF-8.
+     * @param c
+     * @return This buffer
+     */
+    public RecordBuffer append(char c) {
+        if (c < 0x80) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) c;
+        } else {
+            encode(String.valueOf(c), -1);
+        } // if else
+        
+        return this;
+    } // append
+    
+    /**
+     * Appends the decimal representation of a number.
+     * @param l
+     * @return This buffer
+     */
+    public RecordBuffer append(long l) {
+        encode(Long.toString(l), -1);
+        return this;
+    } // append
+    
+    /**
+     * Appends already encoded bytes.
+     * @param b
+     * @param off
+     * @param len
+     * @return This buffer
+     */
+    public RecordBuffer append(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, bytes, size, len);
+        size += len;
+        return this;
+    } // append
+    
+    /**
+     * Gets the number of bytes within the buffer.
+     * @return The number of bytes within the buffer
+     */
+    public int size() {
+        return size;
+    } // size
+    
+    /**
+     * Gets if the buffer is empty.
+     * @return True if the buffer is empty, false otherwise
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    } // isEmpty
+    
+    /**
+     * Gets the internal array of the buffer, which is not copied. Only the first size() bytes are valid, and it is
+     * not valid anymore once the buffer is modified.
+     * @return The internal array of the buffer
+     */
+    public byte[] getBytes() {
+        return bytes;
+    } // getBytes
+    
+    /**
+     * Gets a copy of the bytes within the buffer.
+     * @return A copy of the bytes within the buffer
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    } // toByteArray
+    
+    /**
+     * Writes the bytes within the buffer to an output stream.
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+    } // writeTo
+    
+    /**
+     * Decodes the bytes within the buffer. It is only intended for the backends requiring strings, and for logging.
+     * @return The decoded bytes within the buffer
+     */
+    @Override
+    public String toString() {
+        try {
+            return new String(bytes, 0, size, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        } // try catch
+    } // toString
+    
+    private void encode(String s, int removed) {
+        int length = s.length();
+        
+        // enough room for the ASCII strings, the most usual ones
+        ensureCapacity(length);
+        
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            
+            if (c == removed) {
+                continue;
+            } // if
+            
+            if (c < 0x80) {
+                bytes[size++] = (byte) c;
+                continue;
+            } // if
+            
+            // enough room for this character and the remaining ones, being ASCII
+            ensureCapacity(length - i + 3);
+            
+            if (c < 0x800) {
+                bytes[size++] = (byte) (0xC0 | (c >> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                bytes[size++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // unpaired surrogate, replaced as String.getBytes does
+                bytes[size++] = '?';
+            } else {
+                bytes[size++] = (byte) (0xE0 | (c >> 12));
+                bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            } // if else if
+        } // for
+    } // encode
+    
+    private void ensureCapacity(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        } // if
+    } // ensureCapacity
+    
+} // RecordBuffer
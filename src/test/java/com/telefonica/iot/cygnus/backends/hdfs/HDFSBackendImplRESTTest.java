@@ -51,6 +51,8 @@ public class HDFSBackendImplRESTTest {
     private HttpClient mockHttpClientAppend;
     @Mock
     private HttpClient mockHttpClientExistsCreateDir;
+    @Mock
+    private HttpClient mockHttpClientAppendStale;
     
     // constants
     private final String[] hdfsHosts = {"1.2.3.4", "5.6.7.8."};
@@ -86,6 +88,9 @@ public class HDFSBackendImplRESTTest {
         when(mockHttpClientExistsCreateDir.execute(Mockito.any(HttpUriRequest.class))).thenReturn(resp200);
         when(mockHttpClientCreateFile.execute(Mockito.any(HttpUriRequest.class))).thenReturn(resp307, resp201);
         when(mockHttpClientAppend.execute(Mockito.any(HttpUriRequest.class))).thenReturn(resp307, resp200);
+        BasicHttpResponse resp404 = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 404, "Not Found");
+        when(mockHttpClientAppendStale.execute(Mockito.any(HttpUriRequest.class))).thenReturn(resp307, resp200,
+                resp404, resp307, resp200);
     } // setUp
     
     /**
@@ -139,6 +144,67 @@ public class HDFSBackendImplRESTTest {
         } // try catch finally
     } // testAppend
     
+    /**
+     * Test of append method, of class HDFSBackendImplREST. The Data node location is reused by further appends.
+     */
+    @Test
+    public void testAppendCachedLocation() {
+        System.out.println("Testing HDFSBackendImplREST.append (cached location)");
+        
+        try {
+            backend.setHttpClient(mockHttpClientAppend);
+            backend.append(dirPath, data);
+            backend.append(dirPath, data);
+            backend.append(dirPath, data);
+            assertTrue(backend.exists(dirPath));
+            verify(mockHttpClientAppend, times(4)).execute(Mockito.any(HttpUriRequest.class));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testAppendCachedLocation
+    
+    /**
+     * Test of append method, of class HDFSBackendImplREST. A stale Data node location is replaced.
+     */
+    @Test
+    public void testAppendStaleLocation() {
+        System.out.println("Testing HDFSBackendImplREST.append (stale location)");
+        
+        try {
+            backend.setHttpClient(mockHttpClientAppendStale);
+            backend.append(dirPath, data);
+            backend.append(dirPath, data);
+            verify(mockHttpClientAppendStale, times(5)).execute(Mockito.any(HttpUriRequest.class));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testAppendStaleLocation
+    
+    /**
+     * Test of createDir, createFile and exists methods, of class HDFSBackendImplREST. The provisioned directories and
+     * files are cached.
+     */
+    @Test
+    public void testProvisioningCache() {
+        System.out.println("Testing HDFSBackendImplREST.createDir, createFile and exists (provisioning cache)");
+        
+        try {
+            backend.setHttpClient(mockHttpClientExistsCreateDir);
+            backend.createDir(dirPath);
+            backend.createDir(dirPath);
+            assertTrue(backend.exists(dirPath + "/data.txt"));
+            assertTrue(backend.exists(dirPath + "/data.txt"));
+            verify(mockHttpClientExistsCreateDir, times(2)).execute(Mockito.any(HttpUriRequest.class));
+            
+            backend.setHttpClient(mockHttpClientCreateFile);
+            backend.createFile(dirPath + "/other.txt", data);
+            assertTrue(backend.exists(dirPath + "/other.txt"));
+            verify(mockHttpClientCreateFile, times(2)).execute(Mockito.any(HttpUriRequest.class));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testProvisioningCache
+    
     /**
      * Test of exists method, of class HDFSBackendImplREST.
      */
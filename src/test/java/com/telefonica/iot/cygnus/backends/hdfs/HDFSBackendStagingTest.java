@@ -0,0 +1,319 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import java.io.File;
+import java.io.FileOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.matches;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ *
+ * @author frb
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class HDFSBackendStagingTest {
+    
+    // mocks
+    @Mock
+    private HDFSBackend mockBackend;
+    
+    // constants
+    private final String dirPath = "vehicles/4wheels/car1_car";
+    private final String filePath = "vehicles/4wheels/car1_car/car1_car.txt";
+    private final String otherFilePath = "vehicles/4wheels/car2_car/car2_car.txt";
+    private final String binaryFilePath = "vehicles/4wheels/car1_car/car1_car.1429535775000.0.parquet";
+    private final long hour = 3600000;
+    private File stagingDir;
+    
+    /**
+     * Sets up tests by creating the staging directory.
+     */
+    @Before
+    public void setUp() {
+        stagingDir = new File(System.getProperty("java.io.tmpdir"), "cygnus-staging-" + System.nanoTime());
+    } // setUp
+    
+    /**
+     * Deletes the staging directory.
+     */
+    @After
+    public void tearDown() {
+        File[] files = stagingDir.listFiles();
+        
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            } // for
+        } // if
+        
+        stagingDir.delete();
+    } // tearDown
+    
+    /**
+     * Test of createFile, append and upload methods, of class HDFSBackendStaging. The data of each file is staged in
+     * a segment, which is uploaded with a single file creation once finished, and deleted.
+     */
+    @Test
+    public void testStageAndUpload() {
+        System.out.println("Testing HDFSBackendStaging.createFile, append and upload");
+        
+        try {
+            HDFSBackendStaging staging = new HDFSBackendStaging(mockBackend, stagingDir, 1000000, hour, 0, 0);
+            assertFalse(staging.exists(filePath));
+            staging.createFile(filePath, "line1");
+            staging.append(filePath, "line2\nline3");
+            staging.createFile(otherFilePath, "line4");
+            assertTrue(staging.exists(filePath));
+            
+            // the open segments are not uploaded
+            staging.upload(System.currentTimeMillis());
+            verify(mockBackend, times(0)).uploadFile(anyString(), any(byte[].class), anyInt());
+            staging.finishAged(System.currentTimeMillis() + hour);
+            assertFalse(staging.exists(filePath));
+            assertEquals(2, staging.getNumFinishedSegments());
+            staging.upload(System.currentTimeMillis());
+            verify(mockBackend).createDir(dirPath);
+            verify(mockBackend).uploadFile(matches("vehicles/4wheels/car1_car/car1_car\\.[0-9]+\\.txt"),
+                    aryEq("line1\nline2\nline3\n".getBytes()), anyInt());
+            verify(mockBackend).uploadFile(matches("vehicles/4wheels/car2_car/car2_car\\.[0-9]+\\.txt"),
+                    aryEq("line4\n".getBytes()), anyInt());
+            assertEquals(0, staging.getNumFinishedSegments());
+            assertEquals(0, stagingDir.listFiles().length);
+            staging.close();
+            verify(mockBackend).close();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testStageAndUpload
+    
+    /**
+     * Test of append method, of class HDFSBackendStaging. The segments are finished once they reach the maximum size.
+     */
+    @Test
+    public void testFinishBySize() {
+        System.out.println("Testing HDFSBackendStaging.append (finishing by size)");
+        
+        try {
+            HDFSBackendStaging staging = new HDFSBackendStaging(mockBackend, stagingDir, 10, hour, 0, 0);
+            staging.append(filePath, "line1");
+            assertEquals(0, staging.getNumFinishedSegments());
+            staging.append(filePath, "line2");
+            assertEquals(1, staging.getNumFinishedSegments());
+            staging.append(filePath, "line3");
+            staging.close();
+            verify(mockBackend).uploadFile(anyString(), aryEq("line1\nline2\n".getBytes()), anyInt());
+            verify(mockBackend).uploadFile(anyString(), aryEq("line3\n".getBytes()), anyInt());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testFinishBySize
+    
+    /**
+     * Test of upload method, of class HDFSBackendStaging. A failed upload keeps the segment, which is uploaded again
+     * after a backoff.
+     */
+    @Test
+    public void testUploadRetry() {
+        System.out.println("Testing HDFSBackendStaging.upload (failed upload)");
+        
+        try {
+            doThrow(new Exception("HDFS is not available")).doNothing().when(mockBackend).uploadFile(anyString(),
+                    any(byte[].class), anyInt());
+            HDFSBackendStaging staging = new HDFSBackendStaging(mockBackend, stagingDir, 1000000, hour, 0, 0);
+            staging.append(filePath, "line1");
+            long now = System.currentTimeMillis();
+            staging.finishAged(now + hour);
+            staging.upload(now);
+            assertEquals(1, staging.getNumFinishedSegments());
+            
+            // the upload is not retried before the backoff
+            staging.upload(now + 1);
+            verify(mockBackend, times(1)).uploadFile(anyString(), any(byte[].class), anyInt());
+            staging.upload(now + hour);
+            verify(mockBackend, times(2)).uploadFile(anyString(), any(byte[].class), anyInt());
+            assertEquals(0, staging.getNumFinishedSegments());
+            staging.close();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testUploadRetry
+    
+    /**
+     * Test of upload method, of class HDFSBackendStaging. A failing HDFS path does not block the uploads to the other
+     * paths, and its segment is quarantined after the configured maximum number of attempts.
+     */
+    @Test
+    public void testUploadQuarantine() {
+        System.out.println("Testing HDFSBackendStaging.upload (permanently failed upload)");
+        
+        try {
+            doThrow(new Exception("Permission denied")).when(mockBackend).uploadFile(startsWith(dirPath),
+                    any(byte[].class), anyInt());
+            HDFSBackendStaging staging = new HDFSBackendStaging(mockBackend, stagingDir, 1000000, hour, 10, 0);
+            staging.append(filePath, "line1");
+            staging.append(otherFilePath, "line2");
+            long now = System.currentTimeMillis();
+            staging.finishAged(now + hour);
+            staging.upload(now);
+            verify(mockBackend).uploadFile(startsWith("vehicles/4wheels/car2_car/"), aryEq("line2\n".getBytes()),
+                    anyInt());
+            assertEquals(1, staging.getNumFinishedSegments());
+            
+            for (int i = 1; i < 10; i++) {
+                staging.upload(now + i * hour);
+            } // for
+            
+            verify(mockBackend, times(10)).uploadFile(startsWith(dirPath), any(byte[].class), anyInt());
+            assertEquals(0, staging.getNumFinishedSegments());
+            File[] files = stagingDir.listFiles();
+            assertEquals(1, files.length);
+            assertTrue(files[0].getName().endsWith(".seg.failed"));
+            staging.close();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testUploadQuarantine
+    
+    /**
+     * Test of upload method, of class HDFSBackendStaging. By default, the uploads failing during a long outage of HDFS
+     * are retried once a minute, and the segment is uploaded once HDFS is available again.
+     */
+    @Test
+    public void testUploadLongOutage() {
+        System.out.println("Testing HDFSBackendStaging.upload (long outage)");
+        long minute = 60000;
+        
+        try {
+            doThrow(new Exception("HDFS is not available")).when(mockBackend).uploadFile(anyString(),
+                    any(byte[].class), anyInt());
+            HDFSBackendStaging staging = new HDFSBackendStaging(mockBackend, stagingDir, 1000000, hour, 0, 0);
+            staging.append(filePath, "line1");
+            long now = System.currentTimeMillis();
+            staging.finishAged(now + hour);
+            
+            // a day of outage
+            for (int i = 0; i < 24 * 60; i++) {
+                staging.upload(now + i * minute);
+            } // for
+            
+            verify(mockBackend, times(24 * 60)).uploadFile(anyString(), any(byte[].class), anyInt());
+            assertEquals(1, staging.getNumFinishedSegments());
+            doNothing().when(mockBackend).uploadFile(anyString(), any(byte[].class), anyInt());
+            staging.upload(now + 24 * 60 * minute);
+            verify(mockBackend, times(24 * 60 + 1)).uploadFile(startsWith(dirPath), aryEq("line1\n".getBytes()),
+                    anyInt());
+            assertEquals(0, staging.getNumFinishedSegments());
+            assertEquals(0, stagingDir.listFiles().length);
+            staging.close();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testUploadLongOutage
+    
+    /**
+     * Test of upload method, of class HDFSBackendStaging. The segments having a malformed header are quarantined
+     * without being uploaded, since retrying them would fail forever.
+     */
+    @Test
+    public void testUploadMalformed() {
+        System.out.println("Testing HDFSBackendStaging.upload (malformed segments)");
+        
+        try {
+            assertTrue(stagingDir.mkdirs());
+            FileOutputStream out = new FileOutputStream(new File(stagingDir, "0000000000001.seg"));
+            out.write("garbage\nline1\n".getBytes());
+            out.close();
+            out = new FileOutputStream(new File(stagingDir, "0000000000002.seg"));
+            out.write("text nopath\nline1\n".getBytes());
+            out.close();
+            HDFSBackendStaging staging = new HDFSBackendStaging(mockBackend, stagingDir, 1000000, hour, 0, 0);
+            assertEquals(2, staging.getNumFinishedSegments());
+            staging.upload(System.currentTimeMillis());
+            verify(mockBackend, never()).uploadFile(anyString(), any(byte[].class), anyInt());
+            assertEquals(0, staging.getNumFinishedSegments());
+            File[] files = stagingDir.listFiles();
+            assertEquals(2, files.length);
+            
+            for (File file : files) {
+                assertTrue(file.getName().endsWith(".seg.failed"));
+            } // for
+            
+            staging.close();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testUploadMalformed
+    
+    /**
+     * Test of the constructor, of class HDFSBackendStaging. The segments left by a previous run are uploaded; the
+     * partial writes are discarded.
+     */
+    @Test
+    public void testRecover() {
+        System.out.println("Testing HDFSBackendStaging (recovering the segments of a previous run)");
+        byte[] binaryData = new byte[] {0, 1, 2, '\n', 3};
+        
+        try {
+            doNothing().when(mockBackend).uploadFile(anyString(), any(byte[].class), anyInt());
+            HDFSBackendStaging staging = new HDFSBackendStaging(mockBackend, stagingDir, 1000000, hour, 0, 0);
+            staging.append(filePath, "line1");
+            staging.createBinaryFile(binaryFilePath, binaryData);
+            
+            // a crash while writing is simulated, without closing the staging backend
+            File[] openFiles = stagingDir.listFiles();
+            assertEquals(2, openFiles.length);
+            
+            for (File file : openFiles) {
+                if (file.getName().endsWith(".open")) {
+                    FileOutputStream out = new FileOutputStream(file, true);
+                    out.write("partial li".getBytes());
+                    out.close();
+                } // if
+            } // for
+            
+            HDFSBackendStaging recovered = new HDFSBackendStaging(mockBackend, stagingDir, 1000000, hour, 0, 0);
+            assertEquals(2, recovered.getNumFinishedSegments());
+            recovered.upload(System.currentTimeMillis());
+            verify(mockBackend).uploadFile(anyString(), aryEq("line1\n".getBytes()), anyInt());
+            verify(mockBackend).uploadFile(eq(binaryFilePath), aryEq(binaryData), anyInt());
+            recovered.close();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testRecover
+    
+} // HDFSBackendStagingTest
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class HDFSCacheTest {
+    
+    // constants
+    private final String dirPath = "vehicles/4wheels/car1_car";
+    private final String filePath = "vehicles/4wheels/car1_car/car1_car.txt";
+    private final String tableName = "user1_vehicles_4wheels_car1_car_row";
+    private final String partition = "year=2015/month=04";
+    
+    /**
+     * Test of the directories and files entries, of class HDFSCache.
+     */
+    @Test
+    public void testDirsFiles() {
+        System.out.println("Testing HDFSCache.addDir, addFile and removeFile");
+        HDFSCache cache = new HDFSCache();
+        assertFalse(cache.isCachedDir(dirPath));
+        assertFalse(cache.isCachedFile(filePath));
+        cache.addDir(dirPath);
+        cache.addFile(filePath);
+        assertTrue(cache.isCachedDir(dirPath));
+        assertTrue(cache.isCachedFile(filePath));
+        cache.removeFile(filePath);
+        assertFalse(cache.isCachedFile(filePath));
+        assertTrue(cache.isCachedDir(dirPath));
+    } // testDirsFiles
+    
+    /**
+     * Test of the Hive tables and partitions entries, of class HDFSCache.
+     */
+    @Test
+    public void testTablesPartitions() {
+        System.out.println("Testing HDFSCache.addTable and addPartition");
+        HDFSCache cache = new HDFSCache();
+        cache.addTable(tableName);
+        cache.addPartition(tableName, partition);
+        assertTrue(cache.isCachedTable(tableName));
+        assertTrue(cache.isCachedPartition(tableName, partition));
+        assertFalse(cache.isCachedPartition(tableName, "year=2015/month=05"));
+        cache.clear();
+        assertFalse(cache.isCachedTable(tableName));
+        assertFalse(cache.isCachedPartition(tableName, partition));
+    } // testTablesPartitions
+    
+    /**
+     * Test of the bounds, of class HDFSCache. The least recently used entries are forgotten.
+     */
+    @Test
+    public void testBounds() {
+        System.out.println("Testing HDFSCache.addFile (bounds)");
+        HDFSCache cache = new HDFSCache();
+        cache.addFile(filePath);
+        
+        for (int i = 0; i < 20000; i++) {
+            assertTrue(cache.isCachedFile(filePath));
+            cache.addFile(filePath + i);
+        } // for
+        
+        assertTrue(cache.isCachedFile(filePath));
+        assertFalse(cache.isCachedFile(filePath + 0));
+    } // testBounds
+    
+} // HDFSCacheTest
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author frb
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class HDFSWriterManagerTest {
+    
+    // mocks
+    @Mock
+    private FileSystem mockFileSystem;
+    @Mock
+    private FSDataOutputStream mockOut;
+    
+    // constants
+    private final String filePath = "/user/hdfs-user/service/rooms/room1_room/room1_room.txt";
+    private final byte[] data = "this is a lot of data\n".getBytes();
+    
+    /**
+     * Sets up tests by defining the behaviour of the mocked classes.
+     * 
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        when(mockFileSystem.create(Mockito.any(Path.class))).thenReturn(mockOut);
+        when(mockFileSystem.append(Mockito.any(Path.class))).thenReturn(mockOut);
+    } // setUp
+    
+    /**
+     * Test of write method, of class HDFSWriterManager. The stream is opened once, and synced at each write.
+     */
+    @Test
+    public void testWrite() {
+        System.out.println("Testing HDFSWriterManager.write");
+        HDFSWriterManager manager = new HDFSWriterManager(mockFileSystem, 0, 0, 0, 10, null);
+        
+        try {
+            assertFalse(manager.isOpen(filePath));
+            manager.write(filePath, false, data);
+            manager.write(filePath, false, data);
+            manager.write(filePath, false, data);
+            assertTrue(manager.isOpen(filePath));
+            verify(mockFileSystem, times(1)).append(new Path(filePath));
+            verify(mockOut, times(3)).sync();
+            manager.close();
+            verify(mockOut, times(1)).close();
+            assertFalse(manager.isOpen(filePath));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testWrite
+    
+    /**
+     * Test of write method, of class HDFSWriterManager. The files are rolled by size.
+     */
+    @Test
+    public void testRoll() {
+        System.out.println("Testing HDFSWriterManager.write (rolling files)");
+        HDFSWriterManager manager = new HDFSWriterManager(mockFileSystem, 2 * data.length, 0, 0, 10, null);
+        
+        try {
+            manager.write(filePath, true, data);
+            manager.write(filePath, false, data);
+            verify(mockFileSystem, times(1)).create(Mockito.any(Path.class));
+            manager.write(filePath, false, data);
+            verify(mockFileSystem, times(2)).create(Mockito.any(Path.class));
+            verify(mockOut, times(1)).close();
+            manager.close();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        assertEquals("/user/a/b.1000.txt", HDFSWriterManager.getRolledPath("/user/a/b.txt", 1000));
+        assertEquals("/user/a.b/c.1000", HDFSWriterManager.getRolledPath("/user/a.b/c", 1000));
+    } // testRoll
+    
+    /**
+     * Test of write and closeIdle methods, of class HDFSWriterManager. The bytes already written to a file whose idle
+     * stream was closed are taken into account when reopening it, thus it is rolled instead of growing forever.
+     */
+    @Test
+    public void testRollReopened() {
+        System.out.println("Testing HDFSWriterManager.write (rolling files reopened after being idle)");
+        HDFSWriterManager manager = new HDFSWriterManager(mockFileSystem, 2 * data.length, 0, 3600000, 10, null);
+        long now = System.currentTimeMillis();
+        
+        try {
+            when(mockFileSystem.getFileStatus(new Path(filePath))).thenReturn(
+                    new FileStatus(data.length, false, 1, 0, now, new Path(filePath)),
+                    new FileStatus(2 * data.length, false, 1, 0, now, new Path(filePath)));
+            manager.write(filePath, false, data);
+            manager.closeIdle(System.currentTimeMillis() + 3600000);
+            assertFalse(manager.isOpen(filePath));
+            manager.write(filePath, false, data);
+            verify(mockFileSystem, times(1)).append(new Path(filePath));
+            verify(mockFileSystem, times(1)).create(Mockito.any(Path.class));
+            verify(mockFileSystem, Mockito.never()).create(new Path(filePath));
+            manager.close();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testRollReopened
+    
+    /**
+     * Test of write and closeIdle methods, of class HDFSWriterManager. The least recently used and the idle streams
+     * are closed.
+     */
+    @Test
+    public void testClose() {
+        System.out.println("Testing HDFSWriterManager.write and HDFSWriterManager.closeIdle");
+        HDFSWriterManager manager = new HDFSWriterManager(mockFileSystem, 0, 0, 3600000, 2, null);
+        
+        try {
+            manager.write(filePath + "1", false, data);
+            manager.write(filePath + "2", false, data);
+            manager.write(filePath + "1", false, data);
+            manager.write(filePath + "3", false, data);
+            assertEquals(2, manager.getNumOpenStreams());
+            assertTrue(manager.isOpen(filePath + "1"));
+            assertFalse(manager.isOpen(filePath + "2"));
+            verify(mockOut, times(1)).close();
+            manager.closeIdle(System.currentTimeMillis() + 3600000);
+            assertEquals(0, manager.getNumOpenStreams());
+            verify(mockOut, times(3)).close();
+            manager.close();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testClose
+    
+    /**
+     * Test of write method, of class HDFSWriterManager. The files are block compressed SequenceFiles having a record
+     * per line, and the data appended to an existing file is written to a rolled file. The local file system is used.
+     */
+    @Test
+    public void testWriteCompressed() {
+        System.out.println("Testing HDFSWriterManager.write (compressed SequenceFiles)");
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cygnus-seq-" + System.nanoTime());
+        
+        try {
+            Configuration conf = new Configuration();
+            FileSystem localFS = FileSystem.getLocal(conf).getRaw();
+            String localPath = new File(dir, "room1_room.seq").getAbsolutePath();
+            HDFSWriterManager manager = new HDFSWriterManager(localFS, 0, 0, 0, 10, new DefaultCodec());
+            manager.write(localPath, true, "line1\nline2\n".getBytes());
+            manager.write(localPath, false, "line3\n".getBytes());
+            manager.close();
+            manager = new HDFSWriterManager(localFS, 0, 0, 0, 10, new DefaultCodec());
+            manager.write(localPath, false, "line4\n".getBytes());
+            manager.close();
+            FileStatus[] files = localFS.listStatus(new Path(dir.getAbsolutePath()));
+            assertEquals(2, files.length);
+            assertEquals("line1,line2,line3", readLines(localFS, conf, new Path(localPath)));
+            
+            for (FileStatus file : files) {
+                if (!file.getPath().getName().equals("room1_room.seq")) {
+                    assertEquals("line4", readLines(localFS, conf, file.getPath()));
+                } // if
+            } // for
+            
+            localFS.delete(new Path(dir.getAbsolutePath()), true);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testWriteCompressed
+    
+    private String readLines(FileSystem fs, Configuration conf, Path path) throws IOException {
+        SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf);
+        
+        try {
+            assertTrue(reader.isBlockCompressed());
+            BytesWritable key = new BytesWritable();
+            Text value = new Text();
+            ArrayList<String> lines = new ArrayList<String>();
+            
+            while (reader.next(key, value)) {
+                lines.add(value.toString());
+            } // while
+            
+            String joined = "";
+            
+            for (String line : lines) {
+                joined += (joined.isEmpty() ? "" : ",") + line;
+            } // for
+            
+            return joined;
+        } finally {
+            reader.close();
+        } // try finally
+    } // readLines
+    
+} // HDFSWriterManagerTest
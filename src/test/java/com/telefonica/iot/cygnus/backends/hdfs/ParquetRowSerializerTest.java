@@ -0,0 +1,126 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.hdfs;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import java.io.File;
+import java.io.FileOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+import parquet.example.data.Group;
+import parquet.hadoop.ParquetReader;
+import parquet.hadoop.example.GroupReadSupport;
+
+/**
+ *
+ * @author frb
+ */
+public class ParquetRowSerializerTest {
+    
+    // constants
+    private final long recvTimeTs = 1429535775L;
+    private final String recvTime = "2015-04-20T12:56:15.000";
+    private final String servicePath = "/rooms";
+    private final String entityId = "room1";
+    private final String entityType = "room";
+    private final String attrMd = "[]";
+    
+    /**
+     * Test of serialize method, of class ParquetRowSerializer. The serialized file is read back.
+     */
+    @Test
+    public void testSerialize() {
+        System.out.println("Testing ParquetRowSerializer.serialize");
+        File file = null;
+        
+        try {
+            ParquetRowSerializer serializer = new ParquetRowSerializer();
+            serializer.add(recvTimeTs, recvTime, servicePath, entityId, entityType, "temperature", "float", "26.5",
+                    attrMd);
+            serializer.add(recvTimeTs, recvTime, servicePath, entityId, entityType, "status", "string", "open",
+                    attrMd);
+            byte[] data = serializer.serialize();
+            assertEquals("PAR1", new String(data, 0, 4, "US-ASCII"));
+            
+            file = File.createTempFile("cygnus-test-", ".parquet");
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(data);
+            out.close();
+            
+            ParquetReader<Group> reader = new ParquetReader<Group>(new Path(file.toURI()), new GroupReadSupport());
+            Group first = reader.read();
+            Group second = reader.read();
+            assertNull(reader.read());
+            reader.close();
+            
+            assertEquals(String.valueOf(recvTimeTs), getValue(first, "recvtimets"));
+            assertEquals("temperature", first.getString("attrname", 0));
+            assertEquals("26.5", getValue(first, "attrvalue_num"));
+            assertEquals("open", second.getString("attrvalue", 0));
+            assertEquals(0, second.getFieldRepetitionCount("attrvalue_num"));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } finally {
+            if (file != null) {
+                file.delete();
+            } // if
+        } // try catch finally
+    } // testSerialize
+    
+    /**
+     * Test of addAll, truncate and getRawSize methods, of class ParquetRowSerializer.
+     */
+    @Test
+    public void testAddAllAndTruncate() {
+        System.out.println("Testing ParquetRowSerializer.addAll and ParquetRowSerializer.truncate");
+        ParquetRowSerializer serializer = new ParquetRowSerializer();
+        serializer.add(recvTimeTs, recvTime, servicePath, entityId, entityType, "temperature", "float", "26.5",
+                attrMd);
+        long rawSize = serializer.getRawSize();
+        assertTrue(rawSize > 0);
+        ParquetRowSerializer other = new ParquetRowSerializer();
+        other.add(recvTimeTs, recvTime, servicePath, entityId, entityType, "status", "string", "open", attrMd);
+        serializer.addAll(other);
+        assertEquals(2, serializer.getNumRows());
+        assertEquals(rawSize + other.getRawSize(), serializer.getRawSize());
+        serializer.truncate(1);
+        assertEquals(1, serializer.getNumRows());
+        assertEquals(rawSize, serializer.getRawSize());
+    } // testAddAllAndTruncate
+    
+    private String getValue(Group group, String field) {
+        return group.getValueToString(group.getType().getFieldIndex(field), 0);
+    } // getValue
+    
+    /**
+     * Test of toNumber method, of class ParquetRowSerializer.
+     */
+    @Test
+    public void testToNumber() {
+        System.out.println("Testing ParquetRowSerializer.toNumber");
+        assertEquals(Double.valueOf(26.5), ParquetRowSerializer.toNumber("26.5"));
+        assertEquals(Double.valueOf(-1200), ParquetRowSerializer.toNumber("-1.2e3"));
+        assertNull(ParquetRowSerializer.toNumber("open"));
+        assertNull(ParquetRowSerializer.toNumber("NaN"));
+        assertNull(ParquetRowSerializer.toNumber("12d"));
+        assertNull(ParquetRowSerializer.toNumber("1-2"));
+        assertNull(ParquetRowSerializer.toNumber(""));
+    } // testToNumber
+    
+} // ParquetRowSerializerTest
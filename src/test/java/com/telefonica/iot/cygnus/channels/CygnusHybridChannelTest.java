@@ -0,0 +1,201 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import java.io.File;
+import java.io.IOException;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class CygnusHybridChannelTest {
+
+    private File createSpillDir() throws IOException {
+        File dir = File.createTempFile("cygnus-spill", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    } // createSpillDir
+
+    private CygnusHybridChannel createChannel(File spillDir, String spillByteCapacity) {
+        Context context = new Context();
+        context.put("capacity", "1000");
+        context.put("transactionCapacity", "100");
+        context.put("memoryCapacity", "5");
+        context.put("spillDir", spillDir.getAbsolutePath());
+        context.put("spillByteCapacity", spillByteCapacity);
+        context.put("segmentSize", "64");
+        context.put("keep-alive", "0");
+        CygnusHybridChannel channel = new CygnusHybridChannel();
+        channel.setName("ch");
+        Configurables.configure(channel, context);
+        channel.start();
+        return channel;
+    } // createChannel
+
+    private void put(CygnusHybridChannel channel, int from, int to) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+
+        try {
+            for (int i = from; i < to; i++) {
+                channel.put(EventBuilder.withBody(("event" + i).getBytes()));
+            } // for
+
+            txn.commit();
+        } catch (ChannelException e) {
+            txn.rollback();
+            throw e;
+        } finally {
+            txn.close();
+        } // try catch finally
+    } // put
+
+    private int take(CygnusHybridChannel channel, int next, int numEvents, boolean commit) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+
+        for (int i = 0; i < numEvents; i++) {
+            Event event = channel.take();
+            assertEquals("event" + next, new String(event.getBody()));
+            next++;
+        } // for
+
+        if (commit) {
+            txn.commit();
+        } else {
+            txn.rollback();
+        } // if else
+
+        txn.close();
+        return next;
+    } // take
+
+    /**
+     * Test of put and take methods, of class CygnusHybridChannel. The events beyond the memory capacity are spilled to
+     * disk, and all the events are taken in order.
+     */
+    @Test
+    public void testSpill() {
+        System.out.println("Testing CygnusHybridChannel.put and CygnusHybridChannel.take (spilling to disk)");
+
+        try {
+            File spillDir = createSpillDir();
+            CygnusHybridChannel channel = createChannel(spillDir, "1000000");
+            put(channel, 0, 3);
+            put(channel, 3, 20);
+            assertEquals(5, channel.getNumMemoryEvents());
+            assertEquals(15, channel.getNumSpilledEvents());
+            assertTrue(spillDir.list().length > 1);
+
+            // the events taken within a rollbacked transaction are restored in memory, but the order is kept
+            int next = take(channel, 0, 7, false);
+            assertEquals(7, next);
+            assertEquals(7, channel.getNumMemoryEvents());
+            next = take(channel, 0, 10, true);
+
+            // while there are spilled events, the new events are spilled as well
+            put(channel, 20, 22);
+            assertEquals(0, channel.getNumMemoryEvents());
+            assertEquals(12, channel.getNumSpilledEvents());
+            next = take(channel, next, 12, true);
+            assertEquals(0, channel.getNumSpilledEvents());
+            assertEquals(0, channel.getSpilledBytes());
+            assertTrue(spillDir.list().length <= 1);
+
+            // once the sinks catch up, the events are kept in memory again
+            put(channel, 22, 24);
+            assertEquals(2, channel.getNumMemoryEvents());
+            take(channel, next, 2, true);
+            assertEquals(0, channel.getNumEvents());
+            channel.stop();
+            assertEquals(0, spillDir.list().length);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testSpill
+
+    /**
+     * Test of start method, of class CygnusHybridChannel. Only the stale spill files of the channel are deleted, those
+     * of other channels sharing the spill directory are kept, even if their names start with the channel name.
+     */
+    @Test
+    public void testDeleteStaleSegments() {
+        System.out.println("Testing CygnusHybridChannel.start (deleting the stale spill files)");
+        
+        try {
+            File spillDir = createSpillDir();
+            File stale = new File(spillDir, "ch-3.spill");
+            File otherChannel = new File(spillDir, "ch-2-1.spill");
+            File otherPrefix = new File(spillDir, "channel-1.spill");
+            File otherFile = new File(spillDir, "ch-1.txt");
+            assertTrue(stale.createNewFile());
+            assertTrue(otherChannel.createNewFile());
+            assertTrue(otherPrefix.createNewFile());
+            assertTrue(otherFile.createNewFile());
+            CygnusHybridChannel channel = createChannel(spillDir, "1000000");
+            assertFalse(stale.exists());
+            assertTrue(otherChannel.exists());
+            assertTrue(otherPrefix.exists());
+            assertTrue(otherFile.exists());
+            channel.stop();
+            assertTrue(otherChannel.delete());
+            assertTrue(otherPrefix.delete());
+            assertTrue(otherFile.delete());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testDeleteStaleSegments
+    
+    /**
+     * Test of put method, of class CygnusHybridChannel. The events not fitting the spill capacity are rejected.
+     */
+    @Test
+    public void testFull() {
+        System.out.println("Testing CygnusHybridChannel.put (the spill files are full)");
+
+        try {
+            CygnusHybridChannel channel = createChannel(createSpillDir(), "50");
+            put(channel, 0, 8);
+
+            try {
+                put(channel, 8, 10);
+                fail("The channel should be full");
+            } catch (ChannelException e) {
+                assertEquals(8, channel.getNumEvents());
+                assertEquals(3, channel.getNumSpilledEvents());
+            } // try catch
+
+            channel.stop();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testFull
+
+} // CygnusHybridChannelTest
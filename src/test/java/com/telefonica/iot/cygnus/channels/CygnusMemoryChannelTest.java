@@ -0,0 +1,164 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.flume.Context;
+import org.apache.flume.Transaction;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class CygnusMemoryChannelTest {
+
+    private CygnusMemoryChannel createChannel() {
+        Context context = new Context();
+        context.put("capacity", "100000");
+        context.put("transactionCapacity", "100");
+        context.put("keep-alive", "0");
+        CygnusMemoryChannel channel = new CygnusMemoryChannel();
+        channel.setName("ch");
+        Configurables.configure(channel, context);
+        channel.start();
+        return channel;
+    } // createChannel
+
+    private void put(CygnusMemoryChannel channel, int numEvents) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+
+        for (int i = 0; i < numEvents; i++) {
+            channel.put(EventBuilder.withBody(new byte[10]));
+        } // for
+
+        txn.commit();
+        txn.close();
+    } // put
+
+    /**
+     * Test of put, take and rollback methods, of class CygnusMemoryChannel.
+     */
+    @Test
+    public void testCounters() {
+        System.out.println("Testing CygnusMemoryChannel.put, CygnusMemoryChannel.take and rollbacks");
+        CygnusMemoryChannel channel = createChannel();
+        put(channel, 5);
+        assertEquals(5, channel.getNumEvents());
+        assertEquals(50, channel.getNumBytes());
+
+        // the events taken within a rollbacked transaction remain in the channel
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        channel.take();
+        channel.take();
+        channel.take();
+        txn.rollback();
+        txn.close();
+        assertEquals(5, channel.getNumEvents());
+        assertEquals(1, channel.getNumRollbacks());
+
+        // the events put within a rollbacked transaction are discarded
+        txn = channel.getTransaction();
+        txn.begin();
+        channel.put(EventBuilder.withBody(new byte[10]));
+        txn.rollback();
+        txn.close();
+        assertEquals(5, channel.getNumEvents());
+
+        txn = channel.getTransaction();
+        txn.begin();
+        channel.take();
+        channel.take();
+        txn.commit();
+        txn.close();
+        assertEquals(3, channel.getNumEvents());
+        assertEquals(30, channel.getNumBytes());
+        assertEquals(5, channel.getNumPuts());
+        assertEquals(2, channel.getNumTakes());
+        channel.stop();
+    } // testCounters
+
+    /**
+     * Test of put and take methods, of class CygnusMemoryChannel. The counters are exact when putting and taking
+     * concurrently.
+     */
+    @Test
+    public void testConcurrentCounters() {
+        System.out.println("Testing CygnusMemoryChannel.put and CygnusMemoryChannel.take (concurrently)");
+        final CygnusMemoryChannel channel = createChannel();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        put(channel, 10);
+                    } // for
+                } // run
+            });
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        Transaction txn = channel.getTransaction();
+                        txn.begin();
+
+                        for (int k = 0; k < 5; k++) {
+                            channel.take();
+                        } // for
+
+                        if (j % 2 == 0) {
+                            txn.commit();
+                        } else {
+                            txn.rollback();
+                        } // if else
+
+                        txn.close();
+                    } // for
+                } // run
+            });
+        } // for
+
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            } // for
+
+            for (Thread thread : threads) {
+                thread.join();
+            } // for
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        } // try catch
+
+        assertEquals(4000, channel.getNumPuts());
+        assertEquals(4000 - channel.getNumTakes(), channel.getNumEvents());
+        assertEquals(10 * channel.getNumEvents(), channel.getNumBytes());
+        assertEquals(200, channel.getNumRollbacks());
+        channel.stop();
+    } // testConcurrentCounters
+
+} // CygnusMemoryChannelTest
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.utils.Constants;
+import java.util.HashMap;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class CygnusOffHeapChannelTest {
+
+    private CygnusOffHeapChannel createChannel(long byteCapacity, int segmentSize) {
+        Context context = new Context();
+        context.put("capacity", "1000");
+        context.put("transactionCapacity", "100");
+        context.put("byteCapacity", Long.toString(byteCapacity));
+        context.put("segmentSize", Integer.toString(segmentSize));
+        context.put("keep-alive", "0");
+        CygnusOffHeapChannel channel = new CygnusOffHeapChannel();
+        channel.setName("ch");
+        Configurables.configure(channel, context);
+        channel.start();
+        return channel;
+    } // createChannel
+
+    private Event createEvent(int i) {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.HEADER_NOTIFIED_SERVICE, "service");
+        headers.put("custom", "value" + i);
+        return EventBuilder.withBody(("event" + i).getBytes(), headers);
+    } // createEvent
+
+    private void put(CygnusOffHeapChannel channel, int from, int to) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+
+        try {
+            for (int i = from; i < to; i++) {
+                channel.put(createEvent(i));
+            } // for
+
+            txn.commit();
+        } catch (ChannelException e) {
+            txn.rollback();
+            throw e;
+        } finally {
+            txn.close();
+        } // try catch finally
+    } // put
+
+    /**
+     * Test of put and take methods, of class CygnusOffHeapChannel. The events are taken in order, and those taken
+     * within a rollbacked transaction are taken again in the same order.
+     */
+    @Test
+    public void testPutTakeRollback() {
+        System.out.println("Testing CygnusOffHeapChannel.put and CygnusOffHeapChannel.take");
+        // small segments, thus the records are split among segments and the ring wraps around
+        CygnusOffHeapChannel channel = createChannel(200, 16);
+        int next = 0;
+
+        for (int round = 0; round < 10; round++) {
+            put(channel, round * 3, round * 3 + 3);
+            assertTrue(channel.getOccupiedBytes() <= channel.getByteCapacity());
+
+            Transaction txn = channel.getTransaction();
+            txn.begin();
+            assertEquals("event" + next, new String(channel.take().getBody()));
+            assertEquals("event" + (next + 1), new String(channel.take().getBody()));
+            txn.rollback();
+            txn.close();
+
+            txn = channel.getTransaction();
+            txn.begin();
+
+            for (int i = 0; i < 3; i++) {
+                Event event = channel.take();
+                assertEquals("event" + next, new String(event.getBody()));
+                assertEquals("service", event.getHeaders().get(Constants.HEADER_NOTIFIED_SERVICE));
+                assertEquals("value" + next, event.getHeaders().get("custom"));
+                next++;
+            } // for
+
+            assertNull(channel.take());
+            txn.commit();
+            txn.close();
+        } // for
+
+        assertEquals(0, channel.getNumEvents());
+        assertEquals(0, channel.getOccupiedBytes());
+        assertEquals(10, channel.getNumRollbacks());
+        channel.stop();
+    } // testPutTakeRollback
+
+    /**
+     * Test of put method, of class CygnusOffHeapChannel. The events not fitting the byte capacity are rejected.
+     */
+    @Test
+    public void testFull() {
+        System.out.println("Testing CygnusOffHeapChannel.put (the channel is full)");
+        CygnusOffHeapChannel channel = createChannel(200, 64);
+        put(channel, 0, 4);
+
+        try {
+            put(channel, 4, 8);
+            fail("The channel should be full");
+        } catch (ChannelException e) {
+            assertEquals(4, channel.getNumEvents());
+        } // try catch
+
+        // the space of the events taken within the same transaction is available for the put ones
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+
+        for (int i = 0; i < 4; i++) {
+            channel.take();
+        } // for
+
+        for (int i = 4; i < 8; i++) {
+            channel.put(createEvent(i));
+        } // for
+
+        txn.commit();
+        txn.close();
+        assertEquals(4, channel.getNumEvents());
+        channel.stop();
+    } // testFull
+
+} // CygnusOffHeapChannelTest
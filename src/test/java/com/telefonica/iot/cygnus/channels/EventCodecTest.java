@@ -0,0 +1,58 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.utils.Constants;
+import java.util.HashMap;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class EventCodecTest {
+
+    /**
+     * Test of encode and decode methods, of class EventCodec.
+     */
+    @Test
+    public void testEncodeDecode() {
+        System.out.println("Testing EventCodec.encode and EventCodec.decode");
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.HEADER_NOTIFIED_SERVICE_PATH, "/rooms");
+        headers.put(Constants.HEADER_TIMESTAMP, "1429535775");
+        headers.put("ñ-custom", "válue");
+        headers.put("empty", "");
+        byte[] body = new byte[300];
+        body[299] = 1;
+        byte[] record = EventCodec.encode(EventBuilder.withBody(body, headers));
+        Event event = EventCodec.decode(record);
+        assertEquals(headers, event.getHeaders());
+        assertArrayEquals(body, event.getBody());
+
+        // the header names set by Cygnus take a single byte
+        headers.clear();
+        headers.put(Constants.HEADER_NOTIFIED_SERVICE_PATH, "");
+        assertEquals(3, EventCodec.encode(EventBuilder.withBody(new byte[0], headers)).length);
+    } // testEncodeDecode
+
+} // EventCodecTest
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channelselectors;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.containers.Routing;
+import com.telefonica.iot.cygnus.utils.Constants;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class DestinationAffinityChannelSelectorTest {
+    
+    private DestinationAffinityChannelSelector createSelector(String storage2, String affinity) {
+        ArrayList<Channel> allChannels = new ArrayList<Channel>();
+        
+        for (int i = 1; i <= 4; i++) {
+            Channel channel = new MemoryChannel();
+            channel.setName("ch" + i);
+            allChannels.add(channel);
+        } // for
+        
+        DestinationAffinityChannelSelector channelSelector = new DestinationAffinityChannelSelector();
+        channelSelector.setChannels(allChannels);
+        Context context = new Context();
+        context.put("storages", "2");
+        context.put("storages.storage1", "ch1");
+        context.put("storages.storage2", storage2);
+        context.put("affinity", affinity);
+        channelSelector.configure(context);
+        return channelSelector;
+    } // createSelector
+    
+    private Event createEvent(String destination, String servicePath) {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.HEADER_NOTIFIED_SERVICE, "service");
+        headers.put(Constants.HEADER_NOTIFIED_SERVICE_PATH, servicePath);
+        new Routing(new String[] {destination}, new String[] {servicePath}, new String[] {destination},
+                new String[] {servicePath}).toHeaders(headers);
+        return EventBuilder.withBody(new byte[0], headers);
+    } // createEvent
+    
+    /**
+     * Test of getRequiredChannels method, of class DestinationAffinityChannelSelector. The events of a destination
+     * are always put into the same channel, and the destinations are spread among the channels.
+     */
+    @Test
+    public void testGetRequiredChannels() {
+        System.out.println("Testing DestinationAffinityChannelSelector.getRequiredChannels");
+        DestinationAffinityChannelSelector channelSelector = createSelector("ch2,ch3,ch4", "destination");
+        HashSet<String> usedChannels = new HashSet<String>();
+        
+        for (int i = 0; i < 100; i++) {
+            Event event = createEvent("room" + i + "_room", "rooms");
+            List<Channel> requiredChannels = channelSelector.getRequiredChannels(event);
+            assertEquals(2, requiredChannels.size());
+            assertEquals("ch1", requiredChannels.get(0).getName());
+            assertSame(requiredChannels.get(1), channelSelector.getRequiredChannels(event).get(1));
+            usedChannels.add(requiredChannels.get(1).getName());
+        } // for
+        
+        assertEquals(3, usedChannels.size());
+        
+        // with service path affinity, all the destinations of a service path go to the same channel
+        channelSelector = createSelector("ch2,ch3,ch4", "service-path");
+        Channel channel = channelSelector.getRequiredChannels(createEvent("room1_room", "rooms")).get(1);
+        
+        for (int i = 0; i < 100; i++) {
+            assertSame(channel, channelSelector.getRequiredChannels(createEvent("room" + i + "_room", "rooms")).get(1));
+        } // for
+    } // testGetRequiredChannels
+    
+    /**
+     * Test of getRequiredChannels method, of class DestinationAffinityChannelSelector. Removing a channel only moves
+     * the destinations of that channel.
+     */
+    @Test
+    public void testConsistency() {
+        System.out.println("Testing DestinationAffinityChannelSelector.getRequiredChannels (removing a channel)");
+        DestinationAffinityChannelSelector channelSelector = createSelector("ch2,ch3,ch4", "destination");
+        DestinationAffinityChannelSelector newChannelSelector = createSelector("ch2,ch3", "destination");
+        
+        for (int i = 0; i < 100; i++) {
+            Event event = createEvent("room" + i + "_room", "rooms");
+            String channelName = channelSelector.getRequiredChannels(event).get(1).getName();
+            
+            if (!channelName.equals("ch4")) {
+                assertEquals(channelName, newChannelSelector.getRequiredChannels(event).get(1).getName());
+            } // if
+        } // for
+    } // testConsistency
+    
+    /**
+     * Test of configure method, of class DestinationAffinityChannelSelector. Unknown channels are rejected.
+     */
+    @Test
+    public void testConfigureUnknownChannel() {
+        System.out.println("Testing DestinationAffinityChannelSelector.configure (unknown channel)");
+        
+        try {
+            createSelector("ch2,ch5", "destination");
+            fail("The configuration should be rejected");
+        } catch (FlumeException e) {
+            assertTrue(e.getMessage().contains("ch5"));
+        } // try catch
+    } // testConfigureUnknownChannel
+    
+} // DestinationAffinityChannelSelectorTest
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channelselectors;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.channels.CygnusMemoryChannel;
+import java.util.ArrayList;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class LoadAwareChannelSelectorTest {
+    
+    // constants
+    private final Event event = EventBuilder.withBody(new byte[0]);
+    
+    private CygnusMemoryChannel createChannel(String name) {
+        Context context = new Context();
+        context.put("capacity", "1000");
+        context.put("transactionCapacity", "100");
+        context.put("keep-alive", "0");
+        CygnusMemoryChannel channel = new CygnusMemoryChannel();
+        channel.setName(name);
+        Configurables.configure(channel, context);
+        channel.start();
+        return channel;
+    } // createChannel
+    
+    private LoadAwareChannelSelector createSelector(ArrayList<Channel> channels, String stallTimeout) {
+        LoadAwareChannelSelector channelSelector = new LoadAwareChannelSelector();
+        channelSelector.setChannels(channels);
+        Context context = new Context();
+        context.put("storages", "1");
+        context.put("storages.storage1", "ch1,ch2");
+        context.put("hysteresis", "10");
+        context.put("stall_timeout", stallTimeout);
+        channelSelector.configure(context);
+        return channelSelector;
+    } // createSelector
+    
+    private void put(Channel channel, int numEvents) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        
+        for (int i = 0; i < numEvents; i++) {
+            channel.put(event);
+        } // for
+        
+        txn.commit();
+        txn.close();
+    } // put
+    
+    /**
+     * Test of getRequiredChannels method, of class LoadAwareChannelSelector. The events are put in a round robin
+     * fashion while the channels are balanced, and into the least loaded channel otherwise, with hysteresis.
+     */
+    @Test
+    public void testGetRequiredChannels() {
+        System.out.println("Testing LoadAwareChannelSelector.getRequiredChannels");
+        CygnusMemoryChannel channel1 = createChannel("ch1");
+        CygnusMemoryChannel channel2 = createChannel("ch2");
+        ArrayList<Channel> channels = new ArrayList<Channel>();
+        channels.add(channel1);
+        channels.add(channel2);
+        LoadAwareChannelSelector channelSelector = createSelector(channels, "0");
+        
+        // balanced channels
+        assertSame(channel1, channelSelector.getRequiredChannels(event).get(0));
+        assertSame(channel2, channelSelector.getRequiredChannels(event).get(0));
+        put(channel1, 5);
+        assertSame(channel1, channelSelector.getRequiredChannels(event).get(0));
+        assertSame(channel2, channelSelector.getRequiredChannels(event).get(0));
+        
+        // unbalanced channels, the least loaded one is selected until the difference is below half the hysteresis
+        put(channel1, 10);
+        
+        for (int i = 0; i < 10; i++) {
+            Channel channel = channelSelector.getRequiredChannels(event).get(0);
+            assertSame(channel2, channel);
+            put(channel, 1);
+        } // for
+        
+        // balanced channels again
+        assertSame(channel1, channelSelector.getRequiredChannels(event).get(0));
+        assertSame(channel2, channelSelector.getRequiredChannels(event).get(0));
+        channel1.stop();
+        channel2.stop();
+    } // testGetRequiredChannels
+    
+    /**
+     * Test of getRequiredChannels method, of class LoadAwareChannelSelector. The channels whose events are not taken
+     * are not selected.
+     */
+    @Test
+    public void testStalledChannel() {
+        System.out.println("Testing LoadAwareChannelSelector.getRequiredChannels (stalled channel)");
+        CygnusMemoryChannel channel1 = createChannel("ch1");
+        CygnusMemoryChannel channel2 = createChannel("ch2");
+        ArrayList<Channel> channels = new ArrayList<Channel>();
+        channels.add(channel1);
+        channels.add(channel2);
+        LoadAwareChannelSelector channelSelector = createSelector(channels, "1");
+        put(channel1, 1);
+        channelSelector.getRequiredChannels(event);
+        
+        try {
+            Thread.sleep(1100);
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        for (int i = 0; i < 4; i++) {
+            assertSame(channel2, channelSelector.getRequiredChannels(event).get(0));
+        } // for
+        
+        channel1.stop();
+        channel2.stop();
+    } // testStalledChannel
+    
+} // LoadAwareChannelSelectorTest
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.containers;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.google.gson.Gson;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElementResponse;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import java.util.ArrayList;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class NotifyContextRequestJsonDecoderTest {
+
+    // constants
+    private final String notifyJson = ""
+            + "{\n"
+            + "  \"subscriptionId\" : \"51c0ac9ed714fb3b37d7d5a8\",\n"
+            + "  \"originator\" : \"localhost\",\n"
+            + "  \"contextResponses\" : [\n"
+            + "    {\n"
+            + "      \"contextElement\" : {\n"
+            + "        \"attributes\" : [\n"
+            + "          {\n"
+            + "            \"name\" : \"temperature\",\n"
+            + "            \"type\" : \"centigrade\",\n"
+            + "            \"value\" : \"26.5\",\n"
+            + "            \"metadatas\" : [\n"
+            + "              { \"name\" : \"ID\", \"type\" : \"string\", \"value\" : \"ground\" },\n"
+            + "              { \"name\" : \"pos\", \"type\" : \"coords\", \"value\" : { \"x\" : 1, \"y\" : -0 } }\n"
+            + "            ]\n"
+            + "          },\n"
+            + "          {\n"
+            + "            \"name\" : \"position\",\n"
+            + "            \"type\" : \"compound\",\n"
+            + "            \"value\" : { \"a\" : [ 1, 2.5e3, true, null ], \"b\" : \"x\\\"y\\u00e9\\n\", \"c\" : { } }\n"
+            + "          },\n"
+            + "          {\n"
+            + "            \"name\" : \"counter\",\n"
+            + "            \"type\" : \"integer\",\n"
+            + "            \"value\" : -0,\n"
+            + "            \"metadatas\" : null\n"
+            + "          },\n"
+            + "          {\n"
+            + "            \"name\" : \"legacy\",\n"
+            + "            \"type\" : \"string\",\n"
+            + "            \"contextValue\" : \"old\"\n"
+            + "          }\n"
+            + "        ],\n"
+            + "        \"type\" : \"Room\",\n"
+            + "        \"isPattern\" : false,\n"
+            + "        \"id\" : \"Room1\",\n"
+            + "        \"unknown\" : [ { \"whatever\" : [ ] } ]\n"
+            + "      },\n"
+            + "      \"statusCode\" : { \"code\" : 200, \"reasonPhrase\" : \"OK\" }\n"
+            + "    }\n"
+            + "  ]\n"
+            + "}\n";
+
+    /**
+     * Test of decode method, of class NotifyContextRequestJsonDecoder. The decoded notification is rendered in the
+     * same way the notification parsed by Gson is.
+     */
+    @Test
+    public void testDecodeAsGson() {
+        System.out.println("Testing NotifyContextRequestJsonDecoder.decode (same rendering than Gson)");
+        NotifyContextRequest expected = new Gson().fromJson(notifyJson, NotifyContextRequest.class);
+        NotifyContextRequest decoded = null;
+
+        try {
+            decoded = NotifyContextRequestJsonDecoder.decode(notifyJson.getBytes());
+        } catch (CygnusBadContextData e) {
+            fail(e.getMessage());
+        } // try catch
+
+        assertEquals(expected.getSubscriptionId(), decoded.getSubscriptionId());
+        assertEquals(expected.getOriginator(), decoded.getOriginator());
+        ContextElementResponse expectedCER = expected.getContextResponses().get(0);
+        ContextElementResponse decodedCER = decoded.getContextResponses().get(0);
+        assertEquals(expectedCER.getStatusCode().getCode(), decodedCER.getStatusCode().getCode());
+        assertEquals(expectedCER.getStatusCode().getReasonPhrase(), decodedCER.getStatusCode().getReasonPhrase());
+        ContextElement expectedCE = expectedCER.getContextElement();
+        ContextElement decodedCE = decodedCER.getContextElement();
+        assertEquals(expectedCE.getId(), decodedCE.getId());
+        assertEquals(expectedCE.getType(), decodedCE.getType());
+        assertEquals(expectedCE.getIsPattern(), decodedCE.getIsPattern());
+        ArrayList<ContextAttribute> expectedCAs = expectedCE.getAttributes();
+        ArrayList<ContextAttribute> decodedCAs = decodedCE.getAttributes();
+        assertEquals(expectedCAs.size(), decodedCAs.size());
+
+        // the last attribute uses the old "contextValue" field, ignored by Gson
+        for (int i = 0; i < expectedCAs.size() - 1; i++) {
+            assertEquals(expectedCAs.get(i).getName(), decodedCAs.get(i).getName());
+            assertEquals(expectedCAs.get(i).getType(), decodedCAs.get(i).getType());
+            assertEquals(expectedCAs.get(i).getContextValue(true), decodedCAs.get(i).getContextValue(true));
+            assertEquals(expectedCAs.get(i).getContextValue(false), decodedCAs.get(i).getContextValue(false));
+            assertEquals(expectedCAs.get(i).getContextMetadata(), decodedCAs.get(i).getContextMetadata());
+            assertEquals(expectedCAs.get(i).getJsonValue(), decodedCAs.get(i).getJsonValue());
+        } // for
+
+        assertEquals("\"old\"", decodedCAs.get(3).getContextValue(true));
+    } // testDecodeAsGson
+
+    /**
+     * Test of decode method, of class NotifyContextRequestJsonDecoder. Non strict Json is rejected by the decoder,
+     * but still parsed by NotifyContextRequestParser.
+     */
+    @Test
+    public void testDecodeNonStrictJson() {
+        System.out.println("Testing NotifyContextRequestJsonDecoder.decode (non strict Json)");
+        String lenientJson = "{'subscriptionId' : 51c0ac9ed714fb3b37d7d5a8, 'contextResponses' : []}";
+
+        try {
+            NotifyContextRequestJsonDecoder.decode(lenientJson.getBytes());
+            fail("Non strict Json was decoded");
+        } catch (CygnusBadContextData e) {
+            assertTrue(true);
+        } // try catch
+
+        try {
+            NotifyContextRequest notification = NotifyContextRequestParser.parse(lenientJson.getBytes(),
+                    "application/json");
+            assertEquals("51c0ac9ed714fb3b37d7d5a8", notification.getSubscriptionId());
+        } catch (CygnusBadContextData e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testDecodeNonStrictJson
+
+} // NotifyContextRequestJsonDecoderTest
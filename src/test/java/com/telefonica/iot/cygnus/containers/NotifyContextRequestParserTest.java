@@ -0,0 +1,166 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.containers;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.utils.Constants;
+import java.util.HashMap;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class NotifyContextRequestParserTest {
+
+    // constants
+    private final String notifyJson = ""
+            + "{"
+            +     "\"subscriptionId\" : \"51c0ac9ed714fb3b37d7d5a8\","
+            +     "\"originator\" : \"localhost\","
+            +     "\"contextResponses\" : ["
+            +         "{"
+            +             "\"contextElement\" : {"
+            +                 "\"attributes\" : ["
+            +                     "{"
+            +                         "\"name\" : \"temperature\","
+            +                         "\"type\" : \"centigrade\","
+            +                         "\"value\" : \"26.5\""
+            +                     "}"
+            +                 "],"
+            +                 "\"type\" : \"Room\","
+            +                 "\"isPattern\" : \"false\","
+            +                 "\"id\" : \"Room1\""
+            +             "},"
+            +             "\"statusCode\" : {"
+            +                 "\"code\" : \"200\","
+            +                 "\"reasonPhrase\" : \"OK\""
+            +             "}"
+            +         "}"
+            +     "]"
+            + "}";
+    private final String notifyXML = ""
+            + "<notifyContextRequest>"
+            +   "<subscriptionId>51c0ac9ed714fb3b37d7d5a8</subscriptionId>"
+            +   "<originator>localhost</originator>"
+            +   "<contextResponseList>"
+            +     "<contextElementResponse>"
+            +       "<contextElement>"
+            +         "<entityId type=\"Room\" isPattern=\"false\">"
+            +           "<id>Room1</id>"
+            +         "</entityId>"
+            +         "<contextAttributeList>"
+            +           "<contextAttribute>"
+            +             "<name>temperature</name>"
+            +             "<type>centigrade</type>"
+            +             "<contextValue>26.5</contextValue>"
+            +           "</contextAttribute>"
+            +         "</contextAttributeList>"
+            +       "</contextElement>"
+            +       "<statusCode>"
+            +         "<code>200</code>"
+            +         "<reasonPhrase>OK</reasonPhrase>"
+            +       "</statusCode>"
+            +     "</contextElementResponse>"
+            +   "</contextResponseList>"
+            + "</notifyContextRequest>";
+
+    /**
+     * Test of parse method, of class NotifyContextRequestParser. Json and XML notifications are parsed into the
+     * same context element.
+     */
+    @Test
+    public void testParseBody() {
+        System.out.println("Testing NotifyContextRequestParser.parse (Json and XML bodies)");
+
+        try {
+            NotifyContextRequest jsonNotification = NotifyContextRequestParser.parse(notifyJson.getBytes(),
+                    "application/json; charset=utf-8");
+            NotifyContextRequest xmlNotification = NotifyContextRequestParser.parse(notifyXML.getBytes(),
+                    "application/xml");
+            ContextElement jsonCE = jsonNotification.getContextResponses().get(0).getContextElement();
+            ContextElement xmlCE = xmlNotification.getContextResponses().get(0).getContextElement();
+            assertEquals("Room1", jsonCE.getId());
+            assertEquals(jsonCE.getId(), xmlCE.getId());
+            assertEquals(jsonCE.getType(), xmlCE.getType());
+            assertEquals(jsonCE.getAttributes().get(0).getContextValue(true),
+                    xmlCE.getAttributes().get(0).getContextValue(true));
+        } catch (CygnusBadContextData e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testParseBody
+
+    /**
+     * Test of parse method, of class NotifyContextRequestParser. Bad bodies and unknown content types are rejected.
+     */
+    @Test
+    public void testParseBadBody() {
+        System.out.println("Testing NotifyContextRequestParser.parse (bad bodies)");
+
+        try {
+            NotifyContextRequestParser.parse("{\"contextResponses\" : [".getBytes(), "application/json");
+            fail("A bad Json body was parsed");
+        } catch (CygnusBadContextData e) {
+            assertTrue(true);
+        } // try catch
+
+        try {
+            NotifyContextRequestParser.parse("<notifyContextRequest>".getBytes(), "application/xml");
+            fail("A bad XML body was parsed");
+        } catch (CygnusBadContextData e) {
+            assertTrue(true);
+        } // try catch
+
+        try {
+            NotifyContextRequestParser.parse(notifyJson.getBytes(), "text/plain");
+            fail("An unknown content type was parsed");
+        } catch (CygnusBadContextData e) {
+            assertTrue(true);
+        } // try catch
+    } // testParseBadBody
+
+    /**
+     * Test of parse method, of class NotifyContextRequestParser. Events already carrying the notification are not
+     * parsed again, while raw events are parsed from their body.
+     */
+    @Test
+    public void testParseEvent() {
+        System.out.println("Testing NotifyContextRequestParser.parse (Flume events)");
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.HEADER_CONTENT_TYPE, "application/json");
+
+        try {
+            NotifyContextRequest notification = NotifyContextRequestParser.parse(notifyJson.getBytes(),
+                    "application/json");
+            Event typedEvent = new NotifyContextRequestEvent(headers, notifyJson.getBytes(), notification);
+            assertSame(notification, NotifyContextRequestParser.parse(typedEvent));
+            Event rawEvent = EventBuilder.withBody(notifyJson.getBytes(), headers);
+            NotifyContextRequest parsed = NotifyContextRequestParser.parse(rawEvent);
+            assertNotSame(notification, parsed);
+            assertEquals("Room1", parsed.getContextResponses().get(0).getContextElement().getId());
+        } catch (CygnusBadContextData e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testParseEvent
+
+} // NotifyContextRequestParserTest
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.containers;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElementResponse;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import java.io.StringReader;
+import java.util.ArrayList;
+import javax.xml.parsers.SAXParserFactory;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+/**
+ *
+ * @author frb
+ */
+public class NotifyContextRequestXMLDecoderTest {
+
+    // constants
+    private final String notifyXML = ""
+            + "<notifyContextRequest>"
+            +   "<subscriptionId>51c0ac9ed714fb3b37d7d5a8</subscriptionId>"
+            +   "<originator>localhost</originator>"
+            +   "<contextResponseList>"
+            +     "<contextElementResponse>"
+            +       "<contextElement>"
+            +         "<entityId type=\"Room\" isPattern=\"false\">"
+            +           "<id>Room1</id>"
+            +         "</entityId>"
+            +         "<contextAttributeList>"
+            +           "<contextAttribute>"
+            +             "<name>temperature</name>"
+            +             "<type>centigrade</type>"
+            +             "<contextValue>26.5</contextValue>"
+            +             "<metadata>"
+            +               "<contextMetadata>"
+            +                 "<name>ID</name>"
+            +                 "<type>string</type>"
+            +                 "<value>wall</value>"
+            +               "</contextMetadata>"
+            +             "</metadata>"
+            +           "</contextAttribute>"
+            +           "<contextAttribute>"
+            +             "<name>field1</name>"
+            +             "<type>type1</type>"
+            +             "<contextValue>"
+            +               "<a>"
+            +                 "<x>"
+            +                   "<y>v1</y>"
+            +                 "</x>"
+            +                 "<z>v2</z>"
+            +               "</a>"
+            +               "<b>v3</b>"
+            +             "</contextValue>"
+            +           "</contextAttribute>"
+            +           "<contextAttribute>"
+            +             "<name>field2</name>"
+            +             "<type>type2</type>"
+            +             "<contextValue type=\"vector\">"
+            +               "<item type=\"vector\">"
+            +                 "<item>v1</item>"
+            +                 "<item>v2</item>"
+            +               "</item>"
+            +               "<item>"
+            +                 "<x type=\"vector\">"
+            +                   "<item>v3</item>"
+            +                 "</x>"
+            +               "</item>"
+            +             "</contextValue>"
+            +           "</contextAttribute>"
+            +         "</contextAttributeList>"
+            +       "</contextElement>"
+            +       "<statusCode>"
+            +         "<code>200</code>"
+            +         "<reasonPhrase>OK</reasonPhrase>"
+            +       "</statusCode>"
+            +     "</contextElementResponse>"
+            +   "</contextResponseList>"
+            + "</notifyContextRequest>";
+
+    /**
+     * Test of decode method, of class NotifyContextRequestXMLDecoder. The decoded notification is the same than the
+     * one obtained through NotifyContextRequestSAXHandler.
+     */
+    @Test
+    public void testDecodeAsSAX() {
+        System.out.println("Testing NotifyContextRequestXMLDecoder.decode (same result than SAX)");
+        NotifyContextRequestSAXHandler handler = new NotifyContextRequestSAXHandler();
+
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(new InputSource(new StringReader(notifyXML)),
+                    handler);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+
+        try {
+            assertSameNotification(handler.getNotifyContextRequest(),
+                    NotifyContextRequestXMLDecoder.decode(notifyXML.getBytes()));
+        } catch (CygnusBadContextData e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testDecodeAsSAX
+
+    /**
+     * Test of decode method, of class NotifyContextRequestXMLDecoder. Indentation between tags is ignored.
+     */
+    @Test
+    public void testDecodeIndented() {
+        System.out.println("Testing NotifyContextRequestXMLDecoder.decode (indented XML)");
+        String indentedXML = "<?xml version=\"1.0\"?>\n" + notifyXML.replaceAll("><", ">\n    <");
+
+        try {
+            assertSameNotification(NotifyContextRequestXMLDecoder.decode(notifyXML.getBytes()),
+                    NotifyContextRequestXMLDecoder.decode(indentedXML.getBytes()));
+        } catch (CygnusBadContextData e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testDecodeIndented
+
+    /**
+     * Test of decode method, of class NotifyContextRequestXMLDecoder. Malformed XML is rejected.
+     */
+    @Test
+    public void testDecodeMalformed() {
+        System.out.println("Testing NotifyContextRequestXMLDecoder.decode (malformed XML)");
+
+        try {
+            NotifyContextRequestXMLDecoder.decode("<notifyContextRequest><subscriptionId>".getBytes());
+            fail("Malformed XML was decoded");
+        } catch (CygnusBadContextData e) {
+            assertTrue(true);
+        } // try catch
+    } // testDecodeMalformed
+
+    /**
+     * Test of decode method, of class NotifyContextRequestXMLDecoder. XML not being a notifyContextRequest is rejected.
+     */
+    @Test
+    public void testDecodeUnexpectedRoot() {
+        System.out.println("Testing NotifyContextRequestXMLDecoder.decode (unexpected root element)");
+
+        try {
+            NotifyContextRequestXMLDecoder.decode("<updateContextRequest></updateContextRequest>".getBytes());
+            fail("XML not being a notifyContextRequest was decoded");
+        } catch (CygnusBadContextData e) {
+            assertTrue(true);
+        } // try catch
+    } // testDecodeUnexpectedRoot
+
+    private void assertSameNotification(NotifyContextRequest expected, NotifyContextRequest decoded) {
+        assertEquals(expected.getSubscriptionId(), decoded.getSubscriptionId());
+        assertEquals(expected.getOriginator(), decoded.getOriginator());
+        ContextElementResponse expectedCER = expected.getContextResponses().get(0);
+        ContextElementResponse decodedCER = decoded.getContextResponses().get(0);
+        assertEquals(expectedCER.getStatusCode().getCode(), decodedCER.getStatusCode().getCode());
+        assertEquals(expectedCER.getStatusCode().getReasonPhrase(), decodedCER.getStatusCode().getReasonPhrase());
+        ContextElement expectedCE = expectedCER.getContextElement();
+        ContextElement decodedCE = decodedCER.getContextElement();
+        assertEquals(expectedCE.getId(), decodedCE.getId());
+        assertEquals(expectedCE.getType(), decodedCE.getType());
+        assertEquals(expectedCE.getIsPattern(), decodedCE.getIsPattern());
+        ArrayList<ContextAttribute> expectedCAs = expectedCE.getAttributes();
+        ArrayList<ContextAttribute> decodedCAs = decodedCE.getAttributes();
+        assertEquals(expectedCAs.size(), decodedCAs.size());
+
+        for (int i = 0; i < expectedCAs.size(); i++) {
+            assertEquals(expectedCAs.get(i).getName(), decodedCAs.get(i).getName());
+            assertEquals(expectedCAs.get(i).getType(), decodedCAs.get(i).getType());
+            assertEquals(expectedCAs.get(i).getContextValue(true), decodedCAs.get(i).getContextValue(true));
+            assertEquals(expectedCAs.get(i).getContextMetadata(), decodedCAs.get(i).getContextMetadata());
+        } // for
+    } // assertSameNotification
+
+} // NotifyContextRequestXMLDecoderTest
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.containers;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.utils.Constants;
+import java.util.HashMap;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class RoutingTest {
+
+    // constants
+    private final String[] defaultDestinations = {"room1_room", "room2_room"};
+    private final String[] defaultServicePaths = {"rooms", "rooms"};
+    private final String[] groupedDestinations = {"all,rooms", "100%_rooms"};
+    private final String[] groupedServicePaths = {"all", "all"};
+
+    /**
+     * Test of join and split methods, of class Routing.
+     */
+    @Test
+    public void testJoinSplit() {
+        System.out.println("Testing Routing.join and Routing.split");
+        assertEquals("room1_room,room2_room", Routing.join(defaultDestinations));
+        assertEquals("all%2Crooms,100%25_rooms", Routing.join(groupedDestinations));
+        assertArrayEquals(groupedDestinations, Routing.split(Routing.join(groupedDestinations)));
+        assertArrayEquals(new String[] {""}, Routing.split(Routing.join(new String[] {""})));
+        assertArrayEquals(new String[] {"a", "", "b"}, Routing.split("a,,b"));
+        assertArrayEquals(new String[0], Routing.split(null));
+    } // testJoinSplit
+
+    /**
+     * Test of of method, of class Routing.
+     */
+    @Test
+    public void testOf() {
+        System.out.println("Testing Routing.of");
+        Routing routing = new Routing(defaultDestinations, defaultServicePaths, groupedDestinations,
+                groupedServicePaths);
+        HashMap<String, String> headers = new HashMap<String, String>();
+        routing.toHeaders(headers);
+        assertEquals("rooms,rooms", headers.get(Constants.HEADER_DEFAULT_SERVICE_PATHS));
+
+        // the event carries the routing
+        NotifyContextRequestEvent event = new NotifyContextRequestEvent(headers, new byte[0], null);
+        event.setRouting(routing);
+        assertSame(routing, Routing.of(event));
+
+        // the event does not carry the routing, thus it is read from the headers
+        Routing readRouting = Routing.of(EventBuilder.withBody(new byte[0], headers));
+        assertArrayEquals(defaultDestinations, readRouting.getDestinations(false));
+        assertArrayEquals(defaultServicePaths, readRouting.getServicePaths(false));
+        assertArrayEquals(groupedDestinations, readRouting.getDestinations(true));
+        assertArrayEquals(groupedServicePaths, readRouting.getServicePaths(true));
+    } // testOf
+
+} // RoutingTest
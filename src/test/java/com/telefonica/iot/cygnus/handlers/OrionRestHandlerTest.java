@@ -20,9 +20,8 @@ package com.telefonica.iot.cygnus.handlers;
 
 import com.telefonica.iot.cygnus.utils.TestConstants;
 import com.telefonica.iot.cygnus.utils.TestUtils;
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -33,6 +32,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.junit.Before;
 import java.util.List;
 import java.util.Map;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
@@ -70,6 +70,7 @@ public class OrionRestHandlerTest {
     private final String notificationUserAgent = "whatever/0.12.7";
     private final String notificationService = "a.SERV_with-rare chars%@";
     private final String notificationServicePath = "a.SERVPATH_with-rare chars%@";
+    private final String notificationBody = "<tag1>1</tag1>      <tag2>2</tag2>";
     
     /**
      * Sets up tests by creating a unique instance of the tested class, and by defining the behaviour of the mocked
@@ -99,11 +100,11 @@ public class OrionRestHandlerTest {
         when(mockRequest.getHeader("content-type")).thenReturn(notificationContentType);
         when(mockRequest.getHeader("fiware-service")).thenReturn(notificationService);
         when(mockRequest.getHeader("fiware-servicepath")).thenReturn(notificationServicePath, rootServicePath);
-        when(mockRequest.getReader()).thenReturn(
-                new BufferedReader(new InputStreamReader(new ByteArrayInputStream(
-                        "<tag1>1</tag1>      <tag2>2</tag2>".getBytes()))),
-                new BufferedReader(new InputStreamReader(new ByteArrayInputStream(
-                        "<tag1>1</tag1>      <tag2>2</tag2>".getBytes()))));
+        // the first request announces its content length, the second one does not (e.g. chunked)
+        when(mockRequest.getContentLength()).thenReturn(notificationBody.length(), -1);
+        when(mockRequest.getInputStream()).thenReturn(
+                new ByteArrayServletInputStream(notificationBody.getBytes()),
+                new ByteArrayServletInputStream(notificationBody.getBytes()));
     } // setUp
     
     /**
@@ -143,7 +144,7 @@ public class OrionRestHandlerTest {
             assertTrue(eventHeaders.containsKey(TestConstants.HEADER_NOTIFIED_SERVICE_PATH));
             assertEquals(eventHeaders.get(TestConstants.HEADER_NOTIFIED_SERVICE_PATH),
                     TestUtils.encode(notificationServicePath));
-            assertTrue(eventMessage.length != 0);
+            assertEquals(notificationBody, new String(eventMessage));
         } catch (Exception e) {
             fail(e.getMessage());
         } // try catch
@@ -168,10 +169,32 @@ public class OrionRestHandlerTest {
             assertTrue(eventHeaders.containsKey(TestConstants.HEADER_NOTIFIED_SERVICE_PATH));
             assertEquals(eventHeaders.get(TestConstants.HEADER_NOTIFIED_SERVICE_PATH),
                     TestUtils.encode(rootServicePath));
-            assertTrue(eventMessage.length != 0);
+            assertEquals(notificationBody, new String(eventMessage));
         } catch (Exception e) {
             fail(e.getMessage());
         } // try catch
     } // testGetEvents
     
+    /**
+     * Servlet input stream reading from a byte array.
+     */
+    private class ByteArrayServletInputStream extends ServletInputStream {
+        
+        private final ByteArrayInputStream in;
+        
+        /**
+         * Constructor.
+         * @param bytes
+         */
+        public ByteArrayServletInputStream(byte[] bytes) {
+            in = new ByteArrayInputStream(bytes);
+        } // ByteArrayServletInputStream
+        
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        } // read
+        
+    } // ByteArrayServletInputStream
+    
 } // OrionRestHandlerTest
\ No newline at end of file
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.interceptors;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.interceptors.GroupingCache.Grouping;
+import com.telefonica.iot.cygnus.interceptors.GroupingInterceptor.GroupingRule;
+import java.util.ArrayList;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class GroupingCacheTest {
+
+    // constants
+    private final GroupingRules rules = new GroupingRules(new ArrayList<GroupingRule>());
+    private final GroupingRules newRules = new GroupingRules(new ArrayList<GroupingRule>());
+    private final Grouping grouping = new Grouping(rules, "room1_room", "/rooms", "rooms", "/all");
+
+    /**
+     * Test of get and put methods, of class GroupingCache.
+     */
+    @Test
+    public void testGetPut() {
+        System.out.println("Testing GroupingCache.get and GroupingCache.put");
+        GroupingCache cache = new GroupingCache(10);
+        assertNull(cache.get("room1", "room", "/rooms", rules));
+        cache.put("room1", "room", "/rooms", grouping);
+        assertSame(grouping, cache.get("room1", "room", "/rooms", rules));
+        assertNull(cache.get("room1", "room", "/other", rules));
+        assertNull(cache.get("room1", "room", null, rules));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    } // testGetPut
+
+    /**
+     * Test of get method, of class GroupingCache. The entries computed with other grouping rules are not returned.
+     */
+    @Test
+    public void testInvalidation() {
+        System.out.println("Testing GroupingCache.get (the grouping rules changed)");
+        GroupingCache cache = new GroupingCache(10);
+        cache.put("room1", "room", "/rooms", grouping);
+        assertNull(cache.get("room1", "room", "/rooms", newRules));
+        assertSame(grouping, cache.get("room1", "room", "/rooms", rules));
+        cache.clear();
+        assertNull(cache.get("room1", "room", "/rooms", rules));
+    } // testInvalidation
+
+    /**
+     * Test of put method, of class GroupingCache. The cache is bounded, but the frequently used entries are kept.
+     */
+    @Test
+    public void testBounded() {
+        System.out.println("Testing GroupingCache.put (the cache is bounded)");
+        GroupingCache cache = new GroupingCache(10);
+
+        for (int i = 0; i < 100; i++) {
+            cache.put("room" + i, "room", "/rooms", grouping);
+            assertSame(grouping, cache.get("room0", "room", "/rooms", rules));
+            assertTrue(cache.size() <= 10);
+        } // for
+    } // testBounded
+
+} // GroupingCacheTest
@@ -22,6 +22,8 @@ import java.util.HashMap;
 import java.util.Map;
 import org.apache.flume.event.EventBuilder;
 import org.apache.flume.Event;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequestEvent;
+import com.telefonica.iot.cygnus.containers.Routing;
 import com.telefonica.iot.cygnus.interceptors.GroupingInterceptor.GroupingRule;
 import com.telefonica.iot.cygnus.utils.Constants;
 import java.io.File;
@@ -229,6 +231,75 @@ public class GroupingInterceptorTest {
         assertEquals("city_indicators", thirdRule.getNewFiwareServicePath());
     } // testInitialize
     
+    /**
+     * Test of reloadGroupingRules method, of class GroupingInterceptor.
+     */
+    @Test
+    public void testReloadGroupingRules() {
+        System.out.println("Testing GroupingInterceptor.reloadGroupingRules");
+        groupingInterceptor = new GroupingInterceptor(groupingRulesFileName, 100, 0);
+        groupingInterceptor.initialize();
+        assertTrue(groupingInterceptor.getGroupingRules().size() == 3);
+        
+        // the file has not changed
+        assertFalse(groupingInterceptor.reloadGroupingRules());
+        assertTrue(groupingInterceptor.getGroupingRules().size() == 3);
+        
+        // the file has changed
+        try {
+            PrintWriter writer = new PrintWriter(groupingRulesFileName, "UTF-8");
+            writer.println("{\"grouping_rules\": [{\"id\": 1, \"fields\": [\"entityId\"], \"regex\": \"Car\", "
+                    + "\"destination\": \"cars\", \"fiware_service_path\": \"vehicles\"}]}");
+            writer.close();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        assertTrue(groupingInterceptor.reloadGroupingRules());
+        assertTrue(groupingInterceptor.getGroupingRules().size() == 1);
+        assertEquals("cars", groupingInterceptor.getGroupingRules().get(0).getDestination());
+        
+        // the file has changed, but it has errors; the current rules are kept
+        try {
+            PrintWriter writer = new PrintWriter(groupingRulesFileName, "UTF-8");
+            writer.println("{\"grouping_rules\": [");
+            writer.close();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        assertFalse(groupingInterceptor.reloadGroupingRules());
+        assertTrue(groupingInterceptor.getGroupingRules().size() == 1);
+        groupingInterceptor.close();
+    } // testReloadGroupingRules
+    
+    /**
+     * Test of getGroupingCacheHits and getGroupingCacheMisses methods, of class GroupingInterceptor. The groupings are
+     * computed once per entity, and found in the cache afterwards.
+     */
+    @Test
+    public void testGroupingCacheStatistics() {
+        System.out.println("Testing GroupingInterceptor.getGroupingCacheHits and getGroupingCacheMisses");
+        groupingInterceptor = new GroupingInterceptor(groupingRulesFileName, 100, 0);
+        groupingInterceptor.initialize();
+        assertEquals(0, groupingInterceptor.getGroupingCacheHits());
+        assertEquals(0, groupingInterceptor.getGroupingCacheMisses());
+        groupingInterceptor.intercept(EventBuilder.withBody(eventData.getBytes(), notifiedHeaders));
+        long misses = groupingInterceptor.getGroupingCacheMisses();
+        assertTrue(misses > 0);
+        assertEquals(0, groupingInterceptor.getGroupingCacheHits());
+        groupingInterceptor.intercept(EventBuilder.withBody(eventData.getBytes(), notifiedHeaders));
+        assertEquals(misses, groupingInterceptor.getGroupingCacheHits());
+        assertEquals(misses, groupingInterceptor.getGroupingCacheMisses());
+        
+        // the cache is disabled
+        groupingInterceptor = new GroupingInterceptor(groupingRulesFileName, 0, 0);
+        groupingInterceptor.initialize();
+        groupingInterceptor.intercept(EventBuilder.withBody(eventData.getBytes(), notifiedHeaders));
+        assertEquals(0, groupingInterceptor.getGroupingCacheHits());
+        assertEquals(0, groupingInterceptor.getGroupingCacheMisses());
+    } // testGroupingCacheStatistics
+    
     /**
      * Test of intercept method, of class GroupingInterceptor.
      */
@@ -261,6 +332,11 @@ public class GroupingInterceptorTest {
         String defaultServPaths = interceptedHeaders.get(Constants.HEADER_DEFAULT_SERVICE_PATHS);
         assertEquals(defaultServicePaths, defaultServPaths);
         
+        // the routing travels within the event as well
+        Routing routing = ((NotifyContextRequestEvent) interceptedEvent).getRouting();
+        assertArrayEquals(groupedDestinations.split(","), routing.getGroupedDestinations());
+        assertArrayEquals(defaultDestinations.split(","), routing.getDefaultDestinations());
+        
         System.out.println("Testing GroupingInterceptor.intercept (grouping_rules.conf is not set)");
         
         // create a grouping interceptor
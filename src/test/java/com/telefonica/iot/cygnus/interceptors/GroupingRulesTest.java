@@ -0,0 +1,119 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.interceptors;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.interceptors.GroupingInterceptor.GroupingRule;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class GroupingRulesTest {
+
+    // other instances
+    private final GroupingInterceptor groupingInterceptor = new GroupingInterceptor(null);
+
+    /**
+     * Test of literalOf and prefixOf methods, of class GroupingRules.
+     */
+    @Test
+    public void testLiteralsAndPrefixes() {
+        System.out.println("Testing GroupingRules.literalOf and GroupingRules.prefixOf");
+        assertEquals("Car", GroupingRules.literalOf("Car"));
+        assertEquals("Room.1", GroupingRules.literalOf("Room\\.1"));
+        assertNull(GroupingRules.literalOf("Room.1"));
+        assertNull(GroupingRules.literalOf("Room\\d"));
+        assertEquals("Room.", GroupingRules.prefixOf("Room\\.(\\d*)Room"));
+        assertEquals("Roo", GroupingRules.prefixOf("Room?"));
+        assertEquals("Roo", GroupingRules.prefixOf("Room*"));
+        assertEquals("Roo", GroupingRules.prefixOf("Room{0,1}"));
+        assertEquals("Room", GroupingRules.prefixOf("Room+"));
+        assertEquals("", GroupingRules.prefixOf("(?i)Room"));
+        assertEquals("", GroupingRules.prefixOf("\\QRoom\\E"));
+    } // testLiteralsAndPrefixes
+
+    /**
+     * Test of branchesOf method, of class GroupingRules.
+     */
+    @Test
+    public void testBranches() {
+        System.out.println("Testing GroupingRules.branchesOf");
+        assertEquals(Arrays.asList("Room"), GroupingRules.branchesOf("Room"));
+        assertEquals(Arrays.asList("Room\\.(\\d*)", "Car", ""), GroupingRules.branchesOf("Room\\.(\\d*)|Car|"));
+        assertEquals(Arrays.asList("Ro(o|a)m", "[]|]", "\\|"), GroupingRules.branchesOf("Ro(o|a)m|[]|]|\\|"));
+        assertNull(GroupingRules.branchesOf("(?i)Room|Car"));
+        assertNull(GroupingRules.branchesOf("\\QRoom|Car\\E"));
+    } // testBranches
+
+    /**
+     * Test of match method, of class GroupingRules. The first matching rule is returned, as in a sequential scan.
+     */
+    @Test
+    public void testMatch() {
+        System.out.println("Testing GroupingRules.match");
+        ArrayList<GroupingRule> rules = new ArrayList<GroupingRule>();
+        rules.add(createRule(1, "entityId", "Room\\.(\\d*)", "numeric_rooms"));
+        rules.add(createRule(2, "servicePath", "gardens", "gardens"));
+        rules.add(createRule(3, "entityId", "Room\\.1", "first_room"));
+        rules.add(createRule(4, "entityId", "Room.*", "rooms"));
+        rules.add(createRule(5, "entityType", "Ca[rt]", "vehicles"));
+        rules.add(createRule(6, "entityId", "Car|Room\\.x", "alternatives"));
+        GroupingRules groupingRules = new GroupingRules(rules);
+        assertEquals(6, groupingRules.size());
+        assertEquals("numeric_rooms", groupingRules.match(createContextElement("Room.1", "Room"), "gardens")
+                .getDestination());
+        assertEquals("gardens", groupingRules.match(createContextElement("Room.x", "Room"), "gardens")
+                .getDestination());
+        assertEquals("rooms", groupingRules.match(createContextElement("Room.x", "Room"), "parks")
+                .getDestination());
+        assertEquals("vehicles", groupingRules.match(createContextElement("Car", "Car"), "parks")
+                .getDestination());
+        assertEquals("alternatives", groupingRules.match(createContextElement("Car", "Truck"), "parks")
+                .getDestination());
+        assertNull(groupingRules.match(createContextElement("Bus", "Truck"), "parks"));
+    } // testMatch
+
+    private GroupingRule createRule(long id, String field, String regex, String destination) {
+        JSONArray fields = new JSONArray();
+        fields.add(field);
+        JSONObject jsonRule = new JSONObject();
+        jsonRule.put("id", id);
+        jsonRule.put("fields", fields);
+        jsonRule.put("regex", regex);
+        jsonRule.put("destination", destination);
+        jsonRule.put("fiware_service_path", "whatever");
+        return groupingInterceptor.new GroupingRule(jsonRule);
+    } // createRule
+
+    private ContextElement createContextElement(String id, String type) {
+        ContextElement contextElement = new NotifyContextRequest().new ContextElement();
+        contextElement.setId(id);
+        contextElement.setType(type);
+        return contextElement;
+    } // createContextElement
+
+} // GroupingRulesTest
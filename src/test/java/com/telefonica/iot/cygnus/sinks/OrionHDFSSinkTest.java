@@ -18,6 +18,7 @@
 
 package com.telefonica.iot.cygnus.sinks;
 
+import com.telefonica.iot.cygnus.backends.hdfs.HDFSBackend;
 import com.telefonica.iot.cygnus.backends.hdfs.HDFSBackendImplREST;
 import static org.junit.Assert.*; // this is required by "fail" like assertions
 import static org.mockito.Mockito.*; // this is required by "when" like functions
@@ -227,6 +228,49 @@ public class OrionHDFSSinkTest {
         assertEquals(enableKrb5Auth, sink.getEnableKrb5Auth());
         assertEquals(enableGrouping, sink.getEnableGrouping() ? "true" : "false");
     } // testConfigure
+    
+    /**
+     * Test of configure method, of class OrionHDFSSink. The compression is only enabled when writing through the
+     * persistent streams of the binary backend.
+     */
+    @Test
+    public void testConfigureCompression() {
+        System.out.println("Testing OrionHDFSSinkTest.configure (compression)");
+        String fileFormat = "json-row";
+        boolean useDeprecatedParams = false;
+        Context context = createContext(useDeprecatedParams, fileFormat);
+        context.put("compression", "deflate");
+        sink.configure(context);
+        assertEquals("none", sink.getCompression());
+        context.put("backend_impl", "binary");
+        context.put("persistent_streams", "true");
+        sink.configure(context);
+        assertEquals("deflate", sink.getCompression());
+        context.put("compression", "lzma");
+        sink.configure(context);
+        assertEquals("none", sink.getCompression());
+    } // testConfigureCompression
+    
+    /**
+     * Test of configure method, of class OrionHDFSSink. Staging disables the persistent streams, and thus the
+     * compression.
+     */
+    @Test
+    public void testConfigureStaging() {
+        System.out.println("Testing OrionHDFSSinkTest.configure (staging)");
+        String fileFormat = "json-row";
+        boolean useDeprecatedParams = false;
+        Context context = createContext(useDeprecatedParams, fileFormat);
+        sink.configure(context);
+        assertNull(sink.getStagingDir());
+        context.put("backend_impl", "binary");
+        context.put("persistent_streams", "true");
+        context.put("compression", "deflate");
+        context.put("staging_dir", "/var/cygnus/staging");
+        sink.configure(context);
+        assertEquals("/var/cygnus/staging", sink.getStagingDir());
+        assertEquals("none", sink.getCompression());
+    } // testConfigureStaging
 
     /**
      * Test of start method, of class OrionHDFSSink.
@@ -337,6 +381,116 @@ public class OrionHDFSSinkTest {
         } // try catch finally
     } // testPersistFileFormats
     
+    /**
+     * Test of persistBatch and stop methods, of class OrionHDFSSink. The Parquet rows of a destination are buffered
+     * until the file is rolled by size, instead of writing a file per batch; the buffered rows are written when
+     * stopping.
+     */
+    @Test
+    public void testPersistParquetRolling() {
+        System.out.println("Testing OrionHDFSSink.persistBatch (rolling the parquet-row files)");
+        Context context = createContext(false, "parquet-row");
+        context.put("file_roll_size", "1000000");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        
+        try {
+            // the sub-batches are set as persisted, thus a new batch is created each time
+            persistParquetBatch();
+            persistParquetBatch();
+            verify(mockWebHDFSBackend, never()).createBinaryFile(anyString(), any(byte[].class));
+            sink.stop();
+            verify(mockWebHDFSBackend, times(1)).createBinaryFile(endsWith(".parquet"), any(byte[].class));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        // the file is rolled once it reaches the roll size
+        context.put("file_roll_size", "1");
+        sink = new OrionHDFSSink();
+        sink.setPersistenceBackend(mockWebHDFSBackend);
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        
+        try {
+            persistParquetBatch();
+            persistParquetBatch();
+            verify(mockWebHDFSBackend, times(3)).createBinaryFile(endsWith(".parquet"), any(byte[].class));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testPersistParquetRolling
+    
+    private void persistParquetBatch() throws Exception {
+        sink.persistBatch(createBatch(recvTimeTs, normalService, normalDefaultServicePath, normalDefaultDestination,
+                singleNotifyContextRequest.getContextResponses().get(0).getContextElement()),
+                createBatch(recvTimeTs, normalService, normalGroupedServicePath, normalGroupedDestination,
+                singleNotifyContextRequest.getContextResponses().get(0).getContextElement()));
+    } // persistParquetBatch
+    
+    /**
+     * Test of persistBatch method, of class OrionHDFSSink. Partitioning by event time is tested.
+     */
+    @Test
+    public void testPersistPartitioned() {
+        System.out.println("Testing OrionHDFSSink.persistBatch (partitioning by day)");
+        Batch defaultBatch = createBatch(recvTimeTs, normalService, normalDefaultServicePath, normalDefaultDestination,
+                singleNotifyContextRequest.getContextResponses().get(0).getContextElement());
+        Batch groupedBatch = createBatch(recvTimeTs, normalService, normalGroupedServicePath, normalGroupedDestination,
+                singleNotifyContextRequest.getContextResponses().get(0).getContextElement());
+        String fileFormat = "json-row";
+        boolean useDeprecatedParams = false;
+        Context context = createContext(useDeprecatedParams, fileFormat);
+        context.put("partitioning", "day");
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        assertEquals("day", sink.getPartitioning());
+        
+        // 123456789 ms since the epoch is 1970-01-02T10:17:36Z
+        String partition = "year=1970/month=01/day=02";
+        assertEquals(partition, sink.getPartition(recvTimeTs));
+        
+        try {
+            sink.persistBatch(defaultBatch, groupedBatch);
+            verify(mockWebHDFSBackend).createFile(endsWith(normalGroupedDestination + "/" + partition + "/"
+                    + normalGroupedDestination + ".txt"), any(byte[].class), anyInt());
+            verify(mockWebHDFSBackend).provisionHiveTable(any(HDFSBackend.FileFormat.class), anyString(),
+                    anyString(), eq("year string, month string, day string"));
+            verify(mockWebHDFSBackend).provisionHivePartition(any(HDFSBackend.FileFormat.class), anyString(),
+                    eq(partition));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testPersistPartitioned
+    
+    /**
+     * Test of persistBatch method, of class OrionHDFSSink. The attributes without metadata do not add empty lines to
+     * the metadata files.
+     */
+    @Test
+    public void testPersistEmptyMetadata() {
+        System.out.println("Testing OrionHDFSSink.persistBatch (attributes without metadata)");
+        Batch defaultBatch = createBatch(recvTimeTs, normalService, normalDefaultServicePath, normalDefaultDestination,
+                singleNotifyContextRequest.getContextResponses().get(0).getContextElement());
+        Batch groupedBatch = createBatch(recvTimeTs, normalService, normalGroupedServicePath, normalGroupedDestination,
+                singleNotifyContextRequest.getContextResponses().get(0).getContextElement());
+        String fileFormat = "csv-row";
+        boolean useDeprecatedParams = false;
+        Context context = createContext(useDeprecatedParams, fileFormat);
+        sink.configure(context);
+        sink.setChannel(new MemoryChannel());
+        
+        try {
+            sink.persistBatch(defaultBatch, groupedBatch);
+            verify(mockWebHDFSBackend).createFile(endsWith(normalGroupedDestination + "/" + normalGroupedDestination
+                    + ".txt"), any(byte[].class), anyInt());
+            verify(mockWebHDFSBackend, times(1)).createFile(anyString(), any(byte[].class), anyInt());
+            verify(mockWebHDFSBackend, never()).append(anyString(), any(byte[].class), anyInt());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testPersistEmptyMetadata
+    
     /**
      * Test of persistBatch method, of class OrionHDFSSink. Special resources length is tested.
      * @throws java.lang.Exception
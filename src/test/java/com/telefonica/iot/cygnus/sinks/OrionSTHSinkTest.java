@@ -19,6 +19,7 @@ package com.telefonica.iot.cygnus.sinks;
 
 import com.telefonica.iot.cygnus.backends.mongo.MongoBackend;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.Routing;
 import com.telefonica.iot.cygnus.utils.Constants;
 import com.telefonica.iot.cygnus.utils.TestUtils;
 import java.util.HashMap;
@@ -190,7 +191,7 @@ public class OrionSTHSinkTest {
         headers.put(Constants.HEADER_GROUPED_DESTINATIONS, singleDestinationHeader);
         
         try {
-            sink.persistOne(headers, singleNotifyContextRequest);
+            sink.persistOne(headers, singleNotifyContextRequest, Routing.fromHeaders(headers));
         } catch (Exception e) {
             fail(e.getMessage());
         } finally {
@@ -208,7 +209,7 @@ public class OrionSTHSinkTest {
         headers.put(Constants.HEADER_GROUPED_DESTINATIONS, multipleDestinationHeader);
         
         try {
-            sink.persistOne(headers, multipleNotifyContextRequest);
+            sink.persistOne(headers, multipleNotifyContextRequest, Routing.fromHeaders(headers));
         } catch (Exception e) {
             fail(e.getMessage());
         } finally {
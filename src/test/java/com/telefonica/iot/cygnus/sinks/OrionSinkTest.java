@@ -0,0 +1,581 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequestEvent;
+import com.telefonica.iot.cygnus.containers.Routing;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
+import com.telefonica.iot.cygnus.utils.Constants;
+import com.telefonica.iot.cygnus.utils.TestUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Sink.Status;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.conf.Configurables;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class OrionSinkTest {
+
+    // constants
+    private final int numDestinations = 8;
+    private final int numEventsPerDestination = 50;
+    private final String notificationJson = "{\"subscriptionId\":\"51c0ac9ed714fb3b37d7d5a8\","
+            + "\"originator\":\"localhost\",\"contextResponses\":["
+            + "{\"contextElement\":{\"id\":\"room0\",\"type\":\"room\",\"isPattern\":\"false\","
+            + "\"attributes\":[]},\"statusCode\":{\"code\":\"200\",\"reasonPhrase\":\"OK\"}},"
+            + "{\"contextElement\":{\"id\":\"room1\",\"type\":\"room\",\"isPattern\":\"false\","
+            + "\"attributes\":[]},\"statusCode\":{\"code\":\"200\",\"reasonPhrase\":\"OK\"}}]}";
+
+    /**
+     * Test of accumulate method, of class OrionSink.Accumulator. The default batch is accumulated by default
+     * destination, and the grouped batch by grouped destination.
+     */
+    @Test
+    public void testAccumulate() {
+        System.out.println("Testing OrionSink.Accumulator.accumulate (default and grouped destinations)");
+        OrionSink.Accumulator accumulator = new OrionTestSink().new Accumulator();
+        accumulator.initializeBatching(1429535775000L);
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.HEADER_TIMESTAMP, "1429535775000");
+        headers.put(Constants.HEADER_NOTIFIED_SERVICE, "service");
+        headers.put(Constants.HEADER_TRANSACTION_ID, "1429535775-308-0000000000");
+        NotifyContextRequest notification = TestUtils.createJsonNotifyContextRequest(notificationJson);
+        Routing routing = new Routing(new String[] {"room0", "room1"}, new String[] {"/rooms", "/rooms"},
+                new String[] {"rooms", "rooms"}, new String[] {"/all", "/all"});
+
+        try {
+            accumulator.accumulate(headers, notification, routing);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+
+        Batch defaultBatch = accumulator.getDefaultBatch();
+        assertEquals(1, defaultBatch.getEvents("room0").size());
+        assertEquals(1, defaultBatch.getEvents("room1").size());
+        assertNull(defaultBatch.getEvents("rooms"));
+        Batch groupedBatch = accumulator.getGroupedBatch();
+        ArrayList<CygnusEvent> groupedEvents = groupedBatch.getEvents("rooms");
+        assertEquals(2, groupedEvents.size());
+        assertEquals("/all", groupedEvents.get(0).getServicePath());
+        assertNull(groupedBatch.getEvents("room0"));
+        assertNull(groupedBatch.getEvents("room1"));
+    } // testAccumulate
+
+    /**
+     * Test of persistSubBatches method, of class OrionSink. The sub-batches are persisted in parallel, in order within
+     * each destination, and the failed destinations are not set as persisted.
+     */
+    @Test
+    public void testPersistSubBatches() {
+        System.out.println("Testing OrionSink.persistSubBatches (several batch workers)");
+        RecordingSink sink = new RecordingSink(4);
+        Batch batch = createBatch();
+
+        try {
+            sink.persistSubBatches(batch);
+            fail("The failed destinations were not reported");
+        } catch (CygnusPersistenceError e) {
+            assertTrue(true); // persistence errors are preferred over the runtime ones
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+
+        for (int i = 0; i < numDestinations; i++) {
+            String destination = "room" + i;
+            assertEquals(i > 1, batch.isPersisted(destination));
+            assertEquals(i > 1 ? batch.getEvents(destination) : null, sink.persisted.get(destination));
+        } // for
+
+        // the already persisted destinations are not persisted again
+        sink.failing = false;
+
+        try {
+            sink.persistSubBatches(batch);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+
+        for (int i = 0; i < numDestinations; i++) {
+            String destination = "room" + i;
+            assertTrue(batch.isPersisted(destination));
+            assertEquals(i > 1 ? 1 : 2, sink.calls.get(destination).intValue());
+        } // for
+
+        sink.stop();
+    } // testPersistSubBatches
+
+    /**
+     * Test of persistSubBatches method, of class OrionSink. With a single worker the sub-batches are persisted by the
+     * sink runner thread.
+     */
+    @Test
+    public void testPersistSubBatchesSingleWorker() {
+        System.out.println("Testing OrionSink.persistSubBatches (a single batch worker)");
+        RecordingSink sink = new RecordingSink(1);
+        sink.failing = false;
+        Batch batch = createBatch();
+
+        try {
+            sink.persistSubBatches(batch);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+
+        for (int i = 0; i < numDestinations; i++) {
+            assertTrue(batch.isPersisted("room" + i));
+        } // for
+
+        assertEquals(Collections.singleton(Thread.currentThread().getName()), sink.threads);
+        sink.stop();
+    } // testPersistSubBatchesSingleWorker
+
+    /**
+     * Test of process method, of class OrionSink. A batch failing due to a persistence error is kept and only its not
+     * persisted destinations are retried.
+     */
+    @Test
+    public void testProcessRetry() {
+        System.out.println("Testing OrionSink.process (the not persisted destinations are retried)");
+        RecordingSink sink = new RecordingSink(1);
+        putEvents(sink.getChannel(), 2, "1");
+
+        try {
+            assertEquals(Status.BACKOFF, sink.process());
+            assertTrue(sink.getAccumulator().isRetrying());
+            assertEquals(0, sink.getAccumulator().getAccTTL());
+            sink.failing = false;
+            assertEquals(Status.READY, sink.process());
+            assertFalse(sink.getAccumulator().isRetrying());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+
+        assertEquals(1, sink.calls.get("room0").intValue());
+        assertEquals(2, sink.calls.get("room1").intValue());
+        assertEquals(2, sink.persisted.get("room1").size());
+
+        // once the TTL has expired the batch is no more retried
+        putEvents(sink.getChannel(), 2, "0");
+        sink.failing = true;
+
+        try {
+            assertEquals(Status.BACKOFF, sink.process());
+            assertFalse(sink.getAccumulator().isRetrying());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+
+        sink.stop();
+    } // testProcessRetry
+
+    /**
+     * Test of scheduleRetry method, of class OrionSink.Accumulator.
+     */
+    @Test
+    public void testScheduleRetry() {
+        System.out.println("Testing OrionSink.Accumulator.scheduleRetry");
+        RecordingSink sink = new RecordingSink(1);
+        OrionSink.Accumulator accumulator = sink.new Accumulator();
+        accumulator.initializeBatching(0);
+        HashMap<String, String> headers = createHeaders("3");
+        accumulator.accumulate(headers, TestUtils.createJsonNotifyContextRequest(notificationJson),
+                Routing.fromHeaders(headers));
+        headers = createHeaders("-1");
+        accumulator.accumulate(headers, TestUtils.createJsonNotifyContextRequest(notificationJson),
+                Routing.fromHeaders(headers));
+        assertEquals(3, accumulator.getAccTTL());
+        assertTrue(accumulator.scheduleRetry(0, 1000, 3000));
+        assertEquals(1000, accumulator.getAccNextRetryDate());
+        assertTrue(accumulator.scheduleRetry(0, 1000, 3000));
+        assertEquals(2000, accumulator.getAccNextRetryDate());
+        assertTrue(accumulator.scheduleRetry(0, 1000, 3000));
+        assertEquals(3000, accumulator.getAccNextRetryDate());
+        assertFalse(accumulator.scheduleRetry(0, 1000, 3000));
+        assertEquals(3, accumulator.getAccRetries());
+        sink.stop();
+    } // testScheduleRetry
+
+    /**
+     * Test of process method, of class OrionSink. The batch is closed once its maximum size in bytes is reached.
+     */
+    @Test
+    public void testProcessMaxBytes() {
+        System.out.println("Testing OrionSink.process (the batch is closed by size)");
+        Context context = createContext(1);
+        context.put("batch_size", "100");
+        context.put("batch_max_bytes", "250");
+        RecordingSink sink = new RecordingSink(context);
+        sink.failing = false;
+        putEvents(sink.getChannel(), 5, "1");
+
+        try {
+            assertEquals(Status.READY, sink.process());
+            assertEquals(3, sink.persisted.get("room0").size());
+            assertEquals(Status.BACKOFF, sink.process());
+            assertEquals(2, sink.getAccumulator().getAccIndex());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+
+        sink.stop();
+    } // testProcessMaxBytes
+
+    /**
+     * Test of process method, of class OrionSink. The batch size is halved when the persistence is slower than the
+     * target latency, and it is increased again when it is faster.
+     */
+    @Test
+    public void testProcessAdaptiveBatchSize() {
+        System.out.println("Testing OrionSink.process (the batch size is adapted to the persistence latency)");
+        Context context = createContext(1);
+        context.put("batch_size", "4");
+        context.put("batch_target_latency", "20");
+        RecordingSink sink = new RecordingSink(context);
+        sink.failing = false;
+        sink.latency = 50;
+        putEvents(sink.getChannel(), 4, "1");
+
+        try {
+            assertEquals(Status.READY, sink.process());
+            assertEquals(2, sink.getCurrentBatchSize());
+            sink.latency = 0;
+            putEvents(sink.getChannel(), 2, "1");
+            assertEquals(Status.READY, sink.process());
+            assertEquals(2, sink.persisted.get("room0").size());
+            assertEquals(3, sink.getCurrentBatchSize());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+
+        sink.stop();
+    } // testProcessAdaptiveBatchSize
+
+    /**
+     * Test of process method, of class OrionSink. A batch is persisted while the next one is accumulated, and the
+     * events of the next one are put again in the channel if the batch fails.
+     */
+    @Test
+    public void testProcessPipelining() {
+        System.out.println("Testing OrionSink.process (a batch is persisted while the next one is accumulated)");
+        Context context = createContext(1);
+        context.put("batch_pipelining", "true");
+        RecordingSink sink = new RecordingSink(context);
+        sink.failing = false;
+        sink.latency = 100;
+        putEvents(sink.getChannel(), 4, "1");
+
+        try {
+            assertEquals(Status.READY, sink.process());
+            assertNull(sink.calls.get("room0")); // the first batch is still being persisted
+            assertEquals(Status.READY, sink.process());
+            assertEquals(1, sink.calls.get("room0").intValue());
+            assertEquals(Status.BACKOFF, sink.process());
+            assertEquals(2, sink.calls.get("room0").intValue());
+
+            // the second batch fails, thus the events taken meanwhile are put again in the channel
+            sink.latency = 0;
+            sink.failing = true;
+            sink.calls.clear();
+            putEvents(sink.getChannel(), 4, "1");
+            assertEquals(Status.READY, sink.process());
+            assertEquals(Status.BACKOFF, sink.process());
+            assertTrue(sink.getAccumulator().isRetrying());
+            sink.failing = false;
+            assertEquals(Status.READY, sink.process()); // only room1 is retried
+            assertEquals(Status.READY, sink.process());
+            assertEquals(Status.BACKOFF, sink.process());
+            assertEquals(2, sink.calls.get("room0").intValue());
+            assertEquals(3, sink.calls.get("room1").intValue());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+
+        sink.stop();
+    } // testProcessPipelining
+    
+    /**
+     * Test of stop method, of class OrionSink. The batch being persisted by the batch persister is waited for, and the
+     * events of a failed one are put again in the channel.
+     */
+    @Test
+    public void testStopPipelining() {
+        System.out.println("Testing OrionSink.stop (a batch is being persisted by the batch persister)");
+        Context context = createContext(1);
+        context.put("batch_pipelining", "true");
+        RecordingSink sink = new RecordingSink(context);
+        sink.failing = false;
+        sink.latency = 500;
+        putEvents(sink.getChannel(), 2, "1");
+        
+        try {
+            assertEquals(Status.READY, sink.process());
+            assertNull(sink.persisted.get("room0")); // the batch is still being persisted
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        sink.stop();
+        assertNotNull(sink.persisted.get("room0"));
+        assertNotNull(sink.persisted.get("room1"));
+        assertEquals(0, takeAll(sink.getChannel()));
+        
+        // the batch being persisted fails
+        sink = new RecordingSink(context);
+        sink.failing = true;
+        putEvents(sink.getChannel(), 2, "1");
+        
+        try {
+            assertEquals(Status.READY, sink.process());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        sink.stop();
+        assertEquals(2, takeAll(sink.getChannel()));
+    } // testStopPipelining
+
+    /**
+     * Test of process and stop methods, of class OrionSink. When the sink runner is interrupted while the batch
+     * workers persist the batch, the events are put again in the channel instead of being committed, and the workers
+     * are allowed to finish.
+     */
+    @Test
+    public void testProcessInterrupted() {
+        System.out.println("Testing OrionSink.process (the sink is interrupted while persisting a batch)");
+        final RecordingSink sink = new RecordingSink(4);
+        sink.failing = false;
+        sink.latency = 500;
+        putEvents(sink.getChannel(), 2, "1");
+        final Status[] status = new Status[1];
+        Thread runner = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    status[0] = sink.process();
+                } catch (Exception e) {
+                    status[0] = null;
+                } // try catch
+            } // run
+            
+        });
+        
+        try {
+            runner.start();
+            Thread.sleep(100);
+            runner.interrupt();
+            runner.join();
+            assertEquals(Status.BACKOFF, status[0]);
+            sink.stop();
+            assertNotNull(sink.persisted.get("room0"));
+            assertNotNull(sink.persisted.get("room1"));
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        // the events were not committed
+        Transaction txn = sink.getChannel().getTransaction();
+        txn.begin();
+        assertNotNull(sink.getChannel().take());
+        assertNotNull(sink.getChannel().take());
+        assertNull(sink.getChannel().take());
+        txn.commit();
+        txn.close();
+    } // testProcessInterrupted
+    
+    /**
+     * Test of stop method, of class OrionSink. The events of the batch pending to be retried, and those of the batch
+     * being accumulated, are put again in the channel instead of being lost.
+     */
+    @Test
+    public void testStopRequeue() {
+        System.out.println("Testing OrionSink.stop (the not persisted events are put again in the channel)");
+        RecordingSink sink = new RecordingSink(1);
+        putEvents(sink.getChannel(), 2, "-1");
+        
+        try {
+            assertEquals(Status.BACKOFF, sink.process());
+            assertTrue(sink.getAccumulator().isRetrying());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        sink.stop();
+        assertEquals(2, takeAll(sink.getChannel()));
+        
+        // a partial batch
+        sink = new RecordingSink(1);
+        putEvents(sink.getChannel(), 1, "-1");
+        
+        try {
+            assertEquals(Status.BACKOFF, sink.process());
+            assertEquals(1, sink.getAccumulator().getAccIndex());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        sink.stop();
+        assertEquals(1, takeAll(sink.getChannel()));
+    } // testStopRequeue
+
+    private Context createContext(int batchWorkers) {
+        Context context = new Context();
+        context.put("batch_workers", Integer.toString(batchWorkers));
+        context.put("batch_size", "2");
+        context.put("batch_retry_interval", "0");
+        return context;
+    } // createContext
+
+    private HashMap<String, String> createHeaders(String ttl) {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.HEADER_TIMESTAMP, "1429535775");
+        headers.put(Constants.HEADER_NOTIFIED_SERVICE, "service");
+        headers.put(Constants.HEADER_TRANSACTION_ID, "1429535775-308-0000000000");
+        headers.put(Constants.HEADER_TTL, ttl);
+        new Routing(new String[] {"room0", "room1"}, new String[] {"/rooms", "/rooms"},
+                new String[] {"rooms", "rooms"}, new String[] {"/all", "/all"}).toHeaders(headers);
+        return headers;
+    } // createHeaders
+
+    private void putEvents(Channel channel, int numEvents, String ttl) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+
+        for (int i = 0; i < numEvents; i++) {
+            channel.put(new NotifyContextRequestEvent(createHeaders(ttl), new byte[100],
+                    TestUtils.createJsonNotifyContextRequest(notificationJson)));
+        } // for
+
+        txn.commit();
+        txn.close();
+    } // putEvents
+
+    private int takeAll(Channel channel) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        int numEvents = 0;
+
+        while (channel.take() != null) {
+            numEvents++;
+        } // while
+
+        txn.commit();
+        txn.close();
+        return numEvents;
+    } // takeAll
+
+    private Batch createBatch() {
+        Batch batch = new Batch();
+
+        for (int i = 0; i < numDestinations; i++) {
+            String destination = "room" + i;
+            ArrayList<CygnusEvent> events = new ArrayList<CygnusEvent>();
+
+            for (int j = 0; j < numEventsPerDestination; j++) {
+                events.add(new CygnusEvent(j, "service", "/servicepath", destination, null));
+            } // for
+
+            batch.addEvents(destination, events);
+        } // for
+
+        return batch;
+    } // createBatch
+
+    /**
+     * Sink recording the persisted events; the room0 and room1 destinations fail while failing is true.
+     */
+    private class RecordingSink extends OrionSink {
+
+        private final Map<String, List<CygnusEvent>> persisted =
+                Collections.synchronizedMap(new HashMap<String, List<CygnusEvent>>());
+        private final Map<String, Integer> calls = Collections.synchronizedMap(new HashMap<String, Integer>());
+        private final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        private volatile boolean failing = true;
+        private volatile long latency = 0;
+
+        RecordingSink(int batchWorkers) {
+            this(createContext(batchWorkers));
+        } // RecordingSink
+
+        RecordingSink(Context context) {
+            setName("recording-sink");
+            configure(context);
+            MemoryChannel channel = new MemoryChannel();
+            Context channelContext = new Context();
+            channelContext.put("keep-alive", "0");
+            Configurables.configure(channel, channelContext);
+            setChannel(channel);
+            start();
+        } // RecordingSink
+
+        @Override
+        void persistSubBatch(String destination, ArrayList<CygnusEvent> subBatch) throws Exception {
+            Integer count = calls.get(destination);
+            calls.put(destination, count == null ? 1 : count + 1);
+            threads.add(Thread.currentThread().getName());
+
+            if (failing && destination.equals("room0")) {
+                throw new CygnusRuntimeError("room0 failed");
+            } else if (failing && destination.equals("room1")) {
+                throw new CygnusPersistenceError("room1 failed");
+            } // if else if
+
+            if (latency > 0) {
+                Thread.sleep(latency);
+            } // if
+
+            List<CygnusEvent> events = new ArrayList<CygnusEvent>();
+
+            for (CygnusEvent event : subBatch) {
+                Thread.yield();
+                events.add(event);
+            } // for
+
+            persisted.put(destination, events);
+        } // persistSubBatch
+
+        @Override
+        void persistOne(Map<String, String> eventHeaders, NotifyContextRequest notification, Routing routing)
+            throws Exception {
+            throw new UnsupportedOperationException("Not supported yet.");
+        } // persistOne
+
+        @Override
+        void persistBatch(Batch defaultEvents, Batch groupedEvents) throws Exception {
+            persistSubBatches(defaultEvents);
+        } // persistBatch
+
+    } // RecordingSink
+
+} // OrionSinkTest
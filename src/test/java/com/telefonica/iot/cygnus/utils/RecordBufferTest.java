@@ -0,0 +1,93 @@
+/**
+ * Copyright 2015 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FI-WARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.utils;
+
+import static org.junit.Assert.*; // this is required by "fail" like assertions
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class RecordBufferTest {
+    
+    /**
+     * Test of append methods, of class RecordBuffer. Strings are encoded in UTF-8, including the multibyte and the
+     * surrogate pair characters.
+     */
+    @Test
+    public void testAppend() {
+        System.out.println("Testing RecordBuffer.append (UTF-8 encoding)");
+        String data = "recvTime=ñandú,temperature=25º,unit=€,emoji=😀";
+        
+        try {
+            RecordBuffer buffer = new RecordBuffer(4);
+            buffer.append(data).append(',').append(-1234567890123L).append((String) null);
+            String expected = data + ",-1234567890123null";
+            assertTrue(Arrays.equals(expected.getBytes("UTF-8"), buffer.toByteArray()));
+            assertEquals(expected.getBytes("UTF-8").length, buffer.size());
+            assertEquals(expected, buffer.toString());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            buffer.writeTo(out);
+            assertEquals(expected, out.toString("UTF-8"));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testAppend
+    
+    /**
+     * Test of appendRemoving method, of class RecordBuffer. The given character is not written.
+     */
+    @Test
+    public void testAppendRemoving() {
+        System.out.println("Testing RecordBuffer.appendRemoving");
+        
+        try {
+            RecordBuffer buffer = new RecordBuffer();
+            buffer.appendRemoving("\"26.5\"", '"').append(',').appendRemoving("\"señal\"", '"');
+            assertEquals("26.5,señal", buffer.toString());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testAppendRemoving
+    
+    /**
+     * Test of reset and getThreadBuffer methods, of class RecordBuffer. The thread buffer is reused and emptied each
+     * time it is got.
+     */
+    @Test
+    public void testThreadBuffer() {
+        System.out.println("Testing RecordBuffer.getThreadBuffer and reset");
+        
+        try {
+            RecordBuffer buffer = RecordBuffer.getThreadBuffer();
+            buffer.append("some data");
+            assertFalse(buffer.isEmpty());
+            RecordBuffer sameBuffer = RecordBuffer.getThreadBuffer();
+            assertSame(buffer, sameBuffer);
+            assertTrue(sameBuffer.isEmpty());
+            assertEquals("", sameBuffer.toString());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testThreadBuffer
+    
+} // RecordBufferTest